@@ -77,8 +77,11 @@ public interface CryptoComponent {
 	 */
 	SecretKey deriveFrameKey(byte[] secret, long streamNumber, boolean alice);
 
-	/** Encodes the pseudo-random tag that is used to recognise a stream. */
-	void encodeTag(byte[] tag, SecretKey tagKey, long streamNumber);
+	/**
+	 * Returns a {@link TagEncoder} for encoding the pseudo-random tags that
+	 * are used to recognise streams, using the given tag key.
+	 */
+	TagEncoder getTagEncoder(SecretKey tagKey);
 
 	/**
 	 * Encrypts and authenticates the given plaintext so it can be written to
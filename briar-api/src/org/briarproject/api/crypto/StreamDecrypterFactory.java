@@ -6,8 +6,12 @@ import org.briarproject.api.transport.StreamContext;
 
 public interface StreamDecrypterFactory {
 
-	/** Creates a {@link StreamDecrypter} for decrypting a transport stream. */
-	StreamDecrypter createStreamDecrypter(InputStream in, StreamContext ctx);
+	/**
+	 * Creates a {@link StreamDecrypter} for decrypting a transport stream
+	 * with frames of at most the given length.
+	 */
+	StreamDecrypter createStreamDecrypter(InputStream in, StreamContext ctx,
+			int maxFrameLength);
 
 	/**
 	 * Creates a {@link StreamDecrypter} for decrypting an invitation stream.
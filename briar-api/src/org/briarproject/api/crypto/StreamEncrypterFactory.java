@@ -6,8 +6,12 @@ import org.briarproject.api.transport.StreamContext;
 
 public interface StreamEncrypterFactory {
 
-	/** Creates a {@link StreamEncrypter} for encrypting a transport stream. */
-	StreamEncrypter createStreamEncrypter(OutputStream out, StreamContext ctx);
+	/**
+	 * Creates a {@link StreamEncrypter} for encrypting a transport stream
+	 * with frames of at most the given length.
+	 */
+	StreamEncrypter createStreamEncrypter(OutputStream out, StreamContext ctx,
+			int maxFrameLength);
 
 	/**
 	 * Creates a {@link StreamEncrypter} for encrypting an invitation stream.
@@ -0,0 +1,14 @@
+package org.briarproject.api.crypto;
+
+/**
+ * Encodes the pseudo-random tags that are used to recognise streams, using a
+ * single tag key. The key schedule is computed once, so the encoder should be
+ * reused for all the tags encoded with the same key.
+ * <p>
+ * Implementations are not thread-safe.
+ */
+public interface TagEncoder {
+
+	/** Encodes the tag for the given stream number. */
+	void encodeTag(byte[] tag, long streamNumber);
+}
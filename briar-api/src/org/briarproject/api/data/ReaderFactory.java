@@ -5,4 +5,7 @@ import java.io.InputStream;
 public interface ReaderFactory {
 
 	Reader createReader(InputStream in);
+
+	/** Returns a reader for the given window of the given array. */
+	Reader createReader(byte[] b, int off, int len);
 }
@@ -262,6 +262,13 @@ public interface DatabaseComponent {
 	/** Processes a message from the given contact. */
 	void receiveMessage(ContactId c, Message m) throws DbException;
 
+	/**
+	 * Processes a batch of messages from the given contact in a single
+	 * transaction.
+	 */
+	void receiveMessages(ContactId c, Collection<Message> messages)
+			throws DbException;
+
 	/** Processes an offer from the given contact. */
 	void receiveOffer(ContactId c, Offer o) throws DbException;
 
@@ -0,0 +1,18 @@
+package org.briarproject.api.db;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Creates executors for database tasks that belong to a single session, so
+ * that sessions don't have to wait for each other's tasks.
+ */
+public interface DatabaseExecutorFactory {
+
+	/**
+	 * Returns a new executor with the same contract as the
+	 * {@link DatabaseExecutor}, except that tasks submitted to different
+	 * executors, or to the {@link DatabaseExecutor}, may be executed
+	 * concurrently.
+	 */
+	Executor createDatabaseExecutor();
+}
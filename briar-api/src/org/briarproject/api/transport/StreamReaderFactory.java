@@ -6,9 +6,10 @@ public interface StreamReaderFactory {
 
 	/**
 	 * Creates an {@link java.io.InputStream InputStream} for reading from a
-	 * transport stream.
+	 * transport stream with frames of at most the given length.
 	 */
-	InputStream createStreamReader(InputStream in, StreamContext ctx);
+	InputStream createStreamReader(InputStream in, StreamContext ctx,
+			int maxFrameLength);
 
 	/**
 	 * Creates an {@link java.io.InputStream InputStream} for reading from an
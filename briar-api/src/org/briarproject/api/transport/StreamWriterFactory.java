@@ -6,9 +6,10 @@ public interface StreamWriterFactory {
 
 	/**
 	 * Creates an {@link java.io.OutputStream OutputStream} for writing to a
-	 * transport stream
+	 * transport stream with frames of at most the given length.
 	 */
-	OutputStream createStreamWriter(OutputStream out, StreamContext ctx);
+	OutputStream createStreamWriter(OutputStream out, StreamContext ctx,
+			int maxFrameLength);
 
 	/**
 	 * Creates an {@link java.io.OutputStream OutputStream} for writing to an
@@ -18,6 +18,27 @@ public interface TransportConstants {
 	/** The maximum total length of the frame payload and padding in bytes. */
 	int MAX_PAYLOAD_LENGTH = MAX_FRAME_LENGTH - HEADER_LENGTH - MAC_LENGTH;
 
+	/**
+	 * The maximum length of a frame in bytes on transports that use large
+	 * frames, including the header and MAC.
+	 */
+	int MAX_LARGE_FRAME_LENGTH = 32 * 1024; // 32 KiB
+
+	/**
+	 * The maximum total length of the frame payload and padding in bytes on
+	 * transports that use large frames.
+	 */
+	int MAX_LARGE_PAYLOAD_LENGTH =
+			MAX_LARGE_FRAME_LENGTH - HEADER_LENGTH - MAC_LENGTH;
+
+	/**
+	 * The transport property in which a device advertises the maximum length
+	 * of the frames it can read from the transport, including the header and
+	 * MAC. Streams use frames of at most {@link #MAX_FRAME_LENGTH} bytes
+	 * unless both devices advertise a larger length.
+	 */
+	String MAX_FRAME_LENGTH_PROPERTY = "maxFrameLength";
+
 	/** The length of the initalisation vector (IV) in bytes. */
 	int IV_LENGTH = 12;
 
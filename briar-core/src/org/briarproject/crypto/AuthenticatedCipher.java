@@ -9,6 +9,10 @@ interface AuthenticatedCipher {
 	/**
 	 * Initializes this cipher for encryption or decryption with a key and an
 	 * initialisation vector (IV).
+	 * <p>
+	 * If the key is the same object that was passed to the previous call, the
+	 * cipher may reuse the key schedule it derived from the key's bytes, so
+	 * the bytes must not be changed while the cipher holds the key.
 	 */
 	void init(boolean encrypt, SecretKey key, byte[] iv)
 			throws GeneralSecurityException;
@@ -18,6 +18,8 @@ class AuthenticatedCipherImpl implements AuthenticatedCipher {
 
 	private final AEADBlockCipher cipher;
 
+	private SecretKey lastKey = null;
+
 	AuthenticatedCipherImpl() {
 		cipher = new GCMBlockCipher(new AESLightEngine(),
 				new BasicGCMMultiplier());
@@ -41,14 +43,20 @@ class AuthenticatedCipherImpl implements AuthenticatedCipher {
 
 	public void init(boolean encrypt, SecretKey key, byte[] iv)
 			throws GeneralSecurityException {
-		KeyParameter k = new KeyParameter(key.getBytes());
+		// If the key object hasn't changed, passing a null key parameter
+		// reuses the expanded key and GHASH key from the last call. The key's
+		// contents aren't compared - see AuthenticatedCipher.init()
+		KeyParameter k = null;
+		if(key != lastKey) k = new KeyParameter(key.getBytes());
 		// Authenticate the IV by passing it as additional authenticated data
 		AEADParameters params = new AEADParameters(k, MAC_LENGTH * 8, iv, iv);
 		try {
 			cipher.init(encrypt, params);
 		} catch(IllegalArgumentException e) {
+			lastKey = null;
 			throw new GeneralSecurityException(e.getMessage());
 		}
+		lastKey = key;
 	}
 
 	public int getMacBytes() {
@@ -0,0 +1,137 @@
+package org.briarproject.crypto;
+
+import static java.util.logging.Level.INFO;
+import static org.briarproject.api.transport.TransportConstants.IV_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAC_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAX_PAYLOAD_LENGTH;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import javax.inject.Provider;
+
+import org.briarproject.api.crypto.SecretKey;
+
+/**
+ * Provides the platform's authenticated cipher if it's known to be
+ * hardware-accelerated and constant-time, otherwise our own. The platform's
+ * implementation is only used if it produces exactly the same output as our
+ * own. The choice is made the first time a cipher is needed.
+ * <p>
+ * Our own implementation uses a constant-time AES engine and GHASH
+ * multiplier, so it's never replaced with a table-based one, however fast.
+ * The platform's implementation is only used if it comes from Conscrypt,
+ * which uses the CPU's AES instructions where they exist and constant-time
+ * code where they don't. Other providers, such as SunJCE, which falls back to
+ * table-based AES without the CPU's AES instructions, and Bouncy Castle on
+ * older Android versions, are never used.
+ */
+class AuthenticatedCipherProvider implements Provider<AuthenticatedCipher> {
+
+	private static final Logger LOG =
+			Logger.getLogger(AuthenticatedCipherProvider.class.getName());
+
+	private static final int[] CROSS_CHECK_LENGTHS =
+		{ 0, 1, 4, 15, 16, 17, MAX_PAYLOAD_LENGTH };
+
+	private final Lock synchLock = new ReentrantLock();
+
+	private Boolean useJca = null; // Locking: synchLock
+
+	public AuthenticatedCipher get() {
+		if(useJca()) {
+			try {
+				return new JcaAuthenticatedCipher();
+			} catch(GeneralSecurityException e) {
+				// The cipher was available when it was checked
+				throw new RuntimeException(e);
+			}
+		}
+		return new AuthenticatedCipherImpl();
+	}
+
+	private boolean useJca() {
+		synchLock.lock();
+		try {
+			if(useJca == null) useJca = chooseJca();
+			return useJca;
+		} finally {
+			synchLock.unlock();
+		}
+	}
+
+	private boolean chooseJca() {
+		try {
+			JcaAuthenticatedCipher jca = new JcaAuthenticatedCipher();
+			String provider = jca.getProviderName();
+			if(!isConstantTime(provider)) {
+				if(LOG.isLoggable(INFO))
+					LOG.info("Not using platform cipher from " + provider);
+				return false;
+			}
+			if(!crossCheck(new AuthenticatedCipherImpl(), jca,
+					new Random())) {
+				LOG.warning("Platform cipher does not match our cipher");
+				return false;
+			}
+			if(LOG.isLoggable(INFO))
+				LOG.info("Using platform cipher from " + provider);
+			return true;
+		} catch(GeneralSecurityException e) {
+			if(LOG.isLoggable(INFO))
+				LOG.info("Platform cipher not available: " + e);
+			return false;
+		} catch(LinkageError e) {
+			// Older platforms don't have the GCM parameter classes
+			if(LOG.isLoggable(INFO))
+				LOG.info("Platform cipher not available: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Returns true if the named provider's AES/GCM implementation is known
+	 * to be constant-time.
+	 */
+	static boolean isConstantTime(String provider) {
+		return provider.equals("AndroidOpenSSL")
+				|| provider.equals("Conscrypt");
+	}
+
+	/**
+	 * Returns true if the given ciphers produce the same ciphertexts for
+	 * random keys, IVs and plaintexts, and can decrypt each other's output.
+	 */
+	static boolean crossCheck(AuthenticatedCipher a, AuthenticatedCipher b,
+			Random random) throws GeneralSecurityException {
+		byte[] key = new byte[SecretKey.LENGTH];
+		byte[] iv = new byte[IV_LENGTH];
+		for(int length : CROSS_CHECK_LENGTHS) {
+			random.nextBytes(key);
+			random.nextBytes(iv);
+			SecretKey k = new SecretKey(key);
+			byte[] plaintext = new byte[length];
+			random.nextBytes(plaintext);
+			byte[] ciphertextA = new byte[length + MAC_LENGTH];
+			a.init(true, k, iv);
+			a.process(plaintext, 0, length, ciphertextA, 0);
+			byte[] ciphertextB = new byte[length + MAC_LENGTH];
+			b.init(true, k, iv);
+			b.process(plaintext, 0, length, ciphertextB, 0);
+			if(!Arrays.equals(ciphertextA, ciphertextB)) return false;
+			byte[] decrypted = new byte[length];
+			a.init(false, k, iv);
+			a.process(ciphertextB, 0, ciphertextB.length, decrypted, 0);
+			if(!Arrays.equals(plaintext, decrypted)) return false;
+			b.init(false, k, iv);
+			b.process(ciphertextA, 0, ciphertextA.length, decrypted, 0);
+			if(!Arrays.equals(plaintext, decrypted)) return false;
+		}
+		return true;
+	}
+
+}
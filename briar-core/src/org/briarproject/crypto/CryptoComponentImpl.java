@@ -2,20 +2,18 @@ package org.briarproject.crypto;
 
 import static java.util.logging.Level.INFO;
 import static org.briarproject.api.invitation.InvitationConstants.CODE_BITS;
-import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
 import static org.briarproject.crypto.EllipticCurveConstants.PARAMETERS;
 import static org.briarproject.util.ByteUtils.MAX_32_BIT_UNSIGNED;
 
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
 import javax.inject.Inject;
 
 import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.crypto.CryptoExecutor;
 import org.briarproject.api.crypto.KeyPair;
 import org.briarproject.api.crypto.KeyParser;
 import org.briarproject.api.crypto.MessageDigest;
@@ -24,19 +22,15 @@ import org.briarproject.api.crypto.PseudoRandom;
 import org.briarproject.api.crypto.PublicKey;
 import org.briarproject.api.crypto.SecretKey;
 import org.briarproject.api.crypto.Signature;
+import org.briarproject.api.crypto.TagEncoder;
 import org.briarproject.api.system.SeedProvider;
 import org.briarproject.util.ByteUtils;
 import org.briarproject.util.StringUtils;
 import org.spongycastle.crypto.AsymmetricCipherKeyPair;
-import org.spongycastle.crypto.BlockCipher;
-import org.spongycastle.crypto.CipherParameters;
-import org.spongycastle.crypto.Digest;
 import org.spongycastle.crypto.Mac;
 import org.spongycastle.crypto.agreement.ECDHCBasicAgreement;
 import org.spongycastle.crypto.digests.SHA256Digest;
-import org.spongycastle.crypto.engines.AESLightEngine;
 import org.spongycastle.crypto.generators.ECKeyPairGenerator;
-import org.spongycastle.crypto.generators.PKCS5S2ParametersGenerator;
 import org.spongycastle.crypto.macs.HMac;
 import org.spongycastle.crypto.params.ECKeyGenerationParameters;
 import org.spongycastle.crypto.params.ECPrivateKeyParameters;
@@ -53,7 +47,10 @@ class CryptoComponentImpl implements CryptoComponent {
 	private static final int STORAGE_IV_BYTES = 16; // 128 bits
 	private static final int PBKDF_SALT_BYTES = 16; // 128 bits
 	private static final int PBKDF_TARGET_MILLIS = 500;
-	private static final int PBKDF_SAMPLES = 30;
+	private static final int MAX_PBKDF_LANES = 8;
+	private static final int PBKDF_LANES = Math.min(MAX_PBKDF_LANES,
+			Runtime.getRuntime().availableProcessors());
+	private static final long PBKDF_LANES_FLAG = 0x80000000L;
 
 	// Labels for secret derivation
 	private static final byte[] MASTER = { 'M', 'A', 'S', 'T', 'E', 'R', '\0' };
@@ -72,13 +69,16 @@ class CryptoComponentImpl implements CryptoComponent {
 	private static final byte[] B_FRAME =
 		{ 'B', '_', 'F', 'R', 'A', 'M', 'E', '\0' };
 
+	private final Executor cryptoExecutor;
 	private final SecureRandom secureRandom;
 	private final ECKeyPairGenerator agreementKeyPairGenerator;
 	private final ECKeyPairGenerator signatureKeyPairGenerator;
 	private final KeyParser agreementKeyParser, signatureKeyParser;
 
 	@Inject
-	CryptoComponentImpl(SeedProvider r) {
+	CryptoComponentImpl(SeedProvider r,
+			@CryptoExecutor Executor cryptoExecutor) {
+		this.cryptoExecutor = cryptoExecutor;
 		if(!FortunaSecureRandom.selfTest()) throw new RuntimeException();
 		SecureRandom secureRandom1 = new SecureRandom();
 		if(LOG.isLoggable(INFO)) {
@@ -270,42 +270,54 @@ class CryptoComponentImpl implements CryptoComponent {
 		return new SecretKey(counterModeKdf(secret, label, context));
 	}
 
-	public void encodeTag(byte[] tag, SecretKey tagKey, long streamNumber) {
-		if(tag.length < TAG_LENGTH) throw new IllegalArgumentException();
-		if(streamNumber < 0 || streamNumber > MAX_32_BIT_UNSIGNED)
-			throw new IllegalArgumentException();
-		for(int i = 0; i < TAG_LENGTH; i++) tag[i] = 0;
-		ByteUtils.writeUint32(streamNumber, tag, 0);
-		BlockCipher cipher = new AESLightEngine();
-		assert cipher.getBlockSize() == TAG_LENGTH;
-		KeyParameter k = new KeyParameter(tagKey.getBytes());
-		cipher.init(true, k);
-		cipher.processBlock(tag, 0, tag, 0);
+	public TagEncoder getTagEncoder(SecretKey tagKey) {
+		return new TagEncoderImpl(tagKey);
 	}
 
 	public byte[] encryptWithPassword(byte[] input, String password) {
+		return encryptWithPassword(input, password, PBKDF_TARGET_MILLIS,
+				PBKDF_LANES);
+	}
+
+	// Package access for testing
+	byte[] encryptWithPassword(byte[] input, String password,
+			int targetMillis, int lanes) {
 		AuthenticatedCipher cipher = new AuthenticatedCipherImpl();
 		int macBytes = cipher.getMacBytes();
 		// Generate a random salt
 		byte[] salt = new byte[PBKDF_SALT_BYTES];
 		secureRandom.nextBytes(salt);
-		// Calibrate the KDF
-		int iterations = chooseIterationCount(PBKDF_TARGET_MILLIS);
-		// Derive the key from the password
-		SecretKey key = new SecretKey(pbkdf2(password, salt, iterations));
+		// Derive the key from the password, running the KDF for the target
+		// time rather than calibrating it in advance
+		PasswordBasedKdf kdf = new PasswordBasedKdf(
+				StringUtils.toUtf8(password), salt, lanes, cryptoExecutor);
+		SecretKey key = new SecretKey(kdf.deriveKeyForDuration(targetMillis));
+		int iterations = kdf.getIterations();
+		if(LOG.isLoggable(INFO))
+			LOG.info(lanes + " PBKDF lanes, " + iterations + " iterations");
 		// Generate a random IV
 		byte[] iv = new byte[STORAGE_IV_BYTES];
 		secureRandom.nextBytes(iv);
-		// The output contains the salt, iterations, IV, ciphertext and MAC
-		int outputLen = salt.length + 4 + iv.length + input.length + macBytes;
+		// The output contains the salt, iterations, number of lanes (if more
+		// than one), IV, ciphertext and MAC. The high bit of the iterations
+		// is set if the number of lanes is included
+		int headerLength = salt.length + 4;
+		if(lanes > 1) headerLength++;
+		int outputLen = headerLength + iv.length + input.length + macBytes;
 		byte[] output = new byte[outputLen];
 		System.arraycopy(salt, 0, output, 0, salt.length);
-		ByteUtils.writeUint32(iterations, output, salt.length);
-		System.arraycopy(iv, 0, output, salt.length + 4, iv.length);
+		if(lanes == 1) {
+			ByteUtils.writeUint32(iterations, output, salt.length);
+		} else {
+			ByteUtils.writeUint32(PBKDF_LANES_FLAG | iterations, output,
+					salt.length);
+			output[salt.length + 4] = (byte) lanes;
+		}
+		System.arraycopy(iv, 0, output, headerLength, iv.length);
 		// Initialise the cipher and encrypt the plaintext
 		try {
 			cipher.init(true, key, iv);
-			int outputOff = salt.length + 4 + iv.length;
+			int outputOff = headerLength + iv.length;
 			cipher.process(input, 0, input.length, output, outputOff);
 			return output;
 		} catch(GeneralSecurityException e) {
@@ -316,18 +328,30 @@ class CryptoComponentImpl implements CryptoComponent {
 	public byte[] decryptWithPassword(byte[] input, String password) {
 		AuthenticatedCipher cipher = new AuthenticatedCipherImpl();
 		int macBytes = cipher.getMacBytes();
-		// The input contains the salt, iterations, IV, ciphertext and MAC
+		// The input contains the salt, iterations, number of lanes (if more
+		// than one), IV, ciphertext and MAC
 		if(input.length < PBKDF_SALT_BYTES + 4 + STORAGE_IV_BYTES + macBytes)
 			return null; // Invalid input
 		byte[] salt = new byte[PBKDF_SALT_BYTES];
 		System.arraycopy(input, 0, salt, 0, salt.length);
 		long iterations = ByteUtils.readUint32(input, salt.length);
-		if(iterations < 0 || iterations > Integer.MAX_VALUE)
-			return null; // Invalid iteration count
+		int headerLength = salt.length + 4, lanes = 1;
+		if((iterations & PBKDF_LANES_FLAG) != 0) {
+			iterations &= ~PBKDF_LANES_FLAG;
+			if(input.length < headerLength + 1 + STORAGE_IV_BYTES + macBytes)
+				return null; // Invalid input
+			lanes = input[headerLength] & 0xFF;
+			if(lanes < 2 || lanes > MAX_PBKDF_LANES)
+				return null; // Invalid number of lanes
+			headerLength++;
+		}
+		if(iterations < 1) return null; // Invalid iteration count
 		byte[] iv = new byte[STORAGE_IV_BYTES];
-		System.arraycopy(input, salt.length + 4, iv, 0, iv.length);
+		System.arraycopy(input, headerLength, iv, 0, iv.length);
 		// Derive the key from the password
-		SecretKey key = new SecretKey(pbkdf2(password, salt, (int) iterations));
+		PasswordBasedKdf kdf = new PasswordBasedKdf(
+				StringUtils.toUtf8(password), salt, lanes, cryptoExecutor);
+		SecretKey key = new SecretKey(kdf.deriveKey((int) iterations));
 		// Initialise the cipher
 		try {
 			cipher.init(false, key, iv);
@@ -336,7 +360,7 @@ class CryptoComponentImpl implements CryptoComponent {
 		}
 		// Try to decrypt the ciphertext (may be invalid)
 		try {
-			int inputOff = salt.length + 4 + iv.length;
+			int inputOff = headerLength + iv.length;
 			int inputLen = input.length - inputOff;
 			byte[] output = new byte[inputLen - macBytes];
 			cipher.process(input, inputOff, inputLen, output, 0);
@@ -397,64 +421,4 @@ class CryptoComponentImpl implements CryptoComponent {
 		System.arraycopy(mac, 0, truncated, 0, truncated.length);
 		return truncated;
 	}
-
-	// Password-based key derivation function - see PKCS#5 v2.1, section 5.2
-	private byte[] pbkdf2(String password, byte[] salt, int iterations) {
-		byte[] utf8 = StringUtils.toUtf8(password);
-		Digest digest = new SHA256Digest();
-		PKCS5S2ParametersGenerator gen = new PKCS5S2ParametersGenerator(digest);
-		gen.init(utf8, salt, iterations);
-		int keyLengthInBits = SecretKey.LENGTH * 8;
-		CipherParameters p = gen.generateDerivedParameters(keyLengthInBits);
-		return ((KeyParameter) p).getKey();
-	}
-
-	// Package access for testing
-	int chooseIterationCount(int targetMillis) {
-		List<Long> quickSamples = new ArrayList<Long>(PBKDF_SAMPLES);
-		List<Long> slowSamples = new ArrayList<Long>(PBKDF_SAMPLES);
-		long iterationNanos = 0, initNanos = 0;
-		while(iterationNanos <= 0 || initNanos <= 0) {
-			// Sample the running time with one iteration and two iterations
-			for(int i = 0; i < PBKDF_SAMPLES; i++) {
-				quickSamples.add(sampleRunningTime(1));
-				slowSamples.add(sampleRunningTime(2));
-			}
-			// Calculate the iteration time and the initialisation time
-			long quickMedian = median(quickSamples);
-			long slowMedian = median(slowSamples);
-			iterationNanos = slowMedian - quickMedian;
-			initNanos = quickMedian - iterationNanos;
-			if(LOG.isLoggable(INFO)) {
-				LOG.info("Init: " + initNanos + ", iteration: "
-						+ iterationNanos);
-			}
-		}
-		long targetNanos = targetMillis * 1000L * 1000L;
-		long iterations = (targetNanos - initNanos) / iterationNanos;
-		if(LOG.isLoggable(INFO)) LOG.info("Target iterations: " + iterations);
-		if(iterations < 1) return 1;
-		if(iterations > Integer.MAX_VALUE) return Integer.MAX_VALUE;
-		return (int) iterations;
-	}
-
-	private long sampleRunningTime(int iterations) {
-		byte[] password = { 'p', 'a', 's', 's', 'w', 'o', 'r', 'd' };
-		byte[] salt = new byte[PBKDF_SALT_BYTES];
-		int keyLengthInBits = SecretKey.LENGTH * 8;
-		long start = System.nanoTime();
-		Digest digest = new SHA256Digest();
-		PKCS5S2ParametersGenerator gen = new PKCS5S2ParametersGenerator(digest);
-		gen.init(password, salt, iterations);
-		gen.generateDerivedParameters(keyLengthInBits);
-		return System.nanoTime() - start;
-	}
-
-	private long median(List<Long> list) {
-		int size = list.size();
-		if(size == 0) throw new IllegalArgumentException();
-		Collections.sort(list);
-		if(size % 2 == 1) return list.get(size / 2);
-		return list.get(size / 2 - 1) + list.get(size / 2) / 2;
-	}
 }
@@ -4,7 +4,6 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -27,7 +26,7 @@ public class CryptoModule extends AbstractModule {
 	private static final int MAX_EXECUTOR_THREADS =
 			Runtime.getRuntime().availableProcessors();
 
-	private final ExecutorService cryptoExecutor;
+	private final ThreadPoolExecutor cryptoExecutor;
 
 	public CryptoModule() {
 		// Use an unbounded queue
@@ -35,14 +34,20 @@ public class CryptoModule extends AbstractModule {
 		// Discard tasks that are submitted during shutdown
 		RejectedExecutionHandler policy =
 				new ThreadPoolExecutor.DiscardPolicy();
-		// Create a limited # of threads and keep them in the pool for 60 secs
-		cryptoExecutor = new ThreadPoolExecutor(0, MAX_EXECUTOR_THREADS,
-				60, SECONDS, queue, policy);
+		// Create a limited # of threads and keep them in the pool for 60 secs.
+		// With an unbounded queue the pool never grows beyond its core size,
+		// so the core size is the limit
+		cryptoExecutor = new ThreadPoolExecutor(MAX_EXECUTOR_THREADS,
+				MAX_EXECUTOR_THREADS, 60, SECONDS, queue, policy);
+		cryptoExecutor.allowCoreThreadTimeOut(true);
 	}
 
 	@Override
 	protected void configure() {
-		bind(AuthenticatedCipher.class).to(AuthenticatedCipherImpl.class);
+		// Choose the cipher implementation once, the first time it's needed
+		bind(AuthenticatedCipherProvider.class).in(Singleton.class);
+		bind(AuthenticatedCipher.class).toProvider(
+				AuthenticatedCipherProvider.class);
 		bind(CryptoComponent.class).to(
 				CryptoComponentImpl.class).in(Singleton.class);
 		bind(PasswordStrengthEstimator.class).to(
@@ -18,7 +18,9 @@ class EllipticCurveConstants {
 	static {
 		// Start with the default implementation of the curve
 		X9ECParameters x9 = TeleTrusTNamedCurves.getByName("brainpoolp256r1");
-		// Use a constant-time multiplier
+		// Use a constant-time multiplier for ECDH. Key generation and
+		// signing multiply the generator with a comb multiplier, whose table
+		// is built once and kept with the generator
 		ECMultiplier monty = new MontgomeryLadderMultiplier();
 		ECCurve curve = x9.getCurve().configure().setMultiplier(monty).create();
 		BigInteger gX = x9.getG().getAffineXCoord().toBigInteger();
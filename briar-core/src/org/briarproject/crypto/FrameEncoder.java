@@ -2,7 +2,7 @@ package org.briarproject.crypto;
 
 import static org.briarproject.api.transport.TransportConstants.HEADER_LENGTH;
 import static org.briarproject.api.transport.TransportConstants.IV_LENGTH;
-import static org.briarproject.api.transport.TransportConstants.MAX_PAYLOAD_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAX_LARGE_PAYLOAD_LENGTH;
 import static org.briarproject.util.ByteUtils.MAX_32_BIT_UNSIGNED;
 
 import org.briarproject.util.ByteUtils;
@@ -24,7 +24,7 @@ class FrameEncoder {
 		if(header.length < HEADER_LENGTH) throw new IllegalArgumentException();
 		if(payloadLength < 0) throw new IllegalArgumentException();
 		if(paddingLength < 0) throw new IllegalArgumentException();
-		if(payloadLength + paddingLength > MAX_PAYLOAD_LENGTH)
+		if(payloadLength + paddingLength > MAX_LARGE_PAYLOAD_LENGTH)
 			throw new IllegalArgumentException();
 		ByteUtils.writeUint16(payloadLength, header, 0);
 		ByteUtils.writeUint16(paddingLength, header, 2);
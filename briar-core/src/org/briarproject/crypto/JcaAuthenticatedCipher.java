@@ -0,0 +1,61 @@
+package org.briarproject.crypto;
+
+import static org.briarproject.api.transport.TransportConstants.MAC_LENGTH;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.briarproject.api.crypto.SecretKey;
+
+/**
+ * An authenticated cipher that uses the platform's AES/GCM implementation,
+ * which may be hardware-accelerated. Produces the same output as
+ * {@link AuthenticatedCipherImpl}.
+ */
+class JcaAuthenticatedCipher implements AuthenticatedCipher {
+
+	static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+	private final Cipher cipher;
+
+	private SecretKey lastKey = null;
+	private SecretKeySpec keySpec = null;
+
+	JcaAuthenticatedCipher() throws GeneralSecurityException {
+		cipher = Cipher.getInstance(TRANSFORMATION);
+	}
+
+	public int process(byte[] input, int inputOff, int len, byte[] output,
+			int outputOff) throws GeneralSecurityException {
+		return cipher.doFinal(input, inputOff, len, output, outputOff);
+	}
+
+	public void init(boolean encrypt, SecretKey key, byte[] iv)
+			throws GeneralSecurityException {
+		if(key != lastKey) {
+			keySpec = new SecretKeySpec(key.getBytes(), "AES");
+			lastKey = key;
+		}
+		GCMParameterSpec params = new GCMParameterSpec(MAC_LENGTH * 8, iv);
+		int mode = encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
+		try {
+			cipher.init(mode, keySpec, params);
+		} catch(IllegalArgumentException e) {
+			throw new GeneralSecurityException(e.getMessage());
+		}
+		// Authenticate the IV by passing it as additional authenticated data
+		cipher.updateAAD(iv);
+	}
+
+	public int getMacBytes() {
+		return MAC_LENGTH;
+	}
+
+	/** Returns the name of the provider of the platform's implementation. */
+	String getProviderName() {
+		return cipher.getProvider().getName();
+	}
+}
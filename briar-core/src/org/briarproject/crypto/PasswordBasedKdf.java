@@ -0,0 +1,185 @@
+package org.briarproject.crypto;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.briarproject.api.crypto.SecretKey;
+import org.spongycastle.crypto.Mac;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.macs.HMac;
+import org.spongycastle.crypto.params.KeyParameter;
+
+/**
+ * Password-based key derivation function - see PKCS#5 v2.1, section 5.2.
+ * PBKDF2 is used with HMAC-SHA256 and a key of one hash length, so the
+ * iterations can be run until a deadline and counted, instead of choosing an
+ * iteration count in advance.
+ * <p>
+ * The password can be stretched in several lanes on separate threads. Each
+ * lane runs the same number of iterations with the lane number appended to
+ * the salt, and the key is the XOR of the lanes' outputs. With a single lane
+ * the key is plain PBKDF2.
+ * <p>
+ * The calling thread runs the first lane and any lanes the executor hasn't
+ * started by the time the first lane finishes, so the key can be derived on
+ * a thread belonging to the executor without waiting for a free thread.
+ */
+class PasswordBasedKdf {
+
+	/** The deadline is checked after each chunk of iterations. */
+	private static final int CHUNK = 1024;
+	private static final int MAX_ITERATIONS =
+			Integer.MAX_VALUE / CHUNK * CHUNK;
+
+	private final Executor executor;
+	private final Lane[] lanes;
+	// The number of iterations each lane should run, or -1 if not yet known
+	private final AtomicInteger iterations = new AtomicInteger(-1);
+
+	private volatile long deadline = 0;
+
+	PasswordBasedKdf(byte[] password, byte[] salt, int lanes,
+			Executor executor) {
+		if(lanes < 1 || lanes > 255) throw new IllegalArgumentException();
+		this.executor = executor;
+		this.lanes = new Lane[lanes];
+		for(int i = 0; i < lanes; i++) {
+			byte[] laneSalt = salt;
+			if(lanes > 1) {
+				laneSalt = new byte[salt.length + 1];
+				System.arraycopy(salt, 0, laneSalt, 0, salt.length);
+				laneSalt[salt.length] = (byte) i;
+			}
+			this.lanes[i] = new Lane(password, laneSalt);
+		}
+	}
+
+	/** Runs the given number of iterations in each lane. */
+	byte[] deriveKey(int iterations) {
+		if(iterations < 1) throw new IllegalArgumentException();
+		if(!this.iterations.compareAndSet(-1, iterations))
+			throw new IllegalStateException();
+		return runLanes();
+	}
+
+	/**
+	 * Runs iterations in each lane for about the given time. The number of
+	 * iterations can then be retrieved by calling {@link #getIterations()}.
+	 */
+	byte[] deriveKeyForDuration(int millis) {
+		if(iterations.get() != -1) throw new IllegalStateException();
+		deadline = System.nanoTime() + millis * 1000L * 1000L;
+		return runLanes();
+	}
+
+	/** Returns the number of iterations that each lane ran. */
+	int getIterations() {
+		return iterations.get();
+	}
+
+	private byte[] runLanes() {
+		// Run the first lane on this thread and offer the others to the
+		// executor
+		final CountDownLatch finished = new CountDownLatch(lanes.length - 1);
+		for(int i = 1; i < lanes.length; i++) {
+			final Lane lane = lanes[i];
+			executor.execute(new Runnable() {
+				public void run() {
+					lane.runOnce(finished);
+				}
+			});
+		}
+		lanes[0].run();
+		// Run any lanes the executor hasn't started
+		for(int i = 1; i < lanes.length; i++) lanes[i].runOnce(finished);
+		// The other lanes finish in bounded time, so wait uninterruptibly
+		boolean interrupted = false;
+		while(true) {
+			try {
+				finished.await();
+				break;
+			} catch(InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+		byte[] key = new byte[SecretKey.LENGTH];
+		for(Lane lane : lanes) {
+			if(lane.output == null) throw new IllegalStateException();
+			for(int i = 0; i < key.length; i++) key[i] ^= lane.output[i];
+		}
+		return key;
+	}
+
+	/**
+	 * One lane of PBKDF2 with a single block of output. When the deadline
+	 * passes, the first lane to notice sets the iteration count. A lane that
+	 * has already run further uses the output it checkpointed at that count.
+	 */
+	private class Lane implements Runnable {
+
+		private final Mac prf;
+		private final byte[] salt;
+		private final AtomicBoolean started = new AtomicBoolean(false);
+
+		private byte[] output = null;
+
+		private Lane(byte[] password, byte[] salt) {
+			prf = new HMac(new SHA256Digest());
+			prf.init(new KeyParameter(password));
+			if(prf.getMacSize() != SecretKey.LENGTH)
+				throw new IllegalStateException();
+			this.salt = salt;
+		}
+
+		/**
+		 * Runs the lane and counts down the latch, unless the lane has
+		 * already been started by another thread.
+		 */
+		private void runOnce(CountDownLatch finished) {
+			if(started.getAndSet(true)) return;
+			try {
+				run();
+			} finally {
+				finished.countDown();
+			}
+		}
+
+		public void run() {
+			byte[] u = new byte[SecretKey.LENGTH];
+			byte[] t = new byte[SecretKey.LENGTH];
+			List<byte[]> checkpoints = new ArrayList<byte[]>();
+			// U_1 = PRF(password, salt || INT(1))
+			prf.update(salt, 0, salt.length);
+			prf.update(new byte[] { 0, 0, 0, 1 }, 0, 4);
+			prf.doFinal(u, 0);
+			System.arraycopy(u, 0, t, 0, t.length);
+			int done = 1;
+			while(true) {
+				int limit = iterations.get();
+				if(limit == -1 && done % CHUNK == 0) {
+					if(System.nanoTime() - deadline >= 0 ||
+							done == MAX_ITERATIONS) {
+						iterations.compareAndSet(-1, done);
+						limit = iterations.get();
+					} else {
+						checkpoints.add(t.clone());
+					}
+				}
+				if(limit != -1 && done >= limit) break;
+				// U_i = PRF(password, U_{i-1}), T = U_1 ^ ... ^ U_i
+				prf.update(u, 0, u.length);
+				prf.doFinal(u, 0);
+				for(int i = 0; i < t.length; i++) t[i] ^= u[i];
+				done++;
+			}
+			int limit = iterations.get();
+			if(done == limit) output = t;
+			else output = checkpoints.get(limit / CHUNK - 1);
+		}
+	}
+}
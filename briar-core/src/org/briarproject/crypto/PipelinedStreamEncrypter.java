@@ -0,0 +1,185 @@
+package org.briarproject.crypto;
+
+import static org.briarproject.api.transport.TransportConstants.HEADER_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.IV_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAC_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAX_LARGE_FRAME_LENGTH;
+import static org.briarproject.util.ByteUtils.MAX_32_BIT_UNSIGNED;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.inject.Provider;
+
+import org.briarproject.api.crypto.SecretKey;
+import org.briarproject.api.crypto.StreamEncrypter;
+
+/**
+ * A {@link org.briarproject.api.crypto.StreamEncrypter StreamEncrypter} that
+ * encrypts frames in parallel on an executor and writes them to the stream in
+ * order. At most a fixed number of frames can be waiting to be written; when
+ * that limit is reached, the writing thread waits for the oldest frame,
+ * encrypting the frame itself if no worker has started on it.
+ * <p>
+ * This class is not thread-safe.
+ */
+class PipelinedStreamEncrypter implements StreamEncrypter {
+
+	private final OutputStream out;
+	private final Executor cryptoExecutor;
+	private final SecretKey frameKey;
+	private final byte[] tag;
+	private final int maxPayloadLength;
+	private final Queue<Frame> free, inFlight;
+
+	private long frameNumber;
+	private boolean writeTag;
+
+	PipelinedStreamEncrypter(OutputStream out, Executor cryptoExecutor,
+			Provider<AuthenticatedCipher> cipherProvider, SecretKey frameKey,
+			byte[] tag, int maxFrameLength, int maxFramesInFlight) {
+		if(maxFrameLength <= HEADER_LENGTH + MAC_LENGTH)
+			throw new IllegalArgumentException();
+		if(maxFrameLength > MAX_LARGE_FRAME_LENGTH)
+			throw new IllegalArgumentException();
+		if(maxFramesInFlight < 1) throw new IllegalArgumentException();
+		this.out = out;
+		this.cryptoExecutor = cryptoExecutor;
+		this.frameKey = frameKey;
+		this.tag = tag;
+		maxPayloadLength = maxFrameLength - HEADER_LENGTH - MAC_LENGTH;
+		free = new LinkedList<Frame>();
+		for(int i = 0; i < maxFramesInFlight; i++)
+			free.add(new Frame(cipherProvider.get(), maxFrameLength));
+		inFlight = new LinkedList<Frame>();
+		frameNumber = 0;
+		writeTag = (tag != null);
+	}
+
+	public void writeFrame(byte[] payload, int payloadLength,
+			int paddingLength, boolean finalFrame) throws IOException {
+		if(payloadLength < 0 || paddingLength < 0)
+			throw new IllegalArgumentException();
+		if(payloadLength + paddingLength > maxPayloadLength)
+			throw new IllegalArgumentException();
+		// Don't allow the frame counter to wrap
+		if(frameNumber > MAX_32_BIT_UNSIGNED) throw new IOException();
+		// Wait for the oldest frame to be written if there's no free buffer
+		if(free.isEmpty()) writeOldestFrame();
+		Frame f = free.poll();
+		System.arraycopy(payload, 0, f.plaintext, HEADER_LENGTH, payloadLength);
+		f.prepare(frameNumber, payloadLength, paddingLength, finalFrame);
+		inFlight.add(f);
+		try {
+			cryptoExecutor.execute(f);
+		} catch(RejectedExecutionException e) {
+			// The frame will be encrypted when it's written
+		}
+		frameNumber++;
+	}
+
+	public void flush() throws IOException {
+		while(!inFlight.isEmpty()) writeOldestFrame();
+		// Write the tag if required
+		if(writeTag) {
+			out.write(tag, 0, tag.length);
+			writeTag = false;
+		}
+		out.flush();
+	}
+
+	private void writeOldestFrame() throws IOException {
+		Frame f = inFlight.poll();
+		int frameLength = f.waitForCiphertext();
+		// Write the tag if required
+		if(writeTag) {
+			out.write(tag, 0, tag.length);
+			writeTag = false;
+		}
+		out.write(f.ciphertext, 0, frameLength);
+		free.add(f);
+	}
+
+	/**
+	 * A frame buffer with its own cipher. Whichever thread claims the frame
+	 * first encrypts it. A task may still be queued after its frame has been
+	 * reused, in which case it either encrypts the frame's new contents or
+	 * does nothing.
+	 */
+	private class Frame implements Runnable {
+
+		private final AuthenticatedCipher frameCipher;
+		private final byte[] iv, plaintext, ciphertext;
+		private final AtomicBoolean claimed;
+
+		// The following are set by the writing thread before the frame is
+		// released for claiming
+		private long frameNumber;
+		private int payloadLength, paddingLength;
+		private boolean finalFrame;
+		private volatile CountDownLatch encrypted;
+
+		// The following are set by the claiming thread before the latch is
+		// released
+		private int frameLength;
+		private RuntimeException error;
+
+		private Frame(AuthenticatedCipher frameCipher, int maxFrameLength) {
+			this.frameCipher = frameCipher;
+			iv = new byte[IV_LENGTH];
+			plaintext = new byte[maxFrameLength - MAC_LENGTH];
+			ciphertext = new byte[maxFrameLength];
+			claimed = new AtomicBoolean(true);
+		}
+
+		private void prepare(long frameNumber, int payloadLength,
+				int paddingLength, boolean finalFrame) {
+			this.frameNumber = frameNumber;
+			this.payloadLength = payloadLength;
+			this.paddingLength = paddingLength;
+			this.finalFrame = finalFrame;
+			frameLength = 0;
+			error = null;
+			encrypted = new CountDownLatch(1);
+			claimed.set(false);
+		}
+
+		public void run() {
+			if(claimed.compareAndSet(false, true)) encrypt();
+		}
+
+		private void encrypt() {
+			try {
+				frameLength = StreamEncrypterImpl.encryptFrame(frameCipher,
+						frameKey, iv, frameNumber, plaintext, payloadLength,
+						paddingLength, finalFrame, ciphertext);
+			} catch(RuntimeException e) {
+				error = e;
+			} finally {
+				encrypted.countDown();
+			}
+		}
+
+		private int waitForCiphertext() throws IOException {
+			// Encrypt the frame on this thread if no worker has started on it
+			if(claimed.compareAndSet(false, true)) {
+				encrypt();
+			} else {
+				try {
+					encrypted.await();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while writing");
+				}
+			}
+			if(error != null) throw error;
+			return frameLength;
+		}
+	}
+}
@@ -13,7 +13,9 @@ import org.spongycastle.crypto.params.ECDomainParameters;
 import org.spongycastle.crypto.params.ECPrivateKeyParameters;
 import org.spongycastle.crypto.params.ECPublicKeyParameters;
 import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECMultiplier;
 import org.spongycastle.math.ec.ECPoint;
+import org.spongycastle.math.ec.WNafL2RMultiplier;
 
 /**
  * A key parser that uses the encoding defined in "SEC 1: Elliptic Curve
@@ -26,12 +28,16 @@ class Sec1KeyParser implements KeyParser {
 			Logger.getLogger(Sec1KeyParser.class.getName());
 
 	private final ECDomainParameters params;
+	private final ECMultiplier publicMultiplier;
 	private final BigInteger modulus;
 	private final int keyBits, bytesPerInt, publicKeyBytes, privateKeyBytes;
 
 	Sec1KeyParser(ECDomainParameters params, int keyBits) {
 		this.params = params;
 		this.keyBits = keyBits;
+		// The curve's constant-time multiplier is only needed for secret
+		// scalars - public scalars can use a faster windowed NAF multiplier
+		publicMultiplier = new WNafL2RMultiplier();
 		modulus = ((ECCurve.Fp) params.getCurve()).getQ();
 		bytesPerInt = (keyBits + 7) / 8;
 		publicKeyBytes = 1 + 2 * bytesPerInt;
@@ -69,7 +75,7 @@ class Sec1KeyParser implements KeyParser {
 		// Verify that the point (x, y) is not the point at infinity
 		if(pub.isInfinity()) throw new GeneralSecurityException();
 		// Verify that the point (x, y) times n is the point at infinity
-		if(!pub.multiply(params.getN()).isInfinity())
+		if(!publicMultiplier.multiply(pub, params.getN()).isInfinity())
 			throw new GeneralSecurityException();
 		// Construct a public key from the point (x, y) and the params
 		ECPublicKeyParameters k = new ECPublicKeyParameters(pub, params);
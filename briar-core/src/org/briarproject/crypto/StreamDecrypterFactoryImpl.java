@@ -1,5 +1,7 @@
 package org.briarproject.crypto;
 
+import static org.briarproject.api.transport.TransportConstants.MAX_FRAME_LENGTH;
+
 import java.io.InputStream;
 
 import javax.inject.Inject;
@@ -24,7 +26,7 @@ class StreamDecrypterFactoryImpl implements StreamDecrypterFactory {
 	}
 
 	public StreamDecrypter createStreamDecrypter(InputStream in,
-			StreamContext ctx) {
+			StreamContext ctx, int maxFrameLength) {
 		// Derive the frame key
 		byte[] secret = ctx.getSecret();
 		long streamNumber = ctx.getStreamNumber();
@@ -32,7 +34,7 @@ class StreamDecrypterFactoryImpl implements StreamDecrypterFactory {
 		SecretKey frameKey = crypto.deriveFrameKey(secret, streamNumber, alice);
 		// Create the decrypter
 		AuthenticatedCipher cipher = cipherProvider.get();
-		return new StreamDecrypterImpl(in, cipher, frameKey);
+		return new StreamDecrypterImpl(in, cipher, frameKey, maxFrameLength);
 	}
 
 	public StreamDecrypter createInvitationStreamDecrypter(InputStream in,
@@ -41,6 +43,6 @@ class StreamDecrypterFactoryImpl implements StreamDecrypterFactory {
 		SecretKey frameKey = crypto.deriveFrameKey(secret, 0, alice);
 		// Create the decrypter
 		AuthenticatedCipher cipher = cipherProvider.get();
-		return new StreamDecrypterImpl(in, cipher, frameKey);
+		return new StreamDecrypterImpl(in, cipher, frameKey, MAX_FRAME_LENGTH);
 	}
 }
@@ -3,8 +3,7 @@ package org.briarproject.crypto;
 import static org.briarproject.api.transport.TransportConstants.HEADER_LENGTH;
 import static org.briarproject.api.transport.TransportConstants.IV_LENGTH;
 import static org.briarproject.api.transport.TransportConstants.MAC_LENGTH;
-import static org.briarproject.api.transport.TransportConstants.MAX_FRAME_LENGTH;
-import static org.briarproject.api.transport.TransportConstants.MAX_PAYLOAD_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAX_LARGE_FRAME_LENGTH;
 
 import java.io.EOFException;
 import java.io.IOException;
@@ -21,24 +20,30 @@ class StreamDecrypterImpl implements StreamDecrypter {
 	private final AuthenticatedCipher frameCipher;
 	private final SecretKey frameKey;
 	private final byte[] iv, header, ciphertext;
+	private final int maxPayloadLength;
 
 	private long frameNumber;
 	private boolean finalFrame;
 
 	StreamDecrypterImpl(InputStream in, AuthenticatedCipher frameCipher,
-			SecretKey frameKey) {
+			SecretKey frameKey, int maxFrameLength) {
+		if(maxFrameLength <= HEADER_LENGTH + MAC_LENGTH)
+			throw new IllegalArgumentException();
+		if(maxFrameLength > MAX_LARGE_FRAME_LENGTH)
+			throw new IllegalArgumentException();
 		this.in = in;
 		this.frameCipher = frameCipher;
 		this.frameKey = frameKey;
 		iv = new byte[IV_LENGTH];
 		header = new byte[HEADER_LENGTH];
-		ciphertext = new byte[MAX_FRAME_LENGTH];
+		ciphertext = new byte[maxFrameLength];
+		maxPayloadLength = maxFrameLength - HEADER_LENGTH - MAC_LENGTH;
 		frameNumber = 0;
 		finalFrame = false;
 	}
 
 	public int readFrame(byte[] payload) throws IOException {
-		if(payload.length < MAX_PAYLOAD_LENGTH)
+		if(payload.length < maxPayloadLength)
 			throw new IllegalArgumentException();
 		if(finalFrame) return -1;
 		// Read the header
@@ -63,7 +68,7 @@ class StreamDecrypterImpl implements StreamDecrypter {
 		finalFrame = FrameEncoder.isFinalFrame(header);
 		int payloadLength = FrameEncoder.getPayloadLength(header);
 		int paddingLength = FrameEncoder.getPaddingLength(header);
-		if(payloadLength + paddingLength > MAX_PAYLOAD_LENGTH)
+		if(payloadLength + paddingLength > maxPayloadLength)
 			throw new FormatException();
 		// Read the payload and padding
 		int frameLength = HEADER_LENGTH + payloadLength + paddingLength
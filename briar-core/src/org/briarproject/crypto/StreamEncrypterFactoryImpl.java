@@ -1,13 +1,16 @@
 package org.briarproject.crypto;
 
+import static org.briarproject.api.transport.TransportConstants.MAX_FRAME_LENGTH;
 import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
 
 import java.io.OutputStream;
+import java.util.concurrent.Executor;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 
 import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.crypto.CryptoExecutor;
 import org.briarproject.api.crypto.SecretKey;
 import org.briarproject.api.crypto.StreamEncrypter;
 import org.briarproject.api.crypto.StreamEncrypterFactory;
@@ -15,30 +18,49 @@ import org.briarproject.api.transport.StreamContext;
 
 class StreamEncrypterFactoryImpl implements StreamEncrypterFactory {
 
+	private static final int PROCESSORS =
+			Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The maximum number of frames that a pipelined stream can be encrypting
+	 * or waiting to write at any time.
+	 */
+	private static final int MAX_FRAMES_IN_FLIGHT = Math.min(PROCESSORS * 2, 8);
+
 	private final CryptoComponent crypto;
+	private final Executor cryptoExecutor;
 	private final Provider<AuthenticatedCipher> cipherProvider;
 
 	@Inject
 	StreamEncrypterFactoryImpl(CryptoComponent crypto,
+			@CryptoExecutor Executor cryptoExecutor,
 			Provider<AuthenticatedCipher> cipherProvider) {
 		this.crypto = crypto;
+		this.cryptoExecutor = cryptoExecutor;
 		this.cipherProvider = cipherProvider;
 	}
 
 	public StreamEncrypter createStreamEncrypter(OutputStream out,
-			StreamContext ctx) {
+			StreamContext ctx, int maxFrameLength) {
 		byte[] secret = ctx.getSecret();
 		long streamNumber = ctx.getStreamNumber();
 		boolean alice = ctx.getAlice();
 		// Encode the tag
 		byte[] tag = new byte[TAG_LENGTH];
 		SecretKey tagKey = crypto.deriveTagKey(secret, alice);
-		crypto.encodeTag(tag, tagKey, streamNumber);
+		crypto.getTagEncoder(tagKey).encodeTag(tag, streamNumber);
 		// Derive the frame key
 		SecretKey frameKey = crypto.deriveFrameKey(secret, streamNumber, alice);
+		// Encrypt large frames in parallel if there's more than one core
+		if(maxFrameLength > MAX_FRAME_LENGTH && PROCESSORS > 1) {
+			return new PipelinedStreamEncrypter(out, cryptoExecutor,
+					cipherProvider, frameKey, tag, maxFrameLength,
+					MAX_FRAMES_IN_FLIGHT);
+		}
 		// Create the encrypter
 		AuthenticatedCipher cipher = cipherProvider.get();
-		return new StreamEncrypterImpl(out, cipher, frameKey, tag);
+		return new StreamEncrypterImpl(out, cipher, frameKey, tag,
+				maxFrameLength);
 	}
 
 	public StreamEncrypter createInvitationStreamEncrypter(OutputStream out,
@@ -47,6 +69,7 @@ class StreamEncrypterFactoryImpl implements StreamEncrypterFactory {
 		SecretKey frameKey = crypto.deriveFrameKey(secret, 0, alice);
 		// Create the encrypter
 		AuthenticatedCipher cipher = cipherProvider.get();
-		return new StreamEncrypterImpl(out, cipher, frameKey, null);
+		return new StreamEncrypterImpl(out, cipher, frameKey, null,
+				MAX_FRAME_LENGTH);
 	}
 }
@@ -3,8 +3,7 @@ package org.briarproject.crypto;
 import static org.briarproject.api.transport.TransportConstants.HEADER_LENGTH;
 import static org.briarproject.api.transport.TransportConstants.IV_LENGTH;
 import static org.briarproject.api.transport.TransportConstants.MAC_LENGTH;
-import static org.briarproject.api.transport.TransportConstants.MAX_FRAME_LENGTH;
-import static org.briarproject.api.transport.TransportConstants.MAX_PAYLOAD_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAX_LARGE_FRAME_LENGTH;
 import static org.briarproject.util.ByteUtils.MAX_32_BIT_UNSIGNED;
 
 import java.io.IOException;
@@ -20,26 +19,32 @@ class StreamEncrypterImpl implements StreamEncrypter {
 	private final AuthenticatedCipher frameCipher;
 	private final SecretKey frameKey;
 	private final byte[] tag, iv, plaintext, ciphertext;
+	private final int maxPayloadLength;
 
 	private long frameNumber;
 	private boolean writeTag;
 
 	StreamEncrypterImpl(OutputStream out, AuthenticatedCipher frameCipher,
-			SecretKey frameKey, byte[] tag) {
+			SecretKey frameKey, byte[] tag, int maxFrameLength) {
+		if(maxFrameLength <= HEADER_LENGTH + MAC_LENGTH)
+			throw new IllegalArgumentException();
+		if(maxFrameLength > MAX_LARGE_FRAME_LENGTH)
+			throw new IllegalArgumentException();
 		this.out = out;
 		this.frameCipher = frameCipher;
 		this.frameKey = frameKey;
 		this.tag = tag;
 		iv = new byte[IV_LENGTH];
-		plaintext = new byte[HEADER_LENGTH + MAX_PAYLOAD_LENGTH];
-		ciphertext = new byte[MAX_FRAME_LENGTH];
+		maxPayloadLength = maxFrameLength - HEADER_LENGTH - MAC_LENGTH;
+		plaintext = new byte[HEADER_LENGTH + maxPayloadLength];
+		ciphertext = new byte[maxFrameLength];
 		frameNumber = 0;
 		writeTag = (tag != null);
 	}
 
 	public void writeFrame(byte[] payload, int payloadLength,
 			int paddingLength, boolean finalFrame) throws IOException {
-		if(payloadLength + paddingLength > MAX_PAYLOAD_LENGTH)
+		if(payloadLength + paddingLength > maxPayloadLength)
 			throw new IllegalArgumentException();
 		// Don't allow the frame counter to wrap
 		if(frameNumber > MAX_32_BIT_UNSIGNED) throw new IOException();
@@ -48,6 +53,26 @@ class StreamEncrypterImpl implements StreamEncrypter {
 			out.write(tag, 0, tag.length);
 			writeTag = false;
 		}
+		// Copy the payload into the plaintext buffer
+		System.arraycopy(payload, 0, plaintext, HEADER_LENGTH, payloadLength);
+		// Encrypt and authenticate the frame
+		int frameLength = encryptFrame(frameCipher, frameKey, iv, frameNumber,
+				plaintext, payloadLength, paddingLength, finalFrame,
+				ciphertext);
+		// Write the frame
+		out.write(ciphertext, 0, frameLength);
+		frameNumber++;
+	}
+
+	/**
+	 * Encrypts and authenticates a frame whose payload has already been
+	 * copied into the plaintext buffer after the header, and returns the
+	 * length of the frame. The padding is written by this method.
+	 */
+	static int encryptFrame(AuthenticatedCipher frameCipher,
+			SecretKey frameKey, byte[] iv, long frameNumber, byte[] plaintext,
+			int payloadLength, int paddingLength, boolean finalFrame,
+			byte[] ciphertext) {
 		// Encode the header
 		FrameEncoder.encodeHeader(plaintext, finalFrame, payloadLength,
 				paddingLength);
@@ -61,8 +86,7 @@ class StreamEncrypterImpl implements StreamEncrypter {
 		} catch(GeneralSecurityException badCipher) {
 			throw new RuntimeException(badCipher);
 		}
-		// Combine the payload and padding
-		System.arraycopy(payload, 0, plaintext, HEADER_LENGTH, payloadLength);
+		// Zero the padding
 		for(int i = 0; i < paddingLength; i++)
 			plaintext[HEADER_LENGTH + payloadLength + i] = 0;
 		// Encrypt and authenticate the payload and padding
@@ -76,10 +100,7 @@ class StreamEncrypterImpl implements StreamEncrypter {
 		} catch(GeneralSecurityException badCipher) {
 			throw new RuntimeException(badCipher);
 		}
-		// Write the frame
-		out.write(ciphertext, 0, HEADER_LENGTH + payloadLength + paddingLength
-				+ MAC_LENGTH);
-		frameNumber++;
+		return HEADER_LENGTH + payloadLength + paddingLength + MAC_LENGTH;
 	}
 
 	public void flush() throws IOException {
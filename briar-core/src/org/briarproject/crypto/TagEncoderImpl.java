@@ -0,0 +1,31 @@
+package org.briarproject.crypto;
+
+import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
+import static org.briarproject.util.ByteUtils.MAX_32_BIT_UNSIGNED;
+
+import org.briarproject.api.crypto.SecretKey;
+import org.briarproject.api.crypto.TagEncoder;
+import org.briarproject.util.ByteUtils;
+import org.spongycastle.crypto.BlockCipher;
+import org.spongycastle.crypto.engines.AESLightEngine;
+import org.spongycastle.crypto.params.KeyParameter;
+
+class TagEncoderImpl implements TagEncoder {
+
+	private final BlockCipher cipher;
+
+	TagEncoderImpl(SecretKey tagKey) {
+		cipher = new AESLightEngine();
+		assert cipher.getBlockSize() == TAG_LENGTH;
+		cipher.init(true, new KeyParameter(tagKey.getBytes()));
+	}
+
+	public void encodeTag(byte[] tag, long streamNumber) {
+		if(tag.length < TAG_LENGTH) throw new IllegalArgumentException();
+		if(streamNumber < 0 || streamNumber > MAX_32_BIT_UNSIGNED)
+			throw new IllegalArgumentException();
+		for(int i = 0; i < TAG_LENGTH; i++) tag[i] = 0;
+		ByteUtils.writeUint32(streamNumber, tag, 0);
+		cipher.processBlock(tag, 0, tag, 0);
+	}
+}
@@ -10,4 +10,8 @@ class ReaderFactoryImpl implements ReaderFactory {
 	public Reader createReader(InputStream in) {
 		return new ReaderImpl(in);
 	}
+
+	public Reader createReader(byte[] b, int off, int len) {
+		return new ReaderImpl(b, off, len);
+	}
 }
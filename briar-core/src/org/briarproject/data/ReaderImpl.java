@@ -27,64 +27,97 @@ import org.briarproject.api.FormatException;
 import org.briarproject.api.data.Consumer;
 import org.briarproject.api.data.Reader;
 
-// This class is not thread-safe
+/**
+ * Reads objects from a window of a byte array, or from an input stream via a
+ * buffer. When reading from a stream, the reader only fetches the bytes needed
+ * for the object being read, so the stream can be handed to another reader
+ * after the last object.
+ * <p>
+ * This class is not thread-safe.
+ */
 class ReaderImpl implements Reader {
 
 	private static final byte[] EMPTY_BUFFER = new byte[] {};
 
-	private final InputStream in;
+	private final InputStream in; // Null if reading from a byte array
 	private final Collection<Consumer> consumers = new ArrayList<Consumer>(0);
 
-	private boolean hasLookahead = false, eof = false;
-	private byte next;
-	private byte[] buf = new byte[8];
+	// The buffered bytes are buf[offset] to buf[limit - 1]
+	private byte[] buf;
+	private int offset, limit;
 
 	ReaderImpl(InputStream in) {
 		this.in = in;
+		buf = new byte[8];
+		offset = limit = 0;
+	}
+
+	ReaderImpl(byte[] b, int off, int len) {
+		if(off < 0 || len < 0 || off + len > b.length)
+			throw new IllegalArgumentException();
+		in = null;
+		buf = b;
+		offset = off;
+		limit = off + len;
+	}
+
+	// Ensures that at least the given number of bytes are buffered, returning
+	// false if the end of the input is reached first
+	private boolean fill(int length) throws IOException {
+		if(limit - offset >= length) return true;
+		if(in == null) return false;
+		// Make room for the bytes at the end of the buffer
+		if(buf.length - offset < length) {
+			byte[] b = buf.length < length ? new byte[length] : buf;
+			System.arraycopy(buf, offset, b, 0, limit - offset);
+			buf = b;
+			limit -= offset;
+			offset = 0;
+		}
+		// Don't read past the bytes that are needed
+		while(limit - offset < length) {
+			int read = in.read(buf, limit, offset + length - limit);
+			if(read == -1) return false;
+			limit += read;
+		}
+		return true;
 	}
 
-	private void readLookahead() throws IOException {
-		assert !eof;
-		assert !hasLookahead;
-		// Read a lookahead byte
-		int i = in.read();
-		if(i == -1) {
-			eof = true;
-			return;
-		}
-		next = (byte) i;
-		hasLookahead = true;
+	private void require(int length) throws IOException {
+		if(!fill(length)) throw new FormatException();
 	}
 
-	private void consumeLookahead() throws IOException {
-		assert hasLookahead;
-		for(Consumer c : consumers) c.write(next);
-		hasLookahead = false;
+	private void consume(int length) throws IOException {
+		assert limit - offset >= length;
+		for(Consumer c : consumers) c.write(buf, offset, length);
+		offset += length;
 	}
 
-	private void readIntoBuffer(byte[] b, int length, boolean consume)
-			throws IOException {
-		int offset = 0;
-		while(offset < length) {
-			int read = in.read(b, offset, length - offset);
+	private void readIntoArray(byte[] b, int length) throws IOException {
+		// Copy any buffered bytes, then read the rest directly from the stream
+		int buffered = Math.min(limit - offset, length);
+		System.arraycopy(buf, offset, b, 0, buffered);
+		offset += buffered;
+		int off = buffered;
+		while(off < length) {
+			if(in == null) throw new FormatException();
+			int read = in.read(b, off, length - off);
 			if(read == -1) throw new FormatException();
-			offset += read;
+			off += read;
 		}
-		if(consume) for(Consumer c : consumers) c.write(b, 0, length);
-	}
-
-	private void readIntoBuffer(int length, boolean consume)
-			throws IOException {
-		if(buf.length < length) buf = new byte[length];
-		readIntoBuffer(buf, length, consume);
+		for(Consumer c : consumers) c.write(b, 0, length);
 	}
 
 	private void skip(int length) throws IOException {
-		while(length > 0) {
-			int read = in.read(buf, 0, Math.min(length, buf.length));
-			if(read == -1) throw new FormatException();
-			length -= read;
+		int buffered = limit - offset;
+		while(length > buffered) {
+			// Discard the buffered bytes and read some more
+			offset = limit;
+			length -= buffered;
+			require(Math.min(length, buf.length));
+			buffered = limit - offset;
 		}
+		offset += length;
 	}
 
 	private void skipObject() throws IOException {
@@ -99,13 +132,17 @@ class ReaderImpl implements Reader {
 		else throw new FormatException();
 	}
 
+	// Returns true if there's another object and it has the given type
+	private boolean hasType(byte t) throws IOException {
+		return fill(1) && buf[offset] == t;
+	}
+
 	public boolean eof() throws IOException {
-		if(!hasLookahead) readLookahead();
-		return eof;
+		return !fill(1);
 	}
 
 	public void close() throws IOException {
-		in.close();
+		if(in != null) in.close();
 	}
 
 	public void addConsumer(Consumer c) {
@@ -117,49 +154,48 @@ class ReaderImpl implements Reader {
 	}
 
 	public boolean hasNull() throws IOException {
-		if(!hasLookahead) readLookahead();
-		if(eof) return false;
-		return next == NULL;
+		return hasType(NULL);
 	}
 
 	public void readNull() throws IOException {
 		if(!hasNull()) throw new FormatException();
-		consumeLookahead();
+		consume(1);
 	}
 
 	public void skipNull() throws IOException {
 		if(!hasNull()) throw new FormatException();
-		hasLookahead = false;
+		offset++;
 	}
 
 	public boolean hasBoolean() throws IOException {
-		if(!hasLookahead) readLookahead();
-		if(eof) return false;
+		if(!fill(1)) return false;
+		byte next = buf[offset];
 		return next == FALSE || next == TRUE;
 	}
 
 	public boolean readBoolean() throws IOException {
 		if(!hasBoolean()) throw new FormatException();
-		boolean bool = next == TRUE;
-		consumeLookahead();
+		boolean bool = buf[offset] == TRUE;
+		consume(1);
 		return bool;
 	}
 
 	public void skipBoolean() throws IOException {
 		if(!hasBoolean()) throw new FormatException();
-		hasLookahead = false;
+		offset++;
 	}
 
 	public boolean hasInteger() throws IOException {
-		if(!hasLookahead) readLookahead();
-		if(eof) return false;
+		if(!fill(1)) return false;
+		byte next = buf[offset];
 		return next == INT_8 || next == INT_16 || next == INT_32 ||
 				next == INT_64;
 	}
 
 	public long readInteger() throws IOException {
 		if(!hasInteger()) throw new FormatException();
-		consumeLookahead();
+		byte next = buf[offset];
+		consume(1);
 		if(next == INT_8) return readInt8(true);
 		if(next == INT_16) return readInt16(true);
 		if(next == INT_32) return readInt32(true);
@@ -167,31 +203,43 @@ class ReaderImpl implements Reader {
 	}
 
 	private int readInt8(boolean consume) throws IOException {
-		readIntoBuffer(1, consume);
-		return buf[0];
+		require(1);
+		int value = buf[offset];
+		if(consume) consume(1);
+		else offset++;
+		return value;
 	}
 
 	private short readInt16(boolean consume) throws IOException {
-		readIntoBuffer(2, consume);
-		short value = (short) (((buf[0] & 0xFF) << 8) + (buf[1] & 0xFF));
+		require(2);
+		short value = (short) (((buf[offset] & 0xFF) << 8)
+				+ (buf[offset + 1] & 0xFF));
+		if(consume) consume(2);
+		else offset += 2;
 		if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
 			throw new FormatException();
 		return value;
 	}
 
 	private int readInt32(boolean consume) throws IOException {
-		readIntoBuffer(4, consume);
+		require(4);
 		int value = 0;
-		for(int i = 0; i < 4; i++) value |= (buf[i] & 0xFF) << (24 - i * 8);
+		for(int i = 0; i < 4; i++)
+			value |= (buf[offset + i] & 0xFF) << (24 - i * 8);
+		if(consume) consume(4);
+		else offset += 4;
 		if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
 			throw new FormatException();
 		return value;
 	}
 
 	private long readInt64(boolean consume) throws IOException {
-		readIntoBuffer(8, consume);
+		require(8);
 		long value = 0;
-		for(int i = 0; i < 8; i++) value |= (buf[i] & 0xFFL) << (56 - i * 8);
+		for(int i = 0; i < 8; i++)
+			value |= (buf[offset + i] & 0xFFL) << (56 - i * 8);
+		if(consume) consume(8);
+		else offset += 8;
 		if(value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
 			throw new FormatException();
 		return value;
@@ -199,51 +247,56 @@ class ReaderImpl implements Reader {
 
 	public void skipInteger() throws IOException {
 		if(!hasInteger()) throw new FormatException();
+		byte next = buf[offset++];
 		if(next == INT_8) skip(1);
 		else if(next == INT_16) skip(2);
 		else if(next == INT_32) skip(4);
 		else skip(8);
-		hasLookahead = false;
 	}
 
 	public boolean hasFloat() throws IOException {
-		if(!hasLookahead) readLookahead();
-		if(eof) return false;
-		return next == FLOAT_64;
+		return hasType(FLOAT_64);
 	}
 
 	public double readFloat() throws IOException {
 		if(!hasFloat()) throw new FormatException();
-		consumeLookahead();
-		readIntoBuffer(8, true);
+		consume(1);
+		require(8);
 		long value = 0;
-		for(int i = 0; i < 8; i++) value |= (buf[i] & 0xFFL) << (56 - i * 8);
+		for(int i = 0; i < 8; i++)
+			value |= (buf[offset + i] & 0xFFL) << (56 - i * 8);
+		consume(8);
 		return Double.longBitsToDouble(value);
 	}
 
 	public void skipFloat() throws IOException {
 		if(!hasFloat()) throw new FormatException();
+		offset++;
 		skip(8);
-		hasLookahead = false;
 	}
 
 	public boolean hasString() throws IOException {
-		if(!hasLookahead) readLookahead();
-		if(eof) return false;
+		if(!fill(1)) return false;
+		byte next = buf[offset];
 		return next == STRING_8 || next == STRING_16 || next == STRING_32;
 	}
 
 	public String readString(int maxLength) throws IOException {
 		if(!hasString()) throw new FormatException();
-		consumeLookahead();
-		int length = readStringLength(true);
+		byte next = buf[offset];
+		consume(1);
+		int length = readStringLength(next, true);
 		if(length < 0 || length > maxLength) throw new FormatException();
 		if(length == 0) return "";
-		readIntoBuffer(length, true);
-		return new String(buf, 0, length, "UTF-8");
+		// Decode the string in place
+		require(length);
+		String s = new String(buf, offset, length, "UTF-8");
+		consume(length);
+		return s;
 	}
 
-	private int readStringLength(boolean consume) throws IOException {
+	private int readStringLength(byte next, boolean consume)
+			throws IOException {
 		if(next == STRING_8) return readInt8(consume);
 		if(next == STRING_16) return readInt16(consume);
 		if(next == STRING_32) return readInt32(consume);
@@ -252,30 +305,31 @@ class ReaderImpl implements Reader {
 
 	public void skipString() throws IOException {
 		if(!hasString()) throw new FormatException();
-		int length = readStringLength(false);
+		byte next = buf[offset++];
+		int length = readStringLength(next, false);
 		if(length < 0) throw new FormatException();
 		skip(length);
-		hasLookahead = false;
 	}
 
 	public boolean hasRaw() throws IOException {
-		if(!hasLookahead) readLookahead();
-		if(eof) return false;
+		if(!fill(1)) return false;
+		byte next = buf[offset];
 		return next == RAW_8 || next == RAW_16 || next == RAW_32;
 	}
 
 	public byte[] readRaw(int maxLength) throws IOException {
 		if(!hasRaw()) throw new FormatException();
-		consumeLookahead();
-		int length = readRawLength(true);
+		byte next = buf[offset];
+		consume(1);
+		int length = readRawLength(next, true);
 		if(length < 0 || length > maxLength) throw new FormatException();
 		if(length == 0) return EMPTY_BUFFER;
 		byte[] b = new byte[length];
-		readIntoBuffer(b, length, true);
+		readIntoArray(b, length);
 		return b;
 	}
 
-	private int readRawLength(boolean consume) throws IOException {
+	private int readRawLength(byte next, boolean consume) throws IOException {
 		if(next == RAW_8) return readInt8(consume);
 		if(next == RAW_16) return readInt16(consume);
 		if(next == RAW_32) return readInt32(consume);
@@ -284,21 +338,19 @@ class ReaderImpl implements Reader {
 
 	public void skipRaw() throws IOException {
 		if(!hasRaw()) throw new FormatException();
-		int length = readRawLength(false);
+		byte next = buf[offset++];
+		int length = readRawLength(next, false);
 		if(length < 0) throw new FormatException();
 		skip(length);
-		hasLookahead = false;
 	}
 
 	public boolean hasList() throws IOException {
-		if(!hasLookahead) readLookahead();
-		if(eof) return false;
-		return next == LIST;
+		return hasType(LIST);
 	}
 
 	public void readListStart() throws IOException {
 		if(!hasList()) throw new FormatException();
-		consumeLookahead();
+		consume(1);
 	}
 
 	public boolean hasListEnd() throws IOException {
@@ -306,9 +358,7 @@ class ReaderImpl implements Reader {
 	}
 
 	private boolean hasEnd() throws IOException {
-		if(!hasLookahead) readLookahead();
-		if(eof) return false;
-		return next == END;
+		return hasType(END);
 	}
 
 	public void readListEnd() throws IOException {
@@ -317,25 +367,23 @@ class ReaderImpl implements Reader {
 
 	private void readEnd() throws IOException {
 		if(!hasEnd()) throw new FormatException();
-		consumeLookahead();
+		consume(1);
 	}
 
 	public void skipList() throws IOException {
 		if(!hasList()) throw new FormatException();
-		hasLookahead = false;
+		offset++;
 		while(!hasListEnd()) skipObject();
-		hasLookahead = false;
+		offset++;
 	}
 
 	public boolean hasMap() throws IOException {
-		if(!hasLookahead) readLookahead();
-		if(eof) return false;
-		return next == MAP;
+		return hasType(MAP);
 	}
 
 	public void readMapStart() throws IOException {
 		if(!hasMap()) throw new FormatException();
-		consumeLookahead();
+		consume(1);
 	}
 
 	public boolean hasMapEnd() throws IOException {
@@ -348,11 +396,11 @@ class ReaderImpl implements Reader {
 
 	public void skipMap() throws IOException {
 		if(!hasMap()) throw new FormatException();
-		hasLookahead = false;
+		offset++;
 		while(!hasMapEnd()) {
 			skipObject();
 			skipObject();
 		}
-		hasLookahead = false;
+		offset++;
 	}
 }
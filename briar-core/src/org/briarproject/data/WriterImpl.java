@@ -30,11 +30,22 @@ import org.briarproject.api.Bytes;
 import org.briarproject.api.data.Consumer;
 import org.briarproject.api.data.Writer;
 
-// This class is not thread-safe
+/**
+ * Writes objects to an output stream. Each call is encoded into a buffer and
+ * passed to the stream and the consumers in a single write, so nothing is left
+ * in the buffer between calls and the stream doesn't need to be flushed.
+ * <p>
+ * This class is not thread-safe.
+ */
 class WriterImpl implements Writer {
 
+	private static final int BUFFER_LENGTH = 1024;
+
 	private final OutputStream out;
 	private final Collection<Consumer> consumers = new ArrayList<Consumer>(0);
+	private final byte[] buf = new byte[BUFFER_LENGTH];
+
+	private int length = 0; // Bytes in the buffer that haven't been written
 
 	WriterImpl(OutputStream out) {
 		this.out = out;
@@ -57,142 +68,206 @@ class WriterImpl implements Writer {
 	}
 
 	public void writeNull() throws IOException {
-		write(NULL);
+		appendNull();
+		writeBuffer();
+	}
+
+	private void appendNull() throws IOException {
+		reserve(1);
+		buf[length++] = NULL;
 	}
 
 	public void writeBoolean(boolean b) throws IOException {
-		if(b) write(TRUE);
-		else write(FALSE);
+		appendBoolean(b);
+		writeBuffer();
+	}
+
+	private void appendBoolean(boolean b) throws IOException {
+		reserve(1);
+		buf[length++] = b ? TRUE : FALSE;
 	}
 
 	public void writeInteger(long i) throws IOException {
+		appendInteger(i);
+		writeBuffer();
+	}
+
+	private void appendInteger(long i) throws IOException {
+		reserve(9);
 		if(i >= Byte.MIN_VALUE && i <= Byte.MAX_VALUE) {
-			write(INT_8);
-			write((byte) i);
+			buf[length++] = INT_8;
+			buf[length++] = (byte) i;
 		} else if(i >= Short.MIN_VALUE && i <= Short.MAX_VALUE) {
-			write(INT_16);
-			writeInt16((short) i);
+			buf[length++] = INT_16;
+			appendInt16((short) i);
 		} else if(i >= Integer.MIN_VALUE && i <= Integer.MAX_VALUE) {
-			write(INT_32);
-			writeInt32((int) i);
+			buf[length++] = INT_32;
+			appendInt32((int) i);
 		} else {
-			write(INT_64);
-			writeInt64(i);
+			buf[length++] = INT_64;
+			appendInt64(i);
 		}
 	}
 
-	private void writeInt16(short i) throws IOException {
-		write((byte) (i >> 8));
-		write((byte) ((i << 8) >> 8));
+	// The caller must reserve space for the integers
+
+	private void appendInt16(short i) {
+		buf[length++] = (byte) (i >> 8);
+		buf[length++] = (byte) i;
 	}
 
-	private void writeInt32(int i) throws IOException {
-		write((byte) (i >> 24));
-		write((byte) ((i << 8) >> 24));
-		write((byte) ((i << 16) >> 24));
-		write((byte) ((i << 24) >> 24));
+	private void appendInt32(int i) {
+		for(int shift = 24; shift >= 0; shift -= 8)
+			buf[length++] = (byte) (i >> shift);
 	}
 
-	private void writeInt64(long i) throws IOException {
-		write((byte) (i >> 56));
-		write((byte) ((i << 8) >> 56));
-		write((byte) ((i << 16) >> 56));
-		write((byte) ((i << 24) >> 56));
-		write((byte) ((i << 32) >> 56));
-		write((byte) ((i << 40) >> 56));
-		write((byte) ((i << 48) >> 56));
-		write((byte) ((i << 56) >> 56));
+	private void appendInt64(long i) {
+		for(int shift = 56; shift >= 0; shift -= 8)
+			buf[length++] = (byte) (i >> shift);
 	}
 
 	public void writeFloat(double d) throws IOException {
-		write(FLOAT_64);
-		writeInt64(Double.doubleToRawLongBits(d));
+		appendFloat(d);
+		writeBuffer();
+	}
+
+	private void appendFloat(double d) throws IOException {
+		reserve(9);
+		buf[length++] = FLOAT_64;
+		appendInt64(Double.doubleToRawLongBits(d));
 	}
 
 	public void writeString(String s) throws IOException {
+		appendString(s);
+		writeBuffer();
+	}
+
+	private void appendString(String s) throws IOException {
 		byte[] b = s.getBytes("UTF-8");
+		reserve(5);
 		if(b.length <= Byte.MAX_VALUE) {
-			write(STRING_8);
-			write((byte) b.length);
+			buf[length++] = STRING_8;
+			buf[length++] = (byte) b.length;
 		} else if(b.length <= Short.MAX_VALUE) {
-			write(STRING_16);
-			writeInt16((short) b.length);
+			buf[length++] = STRING_16;
+			appendInt16((short) b.length);
 		} else {
-			write(STRING_32);
-			writeInt32(b.length);
+			buf[length++] = STRING_32;
+			appendInt32(b.length);
 		}
-		write(b);
+		append(b);
 	}
 
 	public void writeRaw(byte[] b) throws IOException {
+		appendRaw(b);
+		writeBuffer();
+	}
+
+	private void appendRaw(byte[] b) throws IOException {
+		reserve(5);
 		if(b.length <= Byte.MAX_VALUE) {
-			write(RAW_8);
-			write((byte) b.length);
+			buf[length++] = RAW_8;
+			buf[length++] = (byte) b.length;
 		} else if(b.length <= Short.MAX_VALUE) {
-			write(RAW_16);
-			writeInt16((short) b.length);
+			buf[length++] = RAW_16;
+			appendInt16((short) b.length);
 		} else {
-			write(RAW_32);
-			writeInt32(b.length);
+			buf[length++] = RAW_32;
+			appendInt32(b.length);
 		}
-		write(b);
+		append(b);
 	}
 
 	public void writeList(Collection<?> c) throws IOException {
-		write(LIST);
-		for(Object o : c) writeObject(o);
-		write(END);
-	}
-
-	private void writeObject(Object o) throws IOException {
-		if(o instanceof Boolean) writeBoolean((Boolean) o);
-		else if(o instanceof Byte) writeInteger((Byte) o);
-		else if(o instanceof Short) writeInteger((Short) o);
-		else if(o instanceof Integer) writeInteger((Integer) o);
-		else if(o instanceof Long) writeInteger((Long) o);
-		else if(o instanceof Float) writeFloat((Float) o);
-		else if(o instanceof Double) writeFloat((Double) o);
-		else if(o instanceof String) writeString((String) o);
-		else if(o instanceof byte[]) writeRaw((byte[]) o);
-		else if(o instanceof Bytes) writeRaw(((Bytes) o).getBytes());
-		else if(o instanceof List<?>) writeList((List<?>) o);
-		else if(o instanceof Map<?, ?>) writeMap((Map<?, ?>) o);
-		else if(o == null) writeNull();
+		appendList(c);
+		writeBuffer();
+	}
+
+	private void appendList(Collection<?> c) throws IOException {
+		appendTag(LIST);
+		for(Object o : c) appendObject(o);
+		appendTag(END);
+	}
+
+	private void appendObject(Object o) throws IOException {
+		if(o instanceof Boolean) appendBoolean((Boolean) o);
+		else if(o instanceof Byte) appendInteger((Byte) o);
+		else if(o instanceof Short) appendInteger((Short) o);
+		else if(o instanceof Integer) appendInteger((Integer) o);
+		else if(o instanceof Long) appendInteger((Long) o);
+		else if(o instanceof Float) appendFloat((Float) o);
+		else if(o instanceof Double) appendFloat((Double) o);
+		else if(o instanceof String) appendString((String) o);
+		else if(o instanceof byte[]) appendRaw((byte[]) o);
+		else if(o instanceof Bytes) appendRaw(((Bytes) o).getBytes());
+		else if(o instanceof List<?>) appendList((List<?>) o);
+		else if(o instanceof Map<?, ?>) appendMap((Map<?, ?>) o);
+		else if(o == null) appendNull();
 		else throw new IllegalStateException();
 	}
 
 	public void writeListStart() throws IOException {
-		write(LIST);
+		appendTag(LIST);
+		writeBuffer();
 	}
 
 	public void writeListEnd() throws IOException {
-		write(END);
+		appendTag(END);
+		writeBuffer();
 	}
 
 	public void writeMap(Map<?, ?> m) throws IOException {
-		write(MAP);
+		appendMap(m);
+		writeBuffer();
+	}
+
+	private void appendMap(Map<?, ?> m) throws IOException {
+		appendTag(MAP);
 		for(Entry<?, ?> e : m.entrySet()) {
-			writeObject(e.getKey());
-			writeObject(e.getValue());
+			appendObject(e.getKey());
+			appendObject(e.getValue());
 		}
-		write(END);
+		appendTag(END);
 	}
 
 	public void writeMapStart() throws IOException {
-		write(MAP);
+		appendTag(MAP);
+		writeBuffer();
 	}
 
 	public void writeMapEnd() throws IOException {
-		write(END);
+		appendTag(END);
+		writeBuffer();
+	}
+
+	private void appendTag(byte tag) throws IOException {
+		reserve(1);
+		buf[length++] = tag;
 	}
 
-	private void write(byte b) throws IOException {
-		out.write(b);
-		for(Consumer c : consumers) c.write(b);
+	// Ensures there's room in the buffer for the given number of bytes
+	private void reserve(int n) throws IOException {
+		if(length + n > BUFFER_LENGTH) writeBuffer();
+	}
+
+	private void append(byte[] b) throws IOException {
+		if(b.length > BUFFER_LENGTH - length) {
+			// Write the buffer, then write the array without copying it
+			writeBuffer();
+			if(b.length > BUFFER_LENGTH / 2) {
+				out.write(b);
+				for(Consumer c : consumers) c.write(b, 0, b.length);
+				return;
+			}
+		}
+		System.arraycopy(b, 0, buf, length, b.length);
+		length += b.length;
 	}
 
-	private void write(byte[] b) throws IOException {
-		out.write(b);
-		for(Consumer c : consumers) c.write(b, 0, b.length);
+	private void writeBuffer() throws IOException {
+		if(length == 0) return;
+		out.write(buf, 0, length);
+		for(Consumer c : consumers) c.write(buf, 0, length);
+		length = 0;
 	}
 }
@@ -67,10 +67,20 @@ interface Database<T> {
 
 	/**
 	 * Commits the given transaction - all changes made during the transaction
-	 * will be applied to the database.
+	 * will be applied to the database and written to disk before this method
+	 * returns, along with the changes made by any earlier transactions.
 	 */
 	void commitTransaction(T txn) throws DbException;
 
+	/**
+	 * Commits the given transaction without waiting for the changes to be
+	 * written to disk. The changes will be written to disk by a later call to
+	 * {@link #commitTransaction(T)}, by closing the database, or after at
+	 * most DatabaseConstants.MAX_SYNC_DELAY. This must only be used for
+	 * changes that can safely be lost if the device crashes.
+	 */
+	void commitTransactionWithoutSync(T txn) throws DbException;
+
 	/**
 	 * Returns the number of transactions started since the transaction count
 	 * was last reset.
@@ -196,6 +206,46 @@ interface Database<T> {
 	 */
 	boolean containsMessage(T txn, MessageId m) throws DbException;
 
+	/**
+	 * Returns true if any messages received from the given contact need to be
+	 * acknowledged.
+	 * <p>
+	 * Locking: read.
+	 */
+	boolean containsMessagesToAck(T txn, ContactId c) throws DbException;
+
+	/**
+	 * Returns true if a retention update received from the given contact
+	 * needs to be acknowledged.
+	 * <p>
+	 * Locking: read.
+	 */
+	boolean containsRetentionAck(T txn, ContactId c) throws DbException;
+
+	/**
+	 * Returns true if a retention update may be due to be sent to the given
+	 * contact.
+	 * <p>
+	 * Locking: read.
+	 */
+	boolean containsRetentionUpdate(T txn, ContactId c) throws DbException;
+
+	/**
+	 * Returns true if a subscription update received from the given contact
+	 * needs to be acknowledged.
+	 * <p>
+	 * Locking: read.
+	 */
+	boolean containsSubscriptionAck(T txn, ContactId c) throws DbException;
+
+	/**
+	 * Returns true if a subscription update may be due to be sent to the
+	 * given contact.
+	 * <p>
+	 * Locking: read.
+	 */
+	boolean containsSubscriptionUpdate(T txn, ContactId c) throws DbException;
+
 	/**
 	 * Returns true if the database contains the given transport.
 	 * <p>
@@ -203,6 +253,22 @@ interface Database<T> {
 	 */
 	boolean containsTransport(T txn, TransportId t) throws DbException;
 
+	/**
+	 * Returns true if any transport updates received from the given contact
+	 * need to be acknowledged.
+	 * <p>
+	 * Locking: read.
+	 */
+	boolean containsTransportAcks(T txn, ContactId c) throws DbException;
+
+	/**
+	 * Returns true if any transport updates may be due to be sent to the
+	 * given contact.
+	 * <p>
+	 * Locking: read.
+	 */
+	boolean containsTransportUpdates(T txn, ContactId c) throws DbException;
+
 	/**
 	 * Returns true if the user subscribes to the given group and the group is
 	 * visible to the given contact.
@@ -12,9 +12,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
@@ -76,12 +78,14 @@ import org.briarproject.api.messaging.TransportAck;
 import org.briarproject.api.messaging.TransportUpdate;
 import org.briarproject.api.transport.Endpoint;
 import org.briarproject.api.transport.TemporarySecret;
+import org.briarproject.util.StripedLock;
 
 /**
- * An implementation of DatabaseComponent using reentrant read-write locks.
- * Depending on the JVM's lock implementation, this implementation may allow
- * writers to starve. LockFairnessTest can be used to test whether this
- * implementation is safe on a given JVM.
+ * An implementation of DatabaseComponent using a reentrant read-write lock
+ * for global operations and striped locks for operations that only affect a
+ * single contact or group. Depending on the JVM's lock implementation, this
+ * implementation may allow writers to starve. LockFairnessTest can be used to
+ * test whether this implementation is safe on a given JVM.
  */
 class DatabaseComponentImpl<T> implements DatabaseComponent,
 DatabaseCleaner.Callback {
@@ -89,14 +93,32 @@ DatabaseCleaner.Callback {
 	private static final Logger LOG =
 			Logger.getLogger(DatabaseComponentImpl.class.getName());
 	private static final int MS_BETWEEN_SWEEPS = 10 * 1000; // 10 seconds
+	private static final int LOCK_STRIPES = 64;
 
 	private final Database<T> db;
 	private final DatabaseCleaner cleaner;
 	private final EventBus eventBus;
 	private final ShutdownManager shutdown;
 
+	/*
+	 * Operations that change the set of contacts, groups, transports or local
+	 * authors hold the write lock. Operations that only touch one contact's
+	 * state hold the read lock and that contact's stripe of contactLocks, so
+	 * sessions with different contacts can proceed in parallel. Operations
+	 * that add messages also hold the message's group's stripe of groupLocks
+	 * to prevent duplicates from being stored concurrently. Locks must be
+	 * acquired in that order, and multiple group stripes must be acquired in
+	 * the order returned by StripedLock.getAll().
+	 *
+	 * Adding a message writes a status for every contact, so operations that
+	 * recalculate which messages are sendable to a contact hold the write
+	 * lock. Otherwise, with MVCC, neither transaction would see the other's
+	 * changes and the new message would never become sendable.
+	 */
 	private final ReentrantReadWriteLock lock =
 			new ReentrantReadWriteLock(true);
+	private final StripedLock contactLocks = new StripedLock(LOCK_STRIPES);
+	private final StripedLock groupLocks = new StripedLock(LOCK_STRIPES);
 
 	private boolean open = false; // Locking: lock.writeLock
 	private int shutdownHandle = -1; // Locking: lock.writeLock
@@ -155,6 +177,29 @@ DatabaseCleaner.Callback {
 		}
 	}
 
+	/** Acquires the read lock and the given contact's stripe. */
+	private void lockContact(ContactId c) {
+		lock.readLock().lock();
+		contactLocks.get(c).lock();
+	}
+
+	private void unlockContact(ContactId c) {
+		contactLocks.get(c).unlock();
+		lock.readLock().unlock();
+	}
+
+	/**
+	 * Acquires the given group's stripe. The caller must already hold the
+	 * read lock.
+	 */
+	private void lockGroup(GroupId g) {
+		groupLocks.get(g).lock();
+	}
+
+	private void unlockGroup(GroupId g) {
+		groupLocks.get(g).unlock();
+	}
+
 	public ContactId addContact(Author remote, AuthorId local)
 			throws DbException {
 		ContactId c;
@@ -180,7 +225,7 @@ DatabaseCleaner.Callback {
 	}
 
 	public void addEndpoint(Endpoint ep) throws DbException {
-		lock.writeLock().lock();
+		lockContact(ep.getContactId());
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -195,7 +240,7 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(ep.getContactId());
 		}
 	}
 
@@ -240,12 +285,14 @@ DatabaseCleaner.Callback {
 
 	public void addLocalMessage(Message m) throws DbException {
 		boolean duplicate, subscribed;
-		lock.writeLock().lock();
+		GroupId g = m.getGroup().getId();
+		lock.readLock().lock();
+		lockGroup(g);
 		try {
 			T txn = db.startTransaction();
 			try {
 				duplicate = db.containsMessage(txn, m.getId());
-				subscribed = db.containsGroup(txn, m.getGroup().getId());
+				subscribed = db.containsGroup(txn, g);
 				if(!duplicate && subscribed) addMessage(txn, m, null);
 				db.commitTransaction(txn);
 			} catch(DbException e) {
@@ -253,7 +300,8 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockGroup(g);
+			lock.readLock().unlock();
 		}
 		if(!duplicate && subscribed)
 			eventBus.broadcast(new MessageAddedEvent(m.getGroup(), null));
@@ -263,7 +311,7 @@ DatabaseCleaner.Callback {
 	 * Stores a message, initialises its status with respect to each contact,
 	 * and marks it as read if it was locally generated.
 	 * <p>
-	 * Locking: write.
+	 * Locking: read, group.
 	 * @param sender null for a locally generated message.
 	 */
 	private void addMessage(T txn, Message m, ContactId sender)
@@ -335,7 +383,25 @@ DatabaseCleaner.Callback {
 
 	public Ack generateAck(ContactId c, int maxMessages) throws DbException {
 		Collection<MessageId> ids;
-		lock.writeLock().lock();
+		// Don't take the contact's lock if there's nothing to ack
+		boolean due;
+		lock.readLock().lock();
+		try {
+			T txn = db.startTransaction();
+			try {
+				if(!db.containsContact(txn, c))
+					throw new NoSuchContactException();
+				due = db.containsMessagesToAck(txn, c);
+				db.commitTransactionWithoutSync(txn);
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		if(!due) return null;
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -343,13 +409,15 @@ DatabaseCleaner.Callback {
 					throw new NoSuchContactException();
 				ids = db.getMessagesToAck(txn, c, maxMessages);
 				if(!ids.isEmpty()) db.lowerAckFlag(txn, c, ids);
+				// Received messages are committed without syncing, so sync
+				// them before acking them
 				db.commitTransaction(txn);
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 		if(ids.isEmpty()) return null;
 		return new Ack(ids);
@@ -358,26 +426,53 @@ DatabaseCleaner.Callback {
 	public Collection<byte[]> generateBatch(ContactId c, int maxLength,
 			int maxLatency) throws DbException {
 		Collection<MessageId> ids;
-		List<byte[]> messages = new ArrayList<byte[]>();
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
 				if(!db.containsContact(txn, c))
 					throw new NoSuchContactException();
 				ids = db.getMessagesToSend(txn, c, maxLength);
-				for(MessageId m : ids) {
-					messages.add(db.getRawMessage(txn, m));
+				for(MessageId m : ids)
 					db.updateExpiryTime(txn, c, m, maxLatency);
-				}
 				if(!ids.isEmpty()) db.lowerRequestedFlag(txn, c, ids);
-				db.commitTransaction(txn);
+				db.commitTransactionWithoutSync(txn);
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
+		}
+		if(ids.isEmpty()) return null;
+		return getRawMessages(ids);
+	}
+
+	/**
+	 * Loads the given messages for a batch that has already been recorded as
+	 * sent. The raw messages are read without holding the contact's lock, so
+	 * the bodies don't have to be copied while other sessions with the
+	 * contact are waiting. Messages that have been deleted in the meantime
+	 * are skipped; they'll have expired for the contact anyway.
+	 */
+	private Collection<byte[]> getRawMessages(Collection<MessageId> ids)
+			throws DbException {
+		List<byte[]> messages = new ArrayList<byte[]>(ids.size());
+		lock.readLock().lock();
+		try {
+			T txn = db.startTransaction();
+			try {
+				for(MessageId m : ids) {
+					if(db.containsMessage(txn, m))
+						messages.add(db.getRawMessage(txn, m));
+				}
+				db.commitTransactionWithoutSync(txn);
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			lock.readLock().unlock();
 		}
 		if(messages.isEmpty()) return null;
 		return Collections.unmodifiableList(messages);
@@ -386,7 +481,7 @@ DatabaseCleaner.Callback {
 	public Offer generateOffer(ContactId c, int maxMessages, int maxLatency)
 			throws DbException {
 		Collection<MessageId> ids;
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -395,13 +490,13 @@ DatabaseCleaner.Callback {
 				ids = db.getMessagesToOffer(txn, c, maxMessages);
 				for(MessageId m : ids)
 					db.updateExpiryTime(txn, c, m, maxLatency);
-				db.commitTransaction(txn);
+				db.commitTransactionWithoutSync(txn);
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 		if(ids.isEmpty()) return null;
 		return new Offer(ids);
@@ -410,7 +505,25 @@ DatabaseCleaner.Callback {
 	public Request generateRequest(ContactId c, int maxMessages)
 			throws DbException {
 		Collection<MessageId> ids;
-		lock.writeLock().lock();
+		// Don't take the contact's lock if there's nothing to request
+		boolean due;
+		lock.readLock().lock();
+		try {
+			T txn = db.startTransaction();
+			try {
+				if(!db.containsContact(txn, c))
+					throw new NoSuchContactException();
+				due = db.countOfferedMessages(txn, c) > 0;
+				db.commitTransactionWithoutSync(txn);
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		if(!due) return null;
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -418,13 +531,13 @@ DatabaseCleaner.Callback {
 					throw new NoSuchContactException();
 				ids = db.getMessagesToRequest(txn, c, maxMessages);
 				if(!ids.isEmpty()) db.removeOfferedMessages(txn, c, ids);
-				db.commitTransaction(txn);
+				db.commitTransactionWithoutSync(txn);
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 		if(ids.isEmpty()) return null;
 		return new Request(ids);
@@ -433,33 +546,48 @@ DatabaseCleaner.Callback {
 	public Collection<byte[]> generateRequestedBatch(ContactId c, int maxLength,
 			int maxLatency) throws DbException {
 		Collection<MessageId> ids;
-		List<byte[]> messages = new ArrayList<byte[]>();
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
 				if(!db.containsContact(txn, c))
 					throw new NoSuchContactException();
 				ids = db.getRequestedMessagesToSend(txn, c, maxLength);
-				for(MessageId m : ids) {
-					messages.add(db.getRawMessage(txn, m));
+				for(MessageId m : ids)
 					db.updateExpiryTime(txn, c, m, maxLatency);
-				}
 				if(!ids.isEmpty()) db.lowerRequestedFlag(txn, c, ids);
-				db.commitTransaction(txn);
+				db.commitTransactionWithoutSync(txn);
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
-		if(messages.isEmpty()) return null;
-		return Collections.unmodifiableList(messages);
+		if(ids.isEmpty()) return null;
+		return getRawMessages(ids);
 	}
 
 	public RetentionAck generateRetentionAck(ContactId c) throws DbException {
-		lock.writeLock().lock();
+		// Don't take the contact's lock if there's nothing to ack
+		boolean due;
+		lock.readLock().lock();
+		try {
+			T txn = db.startTransaction();
+			try {
+				if(!db.containsContact(txn, c))
+					throw new NoSuchContactException();
+				due = db.containsRetentionAck(txn, c);
+				db.commitTransactionWithoutSync(txn);
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		if(!due) return null;
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -473,13 +601,31 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
 	public RetentionUpdate generateRetentionUpdate(ContactId c, int maxLatency)
 			throws DbException {
-		lock.writeLock().lock();
+		// Don't take the contact's lock if no update is due
+		boolean due;
+		lock.readLock().lock();
+		try {
+			T txn = db.startTransaction();
+			try {
+				if(!db.containsContact(txn, c))
+					throw new NoSuchContactException();
+				due = db.containsRetentionUpdate(txn, c);
+				db.commitTransactionWithoutSync(txn);
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		if(!due) return null;
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -493,13 +639,31 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
 	public SubscriptionAck generateSubscriptionAck(ContactId c)
 			throws DbException {
-		lock.writeLock().lock();
+		// Don't take the contact's lock if there's nothing to ack
+		boolean due;
+		lock.readLock().lock();
+		try {
+			T txn = db.startTransaction();
+			try {
+				if(!db.containsContact(txn, c))
+					throw new NoSuchContactException();
+				due = db.containsSubscriptionAck(txn, c);
+				db.commitTransactionWithoutSync(txn);
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		if(!due) return null;
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -513,13 +677,31 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
 	public SubscriptionUpdate generateSubscriptionUpdate(ContactId c,
 			int maxLatency) throws DbException {
-		lock.writeLock().lock();
+		// Don't take the contact's lock if no update is due
+		boolean due;
+		lock.readLock().lock();
+		try {
+			T txn = db.startTransaction();
+			try {
+				if(!db.containsContact(txn, c))
+					throw new NoSuchContactException();
+				due = db.containsSubscriptionUpdate(txn, c);
+				db.commitTransactionWithoutSync(txn);
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		if(!due) return null;
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -534,13 +716,31 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
 	public Collection<TransportAck> generateTransportAcks(ContactId c)
 			throws DbException {
-		lock.writeLock().lock();
+		// Don't take the contact's lock if there's nothing to ack
+		boolean due;
+		lock.readLock().lock();
+		try {
+			T txn = db.startTransaction();
+			try {
+				if(!db.containsContact(txn, c))
+					throw new NoSuchContactException();
+				due = db.containsTransportAcks(txn, c);
+				db.commitTransactionWithoutSync(txn);
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		if(!due) return null;
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -554,13 +754,31 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
 	public Collection<TransportUpdate> generateTransportUpdates(ContactId c,
 			int maxLatency) throws DbException {
-		lock.writeLock().lock();
+		// Don't take the contact's lock if no updates are due
+		boolean due;
+		lock.readLock().lock();
+		try {
+			T txn = db.startTransaction();
+			try {
+				if(!db.containsContact(txn, c))
+					throw new NoSuchContactException();
+				due = db.containsTransportUpdates(txn, c);
+				db.commitTransactionWithoutSync(txn);
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		if(!due) return null;
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -575,7 +793,7 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
@@ -988,7 +1206,7 @@ DatabaseCleaner.Callback {
 
 	public long incrementStreamCounter(ContactId c, TransportId t,
 			long period) throws DbException {
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1004,7 +1222,7 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
@@ -1074,7 +1292,7 @@ DatabaseCleaner.Callback {
 
 	public void receiveAck(ContactId c, Ack a) throws DbException {
 		Collection<MessageId> acked = new ArrayList<MessageId>();
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1086,38 +1304,41 @@ DatabaseCleaner.Callback {
 						acked.add(m);
 					}
 				}
-				db.commitTransaction(txn);
+				db.commitTransactionWithoutSync(txn);
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 		eventBus.broadcast(new MessagesAckedEvent(c, acked));
 	}
 
 	public void receiveMessage(ContactId c, Message m) throws DbException {
 		boolean duplicate, visible;
-		lock.writeLock().lock();
+		GroupId g = m.getGroup().getId();
+		lockContact(c);
+		lockGroup(g);
 		try {
 			T txn = db.startTransaction();
 			try {
 				if(!db.containsContact(txn, c))
 					throw new NoSuchContactException();
 				duplicate = db.containsMessage(txn, m.getId());
-				visible = db.containsVisibleGroup(txn, c, m.getGroup().getId());
+				visible = db.containsVisibleGroup(txn, c, g);
 				if(visible) {
 					if(!duplicate) addMessage(txn, m, c);
 					db.raiseAckFlag(txn, c, m.getId());
 				}
-				db.commitTransaction(txn);
+				db.commitTransactionWithoutSync(txn);
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockGroup(g);
+			unlockContact(c);
 		}
 		if(visible) {
 			if(!duplicate)
@@ -1126,9 +1347,54 @@ DatabaseCleaner.Callback {
 		}
 	}
 
+	public void receiveMessages(ContactId c, Collection<Message> messages)
+			throws DbException {
+		Map<GroupId, Group> added = new HashMap<GroupId, Group>();
+		boolean anyVisible = false;
+		Collection<GroupId> groupIds = new HashSet<GroupId>();
+		for(Message m : messages) groupIds.add(m.getGroup().getId());
+		List<Lock> locks = groupLocks.getAll(groupIds);
+		lockContact(c);
+		for(Lock l : locks) l.lock();
+		try {
+			T txn = db.startTransaction();
+			try {
+				if(!db.containsContact(txn, c))
+					throw new NoSuchContactException();
+				Map<GroupId, Boolean> visibility =
+						new HashMap<GroupId, Boolean>();
+				for(Message m : messages) {
+					Group g = m.getGroup();
+					Boolean visible = visibility.get(g.getId());
+					if(visible == null) {
+						visible = db.containsVisibleGroup(txn, c, g.getId());
+						visibility.put(g.getId(), visible);
+					}
+					if(!visible) continue;
+					if(!db.containsMessage(txn, m.getId())) {
+						addMessage(txn, m, c);
+						added.put(g.getId(), g);
+					}
+					db.raiseAckFlag(txn, c, m.getId());
+					anyVisible = true;
+				}
+				db.commitTransactionWithoutSync(txn);
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			for(Lock l : locks) l.unlock();
+			unlockContact(c);
+		}
+		for(Group g : added.values())
+			eventBus.broadcast(new MessageAddedEvent(g, c));
+		if(anyVisible) eventBus.broadcast(new MessageToAckEvent(c));
+	}
+
 	public void receiveOffer(ContactId c, Offer o) throws DbException {
 		boolean ack = false, request = false;
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1146,13 +1412,13 @@ DatabaseCleaner.Callback {
 						count++;
 					}
 				}
-				db.commitTransaction(txn);
+				db.commitTransactionWithoutSync(txn);
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 		if(ack) eventBus.broadcast(new MessageToAckEvent(c));
 		if(request) eventBus.broadcast(new MessageToRequestEvent(c));
@@ -1160,7 +1426,7 @@ DatabaseCleaner.Callback {
 
 	public void receiveRequest(ContactId c, Request r) throws DbException {
 		boolean requested = false;
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1173,20 +1439,20 @@ DatabaseCleaner.Callback {
 						requested = true;
 					}
 				}
-				db.commitTransaction(txn);
+				db.commitTransactionWithoutSync(txn);
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 		if(requested) eventBus.broadcast(new MessageRequestedEvent(c));
 	}
 
 	public void receiveRetentionAck(ContactId c, RetentionAck a)
 			throws DbException {
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1199,13 +1465,14 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
 	public void receiveRetentionUpdate(ContactId c, RetentionUpdate u)
 			throws DbException {
 		boolean updated;
+		// Recalculating sendability must not overlap with adding messages
 		lock.writeLock().lock();
 		try {
 			T txn = db.startTransaction();
@@ -1227,7 +1494,7 @@ DatabaseCleaner.Callback {
 
 	public void receiveSubscriptionAck(ContactId c, SubscriptionAck a)
 			throws DbException {
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1240,13 +1507,14 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
 	public void receiveSubscriptionUpdate(ContactId c, SubscriptionUpdate u)
 			throws DbException {
 		boolean updated;
+		// Recalculating sendability must not overlap with adding messages
 		lock.writeLock().lock();
 		try {
 			T txn = db.startTransaction();
@@ -1267,7 +1535,7 @@ DatabaseCleaner.Callback {
 
 	public void receiveTransportAck(ContactId c, TransportAck a)
 			throws DbException {
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1282,14 +1550,14 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
 	public void receiveTransportUpdate(ContactId c, TransportUpdate u)
 			throws DbException {
 		boolean updated;
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1305,7 +1573,7 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 		if(updated)
 			eventBus.broadcast(new RemoteTransportsUpdatedEvent(c, u.getId()));
@@ -1403,7 +1671,7 @@ DatabaseCleaner.Callback {
 
 	public void setReorderingWindow(ContactId c, TransportId t, long period,
 			long centre, byte[] bitmap) throws DbException {
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1418,7 +1686,7 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
@@ -1460,7 +1728,7 @@ DatabaseCleaner.Callback {
 
 	public void setRemoteProperties(ContactId c,
 			Map<TransportId, TransportProperties> p) throws DbException {
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1473,7 +1741,7 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
@@ -38,4 +38,11 @@ interface DatabaseConstants {
 	 * time it is necessary to expire messages.
 	 */
 	int BYTES_PER_SWEEP = 10 * 1024 * 1024; // 10 MiB
+
+	/**
+	 * Transactions committed without syncing will be written to disk by the
+	 * next commit that syncs, or at most this many milliseconds after they
+	 * were committed.
+	 */
+	long MAX_SYNC_DELAY = 1000; // 1 second
 }
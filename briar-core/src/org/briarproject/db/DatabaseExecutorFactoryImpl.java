@@ -0,0 +1,19 @@
+package org.briarproject.db;
+
+import java.util.concurrent.Executor;
+
+import org.briarproject.api.db.DatabaseExecutorFactory;
+import org.briarproject.util.SerialExecutor;
+
+class DatabaseExecutorFactoryImpl implements DatabaseExecutorFactory {
+
+	private final Executor pool;
+
+	DatabaseExecutorFactoryImpl(Executor pool) {
+		this.pool = pool;
+	}
+
+	public SerialExecutor createDatabaseExecutor() {
+		return new SerialExecutor(pool);
+	}
+}
@@ -2,41 +2,67 @@ package org.briarproject.db;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.security.SecureRandom;
 import java.sql.Connection;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Singleton;
 
 import org.briarproject.api.db.DatabaseComponent;
 import org.briarproject.api.db.DatabaseConfig;
 import org.briarproject.api.db.DatabaseExecutor;
+import org.briarproject.api.db.DatabaseExecutorFactory;
 import org.briarproject.api.event.EventBus;
 import org.briarproject.api.lifecycle.LifecycleManager;
 import org.briarproject.api.lifecycle.ShutdownManager;
+import org.briarproject.api.system.Clock;
 import org.briarproject.api.system.FileUtils;
+import org.briarproject.api.system.Timer;
+import org.briarproject.db.KeyValueStore.Transaction;
 import org.briarproject.system.SystemClock;
+import org.briarproject.util.SerialExecutor;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 
 public class DatabaseModule extends AbstractModule {
 
-	private final ExecutorService databaseExecutor;
+	/** The default number of executor threads. */
+	private static final int DEFAULT_EXECUTOR_THREADS = 4;
+
+	private final boolean useKeyValueStore;
+	private final ThreadPoolExecutor databaseExecutor;
+	private final AtomicBoolean registeredForShutdown =
+			new AtomicBoolean(false);
 
 	public DatabaseModule() {
+		this(DEFAULT_EXECUTOR_THREADS);
+	}
+
+	public DatabaseModule(int executorThreads) {
+		this(executorThreads, false);
+	}
+
+	/**
+	 * Creates a module that stores the database in a {@link KeyValueStore}
+	 * rather than H2 if <tt>useKeyValueStore</tt> is true.
+	 */
+	public DatabaseModule(int executorThreads, boolean useKeyValueStore) {
+		this.useKeyValueStore = useKeyValueStore;
 		// Use an unbounded queue
 		BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
 		// Discard tasks that are submitted during shutdown
 		RejectedExecutionHandler policy =
 				new ThreadPoolExecutor.DiscardPolicy();
-		// Use a single thread and keep it in the pool for 60 secs
-		databaseExecutor = new ThreadPoolExecutor(0, 1, 60, SECONDS, queue,
-				policy);
+		// Create a fixed # of threads and keep them in the pool for 60 secs
+		databaseExecutor = new ThreadPoolExecutor(executorThreads,
+				executorThreads, 60, SECONDS, queue, policy);
+		databaseExecutor.allowCoreThreadTimeOut(true);
 	}
 
 	@Override
@@ -44,23 +70,49 @@ public class DatabaseModule extends AbstractModule {
 		bind(DatabaseCleaner.class).to(DatabaseCleanerImpl.class);
 	}
 
-	@Provides
-	Database<Connection> getDatabase(DatabaseConfig config,
-			FileUtils fileUtils) {
-		return new H2Database(config, fileUtils, new SystemClock());
-	}
-
 	@Provides @Singleton
-	DatabaseComponent getDatabaseComponent(Database<Connection> db,
-			DatabaseCleaner cleaner, EventBus eventBus,
-			ShutdownManager shutdown) {
+	DatabaseComponent getDatabaseComponent(DatabaseConfig config,
+			FileUtils fileUtils, Timer timer, DatabaseCleaner cleaner,
+			EventBus eventBus, ShutdownManager shutdown) {
+		Clock clock = new SystemClock();
+		if(useKeyValueStore) {
+			Database<Transaction> db = new KeyValueDatabase(config,
+					fileUtils, clock, timer, new SecureRandom());
+			return new DatabaseComponentImpl<Transaction>(db, cleaner,
+					eventBus, shutdown);
+		}
+		Database<Connection> db = new H2Database(config, fileUtils, clock,
+				timer);
 		return new DatabaseComponentImpl<Connection>(db, cleaner, eventBus,
 				shutdown);
 	}
 
+	/**
+	 * Returns the database executor, which runs tasks in the order they're
+	 * submitted. Its queue can be monitored by injecting it as a
+	 * {@link SerialExecutor}.
+	 */
 	@Provides @Singleton @DatabaseExecutor
-	Executor getDatabaseExecutor(LifecycleManager lifecycleManager) {
-		lifecycleManager.registerForShutdown(databaseExecutor);
+	SerialExecutor getDatabaseSerialExecutor(
+			LifecycleManager lifecycleManager) {
+		return new SerialExecutor(getPool(lifecycleManager));
+	}
+
+	@Provides @DatabaseExecutor
+	Executor getDatabaseExecutor(@DatabaseExecutor SerialExecutor executor) {
+		return executor;
+	}
+
+	@Provides @Singleton
+	DatabaseExecutorFactory getDatabaseExecutorFactory(
+			LifecycleManager lifecycleManager) {
+		return new DatabaseExecutorFactoryImpl(getPool(lifecycleManager));
+	}
+
+	// The database executor and the executors for sessions share a pool
+	private Executor getPool(LifecycleManager lifecycleManager) {
+		if(!registeredForShutdown.getAndSet(true))
+			lifecycleManager.registerForShutdown(databaseExecutor);
 		return databaseExecutor;
 	}
 }
@@ -14,6 +14,7 @@ import org.briarproject.api.db.DatabaseConfig;
 import org.briarproject.api.db.DbException;
 import org.briarproject.api.system.Clock;
 import org.briarproject.api.system.FileUtils;
+import org.briarproject.api.system.Timer;
 import org.briarproject.util.StringUtils;
 
 /** Contains all the H2-specific code for the database. */
@@ -23,20 +24,30 @@ class H2Database extends JdbcDatabase {
 	private static final String BINARY_TYPE = "BINARY";
 	private static final String COUNTER_TYPE = "INT NOT NULL AUTO_INCREMENT";
 	private static final String SECRET_TYPE = "BINARY(32)";
+	private static final int QUERY_CACHE_SIZE = 128;
 
 	private final DatabaseConfig config;
 	private final FileUtils fileUtils;
 	private final String url;
 
 	@Inject
-	H2Database(DatabaseConfig config, FileUtils fileUtils, Clock clock) {
-		super(HASH_TYPE, BINARY_TYPE, COUNTER_TYPE, SECRET_TYPE, clock);
+	H2Database(DatabaseConfig config, FileUtils fileUtils, Clock clock,
+			Timer timer) {
+		super(HASH_TYPE, BINARY_TYPE, COUNTER_TYPE, SECRET_TYPE, clock, timer);
 		this.config = config;
 		this.fileUtils = fileUtils;
 		String path = new File(config.getDatabaseDirectory(), "db").getPath();
-		// FIXME: Remove WRITE_DELAY=0 after implementing BTPv2?
-		url = "jdbc:h2:split:" + path + ";CIPHER=AES;MULTI_THREADED=1"
-				+ ";WRITE_DELAY=0;DB_CLOSE_ON_EXIT=false";
+		url = "jdbc:h2:split:" + path + ";CIPHER=AES"
+				// Use row-level locking so that transactions affecting
+				// different contacts can run concurrently (MVCC can't be
+				// combined with MULTI_THREADED)
+				+ ";MVCC=TRUE"
+				// Cache enough parsed statements per connection to cover
+				// the hot paths - the default is eight
+				+ ";QUERY_CACHE_SIZE=" + QUERY_CACHE_SIZE
+				// FIXME: Remove WRITE_DELAY=0 after implementing BTPv2?
+				+ ";WRITE_DELAY=0"
+				+ ";DB_CLOSE_ON_EXIT=false";
 	}
 
 	public boolean open() throws DbException, IOException {
@@ -8,6 +8,7 @@ import static org.briarproject.api.Author.Status.UNKNOWN;
 import static org.briarproject.api.Author.Status.VERIFIED;
 import static org.briarproject.api.messaging.MessagingConstants.MAX_SUBSCRIPTIONS;
 import static org.briarproject.api.messaging.MessagingConstants.RETENTION_GRANULARITY;
+import static org.briarproject.db.DatabaseConstants.MAX_SYNC_DELAY;
 import static org.briarproject.db.ExponentialBackoff.calculateExpiry;
 
 import java.io.IOException;
@@ -21,12 +22,16 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -55,6 +60,7 @@ import org.briarproject.api.messaging.SubscriptionUpdate;
 import org.briarproject.api.messaging.TransportAck;
 import org.briarproject.api.messaging.TransportUpdate;
 import org.briarproject.api.system.Clock;
+import org.briarproject.api.system.Timer;
 import org.briarproject.api.transport.Endpoint;
 import org.briarproject.api.transport.TemporarySecret;
 
@@ -64,8 +70,8 @@ import org.briarproject.api.transport.TemporarySecret;
  */
 abstract class JdbcDatabase implements Database<Connection> {
 
-	private static final int SCHEMA_VERSION = 9;
-	private static final int MIN_SCHEMA_VERSION = 9;
+	private static final int SCHEMA_VERSION = 10;
+	private static final int MIN_SCHEMA_VERSION = 10;
 
 	private static final String CREATE_SETTINGS =
 			"CREATE TABLE settings"
@@ -181,6 +187,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " ack BOOLEAN NOT NULL,"
 					+ " seen BOOLEAN NOT NULL,"
 					+ " requested BOOLEAN NOT NULL,"
+					// Denormalised: true if the message is unseen, in a group
+					// that's visible to and subscribed to by the contact, and
+					// within the contact's retention time
+					+ " sendable BOOLEAN NOT NULL,"
 					+ " expiry BIGINT NOT NULL,"
 					+ " txCount INT NOT NULL,"
 					+ " PRIMARY KEY (messageId, contactId),"
@@ -197,6 +207,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 	private static final String INDEX_STATUSES_BY_CONTACT =
 			"CREATE INDEX statusesByContact ON statuses (contactId)";
 
+	private static final String INDEX_STATUSES_BY_SENDABILITY =
+			"CREATE INDEX statusesBySendability"
+					+ " ON statuses (contactId, sendable)";
+
 	private static final String CREATE_RETENTION_VERSIONS =
 			"CREATE TABLE retentionVersions"
 					+ " (contactId INT NOT NULL,"
@@ -307,20 +321,31 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " REFERENCES transports (transportId)"
 					+ " ON DELETE CASCADE)";
 
+	// Transactions wait for a connection once this many are open
+	// Package access for testing
+	static final int MAX_CONNECTIONS = 16;
+	// Connections beyond this many are closed rather than kept idle
+	private static final int MAX_IDLE_CONNECTIONS = 8;
+
 	private static final Logger LOG =
 			Logger.getLogger(JdbcDatabase.class.getName());
 
 	// Different database libraries use different names for certain types
 	private final String hashType, binaryType, counterType, secretType;
 	private final Clock clock;
+	private final Timer timer;
 
-	private final LinkedList<Connection> connections =
-			new LinkedList<Connection>(); // Locking: connectionsLock
+	// Idle connections are checked out and returned without locking
+	private final Queue<Connection> connections =
+			new ConcurrentLinkedQueue<Connection>();
+	private final AtomicInteger idleConnections = new AtomicInteger(0);
+	// Counts transactions waiting for a connection to be returned
+	private final AtomicInteger waitingForConnection = new AtomicInteger(0);
 
 	private final AtomicInteger transactionCount = new AtomicInteger(0);
 
 	private int openConnections = 0; // Locking: connectionsLock
-	private boolean closed = false; // Locking: connectionsLock
+	private volatile boolean closed = false;
 
 	protected abstract Connection createConnection() throws SQLException;
 	protected abstract void flushBuffersToDisk(Statement s) throws SQLException;
@@ -328,13 +353,24 @@ abstract class JdbcDatabase implements Database<Connection> {
 	private final Lock connectionsLock = new ReentrantLock();
 	private final Condition connectionsChanged = connectionsLock.newCondition();
 
+	// Counts commits so that concurrent committers can share a single sync
+	private final AtomicLong commitCount = new AtomicLong(0);
+	private final Lock syncLock = new ReentrantLock();
+
+	private long syncedCount = 0; // Locking: syncLock
+	private volatile long lastSync = 0;
+
+	// Set while a sync is scheduled for commits that didn't sync
+	private final AtomicBoolean syncScheduled = new AtomicBoolean(false);
+
 	JdbcDatabase(String hashType, String binaryType, String counterType,
-			String secretType, Clock clock) {
+			String secretType, Clock clock, Timer timer) {
 		this.hashType = hashType;
 		this.binaryType = binaryType;
 		this.counterType = counterType;
 		this.secretType = secretType;
 		this.clock = clock;
+		this.timer = timer;
 	}
 
 	protected void open(String driverClass, boolean reopen) throws DbException,
@@ -410,6 +446,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			s.executeUpdate(insertTypeNames(CREATE_STATUSES));
 			s.executeUpdate(INDEX_STATUSES_BY_MESSAGE);
 			s.executeUpdate(INDEX_STATUSES_BY_CONTACT);
+			s.executeUpdate(INDEX_STATUSES_BY_SENDABILITY);
 			s.executeUpdate(insertTypeNames(CREATE_RETENTION_VERSIONS));
 			s.executeUpdate(insertTypeNames(CREATE_TRANSPORTS));
 			s.executeUpdate(insertTypeNames(CREATE_TRANSPORT_CONFIGS));
@@ -435,80 +472,239 @@ abstract class JdbcDatabase implements Database<Connection> {
 	}
 
 	public Connection startTransaction() throws DbException {
-		Connection txn = null;
+		if(closed) throw new DbClosedException();
+		Connection txn = connections.poll();
+		if(txn != null) idleConnections.decrementAndGet();
+		else txn = openConnection();
+		transactionCount.incrementAndGet();
+		return txn;
+	}
+
+	/**
+	 * Opens a new connection, waiting if the maximum number of connections
+	 * are open. Returns an idle connection instead if one is returned while
+	 * waiting.
+	 */
+	private Connection openConnection() throws DbException {
 		connectionsLock.lock();
 		try {
-			if(closed) throw new DbClosedException();
-			txn = connections.poll();
-		} finally {
-			connectionsLock.unlock();
-		}
-		try {
-			if(txn == null) {
-				// Open a new connection
-				txn = createConnection();
-				if(txn == null) throw new DbException();
-				txn.setAutoCommit(false);
-				connectionsLock.lock();
-				try {
+			// Count the connection before opening it, so that
+			// closeAllConnections() waits for it to be closed
+			while(true) {
+				if(closed) throw new DbClosedException();
+				if(openConnections < MAX_CONNECTIONS) {
 					openConnections++;
+					break;
+				}
+				// Returned connections are only signalled to waiters, so
+				// check the idle connections again after registering
+				waitingForConnection.incrementAndGet();
+				try {
+					Connection txn = connections.poll();
+					if(txn != null) {
+						idleConnections.decrementAndGet();
+						return txn;
+					}
+					connectionsChanged.await();
+				} catch(InterruptedException e) {
+					LOG.warning("Interrupted while waiting for a connection");
+					Thread.currentThread().interrupt();
+					throw new DbException(e);
 				} finally {
-					connectionsLock.unlock();
+					waitingForConnection.decrementAndGet();
 				}
 			}
+		} finally {
+			connectionsLock.unlock();
+		}
+		Connection txn = null;
+		boolean success = false;
+		try {
+			txn = createConnection();
+			if(txn == null) throw new DbException();
+			txn.setAutoCommit(false);
+			success = true;
+			return txn;
 		} catch(SQLException e) {
 			throw new DbException(e);
+		} finally {
+			if(!success) {
+				if(txn == null) connectionClosed();
+				else closeConnection(txn);
+			}
+		}
+	}
+
+	private void returnConnection(Connection txn) {
+		if(closed) {
+			closeConnection(txn);
+			return;
+		}
+		// Close the connection if there are enough idle connections
+		if(idleConnections.incrementAndGet() > MAX_IDLE_CONNECTIONS) {
+			idleConnections.decrementAndGet();
+			closeConnection(txn);
+			return;
+		}
+		connections.add(txn);
+		// If the database was closed while the connection was being returned,
+		// closeAllConnections() may have missed it
+		if(closed) closeIdleConnections();
+		else if(waitingForConnection.get() > 0) signalConnectionsChanged();
+	}
+
+	private void closeIdleConnections() {
+		Connection txn;
+		while((txn = connections.poll()) != null) {
+			idleConnections.decrementAndGet();
+			closeConnection(txn);
+		}
+	}
+
+	private void closeConnection(Connection txn) {
+		try {
+			txn.close();
+		} catch(SQLException e) {
+			if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
+		}
+		// Whatever happens, allow the database to close
+		connectionClosed();
+	}
+
+	private void connectionClosed() {
+		connectionsLock.lock();
+		try {
+			openConnections--;
+			connectionsChanged.signalAll();
+		} finally {
+			connectionsLock.unlock();
+		}
+	}
+
+	private void signalConnectionsChanged() {
+		connectionsLock.lock();
+		try {
+			connectionsChanged.signalAll();
+		} finally {
+			connectionsLock.unlock();
+		}
+	}
+
+	/**
+	 * Recalculates which messages are sendable to the given contact after a
+	 * change to the contact's subscriptions, the visibility of groups to the
+	 * contact, or the contact's retention time.
+	 */
+	private void updateSendability(Connection txn, ContactId c)
+			throws SQLException {
+		PreparedStatement ps = null;
+		try {
+			String sql = "UPDATE statuses SET sendable = FALSE"
+					+ " WHERE contactId = ? AND sendable = TRUE";
+			ps = txn.prepareStatement(sql);
+			ps.setInt(1, c.getInt());
+			ps.executeUpdate();
+			ps.close();
+			sql = "UPDATE statuses SET sendable = TRUE"
+					+ " WHERE contactId = ? AND seen = FALSE"
+					+ " AND messageId IN"
+					+ " (SELECT messageId FROM messages AS m"
+					+ " JOIN contactGroups AS cg"
+					+ " ON m.groupId = cg.groupId"
+					+ " JOIN groupVisibilities AS gv"
+					+ " ON m.groupId = gv.groupId"
+					+ " AND cg.contactId = gv.contactId"
+					+ " JOIN retentionVersions AS rv"
+					+ " ON cg.contactId = rv.contactId"
+					+ " WHERE cg.contactId = ?"
+					+ " AND timestamp >= retention)";
+			ps = txn.prepareStatement(sql);
+			ps.setInt(1, c.getInt());
+			ps.setInt(2, c.getInt());
+			ps.executeUpdate();
+			ps.close();
+		} catch(SQLException e) {
+			tryToClose(ps);
+			throw e;
 		}
-		transactionCount.incrementAndGet();
-		return txn;
 	}
 
 	public void abortTransaction(Connection txn) {
 		try {
 			txn.rollback();
-			connectionsLock.lock();
-			try {
-				connections.add(txn);
-				connectionsChanged.signalAll();
-			} finally {
-				connectionsLock.unlock();
-			}
 		} catch(SQLException e) {
 			// Try to close the connection
 			if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
-			try {
-				txn.close();
-			} catch(SQLException e1) {
-				if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e1.toString(), e1);
-			}
-			// Whatever happens, allow the database to close
-			connectionsLock.lock();
-			try {
-				openConnections--;
-				connectionsChanged.signalAll();
-			} finally {
-				connectionsLock.unlock();
-			}
+			closeConnection(txn);
+			return;
 		}
+		returnConnection(txn);
 	}
 
 	public void commitTransaction(Connection txn) throws DbException {
-		Statement s = null;
+		commitTransaction(txn, true);
+	}
+
+	public void commitTransactionWithoutSync(Connection txn)
+			throws DbException {
+		commitTransaction(txn, false);
+	}
+
+	private void commitTransaction(Connection txn, boolean sync)
+			throws DbException {
 		try {
 			txn.commit();
-			s = txn.createStatement();
-			flushBuffersToDisk(s);
-			s.close();
 		} catch(SQLException e) {
-			tryToClose(s);
 			throw new DbException(e);
 		}
-		connectionsLock.lock();
+		long committed = commitCount.incrementAndGet();
+		if(sync || clock.currentTimeMillis() - lastSync >= MAX_SYNC_DELAY)
+			sync(txn, committed);
+		else scheduleSync();
+		returnConnection(txn);
+	}
+
+	/**
+	 * Schedules a sync for {@link DatabaseConstants#MAX_SYNC_DELAY}
+	 * milliseconds from now, unless one is already scheduled, so that commits
+	 * that didn't sync are written to disk even if no later commit syncs.
+	 */
+	private void scheduleSync() {
+		if(!syncScheduled.compareAndSet(false, true)) return;
 		try {
-			connections.add(txn);
-			connectionsChanged.signalAll();
+			timer.schedule(new SyncTask(), MAX_SYNC_DELAY);
+		} catch(IllegalStateException e) {
+			// The timer was cancelled because the database is closing
+			syncScheduled.set(false);
+		}
+	}
+
+	/**
+	 * Writes the given commit and all earlier commits to disk. Committers
+	 * that arrive while a sync is in progress wait for it to finish, then
+	 * share the next sync, so a burst of commits costs at most two syncs.
+	 */
+	private void sync(Connection txn, long committed) throws DbException {
+		syncLock.lock();
+		try {
+			// Another committer may have synced while we were waiting
+			if(syncedCount >= committed) return;
+			// Every commit counted so far has completed, so this sync will
+			// cover it
+			long count = commitCount.get();
+			Statement s = null;
+			try {
+				s = txn.createStatement();
+				flushBuffersToDisk(s);
+				s.close();
+			} catch(SQLException e) {
+				tryToClose(s);
+				throw new DbException(e);
+			}
+			syncedCount = count;
+			lastSync = clock.currentTimeMillis();
 		} finally {
-			connectionsLock.unlock();
+			syncLock.unlock();
 		}
 	}
 
@@ -522,22 +718,27 @@ abstract class JdbcDatabase implements Database<Connection> {
 
 	protected void closeAllConnections() throws SQLException {
 		boolean interrupted = false;
+		closed = true;
+		// Closing the database writes any unsynced changes to disk
+		timer.cancel();
 		connectionsLock.lock();
 		try {
-			closed = true;
-			for(Connection c : connections) c.close();
-			openConnections -= connections.size();
-			connections.clear();
-			while(openConnections > 0) {
+			// Wake any transactions waiting for a connection
+			connectionsChanged.signalAll();
+			while(true) {
+				Connection c;
+				while((c = connections.poll()) != null) {
+					idleConnections.decrementAndGet();
+					openConnections--;
+					c.close();
+				}
+				if(openConnections == 0) break;
 				try {
 					connectionsChanged.await();
 				} catch(InterruptedException e) {
 					LOG.warning("Interrupted while closing connections");
 					interrupted = true;
 				}
-				for(Connection c : connections) c.close();
-				openConnections -= connections.size();
-				connections.clear();
 			}
 		} finally {
 			connectionsLock.unlock();
@@ -573,7 +774,8 @@ abstract class JdbcDatabase implements Database<Connection> {
 			if(rs.next()) throw new DbStateException();
 			rs.close();
 			ps.close();
-			// Create a status row for each message
+			// Create a status row for each message - none of the messages are
+			// sendable because the contact has no subscriptions yet
 			sql = "SELECT messageID FROM messages";
 			ps = txn.prepareStatement(sql);
 			rs = ps.executeQuery();
@@ -583,8 +785,8 @@ abstract class JdbcDatabase implements Database<Connection> {
 			ps.close();
 			if(!ids.isEmpty()) {
 				sql = "INSERT INTO statuses (messageId, contactId, ack,"
-						+ " seen, requested, expiry, txCount)"
-						+ " VALUES (?, ?, FALSE, FALSE, FALSE, 0, 0)";
+						+ " seen, requested, sendable, expiry, txCount)"
+						+ " VALUES (?, ?, FALSE, FALSE, FALSE, FALSE, 0, 0)";
 				ps = txn.prepareStatement(sql);
 				ps.setInt(2, c.getInt());
 				for(byte[] id : ids) {
@@ -872,19 +1074,43 @@ abstract class JdbcDatabase implements Database<Connection> {
 	public void addStatus(Connection txn, ContactId c, MessageId m, boolean ack,
 			boolean seen) throws DbException {
 		PreparedStatement ps = null;
+		ResultSet rs = null;
 		try {
+			boolean sendable = false;
+			if(!seen) {
+				String sql = "SELECT NULL FROM messages AS m"
+						+ " JOIN contactGroups AS cg"
+						+ " ON m.groupId = cg.groupId"
+						+ " JOIN groupVisibilities AS gv"
+						+ " ON m.groupId = gv.groupId"
+						+ " AND cg.contactId = gv.contactId"
+						+ " JOIN retentionVersions AS rv"
+						+ " ON cg.contactId = rv.contactId"
+						+ " WHERE messageId = ? AND cg.contactId = ?"
+						+ " AND timestamp >= retention";
+				ps = txn.prepareStatement(sql);
+				ps.setBytes(1, m.getBytes());
+				ps.setInt(2, c.getInt());
+				rs = ps.executeQuery();
+				sendable = rs.next();
+				if(rs.next()) throw new DbStateException();
+				rs.close();
+				ps.close();
+			}
 			String sql = "INSERT INTO statuses (messageId, contactId, ack,"
-					+ " seen, requested, expiry, txCount)"
-					+ " VALUES (?, ?, ?, ?, FALSE, 0, 0)";
+					+ " seen, requested, sendable, expiry, txCount)"
+					+ " VALUES (?, ?, ?, ?, FALSE, ?, 0, 0)";
 			ps = txn.prepareStatement(sql);
 			ps.setBytes(1, m.getBytes());
 			ps.setInt(2, c.getInt());
 			ps.setBoolean(3, ack);
 			ps.setBoolean(4, seen);
+			ps.setBoolean(5, sendable);
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
 			ps.close();
 		} catch(SQLException e) {
+			tryToClose(rs);
 			tryToClose(ps);
 			throw new DbException(e);
 		}
@@ -969,6 +1195,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
 			ps.close();
+			updateSendability(txn, c);
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -1080,6 +1307,120 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	public boolean containsMessagesToAck(Connection txn, ContactId c)
+			throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT NULL FROM statuses"
+					+ " WHERE contactId = ? AND ack = TRUE"
+					+ " LIMIT 1";
+			ps = txn.prepareStatement(sql);
+			ps.setInt(1, c.getInt());
+			rs = ps.executeQuery();
+			boolean found = rs.next();
+			rs.close();
+			ps.close();
+			return found;
+		} catch(SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	public boolean containsRetentionAck(Connection txn, ContactId c)
+			throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT NULL FROM retentionVersions"
+					+ " WHERE contactId = ? AND remoteAcked = FALSE";
+			ps = txn.prepareStatement(sql);
+			ps.setInt(1, c.getInt());
+			rs = ps.executeQuery();
+			boolean found = rs.next();
+			rs.close();
+			ps.close();
+			return found;
+		} catch(SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	public boolean containsRetentionUpdate(Connection txn, ContactId c)
+			throws DbException {
+		long now = clock.currentTimeMillis();
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT NULL FROM retentionVersions"
+					+ " WHERE contactId = ?"
+					+ " AND localVersion > localAcked"
+					+ " AND expiry < ?";
+			ps = txn.prepareStatement(sql);
+			ps.setInt(1, c.getInt());
+			ps.setLong(2, now);
+			rs = ps.executeQuery();
+			boolean found = rs.next();
+			rs.close();
+			ps.close();
+			return found;
+		} catch(SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	public boolean containsSubscriptionAck(Connection txn, ContactId c)
+			throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT NULL FROM groupVersions"
+					+ " WHERE contactId = ? AND remoteAcked = FALSE";
+			ps = txn.prepareStatement(sql);
+			ps.setInt(1, c.getInt());
+			rs = ps.executeQuery();
+			boolean found = rs.next();
+			rs.close();
+			ps.close();
+			return found;
+		} catch(SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	public boolean containsSubscriptionUpdate(Connection txn, ContactId c)
+			throws DbException {
+		long now = clock.currentTimeMillis();
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT NULL FROM groupVersions"
+					+ " WHERE contactId = ?"
+					+ " AND localVersion > localAcked"
+					+ " AND expiry < ?";
+			ps = txn.prepareStatement(sql);
+			ps.setInt(1, c.getInt());
+			ps.setLong(2, now);
+			rs = ps.executeQuery();
+			boolean found = rs.next();
+			rs.close();
+			ps.close();
+			return found;
+		} catch(SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
 	public boolean containsTransport(Connection txn, TransportId t)
 			throws DbException {
 		PreparedStatement ps = null;
@@ -1101,6 +1442,54 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	public boolean containsTransportAcks(Connection txn, ContactId c)
+			throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT NULL FROM contactTransportVersions"
+					+ " WHERE contactId = ? AND remoteAcked = FALSE"
+					+ " LIMIT 1";
+			ps = txn.prepareStatement(sql);
+			ps.setInt(1, c.getInt());
+			rs = ps.executeQuery();
+			boolean found = rs.next();
+			rs.close();
+			ps.close();
+			return found;
+		} catch(SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	public boolean containsTransportUpdates(Connection txn, ContactId c)
+			throws DbException {
+		long now = clock.currentTimeMillis();
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT NULL FROM transportVersions"
+					+ " WHERE contactId = ?"
+					+ " AND localVersion > localAcked"
+					+ " AND expiry < ?"
+					+ " LIMIT 1";
+			ps = txn.prepareStatement(sql);
+			ps.setInt(1, c.getInt());
+			ps.setLong(2, now);
+			rs = ps.executeQuery();
+			boolean found = rs.next();
+			rs.close();
+			ps.close();
+			return found;
+		} catch(SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
 	public boolean containsVisibleGroup(Connection txn, ContactId c, GroupId g)
 			throws DbException {
 		PreparedStatement ps = null;
@@ -1717,20 +2106,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT m.messageId FROM messages AS m"
-					+ " JOIN contactGroups AS cg"
-					+ " ON m.groupId = cg.groupId"
-					+ " JOIN groupVisibilities AS gv"
-					+ " ON m.groupId = gv.groupId"
-					+ " AND cg.contactId = gv.contactId"
-					+ " JOIN retentionVersions AS rv"
-					+ " ON cg.contactId = rv.contactId"
 					+ " JOIN statuses AS s"
 					+ " ON m.messageId = s.messageId"
-					+ " AND cg.contactId = s.contactId"
-					+ " WHERE cg.contactId = ?"
-					+ " AND timestamp >= retention"
-					+ " AND seen = FALSE AND requested = FALSE"
-					+ " AND s.expiry < ?"
+					+ " WHERE contactId = ? AND sendable = TRUE"
+					+ " AND requested = FALSE"
+					+ " AND expiry < ?"
 					+ " ORDER BY timestamp DESC LIMIT ?";
 			ps = txn.prepareStatement(sql);
 			ps.setInt(1, c.getInt());
@@ -1780,20 +2160,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT length, m.messageId FROM messages AS m"
-					+ " JOIN contactGroups AS cg"
-					+ " ON m.groupId = cg.groupId"
-					+ " JOIN groupVisibilities AS gv"
-					+ " ON m.groupId = gv.groupId"
-					+ " AND cg.contactId = gv.contactId"
-					+ " JOIN retentionVersions AS rv"
-					+ " ON cg.contactId = rv.contactId"
 					+ " JOIN statuses AS s"
 					+ " ON m.messageId = s.messageId"
-					+ " AND cg.contactId = s.contactId"
-					+ " WHERE cg.contactId = ?"
-					+ " AND timestamp >= retention"
-					+ " AND seen = FALSE"
-					+ " AND s.expiry < ?"
+					+ " WHERE contactId = ? AND sendable = TRUE"
+					+ " AND expiry < ?"
 					+ " ORDER BY timestamp DESC";
 			ps = txn.prepareStatement(sql);
 			ps.setInt(1, c.getInt());
@@ -1959,20 +2329,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT length, m.messageId FROM messages AS m"
-					+ " JOIN contactGroups AS cg"
-					+ " ON m.groupId = cg.groupId"
-					+ " JOIN groupVisibilities AS gv"
-					+ " ON m.groupId = gv.groupId"
-					+ " AND cg.contactId = gv.contactId"
-					+ " JOIN retentionVersions AS rv"
-					+ " ON cg.contactId = rv.contactId"
 					+ " JOIN statuses AS s"
 					+ " ON m.messageId = s.messageId"
-					+ " AND cg.contactId = s.contactId"
-					+ " WHERE cg.contactId = ?"
-					+ " AND timestamp >= retention"
-					+ " AND seen = FALSE AND requested = TRUE"
-					+ " AND s.expiry < ?"
+					+ " WHERE contactId = ? AND sendable = TRUE"
+					+ " AND requested = TRUE"
+					+ " AND expiry < ?"
 					+ " ORDER BY timestamp DESC";
 			ps = txn.prepareStatement(sql);
 			ps.setInt(1, c.getInt());
@@ -2704,7 +3065,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			String sql = "UPDATE statuses SET seen = TRUE"
+			String sql = "UPDATE statuses SET seen = TRUE, sendable = FALSE"
 					+ " WHERE messageId = ? AND contactId = ?";
 			ps = txn.prepareStatement(sql);
 			ps.setBytes(1, m.getBytes());
@@ -2892,6 +3253,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
 			ps.close();
+			updateSendability(txn, c);
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2996,26 +3358,29 @@ abstract class JdbcDatabase implements Database<Connection> {
 			ps = txn.prepareStatement(sql);
 			ps.setInt(1, c.getInt());
 			ps.executeUpdate();
+			ps.close();
 			// Store the new subscriptions, if any
-			if(groups.isEmpty()) return true;
-			sql = "INSERT INTO contactGroups"
-					+ " (contactId, groupId, name, salt)"
-					+ " VALUES (?, ?, ?, ?)";
-			ps = txn.prepareStatement(sql);
-			ps.setInt(1, c.getInt());
-			for(Group g : groups) {
-				ps.setBytes(2, g.getId().getBytes());
-				ps.setString(3, g.getName());
-				ps.setBytes(4, g.getSalt());
-				ps.addBatch();
-			}
-			int[] batchAffected = ps.executeBatch();
-			if(batchAffected.length != groups.size())
-				throw new DbStateException();
-			for(int i = 0; i < batchAffected.length; i++) {
-				if(batchAffected[i] != 1) throw new DbStateException();
+			if(!groups.isEmpty()) {
+				sql = "INSERT INTO contactGroups"
+						+ " (contactId, groupId, name, salt)"
+						+ " VALUES (?, ?, ?, ?)";
+				ps = txn.prepareStatement(sql);
+				ps.setInt(1, c.getInt());
+				for(Group g : groups) {
+					ps.setBytes(2, g.getId().getBytes());
+					ps.setString(3, g.getName());
+					ps.setBytes(4, g.getSalt());
+					ps.addBatch();
+				}
+				int[] batchAffected = ps.executeBatch();
+				if(batchAffected.length != groups.size())
+					throw new DbStateException();
+				for(int i = 0; i < batchAffected.length; i++) {
+					if(batchAffected[i] != 1) throw new DbStateException();
+				}
+				ps.close();
 			}
-			ps.close();
+			updateSendability(txn, c);
 			return true;
 		} catch(SQLException e) {
 			tryToClose(ps);
@@ -3061,6 +3426,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
 			ps.close();
+			updateSendability(txn, c);
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -3220,7 +3586,9 @@ abstract class JdbcDatabase implements Database<Connection> {
 			int affected = ps.executeUpdate();
 			if(affected < 0 || affected > 1) throw new DbStateException();
 			ps.close();
-			return affected == 1;
+			if(affected == 0) return false;
+			updateSendability(txn, c);
+			return true;
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -3340,4 +3708,27 @@ abstract class JdbcDatabase implements Database<Connection> {
 			throw new DbException(e);
 		}
 	}
+
+	private class SyncTask extends TimerTask {
+
+		@Override
+		public void run() {
+			// Commits after this point will schedule another sync if needed
+			syncScheduled.set(false);
+			long committed = commitCount.get();
+			if(closed) return;
+			try {
+				Connection txn = startTransaction();
+				try {
+					sync(txn, committed);
+				} finally {
+					abortTransaction(txn);
+				}
+			} catch(DbClosedException e) {
+				// The database is closing, which will write the changes
+			} catch(DbException e) {
+				if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
+			}
+		}
+	}
 }
@@ -0,0 +1,1973 @@
+package org.briarproject.db;
+
+import static java.util.logging.Level.WARNING;
+import static org.briarproject.api.Author.Status.ANONYMOUS;
+import static org.briarproject.api.Author.Status.UNKNOWN;
+import static org.briarproject.api.Author.Status.VERIFIED;
+import static org.briarproject.api.messaging.MessagingConstants.MAX_SUBSCRIPTIONS;
+import static org.briarproject.api.messaging.MessagingConstants.RETENTION_GRANULARITY;
+import static org.briarproject.db.DatabaseConstants.MAX_SYNC_DELAY;
+import static org.briarproject.db.ExponentialBackoff.calculateExpiry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import org.briarproject.api.Author;
+import org.briarproject.api.AuthorId;
+import org.briarproject.api.Contact;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.LocalAuthor;
+import org.briarproject.api.Settings;
+import org.briarproject.api.TransportConfig;
+import org.briarproject.api.TransportId;
+import org.briarproject.api.TransportProperties;
+import org.briarproject.api.db.DatabaseConfig;
+import org.briarproject.api.db.DbException;
+import org.briarproject.api.db.MessageHeader;
+import org.briarproject.api.messaging.Group;
+import org.briarproject.api.messaging.GroupId;
+import org.briarproject.api.messaging.Message;
+import org.briarproject.api.messaging.MessageId;
+import org.briarproject.api.messaging.RetentionAck;
+import org.briarproject.api.messaging.RetentionUpdate;
+import org.briarproject.api.messaging.SubscriptionAck;
+import org.briarproject.api.messaging.SubscriptionUpdate;
+import org.briarproject.api.messaging.TransportAck;
+import org.briarproject.api.messaging.TransportUpdate;
+import org.briarproject.api.system.Clock;
+import org.briarproject.api.system.FileUtils;
+import org.briarproject.api.system.Timer;
+import org.briarproject.api.transport.Endpoint;
+import org.briarproject.api.transport.TemporarySecret;
+import org.briarproject.db.KeyValueStore.Transaction;
+import org.briarproject.util.ByteUtils;
+import org.briarproject.util.StringUtils;
+
+/**
+ * A database implementation that stores its tables in a
+ * {@link KeyValueStore}. Each row is stored under a key made of the table's
+ * prefix and the row's primary key, so the rows belonging to a contact,
+ * group or transport can be found with a range scan. Rows that depend on
+ * other rows are removed explicitly, in place of the foreign key cascades
+ * used by {@link JdbcDatabase}.
+ * <p>
+ * Whether a message is sendable to a contact isn't stored - it's calculated
+ * from the message's status, the contact's subscriptions and retention time,
+ * and the visibility of the message's group when the messages to send are
+ * listed.
+ */
+class KeyValueDatabase implements Database<Transaction> {
+
+	private static final int SCHEMA_VERSION = 1;
+	private static final int MIN_SCHEMA_VERSION = 1;
+
+	// Table prefixes. The comment after each prefix gives the columns of the
+	// key, then the columns of the value
+	private static final byte SETTINGS = 1; // key; value
+	// authorId; name, publicKey, privateKey, created
+	private static final byte LOCAL_AUTHORS = 2;
+	// contactId; authorId, name, publicKey, localAuthorId
+	private static final byte CONTACTS = 3;
+	private static final byte NEXT_CONTACT_ID = 4; // ; contactId
+	private static final byte GROUPS = 5; // groupId; name, salt, visibleToAll
+	// contactId, groupId; inbox
+	private static final byte GROUP_VISIBILITIES = 6;
+	// contactId, groupId; name, salt
+	private static final byte CONTACT_GROUPS = 7;
+	private static final byte GROUP_VERSIONS = 8; // contactId; Versions
+	private static final byte MESSAGES = 9; // messageId; MessageRow
+	private static final byte RAW_MESSAGES = 10; // messageId; raw
+	private static final byte MESSAGES_BY_GROUP = 11; // groupId, messageId;
+	// timestamp, messageId; length
+	private static final byte MESSAGES_BY_TIMESTAMP = 12;
+	private static final byte NEXT_MESSAGE_NUMBER = 13; // ; number
+	private static final byte OFFERS = 14; // contactId, messageId;
+	private static final byte STATUSES = 15; // contactId, messageId; Status
+	private static final byte RETENTION_VERSIONS = 16; // contactId; Versions
+	private static final byte TRANSPORTS = 17; // transportId; maxLatency
+	private static final byte TRANSPORT_CONFIGS = 18; // transportId, key; value
+	// transportId, key; value
+	private static final byte TRANSPORT_PROPERTIES = 19;
+	// contactId, transportId; Versions
+	private static final byte TRANSPORT_VERSIONS = 20;
+	// contactId, transportId, key; value
+	private static final byte CONTACT_TRANSPORT_PROPERTIES = 21;
+	// contactId, transportId; Versions
+	private static final byte CONTACT_TRANSPORT_VERSIONS = 22;
+	// contactId, transportId; epoch, alice
+	private static final byte ENDPOINTS = 23;
+	// contactId, transportId, period; SecretRow
+	private static final byte SECRETS = 24;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private static final Logger LOG =
+			Logger.getLogger(KeyValueDatabase.class.getName());
+
+	private final DatabaseConfig config;
+	private final FileUtils fileUtils;
+	private final Clock clock;
+	private final Timer timer;
+	private final KeyValueStore store;
+
+	private final AtomicInteger transactionCount = new AtomicInteger(0);
+
+	// Counts commits so that concurrent committers can share a single sync
+	private final AtomicLong commitCount = new AtomicLong(0);
+	private final Lock syncLock = new ReentrantLock();
+
+	private long syncedCount = 0; // Locking: syncLock
+	private volatile long lastSync = 0;
+
+	// Set while a sync is scheduled for commits that didn't sync
+	private final AtomicBoolean syncScheduled = new AtomicBoolean(false);
+
+	KeyValueDatabase(DatabaseConfig config, FileUtils fileUtils, Clock clock,
+			Timer timer, SecureRandom random) {
+		this.config = config;
+		this.fileUtils = fileUtils;
+		this.clock = clock;
+		this.timer = timer;
+		store = new KeyValueStore(config.getDatabaseDirectory(), random);
+	}
+
+	public boolean open() throws DbException, IOException {
+		boolean reopen = config.databaseExists();
+		if(!reopen) config.getDatabaseDirectory().mkdirs();
+		store.open(config.getEncryptionKey());
+		Transaction txn = startTransaction();
+		try {
+			if(reopen) {
+				if(!checkSchemaVersion(txn)) throw new DbException();
+			} else {
+				Settings s = new Settings();
+				s.put("schemaVersion", String.valueOf(SCHEMA_VERSION));
+				s.put("minSchemaVersion", String.valueOf(MIN_SCHEMA_VERSION));
+				mergeSettings(txn, s);
+			}
+			commitTransaction(txn);
+		} catch(DbException e) {
+			abortTransaction(txn);
+			throw e;
+		}
+		return reopen;
+	}
+
+	private boolean checkSchemaVersion(Transaction txn) throws DbException {
+		try {
+			Settings s = getSettings(txn);
+			int schemaVersion = Integer.valueOf(s.get("schemaVersion"));
+			if(schemaVersion == SCHEMA_VERSION) return true;
+			if(schemaVersion < MIN_SCHEMA_VERSION) return false;
+			int minSchemaVersion = Integer.valueOf(s.get("minSchemaVersion"));
+			return SCHEMA_VERSION >= minSchemaVersion;
+		} catch(NumberFormatException e) {
+			throw new DbException(e);
+		}
+	}
+
+	public void close() throws DbException {
+		// Closing the store writes any unsynced changes to disk
+		timer.cancel();
+		store.close();
+	}
+
+	public Transaction startTransaction() throws DbException {
+		Transaction txn = store.startTransaction();
+		transactionCount.incrementAndGet();
+		return txn;
+	}
+
+	public void abortTransaction(Transaction txn) {
+		store.abortTransaction(txn);
+	}
+
+	public void commitTransaction(Transaction txn) throws DbException {
+		commitTransaction(txn, true);
+	}
+
+	public void commitTransactionWithoutSync(Transaction txn)
+			throws DbException {
+		commitTransaction(txn, false);
+	}
+
+	private void commitTransaction(Transaction txn, boolean sync)
+			throws DbException {
+		store.commitTransaction(txn);
+		long committed = commitCount.incrementAndGet();
+		if(sync || clock.currentTimeMillis() - lastSync >= MAX_SYNC_DELAY)
+			sync(committed);
+		else scheduleSync();
+	}
+
+	/**
+	 * Schedules a sync for {@link DatabaseConstants#MAX_SYNC_DELAY}
+	 * milliseconds from now, unless one is already scheduled.
+	 */
+	private void scheduleSync() {
+		if(!syncScheduled.compareAndSet(false, true)) return;
+		try {
+			timer.schedule(new SyncTask(), MAX_SYNC_DELAY);
+		} catch(IllegalStateException e) {
+			// The timer was cancelled because the database is closing
+			syncScheduled.set(false);
+		}
+	}
+
+	/**
+	 * Writes the given commit and all earlier commits to disk, sharing the
+	 * sync with any concurrent committers.
+	 */
+	private void sync(long committed) throws DbException {
+		syncLock.lock();
+		try {
+			// Another committer may have synced while we were waiting
+			if(syncedCount >= committed) return;
+			long count = commitCount.get();
+			store.sync();
+			syncedCount = count;
+			lastSync = clock.currentTimeMillis();
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	public int getTransactionCount() {
+		return transactionCount.get();
+	}
+
+	public void resetTransactionCount() {
+		transactionCount.set(0);
+	}
+
+	public long getFreeSpace() throws DbException {
+		File dir = config.getDatabaseDirectory();
+		long maxSize = config.getMaxSize();
+		try {
+			long free = fileUtils.getFreeSpace(dir);
+			long used = getDiskSpace(dir);
+			long quota = maxSize - used;
+			return Math.min(free, quota);
+		} catch(IOException e) {
+			throw new DbException(e);
+		}
+	}
+
+	private long getDiskSpace(File f) {
+		if(f.isDirectory()) {
+			long total = 0;
+			for(File child : f.listFiles()) total += getDiskSpace(child);
+			return total;
+		} else if(f.isFile()) {
+			return f.length();
+		} else {
+			return 0;
+		}
+	}
+
+	public ContactId addContact(Transaction txn, Author remote, AuthorId local)
+			throws DbException {
+		if(containsContact(txn, remote.getId())) throw new DbException();
+		// Assign the next contact ID
+		byte[] nextKey = new Encoder(NEXT_CONTACT_ID).toByteArray();
+		byte[] next = store.getForUpdate(txn, nextKey);
+		int id = next == null ? 1 : new Decoder(next).readInt();
+		store.put(txn, nextKey, new Encoder().writeInt(id + 1).toByteArray());
+		ContactId c = new ContactId(id);
+		byte[] contact = new Encoder().writeBytes(remote.getId().getBytes())
+				.writeString(remote.getName())
+				.writeBytes(remote.getPublicKey())
+				.writeBytes(local.getBytes()).toByteArray();
+		insert(txn, contactKey(c), contact);
+		// Create a status for each message - none of the messages are
+		// sendable because the contact has no subscriptions yet
+		byte[] status = new Status(false, false).encode();
+		for(byte[] key : scan(txn, new Encoder(MESSAGES)).keySet()) {
+			MessageId m = new MessageId(decodeKey(key).readBytes());
+			store.put(txn, statusKey(c, m), status);
+		}
+		// Make groups that are visible to everyone visible to this contact
+		for(Entry<byte[], byte[]> e : scan(txn, new Encoder(GROUPS))
+				.entrySet()) {
+			GroupRow row = new GroupRow(new Decoder(e.getValue()));
+			if(!row.visibleToAll) continue;
+			GroupId g = new GroupId(decodeKey(e.getKey()).readBytes());
+			store.put(txn, visibilityKey(c, g), encodeBoolean(false));
+		}
+		// Create the retention and subscription versions
+		Versions v = new Versions();
+		v.localVersion = 1;
+		v.remoteAcked = true;
+		store.put(txn, retentionVersionsKey(c), v.encode());
+		store.put(txn, groupVersionsKey(c), v.encode());
+		// Create the transport versions for each local transport
+		v = new Versions();
+		v.localVersion = 1;
+		for(byte[] key : scan(txn, new Encoder(TRANSPORTS)).keySet()) {
+			TransportId t = new TransportId(decodeKey(key).readString());
+			store.put(txn, transportVersionsKey(c, t), v.encode());
+		}
+		return c;
+	}
+
+	public void addEndpoint(Transaction txn, Endpoint ep) throws DbException {
+		byte[] value = new Encoder().writeLong(ep.getEpoch())
+				.writeBoolean(ep.getAlice()).toByteArray();
+		insert(txn, endpointKey(ep.getContactId(), ep.getTransportId()),
+				value);
+	}
+
+	public boolean addGroup(Transaction txn, Group g) throws DbException {
+		int count = scan(txn, new Encoder(GROUPS)).size();
+		if(count == MAX_SUBSCRIPTIONS) return false;
+		GroupRow row = new GroupRow(g.getName(), g.getSalt(), false);
+		insert(txn, groupKey(g.getId()), row.encode());
+		return true;
+	}
+
+	public void addLocalAuthor(Transaction txn, LocalAuthor a)
+			throws DbException {
+		byte[] value = new Encoder().writeString(a.getName())
+				.writeBytes(a.getPublicKey()).writeBytes(a.getPrivateKey())
+				.writeLong(a.getTimeCreated()).toByteArray();
+		insert(txn, localAuthorKey(a.getId()), value);
+	}
+
+	public void addMessage(Transaction txn, Message m, boolean local)
+			throws DbException {
+		// Number the messages in the order they're added
+		byte[] nextKey = new Encoder(NEXT_MESSAGE_NUMBER).toByteArray();
+		byte[] next = store.getForUpdate(txn, nextKey);
+		long number = next == null ? 0 : new Decoder(next).readLong();
+		store.put(txn, nextKey, new Encoder().writeLong(number + 1)
+				.toByteArray());
+		byte[] raw = m.getSerialised();
+		MessageRow row = new MessageRow(m, number, raw.length, local);
+		insert(txn, messageKey(m.getId()), row.encode());
+		store.put(txn, rawMessageKey(m.getId()), raw);
+		store.put(txn, groupMessageKey(row.group, m.getId()), EMPTY);
+		store.put(txn, timestampKey(row.timestamp, m.getId()),
+				new Encoder().writeInt(raw.length).toByteArray());
+	}
+
+	public void addOfferedMessage(Transaction txn, ContactId c, MessageId m)
+			throws DbException {
+		byte[] key = offerKey(c, m);
+		if(store.getForUpdate(txn, key) != null) return;
+		store.put(txn, key, EMPTY);
+	}
+
+	public void addSecrets(Transaction txn, Collection<TemporarySecret> secrets)
+			throws DbException {
+		// Store the new secrets
+		for(TemporarySecret s : secrets) {
+			SecretRow row = new SecretRow(s.getSecret(),
+					s.getOutgoingStreamCounter(), s.getWindowCentre(),
+					s.getWindowBitmap());
+			insert(txn, secretKey(s.getContactId(), s.getTransportId(),
+					s.getPeriod()), row.encode());
+		}
+		// Delete any obsolete secrets
+		for(TemporarySecret s : secrets) {
+			Encoder prefix = new Encoder(SECRETS)
+					.writeInt(s.getContactId().getInt())
+					.writeString(s.getTransportId().getString());
+			for(byte[] key : scan(txn, prefix).keySet()) {
+				Decoder d = decodeKey(key);
+				d.readInt();
+				d.readString();
+				if(d.readLong() < s.getPeriod() - 2) store.delete(txn, key);
+			}
+		}
+	}
+
+	public void addStatus(Transaction txn, ContactId c, MessageId m,
+			boolean ack, boolean seen) throws DbException {
+		insert(txn, statusKey(c, m), new Status(ack, seen).encode());
+	}
+
+	public boolean addTransport(Transaction txn, TransportId t,
+			int maxLatency) throws DbException {
+		// Return false if the transport is already in the database
+		byte[] key = transportKey(t);
+		if(store.getForUpdate(txn, key) != null) return false;
+		store.put(txn, key, new Encoder().writeInt(maxLatency).toByteArray());
+		// Create the transport versions for each contact
+		Versions v = new Versions();
+		v.localVersion = 1;
+		for(ContactId c : getContactIds(txn))
+			store.put(txn, transportVersionsKey(c, t), v.encode());
+		return true;
+	}
+
+	public void addVisibility(Transaction txn, ContactId c, GroupId g)
+			throws DbException {
+		insert(txn, visibilityKey(c, g), encodeBoolean(false));
+		// Bump the subscription version
+		byte[] key = groupVersionsKey(c);
+		Versions v = getVersionsForUpdate(txn, key);
+		v.localVersion++;
+		v.expiry = 0;
+		v.txCount = 0;
+		store.put(txn, key, v.encode());
+	}
+
+	public boolean containsContact(Transaction txn, AuthorId a)
+			throws DbException {
+		for(Contact c : getContacts(txn))
+			if(c.getAuthor().getId().equals(a)) return true;
+		return false;
+	}
+
+	public boolean containsContact(Transaction txn, ContactId c)
+			throws DbException {
+		return store.get(txn, contactKey(c)) != null;
+	}
+
+	public boolean containsGroup(Transaction txn, GroupId g)
+			throws DbException {
+		return store.get(txn, groupKey(g)) != null;
+	}
+
+	public boolean containsLocalAuthor(Transaction txn, AuthorId a)
+			throws DbException {
+		return store.get(txn, localAuthorKey(a)) != null;
+	}
+
+	public boolean containsMessage(Transaction txn, MessageId m)
+			throws DbException {
+		return store.get(txn, messageKey(m)) != null;
+	}
+
+	public boolean containsMessagesToAck(Transaction txn, ContactId c)
+			throws DbException {
+		Encoder prefix = new Encoder(STATUSES).writeInt(c.getInt());
+		for(byte[] value : scan(txn, prefix).values())
+			if(new Status(new Decoder(value)).ack) return true;
+		return false;
+	}
+
+	public boolean containsRetentionAck(Transaction txn, ContactId c)
+			throws DbException {
+		Versions v = getVersions(txn, retentionVersionsKey(c));
+		return v != null && !v.remoteAcked;
+	}
+
+	public boolean containsRetentionUpdate(Transaction txn, ContactId c)
+			throws DbException {
+		long now = clock.currentTimeMillis();
+		Versions v = getVersions(txn, retentionVersionsKey(c));
+		return v != null && v.isUpdateDue(now);
+	}
+
+	public boolean containsSubscriptionAck(Transaction txn, ContactId c)
+			throws DbException {
+		Versions v = getVersions(txn, groupVersionsKey(c));
+		return v != null && !v.remoteAcked;
+	}
+
+	public boolean containsSubscriptionUpdate(Transaction txn, ContactId c)
+			throws DbException {
+		long now = clock.currentTimeMillis();
+		Versions v = getVersions(txn, groupVersionsKey(c));
+		return v != null && v.isUpdateDue(now);
+	}
+
+	public boolean containsTransport(Transaction txn, TransportId t)
+			throws DbException {
+		return store.get(txn, transportKey(t)) != null;
+	}
+
+	public boolean containsTransportAcks(Transaction txn, ContactId c)
+			throws DbException {
+		Encoder prefix = new Encoder(CONTACT_TRANSPORT_VERSIONS)
+				.writeInt(c.getInt());
+		for(byte[] value : scan(txn, prefix).values())
+			if(!new Versions(new Decoder(value)).remoteAcked) return true;
+		return false;
+	}
+
+	public boolean containsTransportUpdates(Transaction txn, ContactId c)
+			throws DbException {
+		long now = clock.currentTimeMillis();
+		Encoder prefix = new Encoder(TRANSPORT_VERSIONS).writeInt(c.getInt());
+		for(byte[] value : scan(txn, prefix).values())
+			if(new Versions(new Decoder(value)).isUpdateDue(now)) return true;
+		return false;
+	}
+
+	public boolean containsVisibleGroup(Transaction txn, ContactId c,
+			GroupId g) throws DbException {
+		return store.get(txn, visibilityKey(c, g)) != null;
+	}
+
+	public boolean containsVisibleMessage(Transaction txn, ContactId c,
+			MessageId m) throws DbException {
+		MessageRow row = getMessageRow(txn, m);
+		return row != null && containsVisibleGroup(txn, c, row.group);
+	}
+
+	public int countOfferedMessages(Transaction txn, ContactId c)
+			throws DbException {
+		return scan(txn, new Encoder(OFFERS).writeInt(c.getInt())).size();
+	}
+
+	public Collection<Group> getAvailableGroups(Transaction txn)
+			throws DbException {
+		List<Group> groups = new ArrayList<Group>();
+		Set<GroupId> ids = new HashSet<GroupId>();
+		for(Entry<byte[], byte[]> e : scan(txn, new Encoder(CONTACT_GROUPS))
+				.entrySet()) {
+			Decoder key = decodeKey(e.getKey());
+			key.readInt();
+			GroupId id = new GroupId(key.readBytes());
+			if(containsGroup(txn, id) || !ids.add(id)) continue;
+			Decoder value = new Decoder(e.getValue());
+			groups.add(new Group(id, value.readString(), value.readBytes()));
+		}
+		return Collections.unmodifiableList(groups);
+	}
+
+	public TransportConfig getConfig(Transaction txn, TransportId t)
+			throws DbException {
+		Encoder prefix = new Encoder(TRANSPORT_CONFIGS)
+				.writeString(t.getString());
+		TransportConfig c = new TransportConfig();
+		getStringMap(txn, prefix, c);
+		return c;
+	}
+
+	public Contact getContact(Transaction txn, ContactId c)
+			throws DbException {
+		byte[] value = store.get(txn, contactKey(c));
+		if(value == null) throw new DbException();
+		return decodeContact(c, value);
+	}
+
+	public Collection<ContactId> getContactIds(Transaction txn)
+			throws DbException {
+		List<ContactId> ids = new ArrayList<ContactId>();
+		for(byte[] key : scan(txn, new Encoder(CONTACTS)).keySet())
+			ids.add(new ContactId(decodeKey(key).readInt()));
+		return Collections.unmodifiableList(ids);
+	}
+
+	public Collection<Contact> getContacts(Transaction txn)
+			throws DbException {
+		List<Contact> contacts = new ArrayList<Contact>();
+		for(Entry<byte[], byte[]> e : scan(txn, new Encoder(CONTACTS))
+				.entrySet()) {
+			ContactId c = new ContactId(decodeKey(e.getKey()).readInt());
+			contacts.add(decodeContact(c, e.getValue()));
+		}
+		return Collections.unmodifiableList(contacts);
+	}
+
+	public Collection<ContactId> getContacts(Transaction txn, AuthorId a)
+			throws DbException {
+		List<ContactId> ids = new ArrayList<ContactId>();
+		for(Contact c : getContacts(txn))
+			if(c.getLocalAuthorId().equals(a)) ids.add(c.getId());
+		return Collections.unmodifiableList(ids);
+	}
+
+	public Collection<Endpoint> getEndpoints(Transaction txn)
+			throws DbException {
+		List<Endpoint> endpoints = new ArrayList<Endpoint>();
+		for(Entry<byte[], byte[]> e : scan(txn, new Encoder(ENDPOINTS))
+				.entrySet()) {
+			Decoder key = decodeKey(e.getKey());
+			ContactId contactId = new ContactId(key.readInt());
+			TransportId transportId = new TransportId(key.readString());
+			Decoder value = new Decoder(e.getValue());
+			long epoch = value.readLong();
+			boolean alice = value.readBoolean();
+			endpoints.add(new Endpoint(contactId, transportId, epoch, alice));
+		}
+		return Collections.unmodifiableList(endpoints);
+	}
+
+	public Group getGroup(Transaction txn, GroupId g) throws DbException {
+		byte[] value = store.get(txn, groupKey(g));
+		if(value == null) throw new DbException();
+		GroupRow row = new GroupRow(new Decoder(value));
+		return new Group(g, row.name, row.salt);
+	}
+
+	public Collection<Group> getGroups(Transaction txn) throws DbException {
+		// Inbox groups are excluded unless they're also visible as ordinary
+		// groups, or not visible to anyone
+		Set<GroupId> visible = new HashSet<GroupId>();
+		Set<GroupId> visibleAsOrdinary = new HashSet<GroupId>();
+		for(Entry<byte[], byte[]> e :
+			scan(txn, new Encoder(GROUP_VISIBILITIES)).entrySet()) {
+			Decoder key = decodeKey(e.getKey());
+			key.readInt();
+			GroupId id = new GroupId(key.readBytes());
+			visible.add(id);
+			if(!new Decoder(e.getValue()).readBoolean())
+				visibleAsOrdinary.add(id);
+		}
+		List<Group> groups = new ArrayList<Group>();
+		for(Entry<byte[], byte[]> e : scan(txn, new Encoder(GROUPS))
+				.entrySet()) {
+			GroupId id = new GroupId(decodeKey(e.getKey()).readBytes());
+			if(visible.contains(id) && !visibleAsOrdinary.contains(id))
+				continue;
+			GroupRow row = new GroupRow(new Decoder(e.getValue()));
+			groups.add(new Group(id, row.name, row.salt));
+		}
+		return Collections.unmodifiableList(groups);
+	}
+
+	public GroupId getInboxGroupId(Transaction txn, ContactId c)
+			throws DbException {
+		Encoder prefix = new Encoder(GROUP_VISIBILITIES).writeInt(c.getInt());
+		GroupId inbox = null;
+		for(Entry<byte[], byte[]> e : scan(txn, prefix).entrySet()) {
+			if(!new Decoder(e.getValue()).readBoolean()) continue;
+			if(inbox != null) throw new DbException();
+			Decoder key = decodeKey(e.getKey());
+			key.readInt();
+			inbox = new GroupId(key.readBytes());
+		}
+		return inbox;
+	}
+
+	public Collection<MessageHeader> getInboxMessageHeaders(Transaction txn,
+			ContactId c) throws DbException {
+		// Get the local and remote authors
+		byte[] value = store.get(txn, contactKey(c));
+		if(value == null) throw new DbException();
+		Contact contact = decodeContact(c, value);
+		value = store.get(txn, localAuthorKey(contact.getLocalAuthorId()));
+		if(value == null) throw new DbException();
+		LocalAuthor local = decodeLocalAuthor(contact.getLocalAuthorId(),
+				value);
+		Author localAuthor = new Author(local.getId(), local.getName(),
+				local.getPublicKey());
+		Author remoteAuthor = contact.getAuthor();
+		// Get the message headers
+		List<MessageHeader> headers = new ArrayList<MessageHeader>();
+		GroupId inbox = getInboxGroupId(txn, c);
+		if(inbox == null || !containsGroup(txn, inbox))
+			return Collections.unmodifiableList(headers);
+		for(MessageRow row : getMessageRows(txn, inbox)) {
+			byte[] status = store.get(txn, statusKey(c, row.id));
+			if(status == null) continue;
+			boolean seen = new Status(new Decoder(status)).seen;
+			Author author = row.local ? localAuthor : remoteAuthor;
+			headers.add(new MessageHeader(row.id, row.parent, row.group,
+					author, VERIFIED, row.contentType, row.timestamp,
+					row.local, row.read, seen));
+		}
+		return Collections.unmodifiableList(headers);
+	}
+
+	public LocalAuthor getLocalAuthor(Transaction txn, AuthorId a)
+			throws DbException {
+		byte[] value = store.get(txn, localAuthorKey(a));
+		if(value == null) throw new DbException();
+		return decodeLocalAuthor(a, value);
+	}
+
+	public Collection<LocalAuthor> getLocalAuthors(Transaction txn)
+			throws DbException {
+		List<LocalAuthor> authors = new ArrayList<LocalAuthor>();
+		for(Entry<byte[], byte[]> e : scan(txn, new Encoder(LOCAL_AUTHORS))
+				.entrySet()) {
+			AuthorId a = new AuthorId(decodeKey(e.getKey()).readBytes());
+			authors.add(decodeLocalAuthor(a, e.getValue()));
+		}
+		return Collections.unmodifiableList(authors);
+	}
+
+	public Map<TransportId, TransportProperties> getLocalProperties(
+			Transaction txn) throws DbException {
+		Map<TransportId, TransportProperties> properties =
+				new HashMap<TransportId, TransportProperties>();
+		for(Entry<byte[], byte[]> e :
+			scan(txn, new Encoder(TRANSPORT_PROPERTIES)).entrySet()) {
+			Decoder key = decodeKey(e.getKey());
+			TransportId t = new TransportId(key.readString());
+			TransportProperties p = properties.get(t);
+			if(p == null) {
+				p = new TransportProperties();
+				properties.put(t, p);
+			}
+			p.put(key.readString(), new Decoder(e.getValue()).readString());
+		}
+		return Collections.unmodifiableMap(properties);
+	}
+
+	public TransportProperties getLocalProperties(Transaction txn,
+			TransportId t) throws DbException {
+		Encoder prefix = new Encoder(TRANSPORT_PROPERTIES)
+				.writeString(t.getString());
+		TransportProperties p = new TransportProperties();
+		getStringMap(txn, prefix, p);
+		return p;
+	}
+
+	public byte[] getMessageBody(Transaction txn, MessageId m)
+			throws DbException {
+		MessageRow row = getMessageRow(txn, m);
+		if(row == null) throw new DbException();
+		byte[] raw = store.get(txn, rawMessageKey(m));
+		byte[] body = new byte[row.bodyLength];
+		System.arraycopy(raw, row.bodyStart, body, 0, row.bodyLength);
+		return body;
+	}
+
+	public Collection<MessageHeader> getMessageHeaders(Transaction txn,
+			GroupId g) throws DbException {
+		// Authors are verified if they're local authors or contacts
+		Set<AuthorId> contacts = new HashSet<AuthorId>();
+		for(Contact c : getContacts(txn)) contacts.add(c.getAuthor().getId());
+		List<MessageHeader> headers = new ArrayList<MessageHeader>();
+		for(MessageRow row : getMessageRows(txn, g)) {
+			Author author = null;
+			Author.Status status = ANONYMOUS;
+			if(row.authorId != null) {
+				author = new Author(row.authorId, row.authorName,
+						row.authorKey);
+				if(contacts.contains(row.authorId)
+						|| containsLocalAuthor(txn, row.authorId)) {
+					status = VERIFIED;
+				} else {
+					status = UNKNOWN;
+				}
+			}
+			headers.add(new MessageHeader(row.id, row.parent, g, author,
+					status, row.contentType, row.timestamp, row.local,
+					row.read, false));
+		}
+		return Collections.unmodifiableList(headers);
+	}
+
+	public Collection<MessageId> getMessagesToAck(Transaction txn,
+			ContactId c, int maxMessages) throws DbException {
+		// Ack the messages in the order they were added
+		Encoder prefix = new Encoder(STATUSES).writeInt(c.getInt());
+		List<MessageRow> rows = new ArrayList<MessageRow>();
+		for(Entry<byte[], byte[]> e : scan(txn, prefix).entrySet()) {
+			if(!new Status(new Decoder(e.getValue())).ack) continue;
+			Decoder key = decodeKey(e.getKey());
+			key.readInt();
+			MessageRow row = getMessageRow(txn, new MessageId(key.readBytes()));
+			if(row != null) rows.add(row);
+		}
+		Collections.sort(rows, new Comparator<MessageRow>() {
+
+			public int compare(MessageRow a, MessageRow b) {
+				if(a.number == b.number) return 0;
+				return a.number < b.number ? -1 : 1;
+			}
+		});
+		List<MessageId> ids = new ArrayList<MessageId>();
+		for(MessageRow row : rows) {
+			if(ids.size() == maxMessages) break;
+			ids.add(row.id);
+		}
+		return Collections.unmodifiableList(ids);
+	}
+
+	public Collection<MessageId> getMessagesToOffer(Transaction txn,
+			ContactId c, int maxMessages) throws DbException {
+		List<MessageId> ids = new ArrayList<MessageId>();
+		for(MessageRow row : getSendableMessages(txn, c, false)) {
+			if(ids.size() == maxMessages) break;
+			ids.add(row.id);
+		}
+		return Collections.unmodifiableList(ids);
+	}
+
+	public Collection<MessageId> getMessagesToRequest(Transaction txn,
+			ContactId c, int maxMessages) throws DbException {
+		Encoder prefix = new Encoder(OFFERS).writeInt(c.getInt());
+		List<MessageId> ids = new ArrayList<MessageId>();
+		for(byte[] key : scan(txn, prefix).keySet()) {
+			if(ids.size() == maxMessages) break;
+			Decoder d = decodeKey(key);
+			d.readInt();
+			ids.add(new MessageId(d.readBytes()));
+		}
+		return Collections.unmodifiableList(ids);
+	}
+
+	public Collection<MessageId> getMessagesToSend(Transaction txn,
+			ContactId c, int maxLength) throws DbException {
+		return getMessagesToSend(getSendableMessages(txn, c, null),
+				maxLength);
+	}
+
+	public Collection<MessageId> getOldMessages(Transaction txn, int capacity)
+			throws DbException {
+		List<MessageId> ids = new ArrayList<MessageId>();
+		int total = 0;
+		for(Entry<byte[], byte[]> e :
+			scan(txn, new Encoder(MESSAGES_BY_TIMESTAMP)).entrySet()) {
+			int length = new Decoder(e.getValue()).readInt();
+			if(total + length > capacity) break;
+			Decoder key = decodeKey(e.getKey());
+			key.readLong();
+			ids.add(new MessageId(key.readBytes()));
+			total += length;
+		}
+		return Collections.unmodifiableList(ids);
+	}
+
+	public MessageId getParent(Transaction txn, MessageId m)
+			throws DbException {
+		MessageRow row = getMessageRow(txn, m);
+		if(row == null || row.parent == null) return null;
+		// The parent must be in the same group as the child
+		MessageRow parent = getMessageRow(txn, row.parent);
+		if(parent == null || !parent.group.equals(row.group)) return null;
+		return row.parent;
+	}
+
+	public byte[] getRawMessage(Transaction txn, MessageId m)
+			throws DbException {
+		byte[] raw = store.get(txn, rawMessageKey(m));
+		if(raw == null) throw new DbException();
+		return raw.clone();
+	}
+
+	public boolean getReadFlag(Transaction txn, MessageId m)
+			throws DbException {
+		MessageRow row = getMessageRow(txn, m);
+		if(row == null) throw new DbException();
+		return row.read;
+	}
+
+	public Map<ContactId, TransportProperties> getRemoteProperties(
+			Transaction txn, TransportId t) throws DbException {
+		Map<ContactId, TransportProperties> properties =
+				new HashMap<ContactId, TransportProperties>();
+		for(Entry<byte[], byte[]> e :
+			scan(txn, new Encoder(CONTACT_TRANSPORT_PROPERTIES)).entrySet()) {
+			Decoder key = decodeKey(e.getKey());
+			ContactId c = new ContactId(key.readInt());
+			if(!key.readString().equals(t.getString())) continue;
+			TransportProperties p = properties.get(c);
+			if(p == null) {
+				p = new TransportProperties();
+				properties.put(c, p);
+			}
+			p.put(key.readString(), new Decoder(e.getValue()).readString());
+		}
+		return Collections.unmodifiableMap(properties);
+	}
+
+	public Collection<MessageId> getRequestedMessagesToSend(Transaction txn,
+			ContactId c, int maxLength) throws DbException {
+		return getMessagesToSend(getSendableMessages(txn, c, true),
+				maxLength);
+	}
+
+	public RetentionAck getRetentionAck(Transaction txn, ContactId c)
+			throws DbException {
+		byte[] key = retentionVersionsKey(c);
+		Versions v = getVersions(txn, key);
+		if(v == null || v.remoteAcked) return null;
+		v.remoteAcked = true;
+		store.put(txn, key, v.encode());
+		return new RetentionAck(v.remoteVersion);
+	}
+
+	public RetentionUpdate getRetentionUpdate(Transaction txn, ContactId c,
+			int maxLatency) throws DbException {
+		long now = clock.currentTimeMillis();
+		byte[] key = retentionVersionsKey(c);
+		Versions v = getVersionsForUpdate(txn, key);
+		if(v == null || !v.isUpdateDue(now)) return null;
+		// The retention time is the timestamp of the oldest message
+		long retention = 0;
+		SortedMap<byte[], byte[]> timestamps =
+				scan(txn, new Encoder(MESSAGES_BY_TIMESTAMP));
+		if(!timestamps.isEmpty()) {
+			retention = decodeKey(timestamps.firstKey()).readLong();
+			retention -= retention % RETENTION_GRANULARITY;
+		}
+		v.expiry = calculateExpiry(now, maxLatency, v.txCount);
+		v.txCount++;
+		store.put(txn, key, v.encode());
+		return new RetentionUpdate(retention, v.localVersion);
+	}
+
+	public Collection<TemporarySecret> getSecrets(Transaction txn)
+			throws DbException {
+		List<TemporarySecret> secrets = new ArrayList<TemporarySecret>();
+		for(Entry<byte[], byte[]> e : scan(txn, new Encoder(SECRETS))
+				.entrySet()) {
+			Decoder key = decodeKey(e.getKey());
+			ContactId c = new ContactId(key.readInt());
+			TransportId t = new TransportId(key.readString());
+			long period = key.readLong();
+			byte[] endpoint = store.get(txn, endpointKey(c, t));
+			if(endpoint == null) continue;
+			Decoder ep = new Decoder(endpoint);
+			long epoch = ep.readLong();
+			boolean alice = ep.readBoolean();
+			SecretRow row = new SecretRow(new Decoder(e.getValue()));
+			secrets.add(new TemporarySecret(c, t, epoch, alice, period,
+					row.secret, row.outgoing, row.centre, row.bitmap));
+		}
+		return Collections.unmodifiableList(secrets);
+	}
+
+	public Settings getSettings(Transaction txn) throws DbException {
+		Settings s = new Settings();
+		getStringMap(txn, new Encoder(SETTINGS), s);
+		return s;
+	}
+
+	public Collection<Contact> getSubscribers(Transaction txn, GroupId g)
+			throws DbException {
+		List<Contact> contacts = new ArrayList<Contact>();
+		for(Contact c : getContacts(txn)) {
+			if(store.get(txn, contactGroupKey(c.getId(), g)) != null)
+				contacts.add(c);
+		}
+		return Collections.unmodifiableList(contacts);
+	}
+
+	public SubscriptionAck getSubscriptionAck(Transaction txn, ContactId c)
+			throws DbException {
+		byte[] key = groupVersionsKey(c);
+		Versions v = getVersions(txn, key);
+		if(v == null || v.remoteAcked) return null;
+		v.remoteAcked = true;
+		store.put(txn, key, v.encode());
+		return new SubscriptionAck(v.remoteVersion);
+	}
+
+	public SubscriptionUpdate getSubscriptionUpdate(Transaction txn,
+			ContactId c, int maxLatency) throws DbException {
+		long now = clock.currentTimeMillis();
+		byte[] key = groupVersionsKey(c);
+		Versions v = getVersionsForUpdate(txn, key);
+		if(v == null || !v.isUpdateDue(now)) return null;
+		List<Group> groups = new ArrayList<Group>();
+		Encoder prefix = new Encoder(GROUP_VISIBILITIES).writeInt(c.getInt());
+		for(byte[] k : scan(txn, prefix).keySet()) {
+			Decoder d = decodeKey(k);
+			d.readInt();
+			GroupId id = new GroupId(d.readBytes());
+			byte[] value = store.get(txn, groupKey(id));
+			if(value == null) continue;
+			GroupRow row = new GroupRow(new Decoder(value));
+			groups.add(new Group(id, row.name, row.salt));
+		}
+		if(groups.isEmpty()) return null;
+		v.expiry = calculateExpiry(now, maxLatency, v.txCount);
+		v.txCount++;
+		store.put(txn, key, v.encode());
+		groups = Collections.unmodifiableList(groups);
+		return new SubscriptionUpdate(groups, v.localVersion);
+	}
+
+	public Collection<TransportAck> getTransportAcks(Transaction txn,
+			ContactId c) throws DbException {
+		Encoder prefix = new Encoder(CONTACT_TRANSPORT_VERSIONS)
+				.writeInt(c.getInt());
+		List<TransportAck> acks = new ArrayList<TransportAck>();
+		for(Entry<byte[], byte[]> e : scan(txn, prefix).entrySet()) {
+			Versions v = new Versions(new Decoder(e.getValue()));
+			if(v.remoteAcked) continue;
+			Decoder key = decodeKey(e.getKey());
+			key.readInt();
+			TransportId t = new TransportId(key.readString());
+			acks.add(new TransportAck(t, v.remoteVersion));
+			v.remoteAcked = true;
+			store.put(txn, e.getKey(), v.encode());
+		}
+		if(acks.isEmpty()) return null;
+		return Collections.unmodifiableList(acks);
+	}
+
+	public Map<TransportId, Integer> getTransportLatencies(Transaction txn)
+			throws DbException {
+		Map<TransportId, Integer> latencies =
+				new HashMap<TransportId, Integer>();
+		for(Entry<byte[], byte[]> e : scan(txn, new Encoder(TRANSPORTS))
+				.entrySet()) {
+			TransportId t = new TransportId(decodeKey(e.getKey())
+					.readString());
+			latencies.put(t, new Decoder(e.getValue()).readInt());
+		}
+		return Collections.unmodifiableMap(latencies);
+	}
+
+	public Collection<TransportUpdate> getTransportUpdates(Transaction txn,
+			ContactId c, int maxLatency) throws DbException {
+		long now = clock.currentTimeMillis();
+		Encoder prefix = new Encoder(TRANSPORT_VERSIONS).writeInt(c.getInt());
+		List<TransportUpdate> updates = new ArrayList<TransportUpdate>();
+		for(Entry<byte[], byte[]> e : scan(txn, prefix).entrySet()) {
+			Versions v = new Versions(new Decoder(e.getValue()));
+			if(!v.isUpdateDue(now)) continue;
+			Decoder key = decodeKey(e.getKey());
+			key.readInt();
+			TransportId t = new TransportId(key.readString());
+			// Transports without any properties aren't updated
+			TransportProperties p = getLocalProperties(txn, t);
+			if(p.isEmpty()) continue;
+			updates.add(new TransportUpdate(t, p, v.localVersion));
+			v.expiry = calculateExpiry(now, maxLatency, v.txCount);
+			v.txCount++;
+			store.put(txn, e.getKey(), v.encode());
+		}
+		if(updates.isEmpty()) return null;
+		return Collections.unmodifiableList(updates);
+	}
+
+	public Map<GroupId, Integer> getUnreadMessageCounts(Transaction txn)
+			throws DbException {
+		Map<GroupId, Integer> counts = new HashMap<GroupId, Integer>();
+		for(Entry<byte[], byte[]> e : scan(txn, new Encoder(MESSAGES))
+				.entrySet()) {
+			MessageRow row = new MessageRow(e.getKey(), e.getValue());
+			if(row.read) continue;
+			Integer count = counts.get(row.group);
+			counts.put(row.group, count == null ? 1 : count + 1);
+		}
+		return Collections.unmodifiableMap(counts);
+	}
+
+	public Collection<ContactId> getVisibility(Transaction txn, GroupId g)
+			throws DbException {
+		List<ContactId> visible = new ArrayList<ContactId>();
+		for(ContactId c : getContactIds(txn))
+			if(containsVisibleGroup(txn, c, g)) visible.add(c);
+		return Collections.unmodifiableList(visible);
+	}
+
+	public long incrementStreamCounter(Transaction txn, ContactId c,
+			TransportId t, long period) throws DbException {
+		byte[] key = secretKey(c, t, period);
+		byte[] value = store.getForUpdate(txn, key);
+		if(value == null) return -1;
+		SecretRow row = new SecretRow(new Decoder(value));
+		long streamNumber = row.outgoing;
+		row.outgoing++;
+		store.put(txn, key, row.encode());
+		return streamNumber;
+	}
+
+	public void incrementRetentionVersions(Transaction txn)
+			throws DbException {
+		for(ContactId c : getContactIds(txn)) {
+			byte[] key = retentionVersionsKey(c);
+			Versions v = getVersionsForUpdate(txn, key);
+			if(v == null) continue;
+			v.localVersion++;
+			v.expiry = 0;
+			store.put(txn, key, v.encode());
+		}
+	}
+
+	public void lowerAckFlag(Transaction txn, ContactId c,
+			Collection<MessageId> acked) throws DbException {
+		for(MessageId m : acked) {
+			byte[] key = statusKey(c, m);
+			Status s = getStatusForUpdate(txn, key);
+			if(s == null) continue;
+			s.ack = false;
+			store.put(txn, key, s.encode());
+		}
+	}
+
+	public void lowerRequestedFlag(Transaction txn, ContactId c,
+			Collection<MessageId> requested) throws DbException {
+		for(MessageId m : requested) {
+			byte[] key = statusKey(c, m);
+			Status s = getStatusForUpdate(txn, key);
+			if(s == null) continue;
+			s.requested = false;
+			store.put(txn, key, s.encode());
+		}
+	}
+
+	public void mergeConfig(Transaction txn, TransportId t, TransportConfig c)
+			throws DbException {
+		// Merge the new configuration with the existing one
+		mergeStringMap(txn, new Encoder(TRANSPORT_CONFIGS)
+				.writeString(t.getString()), c);
+	}
+
+	public void mergeLocalProperties(Transaction txn, TransportId t,
+			TransportProperties p) throws DbException {
+		// Merge the new properties with the existing ones
+		mergeStringMap(txn, new Encoder(TRANSPORT_PROPERTIES)
+				.writeString(t.getString()), p);
+		// Bump the transport version
+		for(ContactId c : getContactIds(txn)) {
+			byte[] key = transportVersionsKey(c, t);
+			Versions v = getVersionsForUpdate(txn, key);
+			if(v == null) continue;
+			v.localVersion++;
+			v.expiry = 0;
+			store.put(txn, key, v.encode());
+		}
+	}
+
+	public void mergeSettings(Transaction txn, Settings s)
+			throws DbException {
+		mergeStringMap(txn, new Encoder(SETTINGS), s);
+	}
+
+	public void raiseAckFlag(Transaction txn, ContactId c, MessageId m)
+			throws DbException {
+		byte[] key = statusKey(c, m);
+		Status s = getStatusForUpdate(txn, key);
+		if(s == null) return;
+		s.ack = true;
+		store.put(txn, key, s.encode());
+	}
+
+	public void raiseRequestedFlag(Transaction txn, ContactId c, MessageId m)
+			throws DbException {
+		byte[] key = statusKey(c, m);
+		Status s = getStatusForUpdate(txn, key);
+		if(s == null) return;
+		s.requested = true;
+		store.put(txn, key, s.encode());
+	}
+
+	public void raiseSeenFlag(Transaction txn, ContactId c, MessageId m)
+			throws DbException {
+		byte[] key = statusKey(c, m);
+		Status s = getStatusForUpdate(txn, key);
+		if(s == null) return;
+		s.seen = true;
+		store.put(txn, key, s.encode());
+	}
+
+	public void removeContact(Transaction txn, ContactId c)
+			throws DbException {
+		store.delete(txn, contactKey(c));
+		// Remove the rows that belong to the contact
+		byte[] tables = { GROUP_VISIBILITIES, CONTACT_GROUPS, GROUP_VERSIONS,
+				OFFERS, STATUSES, RETENTION_VERSIONS, TRANSPORT_VERSIONS,
+				CONTACT_TRANSPORT_PROPERTIES, CONTACT_TRANSPORT_VERSIONS,
+				ENDPOINTS, SECRETS };
+		for(byte table : tables)
+			deleteRange(txn, new Encoder(table).writeInt(c.getInt()));
+	}
+
+	public void removeGroup(Transaction txn, GroupId g) throws DbException {
+		store.delete(txn, groupKey(g));
+		// Bump the subscription versions for the affected contacts
+		for(ContactId c : getVisibility(txn, g)) {
+			store.delete(txn, visibilityKey(c, g));
+			byte[] key = groupVersionsKey(c);
+			Versions v = getVersionsForUpdate(txn, key);
+			v.localVersion++;
+			v.expiry = 0;
+			store.put(txn, key, v.encode());
+		}
+		// Remove the group's messages
+		for(MessageRow row : getMessageRows(txn, g)) removeMessage(txn, row);
+	}
+
+	public void removeLocalAuthor(Transaction txn, AuthorId a)
+			throws DbException {
+		store.delete(txn, localAuthorKey(a));
+		// Remove the contacts that belong to the local author
+		for(ContactId c : getContacts(txn, a)) removeContact(txn, c);
+	}
+
+	public void removeMessage(Transaction txn, MessageId m)
+			throws DbException {
+		MessageRow row = getMessageRow(txn, m);
+		if(row != null) removeMessage(txn, row);
+	}
+
+	private void removeMessage(Transaction txn, MessageRow row)
+			throws DbException {
+		store.delete(txn, messageKey(row.id));
+		store.delete(txn, rawMessageKey(row.id));
+		store.delete(txn, groupMessageKey(row.group, row.id));
+		store.delete(txn, timestampKey(row.timestamp, row.id));
+		for(ContactId c : getContactIds(txn))
+			store.delete(txn, statusKey(c, row.id));
+	}
+
+	public boolean removeOfferedMessage(Transaction txn, ContactId c,
+			MessageId m) throws DbException {
+		byte[] key = offerKey(c, m);
+		if(store.getForUpdate(txn, key) == null) return false;
+		store.delete(txn, key);
+		return true;
+	}
+
+	public void removeOfferedMessages(Transaction txn, ContactId c,
+			Collection<MessageId> requested) throws DbException {
+		for(MessageId m : requested) store.delete(txn, offerKey(c, m));
+	}
+
+	public void removeTransport(Transaction txn, TransportId t)
+			throws DbException {
+		store.delete(txn, transportKey(t));
+		// Remove the rows that belong to the transport
+		deleteRange(txn, new Encoder(TRANSPORT_CONFIGS)
+				.writeString(t.getString()));
+		deleteRange(txn, new Encoder(TRANSPORT_PROPERTIES)
+				.writeString(t.getString()));
+		for(ContactId c : getContactIds(txn)) {
+			store.delete(txn, transportVersionsKey(c, t));
+			store.delete(txn, endpointKey(c, t));
+			deleteRange(txn, new Encoder(SECRETS).writeInt(c.getInt())
+					.writeString(t.getString()));
+		}
+	}
+
+	public void removeVisibility(Transaction txn, ContactId c, GroupId g)
+			throws DbException {
+		store.delete(txn, visibilityKey(c, g));
+		// Bump the subscription version
+		byte[] key = groupVersionsKey(c);
+		Versions v = getVersionsForUpdate(txn, key);
+		v.localVersion++;
+		v.expiry = 0;
+		store.put(txn, key, v.encode());
+	}
+
+	public void resetExpiryTime(Transaction txn, ContactId c, MessageId m)
+			throws DbException {
+		byte[] key = statusKey(c, m);
+		Status s = getStatusForUpdate(txn, key);
+		if(s == null) return;
+		s.expiry = 0;
+		s.txCount = 0;
+		store.put(txn, key, s.encode());
+	}
+
+	public void setReorderingWindow(Transaction txn, ContactId c,
+			TransportId t, long period, long centre, byte[] bitmap)
+					throws DbException {
+		byte[] key = secretKey(c, t, period);
+		byte[] value = store.getForUpdate(txn, key);
+		if(value == null) return;
+		SecretRow row = new SecretRow(new Decoder(value));
+		row.centre = centre;
+		row.bitmap = bitmap;
+		store.put(txn, key, row.encode());
+	}
+
+	public boolean setGroups(Transaction txn, ContactId c,
+			Collection<Group> groups, long version) throws DbException {
+		// Return false if the update is obsolete
+		byte[] key = groupVersionsKey(c);
+		Versions v = getVersionsForUpdate(txn, key);
+		if(v == null || v.remoteVersion >= version) return false;
+		// Mark the update as needing to be acked
+		v.remoteVersion = version;
+		v.remoteAcked = false;
+		store.put(txn, key, v.encode());
+		// Reset any statuses for messages in groups that are being removed
+		Set<GroupId> newIds = new HashSet<GroupId>();
+		for(Group g : groups) newIds.add(g.getId());
+		Encoder prefix = new Encoder(CONTACT_GROUPS).writeInt(c.getInt());
+		for(byte[] k : scan(txn, prefix).keySet()) {
+			Decoder d = decodeKey(k);
+			d.readInt();
+			GroupId g = new GroupId(d.readBytes());
+			if(newIds.contains(g)) continue;
+			for(MessageRow row : getMessageRows(txn, g)) {
+				byte[] statusKey = statusKey(c, row.id);
+				if(store.getForUpdate(txn, statusKey) == null) continue;
+				store.put(txn, statusKey, new Status(false, false).encode());
+			}
+		}
+		// Replace the existing subscriptions, if any
+		deleteRange(txn, prefix);
+		for(Group g : groups) {
+			byte[] value = new Encoder().writeString(g.getName())
+					.writeBytes(g.getSalt()).toByteArray();
+			store.put(txn, contactGroupKey(c, g.getId()), value);
+		}
+		return true;
+	}
+
+	public void setInboxGroup(Transaction txn, ContactId c, Group g)
+			throws DbException {
+		// Unset any existing inbox group for the contact
+		GroupId inbox = getInboxGroupId(txn, c);
+		if(inbox != null)
+			store.put(txn, visibilityKey(c, inbox), encodeBoolean(false));
+		// Make the group visible to the contact and set it as the inbox
+		insert(txn, visibilityKey(c, g.getId()), encodeBoolean(true));
+		// Add the group to the contact's subscriptions
+		byte[] value = new Encoder().writeString(g.getName())
+				.writeBytes(g.getSalt()).toByteArray();
+		insert(txn, contactGroupKey(c, g.getId()), value);
+	}
+
+	public void setReadFlag(Transaction txn, MessageId m, boolean read)
+			throws DbException {
+		byte[] key = messageKey(m);
+		byte[] value = store.getForUpdate(txn, key);
+		if(value == null) return;
+		MessageRow row = new MessageRow(key, value);
+		row.read = read;
+		store.put(txn, key, row.encode());
+	}
+
+	public void setRemoteProperties(Transaction txn, ContactId c,
+			Map<TransportId, TransportProperties> p) throws DbException {
+		// Replace the existing properties, if any
+		deleteRange(txn, new Encoder(CONTACT_TRANSPORT_PROPERTIES)
+				.writeInt(c.getInt()));
+		for(Entry<TransportId, TransportProperties> e : p.entrySet()) {
+			mergeStringMap(txn, new Encoder(CONTACT_TRANSPORT_PROPERTIES)
+					.writeInt(c.getInt()).writeString(e.getKey().getString()),
+					e.getValue());
+		}
+	}
+
+	public boolean setRemoteProperties(Transaction txn, ContactId c,
+			TransportId t, TransportProperties p, long version)
+					throws DbException {
+		byte[] key = new Encoder(CONTACT_TRANSPORT_VERSIONS)
+				.writeInt(c.getInt()).writeString(t.getString())
+				.toByteArray();
+		Versions v = getVersionsForUpdate(txn, key);
+		if(v == null) v = new Versions();
+		// Return false if the update is obsolete
+		else if(v.remoteVersion >= version) return false;
+		// Mark the update as needing to be acked
+		v.remoteVersion = version;
+		v.remoteAcked = false;
+		store.put(txn, key, v.encode());
+		// Replace the existing properties, if any
+		Encoder prefix = new Encoder(CONTACT_TRANSPORT_PROPERTIES)
+				.writeInt(c.getInt()).writeString(t.getString());
+		deleteRange(txn, prefix);
+		mergeStringMap(txn, prefix, p);
+		return true;
+	}
+
+	public boolean setRetentionTime(Transaction txn, ContactId c,
+			long retention, long version) throws DbException {
+		byte[] key = retentionVersionsKey(c);
+		Versions v = getVersionsForUpdate(txn, key);
+		if(v == null || v.remoteVersion >= version) return false;
+		v.retention = retention;
+		v.remoteVersion = version;
+		v.remoteAcked = false;
+		store.put(txn, key, v.encode());
+		return true;
+	}
+
+	public void setRetentionUpdateAcked(Transaction txn, ContactId c,
+			long version) throws DbException {
+		setUpdateAcked(txn, retentionVersionsKey(c), version);
+	}
+
+	public void setSubscriptionUpdateAcked(Transaction txn, ContactId c,
+			long version) throws DbException {
+		setUpdateAcked(txn, groupVersionsKey(c), version);
+	}
+
+	public void setTransportUpdateAcked(Transaction txn, ContactId c,
+			TransportId t, long version) throws DbException {
+		setUpdateAcked(txn, transportVersionsKey(c, t), version);
+	}
+
+	private void setUpdateAcked(Transaction txn, byte[] key, long version)
+			throws DbException {
+		Versions v = getVersionsForUpdate(txn, key);
+		if(v == null) return;
+		if(v.localAcked < version && v.localVersion >= version) {
+			v.localAcked = version;
+			store.put(txn, key, v.encode());
+		}
+	}
+
+	public void setVisibleToAll(Transaction txn, GroupId g, boolean all)
+			throws DbException {
+		byte[] key = groupKey(g);
+		byte[] value = store.getForUpdate(txn, key);
+		if(value == null) return;
+		GroupRow row = new GroupRow(new Decoder(value));
+		row.visibleToAll = all;
+		store.put(txn, key, row.encode());
+	}
+
+	public void updateExpiryTime(Transaction txn, ContactId c, MessageId m,
+			int maxLatency) throws DbException {
+		byte[] key = statusKey(c, m);
+		Status s = getStatusForUpdate(txn, key);
+		if(s == null) throw new DbException();
+		long now = clock.currentTimeMillis();
+		s.expiry = calculateExpiry(now, maxLatency, s.txCount);
+		s.txCount++;
+		store.put(txn, key, s.encode());
+	}
+
+	/**
+	 * Returns the messages that are sendable to the given contact and whose
+	 * expiry times have passed, most recent first. If <tt>requested</tt> is
+	 * not null, only messages whose requested flags match it are returned.
+	 */
+	private List<MessageRow> getSendableMessages(Transaction txn, ContactId c,
+			Boolean requested) throws DbException {
+		long now = clock.currentTimeMillis();
+		Versions retention = getVersions(txn, retentionVersionsKey(c));
+		if(retention == null) return Collections.emptyList();
+		// A message is sendable if the contact subscribes to its group, the
+		// group is visible to the contact and the message is within the
+		// contact's retention time
+		Map<GroupId, Boolean> sendableGroups = new HashMap<GroupId, Boolean>();
+		List<MessageRow> sendable = new ArrayList<MessageRow>();
+		Encoder prefix = new Encoder(STATUSES).writeInt(c.getInt());
+		for(Entry<byte[], byte[]> e : scan(txn, prefix).entrySet()) {
+			Status s = new Status(new Decoder(e.getValue()));
+			if(s.seen || s.expiry >= now) continue;
+			if(requested != null && s.requested != requested) continue;
+			Decoder key = decodeKey(e.getKey());
+			key.readInt();
+			MessageRow row = getMessageRow(txn, new MessageId(key.readBytes()));
+			if(row == null || row.timestamp < retention.retention) continue;
+			Boolean group = sendableGroups.get(row.group);
+			if(group == null) {
+				group = containsVisibleGroup(txn, c, row.group) && store.get(
+						txn, contactGroupKey(c, row.group)) != null;
+				sendableGroups.put(row.group, group);
+			}
+			if(group) sendable.add(row);
+		}
+		Collections.sort(sendable, new Comparator<MessageRow>() {
+
+			public int compare(MessageRow a, MessageRow b) {
+				if(a.timestamp == b.timestamp) return 0;
+				return a.timestamp > b.timestamp ? -1 : 1;
+			}
+		});
+		return sendable;
+	}
+
+	private Collection<MessageId> getMessagesToSend(List<MessageRow> rows,
+			int maxLength) {
+		List<MessageId> ids = new ArrayList<MessageId>();
+		int total = 0;
+		for(MessageRow row : rows) {
+			if(total + row.length > maxLength) break;
+			ids.add(row.id);
+			total += row.length;
+		}
+		return Collections.unmodifiableList(ids);
+	}
+
+	private List<MessageRow> getMessageRows(Transaction txn, GroupId g)
+			throws DbException {
+		Encoder prefix = new Encoder(MESSAGES_BY_GROUP)
+				.writeBytes(g.getBytes());
+		List<MessageRow> rows = new ArrayList<MessageRow>();
+		for(byte[] key : scan(txn, prefix).keySet()) {
+			Decoder d = decodeKey(key);
+			d.readBytes();
+			MessageRow row = getMessageRow(txn, new MessageId(d.readBytes()));
+			if(row == null) throw new DbException();
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	private MessageRow getMessageRow(Transaction txn, MessageId m) {
+		byte[] key = messageKey(m);
+		byte[] value = store.get(txn, key);
+		return value == null ? null : new MessageRow(key, value);
+	}
+
+	private Versions getVersions(Transaction txn, byte[] key) {
+		byte[] value = store.get(txn, key);
+		return value == null ? null : new Versions(new Decoder(value));
+	}
+
+	private Versions getVersionsForUpdate(Transaction txn, byte[] key)
+			throws DbException {
+		byte[] value = store.getForUpdate(txn, key);
+		return value == null ? null : new Versions(new Decoder(value));
+	}
+
+	private Status getStatusForUpdate(Transaction txn, byte[] key)
+			throws DbException {
+		byte[] value = store.getForUpdate(txn, key);
+		return value == null ? null : new Status(new Decoder(value));
+	}
+
+	private void getStringMap(Transaction txn, Encoder prefix,
+			Map<String, String> m) {
+		int offset = prefix.size();
+		for(Entry<byte[], byte[]> e : scan(txn, prefix).entrySet()) {
+			String key = new Decoder(e.getKey(), offset).readString();
+			m.put(key, new Decoder(e.getValue()).readString());
+		}
+	}
+
+	private void mergeStringMap(Transaction txn, Encoder prefix,
+			Map<String, String> m) throws DbException {
+		byte[] p = prefix.toByteArray();
+		for(Entry<String, String> e : m.entrySet()) {
+			byte[] key = new Encoder(p).writeString(e.getKey()).toByteArray();
+			byte[] value = new Encoder().writeString(e.getValue())
+					.toByteArray();
+			store.put(txn, key, value);
+		}
+	}
+
+	/** Stores a new row, throwing an exception if the row already exists. */
+	private void insert(Transaction txn, byte[] key, byte[] value)
+			throws DbException {
+		if(store.getForUpdate(txn, key) != null) throw new DbException();
+		store.put(txn, key, value);
+	}
+
+	private SortedMap<byte[], byte[]> scan(Transaction txn, Encoder prefix) {
+		return store.getRange(txn, prefix.toByteArray());
+	}
+
+	private void deleteRange(Transaction txn, Encoder prefix)
+			throws DbException {
+		for(byte[] key : scan(txn, prefix).keySet()) store.delete(txn, key);
+	}
+
+	private Contact decodeContact(ContactId c, byte[] value) {
+		Decoder d = new Decoder(value);
+		AuthorId authorId = new AuthorId(d.readBytes());
+		String name = d.readString();
+		byte[] publicKey = d.readBytes();
+		AuthorId localAuthorId = new AuthorId(d.readBytes());
+		return new Contact(c, new Author(authorId, name, publicKey),
+				localAuthorId);
+	}
+
+	private LocalAuthor decodeLocalAuthor(AuthorId a, byte[] value) {
+		Decoder d = new Decoder(value);
+		String name = d.readString();
+		byte[] publicKey = d.readBytes();
+		byte[] privateKey = d.readBytes();
+		long created = d.readLong();
+		return new LocalAuthor(a, name, publicKey, privateKey, created);
+	}
+
+	/** Returns a decoder for the columns of a key, after the table prefix. */
+	private static Decoder decodeKey(byte[] key) {
+		return new Decoder(key, 1);
+	}
+
+	private static byte[] encodeBoolean(boolean b) {
+		return new Encoder().writeBoolean(b).toByteArray();
+	}
+
+	private static byte[] localAuthorKey(AuthorId a) {
+		return new Encoder(LOCAL_AUTHORS).writeBytes(a.getBytes())
+				.toByteArray();
+	}
+
+	private static byte[] contactKey(ContactId c) {
+		return new Encoder(CONTACTS).writeInt(c.getInt()).toByteArray();
+	}
+
+	private static byte[] groupKey(GroupId g) {
+		return new Encoder(GROUPS).writeBytes(g.getBytes()).toByteArray();
+	}
+
+	private static byte[] visibilityKey(ContactId c, GroupId g) {
+		return new Encoder(GROUP_VISIBILITIES).writeInt(c.getInt())
+				.writeBytes(g.getBytes()).toByteArray();
+	}
+
+	private static byte[] contactGroupKey(ContactId c, GroupId g) {
+		return new Encoder(CONTACT_GROUPS).writeInt(c.getInt())
+				.writeBytes(g.getBytes()).toByteArray();
+	}
+
+	private static byte[] groupVersionsKey(ContactId c) {
+		return new Encoder(GROUP_VERSIONS).writeInt(c.getInt()).toByteArray();
+	}
+
+	private static byte[] messageKey(MessageId m) {
+		return new Encoder(MESSAGES).writeBytes(m.getBytes()).toByteArray();
+	}
+
+	private static byte[] rawMessageKey(MessageId m) {
+		return new Encoder(RAW_MESSAGES).writeBytes(m.getBytes())
+				.toByteArray();
+	}
+
+	private static byte[] groupMessageKey(GroupId g, MessageId m) {
+		return new Encoder(MESSAGES_BY_GROUP).writeBytes(g.getBytes())
+				.writeBytes(m.getBytes()).toByteArray();
+	}
+
+	private static byte[] timestampKey(long timestamp, MessageId m) {
+		return new Encoder(MESSAGES_BY_TIMESTAMP).writeLong(timestamp)
+				.writeBytes(m.getBytes()).toByteArray();
+	}
+
+	private static byte[] offerKey(ContactId c, MessageId m) {
+		return new Encoder(OFFERS).writeInt(c.getInt())
+				.writeBytes(m.getBytes()).toByteArray();
+	}
+
+	private static byte[] statusKey(ContactId c, MessageId m) {
+		return new Encoder(STATUSES).writeInt(c.getInt())
+				.writeBytes(m.getBytes()).toByteArray();
+	}
+
+	private static byte[] retentionVersionsKey(ContactId c) {
+		return new Encoder(RETENTION_VERSIONS).writeInt(c.getInt())
+				.toByteArray();
+	}
+
+	private static byte[] transportKey(TransportId t) {
+		return new Encoder(TRANSPORTS).writeString(t.getString())
+				.toByteArray();
+	}
+
+	private static byte[] transportVersionsKey(ContactId c, TransportId t) {
+		return new Encoder(TRANSPORT_VERSIONS).writeInt(c.getInt())
+				.writeString(t.getString()).toByteArray();
+	}
+
+	private static byte[] endpointKey(ContactId c, TransportId t) {
+		return new Encoder(ENDPOINTS).writeInt(c.getInt())
+				.writeString(t.getString()).toByteArray();
+	}
+
+	private static byte[] secretKey(ContactId c, TransportId t, long period) {
+		return new Encoder(SECRETS).writeInt(c.getInt())
+				.writeString(t.getString()).writeLong(period).toByteArray();
+	}
+
+	private class SyncTask extends TimerTask {
+
+		@Override
+		public void run() {
+			// Commits after this point will schedule another sync if needed
+			syncScheduled.set(false);
+			long committed = commitCount.get();
+			// If the store has been closed, closing it wrote the changes
+			try {
+				sync(committed);
+			} catch(DbException e) {
+				if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
+			}
+		}
+	}
+
+	/**
+	 * Encodes the columns of a key or a value. Integers are big-endian, so
+	 * keys with non-negative integer columns sort in numerical order.
+	 */
+	private static class Encoder {
+
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private final byte[] buf = new byte[8];
+
+		private Encoder() {}
+
+		/** Starts a key with the given table prefix. */
+		private Encoder(byte table) {
+			out.write(table);
+		}
+
+		/** Starts a key with the given prefix. */
+		private Encoder(byte[] prefix) {
+			out.write(prefix, 0, prefix.length);
+		}
+
+		private Encoder writeBoolean(boolean b) {
+			out.write(b ? 1 : 0);
+			return this;
+		}
+
+		private Encoder writeInt(int i) {
+			ByteUtils.writeUint32(i & 0xFFFFFFFFL, buf, 0);
+			out.write(buf, 0, 4);
+			return this;
+		}
+
+		private Encoder writeLong(long l) {
+			for(int i = 0; i < 8; i++) buf[i] = (byte) (l >> (56 - i * 8));
+			out.write(buf, 0, 8);
+			return this;
+		}
+
+		private Encoder writeBytes(byte[] b) {
+			if(b == null) return writeInt(-1);
+			writeInt(b.length);
+			out.write(b, 0, b.length);
+			return this;
+		}
+
+		private Encoder writeString(String s) {
+			return writeBytes(s == null ? null : StringUtils.toUtf8(s));
+		}
+
+		private int size() {
+			return out.size();
+		}
+
+		private byte[] toByteArray() {
+			return out.toByteArray();
+		}
+	}
+
+	/** Decodes the columns written by an {@link Encoder}. */
+	private static class Decoder {
+
+		private final byte[] b;
+
+		private int offset;
+
+		/** Decodes a value. */
+		private Decoder(byte[] b) {
+			this(b, 0);
+		}
+
+		/** Decodes the columns after the given number of bytes. */
+		private Decoder(byte[] b, int offset) {
+			this.b = b;
+			this.offset = offset;
+		}
+
+		private boolean readBoolean() {
+			return b[offset++] == 1;
+		}
+
+		private int readInt() {
+			int i = (int) ByteUtils.readUint32(b, offset);
+			offset += 4;
+			return i;
+		}
+
+		private long readLong() {
+			long l = 0;
+			for(int i = 0; i < 8; i++) l = (l << 8) | (b[offset++] & 0xFF);
+			return l;
+		}
+
+		private byte[] readBytes() {
+			int length = readInt();
+			if(length == -1) return null;
+			byte[] bytes = new byte[length];
+			System.arraycopy(b, offset, bytes, 0, length);
+			offset += length;
+			return bytes;
+		}
+
+		private String readString() {
+			byte[] bytes = readBytes();
+			return bytes == null ? null : StringUtils.fromUtf8(bytes);
+		}
+	}
+
+	/**
+	 * The local and remote versions of a contact's retention time,
+	 * subscriptions or transport properties. Each table uses the columns it
+	 * needs and leaves the others at their defaults.
+	 */
+	private static class Versions {
+
+		private long retention = 0, localVersion = 0, localAcked = 0;
+		private long remoteVersion = 0, expiry = 0;
+		private boolean remoteAcked = false;
+		private int txCount = 0;
+
+		private Versions() {}
+
+		private Versions(Decoder d) {
+			retention = d.readLong();
+			localVersion = d.readLong();
+			localAcked = d.readLong();
+			remoteVersion = d.readLong();
+			remoteAcked = d.readBoolean();
+			expiry = d.readLong();
+			txCount = d.readInt();
+		}
+
+		/** Returns true if the local version should be sent to the contact. */
+		private boolean isUpdateDue(long now) {
+			return localVersion > localAcked && expiry < now;
+		}
+
+		private byte[] encode() {
+			return new Encoder().writeLong(retention).writeLong(localVersion)
+					.writeLong(localAcked).writeLong(remoteVersion)
+					.writeBoolean(remoteAcked).writeLong(expiry)
+					.writeInt(txCount).toByteArray();
+		}
+	}
+
+	/** The status of a message with respect to a contact. */
+	private static class Status {
+
+		private boolean ack, seen, requested = false;
+		private long expiry = 0;
+		private int txCount = 0;
+
+		private Status(boolean ack, boolean seen) {
+			this.ack = ack;
+			this.seen = seen;
+		}
+
+		private Status(Decoder d) {
+			ack = d.readBoolean();
+			seen = d.readBoolean();
+			requested = d.readBoolean();
+			expiry = d.readLong();
+			txCount = d.readInt();
+		}
+
+		private byte[] encode() {
+			return new Encoder().writeBoolean(ack).writeBoolean(seen)
+					.writeBoolean(requested).writeLong(expiry)
+					.writeInt(txCount).toByteArray();
+		}
+	}
+
+	private static class GroupRow {
+
+		private final String name;
+		private final byte[] salt;
+
+		private boolean visibleToAll;
+
+		private GroupRow(String name, byte[] salt, boolean visibleToAll) {
+			this.name = name;
+			this.salt = salt;
+			this.visibleToAll = visibleToAll;
+		}
+
+		private GroupRow(Decoder d) {
+			name = d.readString();
+			salt = d.readBytes();
+			visibleToAll = d.readBoolean();
+		}
+
+		private byte[] encode() {
+			return new Encoder().writeString(name).writeBytes(salt)
+					.writeBoolean(visibleToAll).toByteArray();
+		}
+	}
+
+	/** A message's headers. The raw message is stored separately. */
+	private static class MessageRow {
+
+		private final MessageId id, parent;
+		private final GroupId group;
+		private final AuthorId authorId;
+		private final String authorName, contentType;
+		private final byte[] authorKey;
+		private final long number, timestamp;
+		private final int length, bodyStart, bodyLength;
+		private final boolean local;
+
+		private boolean read;
+
+		private MessageRow(Message m, long number, int length,
+				boolean local) {
+			id = m.getId();
+			this.number = number;
+			parent = m.getParent();
+			group = m.getGroup().getId();
+			Author a = m.getAuthor();
+			authorId = a == null ? null : a.getId();
+			authorName = a == null ? null : a.getName();
+			authorKey = a == null ? null : a.getPublicKey();
+			contentType = m.getContentType();
+			timestamp = m.getTimestamp();
+			this.length = length;
+			bodyStart = m.getBodyStart();
+			bodyLength = m.getBodyLength();
+			this.local = local;
+			read = false;
+		}
+
+		private MessageRow(byte[] key, byte[] value) {
+			id = new MessageId(decodeKey(key).readBytes());
+			Decoder d = new Decoder(value);
+			number = d.readLong();
+			byte[] b = d.readBytes();
+			parent = b == null ? null : new MessageId(b);
+			group = new GroupId(d.readBytes());
+			b = d.readBytes();
+			authorId = b == null ? null : new AuthorId(b);
+			authorName = d.readString();
+			authorKey = d.readBytes();
+			contentType = d.readString();
+			timestamp = d.readLong();
+			length = d.readInt();
+			bodyStart = d.readInt();
+			bodyLength = d.readInt();
+			local = d.readBoolean();
+			read = d.readBoolean();
+		}
+
+		private byte[] encode() {
+			byte[] p = parent == null ? null : parent.getBytes();
+			byte[] a = authorId == null ? null : authorId.getBytes();
+			return new Encoder().writeLong(number).writeBytes(p)
+					.writeBytes(group.getBytes())
+					.writeBytes(a).writeString(authorName)
+					.writeBytes(authorKey).writeString(contentType)
+					.writeLong(timestamp).writeInt(length)
+					.writeInt(bodyStart).writeInt(bodyLength)
+					.writeBoolean(local).writeBoolean(read).toByteArray();
+		}
+	}
+
+	private static class SecretRow {
+
+		private final byte[] secret;
+
+		private long outgoing, centre;
+		private byte[] bitmap;
+
+		private SecretRow(byte[] secret, long outgoing, long centre,
+				byte[] bitmap) {
+			this.secret = secret;
+			this.outgoing = outgoing;
+			this.centre = centre;
+			this.bitmap = bitmap;
+		}
+
+		private SecretRow(Decoder d) {
+			secret = d.readBytes();
+			outgoing = d.readLong();
+			centre = d.readLong();
+			bitmap = d.readBytes();
+		}
+
+		private byte[] encode() {
+			return new Encoder().writeBytes(secret).writeLong(outgoing)
+					.writeLong(centre).writeBytes(bitmap).toByteArray();
+		}
+	}
+}
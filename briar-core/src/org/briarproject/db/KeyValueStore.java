@@ -0,0 +1,564 @@
+package org.briarproject.db;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.INFO;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import org.briarproject.api.crypto.SecretKey;
+import org.briarproject.api.db.DbClosedException;
+import org.briarproject.api.db.DbException;
+import org.briarproject.util.ByteUtils;
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.engines.AESLightEngine;
+import org.spongycastle.crypto.modes.AEADBlockCipher;
+import org.spongycastle.crypto.modes.GCMBlockCipher;
+import org.spongycastle.crypto.modes.gcm.BasicGCMMultiplier;
+import org.spongycastle.crypto.params.AEADParameters;
+import org.spongycastle.crypto.params.KeyParameter;
+
+/**
+ * A log-structured key-value store. All live entries are held in memory. Each
+ * committed transaction is appended to a log file as one encrypted and
+ * authenticated record, and the log is replayed when the store is opened.
+ * When the log grows to several times the size of the live entries, it's
+ * rewritten as a snapshot of the live entries.
+ * <p>
+ * Transactions see the changes committed by other transactions as soon as
+ * they're committed, and their own changes before they're committed. A
+ * transaction that writes a key holds a lock on the key until it commits or
+ * aborts, so concurrent read-modify-write cycles on the same key are
+ * serialised, as they are by a row lock in a relational database.
+ */
+class KeyValueStore {
+
+	// The maximum time in milliseconds to wait for a key lock
+	private static final int LOCK_TIMEOUT = 10 * 1000;
+
+	// Logs shorter than this aren't compacted
+	private static final int MIN_COMPACTION_LENGTH = 1024 * 1024;
+	// The log is compacted when it's this many times the size of the entries
+	private static final int COMPACTION_RATIO = 3;
+	// Snapshots are written as records of at most this many bytes
+	private static final int MAX_SNAPSHOT_RECORD_LENGTH = 1024 * 1024;
+	private static final int IV_LENGTH = 12, MAC_LENGTH = 16;
+
+	private static final Logger LOG =
+			Logger.getLogger(KeyValueStore.class.getName());
+
+	/** Orders keys as unsigned bytes, so that prefixes sort together. */
+	static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+
+		public int compare(byte[] a, byte[] b) {
+			int length = Math.min(a.length, b.length);
+			for(int i = 0; i < length; i++) {
+				int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+				if(diff != 0) return diff;
+			}
+			return a.length - b.length;
+		}
+	};
+
+	private final File log, snapshot;
+	private final SecureRandom random;
+	private final AEADBlockCipher cipher;
+
+	private final ReentrantReadWriteLock entriesLock =
+			new ReentrantReadWriteLock();
+
+	// Locking: entriesLock
+	private final TreeMap<byte[], byte[]> entries =
+			new TreeMap<byte[], byte[]>(KEY_ORDER);
+	// Locking: entriesLock
+	private long entriesLength = 0, logLength = 0;
+	// Locking: entriesLock
+	private FileOutputStream out = null;
+	// Locking: entriesLock
+	private KeyParameter key = null;
+
+	private final Lock keyLocksLock = new ReentrantLock();
+	private final Condition keyUnlocked = keyLocksLock.newCondition();
+
+	// Locking: keyLocksLock
+	private final TreeMap<byte[], Transaction> keyLocks =
+			new TreeMap<byte[], Transaction>(KEY_ORDER);
+
+	private final Lock transactionsLock = new ReentrantLock();
+	private final Condition transactionFinished =
+			transactionsLock.newCondition();
+
+	private int openTransactions = 0; // Locking: transactionsLock
+	private volatile boolean closed = false;
+
+	KeyValueStore(File dir, SecureRandom random) {
+		log = new File(dir, "log");
+		snapshot = new File(dir, "log.tmp");
+		this.random = random;
+		cipher = new GCMBlockCipher(new AESLightEngine(),
+				new BasicGCMMultiplier());
+	}
+
+	/**
+	 * Opens the store, replaying the log if it exists. If the last record in
+	 * the log was only partly written, it's discarded.
+	 */
+	void open(SecretKey k) throws DbException {
+		entriesLock.writeLock().lock();
+		try {
+			key = new KeyParameter(k.getBytes());
+			// If the snapshot was complete but hadn't replaced the log when
+			// the store was last closed, finish replacing the log
+			if(snapshot.exists()) {
+				if(log.exists()) {
+					if(!snapshot.delete()) throw new DbException();
+				} else if(!snapshot.renameTo(log)) {
+					throw new DbException();
+				}
+			}
+			if(log.exists()) replay();
+			out = new FileOutputStream(log, true);
+		} catch(IOException e) {
+			throw new DbException(e);
+		} finally {
+			entriesLock.writeLock().unlock();
+		}
+	}
+
+	// Locking: entriesLock.writeLock
+	private void replay() throws IOException, DbException {
+		long fileLength = log.length();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(log)));
+		try {
+			while(logLength < fileLength) {
+				byte[] record;
+				try {
+					int length = in.readInt();
+					if(length > fileLength - logLength - 4)
+						throw new EOFException();
+					if(length < IV_LENGTH + MAC_LENGTH)
+						throw new InvalidCipherTextException();
+					byte[] ciphertext = new byte[length];
+					in.readFully(ciphertext);
+					record = decrypt(ciphertext);
+				} catch(EOFException e) {
+					record = null;
+				} catch(InvalidCipherTextException e) {
+					// The first record can't be read with the wrong key
+					if(logLength == 0) throw new DbException();
+					record = null;
+				}
+				if(record == null) {
+					// Only the last record can have been partly written
+					truncate(fileLength);
+					return;
+				}
+				apply(record);
+				logLength += 4 + record.length + IV_LENGTH + MAC_LENGTH;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// Locking: entriesLock.writeLock
+	private void truncate(long fileLength) throws IOException, DbException {
+		// A record that fails in the middle of the log isn't a partial write
+		DataInputStream in = new DataInputStream(new FileInputStream(log));
+		try {
+			long skip = logLength;
+			while(skip > 0) skip -= in.skip(skip);
+			if(fileLength - logLength >= 4) {
+				long end = logLength + 4 + in.readInt();
+				if(end < fileLength) throw new DbException();
+			}
+		} finally {
+			in.close();
+		}
+		if(LOG.isLoggable(INFO))
+			LOG.info("Discarding " + (fileLength - logLength) + " bytes");
+		RandomAccessFile f = new RandomAccessFile(log, "rw");
+		try {
+			f.setLength(logLength);
+		} finally {
+			f.close();
+		}
+	}
+
+	/**
+	 * Waits for all open transactions to finish, writes the log to disk and
+	 * closes the store.
+	 */
+	void close() throws DbException {
+		boolean interrupted = false;
+		closed = true;
+		transactionsLock.lock();
+		try {
+			while(openTransactions > 0) {
+				try {
+					transactionFinished.await();
+				} catch(InterruptedException e) {
+					LOG.warning("Interrupted while closing the store");
+					interrupted = true;
+				}
+			}
+		} finally {
+			transactionsLock.unlock();
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+		entriesLock.writeLock().lock();
+		try {
+			if(out == null) return;
+			out.getFD().sync();
+			out.close();
+			out = null;
+		} catch(IOException e) {
+			throw new DbException(e);
+		} finally {
+			entriesLock.writeLock().unlock();
+		}
+	}
+
+	Transaction startTransaction() throws DbException {
+		transactionsLock.lock();
+		try {
+			if(closed) throw new DbClosedException();
+			openTransactions++;
+		} finally {
+			transactionsLock.unlock();
+		}
+		return new Transaction();
+	}
+
+	/** Discards the transaction's changes. */
+	void abortTransaction(Transaction txn) {
+		finishTransaction(txn);
+	}
+
+	/**
+	 * Appends the transaction's changes to the log and applies them. The
+	 * changes aren't written to disk until {@link #sync()} is called.
+	 */
+	void commitTransaction(Transaction txn) throws DbException {
+		try {
+			if(!txn.writes.isEmpty()) write(txn.writes);
+		} finally {
+			finishTransaction(txn);
+		}
+	}
+
+	private void finishTransaction(Transaction txn) {
+		keyLocksLock.lock();
+		try {
+			for(byte[] k : txn.locked) keyLocks.remove(k);
+			if(!txn.locked.isEmpty()) keyUnlocked.signalAll();
+		} finally {
+			keyLocksLock.unlock();
+		}
+		transactionsLock.lock();
+		try {
+			openTransactions--;
+			if(openTransactions == 0) transactionFinished.signalAll();
+		} finally {
+			transactionsLock.unlock();
+		}
+	}
+
+	private void write(SortedMap<byte[], byte[]> writes) throws DbException {
+		byte[] record = encode(writes);
+		entriesLock.writeLock().lock();
+		try {
+			if(out == null) throw new DbClosedException();
+			append(out, record);
+			logLength += 4 + record.length + IV_LENGTH + MAC_LENGTH;
+			for(Entry<byte[], byte[]> e : writes.entrySet())
+				put(e.getKey(), e.getValue());
+			if(logLength > MIN_COMPACTION_LENGTH
+					&& logLength > entriesLength * COMPACTION_RATIO) {
+				compact();
+			}
+		} catch(IOException e) {
+			throw new DbException(e);
+		} finally {
+			entriesLock.writeLock().unlock();
+		}
+	}
+
+	/** Writes the log to disk, including all committed changes. */
+	void sync() throws DbException {
+		// Commits wait for the sync, but transactions can still read
+		entriesLock.readLock().lock();
+		try {
+			if(out != null) out.getFD().sync();
+		} catch(IOException e) {
+			throw new DbException(e);
+		} finally {
+			entriesLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Replaces the log with a snapshot of the live entries. The snapshot is
+	 * written to disk before it replaces the log, so a crash leaves one or
+	 * the other complete.
+	 */
+	// Locking: entriesLock.writeLock
+	private void compact() throws IOException {
+		long before = logLength;
+		FileOutputStream snapshotOut = new FileOutputStream(snapshot);
+		long length = 0;
+		try {
+			SortedMap<byte[], byte[]> batch =
+					new TreeMap<byte[], byte[]>(KEY_ORDER);
+			int batchLength = 0;
+			for(Entry<byte[], byte[]> e : entries.entrySet()) {
+				batch.put(e.getKey(), e.getValue());
+				batchLength += e.getKey().length + e.getValue().length;
+				if(batchLength >= MAX_SNAPSHOT_RECORD_LENGTH) {
+					length += append(snapshotOut, encode(batch));
+					batch.clear();
+					batchLength = 0;
+				}
+			}
+			if(!batch.isEmpty()) length += append(snapshotOut, encode(batch));
+			snapshotOut.getFD().sync();
+		} finally {
+			snapshotOut.close();
+		}
+		out.getFD().sync();
+		out.close();
+		out = null;
+		// Some platforms can't rename a file over an existing file
+		if(!snapshot.renameTo(log)) {
+			if(!log.delete() || !snapshot.renameTo(log))
+				throw new IOException("Could not replace the log");
+		}
+		out = new FileOutputStream(log, true);
+		logLength = length;
+		if(LOG.isLoggable(INFO))
+			LOG.info("Compacted log from " + before + " to " + length);
+	}
+
+	/** Returns the value of the given key, or null if it isn't set. */
+	byte[] get(Transaction txn, byte[] k) {
+		if(txn.writes.containsKey(k)) return txn.writes.get(k);
+		entriesLock.readLock().lock();
+		try {
+			return entries.get(k);
+		} finally {
+			entriesLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Locks the given key for the transaction and returns its value, or null
+	 * if it isn't set. This should be used for reads that are followed by
+	 * writes based on the value read.
+	 */
+	byte[] getForUpdate(Transaction txn, byte[] k) throws DbException {
+		lock(txn, k);
+		return get(txn, k);
+	}
+
+	/**
+	 * Returns the entries with keys that start with the given prefix, in key
+	 * order.
+	 */
+	SortedMap<byte[], byte[]> getRange(Transaction txn, byte[] prefix) {
+		byte[] end = getEndOfRange(prefix);
+		SortedMap<byte[], byte[]> range =
+				new TreeMap<byte[], byte[]>(KEY_ORDER);
+		entriesLock.readLock().lock();
+		try {
+			if(end == null) range.putAll(entries.tailMap(prefix));
+			else range.putAll(entries.subMap(prefix, end));
+		} finally {
+			entriesLock.readLock().unlock();
+		}
+		SortedMap<byte[], byte[]> writes;
+		if(end == null) writes = txn.writes.tailMap(prefix);
+		else writes = txn.writes.subMap(prefix, end);
+		for(Entry<byte[], byte[]> e : writes.entrySet()) {
+			if(e.getValue() == null) range.remove(e.getKey());
+			else range.put(e.getKey(), e.getValue());
+		}
+		return range;
+	}
+
+	/** Sets the value of the given key. */
+	void put(Transaction txn, byte[] k, byte[] value) throws DbException {
+		if(value == null) throw new IllegalArgumentException();
+		lock(txn, k);
+		txn.writes.put(k, value);
+	}
+
+	/** Removes the given key if it's set. */
+	void delete(Transaction txn, byte[] k) throws DbException {
+		lock(txn, k);
+		txn.writes.put(k, null);
+	}
+
+	private void lock(Transaction txn, byte[] k) throws DbException {
+		keyLocksLock.lock();
+		try {
+			long now = System.currentTimeMillis();
+			long end = now + LOCK_TIMEOUT;
+			while(true) {
+				Transaction owner = keyLocks.get(k);
+				if(owner == txn) return;
+				if(owner == null) {
+					keyLocks.put(k, txn);
+					txn.locked.add(k);
+					return;
+				}
+				if(now >= end) throw new DbException();
+				try {
+					keyUnlocked.await(end - now, MILLISECONDS);
+				} catch(InterruptedException e) {
+					LOG.warning("Interrupted while waiting for a key lock");
+					Thread.currentThread().interrupt();
+					throw new DbException(e);
+				}
+				now = System.currentTimeMillis();
+			}
+		} finally {
+			keyLocksLock.unlock();
+		}
+	}
+
+	// Locking: entriesLock.writeLock
+	private void put(byte[] k, byte[] value) {
+		byte[] old = value == null ? entries.remove(k) : entries.put(k, value);
+		if(old != null) entriesLength -= k.length + old.length;
+		if(value != null) entriesLength += k.length + value.length;
+	}
+
+	// Locking: entriesLock.writeLock
+	private void apply(byte[] record) {
+		int offset = 0;
+		while(offset < record.length) {
+			int keyLength = readInt(record, offset);
+			offset += 4;
+			byte[] k = copy(record, offset, keyLength);
+			offset += keyLength;
+			int valueLength = readInt(record, offset);
+			offset += 4;
+			if(valueLength == -1) {
+				put(k, null);
+			} else {
+				put(k, copy(record, offset, valueLength));
+				offset += valueLength;
+			}
+		}
+	}
+
+	// Locking: entriesLock.writeLock
+	private int append(FileOutputStream f, byte[] record) throws IOException {
+		byte[] iv = new byte[IV_LENGTH];
+		random.nextBytes(iv);
+		byte[] ciphertext = new byte[4 + IV_LENGTH + record.length
+		                             + MAC_LENGTH];
+		ByteUtils.writeUint32(IV_LENGTH + record.length + MAC_LENGTH,
+				ciphertext, 0);
+		System.arraycopy(iv, 0, ciphertext, 4, IV_LENGTH);
+		cipher.init(true, new AEADParameters(key, MAC_LENGTH * 8, iv));
+		int length = cipher.processBytes(record, 0, record.length, ciphertext,
+				4 + IV_LENGTH);
+		try {
+			cipher.doFinal(ciphertext, 4 + IV_LENGTH + length);
+		} catch(InvalidCipherTextException e) {
+			throw new IllegalStateException(e);
+		}
+		f.write(ciphertext);
+		return ciphertext.length;
+	}
+
+	// Locking: entriesLock.writeLock
+	private byte[] decrypt(byte[] ciphertext)
+			throws InvalidCipherTextException {
+		byte[] iv = copy(ciphertext, 0, IV_LENGTH);
+		cipher.init(false, new AEADParameters(key, MAC_LENGTH * 8, iv));
+		int inputLength = ciphertext.length - IV_LENGTH;
+		byte[] record = new byte[inputLength - MAC_LENGTH];
+		int length = cipher.processBytes(ciphertext, IV_LENGTH, inputLength,
+				record, 0);
+		cipher.doFinal(record, length);
+		return record;
+	}
+
+	private static byte[] encode(SortedMap<byte[], byte[]> writes) {
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		byte[] length = new byte[4];
+		for(Entry<byte[], byte[]> e : writes.entrySet()) {
+			byte[] k = e.getKey(), value = e.getValue();
+			ByteUtils.writeUint32(k.length, length, 0);
+			record.write(length, 0, 4);
+			record.write(k, 0, k.length);
+			if(value == null) {
+				ByteUtils.writeUint32(0xFFFFFFFFL, length, 0);
+				record.write(length, 0, 4);
+			} else {
+				ByteUtils.writeUint32(value.length, length, 0);
+				record.write(length, 0, 4);
+				record.write(value, 0, value.length);
+			}
+		}
+		return record.toByteArray();
+	}
+
+	private static byte[] getEndOfRange(byte[] prefix) {
+		// The first key after the range is the shortest key that's greater
+		// than every key starting with the prefix
+		for(int i = prefix.length - 1; i >= 0; i--) {
+			if(prefix[i] != (byte) 0xFF) {
+				byte[] end = copy(prefix, 0, i + 1);
+				end[i]++;
+				return end;
+			}
+		}
+		return null;
+	}
+
+	private static int readInt(byte[] b, int offset) {
+		return (int) ByteUtils.readUint32(b, offset);
+	}
+
+	private static byte[] copy(byte[] b, int offset, int length) {
+		byte[] copy = new byte[length];
+		System.arraycopy(b, offset, copy, 0, length);
+		return copy;
+	}
+
+	/**
+	 * A transaction's uncommitted changes, which are only visible to the
+	 * transaction. A null value means the key is being removed.
+	 */
+	static class Transaction {
+
+		private final SortedMap<byte[], byte[]> writes =
+				new TreeMap<byte[], byte[]>(KEY_ORDER);
+		private final List<byte[]> locked = new ArrayList<byte[]>();
+
+		private Transaction() {}
+	}
+}
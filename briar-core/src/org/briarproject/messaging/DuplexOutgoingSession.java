@@ -55,6 +55,9 @@ class DuplexOutgoingSession implements MessagingSession, EventListener {
 
 	// Check for retransmittable packets once every 60 seconds
 	private static final int RETX_QUERY_INTERVAL = 60 * 1000;
+	// Flush when no packets have been written for 20 milliseconds, or when
+	// data has been waiting to be flushed for 100 milliseconds
+	private static final int FLUSH_DELAY = 20, MAX_FLUSH_DELAY = 100;
 	private static final Logger LOG =
 			Logger.getLogger(DuplexOutgoingSession.class.getName());
 
@@ -75,6 +78,7 @@ class DuplexOutgoingSession implements MessagingSession, EventListener {
 
 	// The following must only be accessed on the writer thread
 	private long nextKeepalive = 0, nextRetxQuery = 0;
+	private long nextFlush = 0, latestFlush = 0;
 	private boolean dataToFlush = true;
 
 	private volatile boolean interrupted = false;
@@ -112,24 +116,27 @@ class DuplexOutgoingSession implements MessagingSession, EventListener {
 			long now = clock.currentTimeMillis();
 			nextKeepalive = now + maxIdleTime;
 			nextRetxQuery = now + RETX_QUERY_INTERVAL;
+			// The stream's tag is waiting to be flushed
+			latestFlush = now + MAX_FLUSH_DELAY;
 			// Write packets until interrupted
 			try {
 				while(!interrupted) {
 					// Work out how long we should wait for a packet
 					now = clock.currentTimeMillis();
 					long wait = Math.min(nextKeepalive, nextRetxQuery) - now;
+					if(dataToFlush) wait = Math.min(wait, nextFlush - now);
 					if(wait < 0) wait = 0;
-					// Flush any unflushed data if we're going to wait
-					if(wait > 0 && dataToFlush && writerTasks.isEmpty()) {
-						packetWriter.flush();
-						dataToFlush = false;
-						nextKeepalive = now + maxIdleTime;
-					}
 					// Wait for a packet
 					ThrowingRunnable<IOException> task = writerTasks.poll(wait,
 							MILLISECONDS);
 					if(task == null) {
 						now = clock.currentTimeMillis();
+						if(dataToFlush && now >= nextFlush) {
+							// Flush any unflushed data now that we're idle
+							packetWriter.flush();
+							dataToFlush = false;
+							nextKeepalive = now + maxIdleTime;
+						}
 						if(now >= nextRetxQuery) {
 							// Check for retransmittable packets
 							dbExecutor.execute(new GenerateTransportUpdates());
@@ -149,7 +156,20 @@ class DuplexOutgoingSession implements MessagingSession, EventListener {
 						break;
 					} else {
 						task.run();
+						now = clock.currentTimeMillis();
+						if(!dataToFlush) latestFlush = now + MAX_FLUSH_DELAY;
 						dataToFlush = true;
+						if(now >= latestFlush) {
+							// Don't let a steady stream of packets delay the
+							// flush for longer than the maximum
+							packetWriter.flush();
+							dataToFlush = false;
+							nextKeepalive = now + maxIdleTime;
+						} else {
+							// Let any packets that follow share the frame
+							nextFlush = Math.min(now + FLUSH_DELAY,
+									latestFlush);
+						}
 					}
 				}
 				if(dataToFlush) packetWriter.flush();
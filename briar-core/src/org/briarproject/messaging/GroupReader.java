@@ -26,14 +26,26 @@ class GroupReader implements ObjectReader<Group> {
 		// Read and digest the data
 		r.addConsumer(digesting);
 		r.readListStart();
-		String name = r.readString(MAX_GROUP_NAME_LENGTH);
-		if(name.length() == 0) throw new FormatException();
-		byte[] salt = r.readRaw(GROUP_SALT_LENGTH);
-		if(salt.length != GROUP_SALT_LENGTH) throw new FormatException();
+		String name = readName(r);
+		byte[] salt = readSalt(r);
 		r.readListEnd();
 		r.removeConsumer(digesting);
 		// Build and return the group
 		GroupId id = new GroupId(messageDigest.digest());
 		return new Group(id, name, salt);
 	}
+
+	// Package access for MessageReader, which reads groups in place
+	static String readName(Reader r) throws IOException {
+		String name = r.readString(MAX_GROUP_NAME_LENGTH);
+		if(name.length() == 0) throw new FormatException();
+		return name;
+	}
+
+	// Package access for MessageReader, which reads groups in place
+	static byte[] readSalt(Reader r) throws IOException {
+		byte[] salt = r.readRaw(GROUP_SALT_LENGTH);
+		if(salt.length != GROUP_SALT_LENGTH) throw new FormatException();
+		return salt;
+	}
 }
@@ -4,7 +4,11 @@ import static java.util.logging.Level.WARNING;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import org.briarproject.api.ContactId;
@@ -49,6 +53,11 @@ class IncomingSession implements MessagingSession, EventListener {
 	private final ContactId contactId;
 	private final TransportId transportId;
 	private final PacketReader packetReader;
+	private final Lock synchLock = new ReentrantLock();
+
+	// The following are locking: synchLock
+	private final List<Message> verified = new ArrayList<Message>();
+	private boolean batchScheduled = false;
 
 	private volatile boolean interrupted = false;
 
@@ -156,7 +165,17 @@ class IncomingSession implements MessagingSession, EventListener {
 		public void run() {
 			try {
 				Message m = messageVerifier.verifyMessage(message);
-				dbExecutor.execute(new ReceiveMessage(m));
+				boolean schedule;
+				synchLock.lock();
+				try {
+					verified.add(m);
+					// Messages verified before the task runs join its batch
+					schedule = !batchScheduled;
+					batchScheduled = true;
+				} finally {
+					synchLock.unlock();
+				}
+				if(schedule) dbExecutor.execute(new ReceiveMessages());
 			} catch(GeneralSecurityException e) {
 				if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
 				interrupt();
@@ -164,17 +183,20 @@ class IncomingSession implements MessagingSession, EventListener {
 		}
 	}
 
-	private class ReceiveMessage implements Runnable {
-
-		private final Message message;
-
-		private ReceiveMessage(Message message) {
-			this.message = message;
-		}
+	private class ReceiveMessages implements Runnable {
 
 		public void run() {
+			List<Message> messages;
+			synchLock.lock();
+			try {
+				messages = new ArrayList<Message>(verified);
+				verified.clear();
+				batchScheduled = false;
+			} finally {
+				synchLock.unlock();
+			}
 			try {
-				db.receiveMessage(contactId, message);
+				db.receiveMessages(contactId, messages);
 			} catch(DbException e) {
 				if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
 				interrupt();
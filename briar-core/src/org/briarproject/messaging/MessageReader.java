@@ -1,38 +1,75 @@
 package org.briarproject.messaging;
 
+import static org.briarproject.api.AuthorConstants.MAX_AUTHOR_NAME_LENGTH;
+import static org.briarproject.api.AuthorConstants.MAX_PUBLIC_KEY_LENGTH;
 import static org.briarproject.api.AuthorConstants.MAX_SIGNATURE_LENGTH;
 import static org.briarproject.api.messaging.MessagingConstants.MAX_BODY_LENGTH;
 import static org.briarproject.api.messaging.MessagingConstants.MAX_CONTENT_TYPE_LENGTH;
-import static org.briarproject.api.messaging.MessagingConstants.MAX_PAYLOAD_LENGTH;
 import static org.briarproject.api.messaging.MessagingConstants.MESSAGE_SALT_LENGTH;
 
 import java.io.IOException;
 
 import org.briarproject.api.Author;
+import org.briarproject.api.AuthorId;
 import org.briarproject.api.FormatException;
 import org.briarproject.api.UniqueId;
-import org.briarproject.api.data.ObjectReader;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.crypto.MessageDigest;
 import org.briarproject.api.data.Reader;
+import org.briarproject.api.data.ReaderFactory;
 import org.briarproject.api.messaging.Group;
+import org.briarproject.api.messaging.GroupId;
 import org.briarproject.api.messaging.MessageId;
 import org.briarproject.api.messaging.UnverifiedMessage;
 
-class MessageReader implements ObjectReader<UnverifiedMessage> {
+/**
+ * Parses serialised messages. The parsed message refers to the serialised
+ * message for its body and signed data, using offsets recorded while
+ * parsing, and the group and author IDs are calculated by hashing slices of
+ * the serialised message. The body is still copied once while it's read,
+ * to find its length. The last group and author are kept, so consecutive
+ * messages from the same group or author don't need to be hashed again.
+ * <p>
+ * This class is not thread-safe.
+ */
+class MessageReader {
 
-	private final ObjectReader<Group> groupReader;
-	private final ObjectReader<Author> authorReader;
+	private final MessageDigest messageDigest;
+	private final ReaderFactory readerFactory;
 
-	MessageReader(ObjectReader<Group> groupReader,
-			ObjectReader<Author> authorReader) {
-		this.groupReader = groupReader;
-		this.authorReader = authorReader;
+	// The message being parsed, and a consumer that counts the bytes read so
+	// far, which is the offset of the next object
+	private byte[] raw = null;
+	private CountingConsumer position = null;
+
+	// The last group and author, and their serialised forms
+	private byte[] lastGroupBytes = null, lastAuthorBytes = null;
+	private Group lastGroup = null;
+	private Author lastAuthor = null;
+
+	MessageReader(CryptoComponent crypto, ReaderFactory readerFactory) {
+		messageDigest = crypto.getMessageDigest();
+		this.readerFactory = readerFactory;
+	}
+
+	/**
+	 * Parses the given serialised message. The returned message refers to
+	 * the given array, which must not be modified afterwards.
+	 */
+	UnverifiedMessage readMessage(byte[] raw) throws IOException {
+		this.raw = raw;
+		position = new CountingConsumer(raw.length);
+		Reader r = readerFactory.createReader(raw, 0, raw.length);
+		r.addConsumer(position);
+		try {
+			return readMessage(r);
+		} finally {
+			this.raw = null;
+			position = null;
+		}
 	}
 
-	public UnverifiedMessage readObject(Reader r) throws IOException {
-		CopyingConsumer copying = new CopyingConsumer();
-		CountingConsumer counting = new CountingConsumer(MAX_PAYLOAD_LENGTH);
-		r.addConsumer(copying);
-		r.addConsumer(counting);
+	private UnverifiedMessage readMessage(Reader r) throws IOException {
 		// Read the start of the message
 		r.readListStart();
 		// Read the parent's message ID, if there is one
@@ -45,11 +82,11 @@ class MessageReader implements ObjectReader<UnverifiedMessage> {
 			parent = new MessageId(b);
 		}
 		// Read the group
-		Group group = groupReader.readObject(r);
+		Group group = readGroup(r);
 		// Read the author, if there is one
 		Author author = null;
 		if(r.hasNull()) r.readNull();
-		else author = authorReader.readObject(r);
+		else author = readAuthor(r);
 		// Read the content type
 		String contentType = r.readString(MAX_CONTENT_TYPE_LENGTH);
 		// Read the timestamp
@@ -58,25 +95,74 @@ class MessageReader implements ObjectReader<UnverifiedMessage> {
 		// Read the salt
 		byte[] salt = r.readRaw(MESSAGE_SALT_LENGTH);
 		if(salt.length < MESSAGE_SALT_LENGTH) throw new FormatException();
-		// Read the message body
-		byte[] body = r.readRaw(MAX_BODY_LENGTH);
-		// Record the offset of the body within the message
-		int bodyStart = (int) counting.getCount() - body.length;
+		// Record the offset and length of the message body, which ends where
+		// the next object starts
+		int bodyLength = r.readRaw(MAX_BODY_LENGTH).length;
+		int bodyStart = getOffset() - bodyLength;
 		// Record the length of the data covered by the author's signature
-		int signedLength = (int) counting.getCount();
+		int signedLength = getOffset();
 		// Read the author's signature, if there is one
 		byte[] signature = null;
 		if(author == null) r.readNull();
 		else signature = r.readRaw(MAX_SIGNATURE_LENGTH);
 		// Read the end of the message
 		r.readListEnd();
-		// Reset the reader
-		r.removeConsumer(counting);
-		r.removeConsumer(copying);
+		if(!r.eof()) throw new FormatException();
 		// Build and return the unverified message
-		byte[] raw = copying.getCopy();
 		return new UnverifiedMessage(parent, group, author, contentType,
-				timestamp, raw, signature, bodyStart, body.length,
+				timestamp, raw, signature, bodyStart, bodyLength,
 				signedLength);
 	}
+
+	private Group readGroup(Reader r) throws IOException {
+		int start = getOffset();
+		r.readListStart();
+		String name = GroupReader.readName(r);
+		byte[] salt = GroupReader.readSalt(r);
+		r.readListEnd();
+		// Reuse the last group if this is the same group
+		if(matches(lastGroupBytes, start)) return lastGroup;
+		// Hash the serialised group to get the group ID
+		lastGroupBytes = copySlice(start);
+		messageDigest.update(lastGroupBytes);
+		GroupId id = new GroupId(messageDigest.digest());
+		lastGroup = new Group(id, name, salt);
+		return lastGroup;
+	}
+
+	private Author readAuthor(Reader r) throws IOException {
+		int start = getOffset();
+		r.readListStart();
+		String name = r.readString(MAX_AUTHOR_NAME_LENGTH);
+		if(name.length() == 0) throw new FormatException();
+		byte[] publicKey = r.readRaw(MAX_PUBLIC_KEY_LENGTH);
+		r.readListEnd();
+		// Reuse the last author if this is the same author
+		if(matches(lastAuthorBytes, start)) return lastAuthor;
+		// Hash the serialised author to get the author ID
+		lastAuthorBytes = copySlice(start);
+		messageDigest.update(lastAuthorBytes);
+		AuthorId id = new AuthorId(messageDigest.digest());
+		lastAuthor = new Author(id, name, publicKey);
+		return lastAuthor;
+	}
+
+	private int getOffset() {
+		return (int) position.getCount();
+	}
+
+	// Returns true if the bytes from the given offset to the current offset
+	// are the same as the given serialised object
+	private boolean matches(byte[] b, int from) {
+		if(b == null || b.length != getOffset() - from) return false;
+		for(int i = 0; i < b.length; i++) if(b[i] != raw[from + i]) return false;
+		return true;
+	}
+
+	// Returns a copy of the bytes from the given offset to the current offset
+	private byte[] copySlice(int from) {
+		byte[] b = new byte[getOffset() - from];
+		System.arraycopy(raw, from, b, 0, b.length);
+		return b;
+	}
 }
@@ -4,11 +4,16 @@ import static java.util.logging.Level.INFO;
 import static org.briarproject.api.transport.TransportConstants.MAX_CLOCK_DIFFERENCE;
 
 import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import javax.inject.Inject;
 
 import org.briarproject.api.Author;
+import org.briarproject.api.Bytes;
 import org.briarproject.api.crypto.CryptoComponent;
 import org.briarproject.api.crypto.KeyParser;
 import org.briarproject.api.crypto.MessageDigest;
@@ -25,22 +30,54 @@ class MessageVerifierImpl implements MessageVerifier {
 	private static final Logger LOG =
 			Logger.getLogger(MessageVerifierImpl.class.getName());
 
-	private final CryptoComponent crypto;
+	/** The maximum number of parsed author keys to keep. */
+	private static final int MAX_CACHED_KEYS = 100;
+
 	private final Clock clock;
 	private final KeyParser keyParser;
+	private final Lock synchLock = new ReentrantLock();
+
+	// Locking: synchLock
+	private final Map<Bytes, PublicKey> keyCache; // LRU, by encoded key
+
+	// Each verifying thread reuses its own digest and signature
+	private final ThreadLocal<MessageDigest> messageDigest;
+	private final ThreadLocal<Signature> signature;
 
 	@Inject
-	MessageVerifierImpl(CryptoComponent crypto, Clock clock) {
-		this.crypto = crypto;
+	MessageVerifierImpl(final CryptoComponent crypto, Clock clock) {
 		this.clock = clock;
 		keyParser = crypto.getSignatureKeyParser();
+		// Most messages come from a few authors, so keep their parsed keys
+		keyCache = new LinkedHashMap<Bytes, PublicKey>(16, 0.75F, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Bytes, PublicKey> eldest) {
+				return size() > MAX_CACHED_KEYS;
+			}
+		};
+		messageDigest = new ThreadLocal<MessageDigest>() {
+			@Override
+			protected MessageDigest initialValue() {
+				return crypto.getMessageDigest();
+			}
+		};
+		signature = new ThreadLocal<Signature>() {
+			@Override
+			protected Signature initialValue() {
+				return crypto.getSignature();
+			}
+		};
 	}
 
 	public Message verifyMessage(UnverifiedMessage m)
 			throws GeneralSecurityException {
 		long now = System.currentTimeMillis();
-		MessageDigest messageDigest = crypto.getMessageDigest();
-		Signature signature = crypto.getSignature();
+		MessageDigest messageDigest = this.messageDigest.get();
+		Signature signature = this.signature.get();
 		// Reject the message if it's too far in the future
 		if(m.getTimestamp() > clock.currentTimeMillis() + MAX_CLOCK_DIFFERENCE)
 			throw new GeneralSecurityException();
@@ -51,7 +88,7 @@ class MessageVerifierImpl implements MessageVerifier {
 		// Verify the author's signature, if there is one
 		Author author = m.getAuthor();
 		if(author != null) {
-			PublicKey k = keyParser.parsePublicKey(author.getPublicKey());
+			PublicKey k = getPublicKey(author);
 			signature.initVerify(k);
 			signature.update(raw, 0, m.getSignedLength());
 			if(!signature.verify(m.getSignature()))
@@ -65,4 +102,25 @@ class MessageVerifierImpl implements MessageVerifier {
 			LOG.info("Verifying message took " + duration + " ms");
 		return verified;
 	}
+
+	private PublicKey getPublicKey(Author a) throws GeneralSecurityException {
+		byte[] encoded = a.getPublicKey();
+		Bytes b = new Bytes(encoded);
+		synchLock.lock();
+		try {
+			PublicKey k = keyCache.get(b);
+			if(k != null) return k;
+		} finally {
+			synchLock.unlock();
+		}
+		// Parse the key without holding the lock
+		PublicKey k = keyParser.parsePublicKey(encoded);
+		synchLock.lock();
+		try {
+			keyCache.put(b, k);
+		} finally {
+			synchLock.unlock();
+		}
+		return k;
+	}
 }
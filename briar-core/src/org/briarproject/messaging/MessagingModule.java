@@ -2,7 +2,6 @@ package org.briarproject.messaging;
 
 import javax.inject.Singleton;
 
-import org.briarproject.api.Author;
 import org.briarproject.api.AuthorFactory;
 import org.briarproject.api.crypto.CryptoComponent;
 import org.briarproject.api.data.ObjectReader;
@@ -14,7 +13,6 @@ import org.briarproject.api.messaging.MessagingSessionFactory;
 import org.briarproject.api.messaging.PacketReaderFactory;
 import org.briarproject.api.messaging.PacketWriterFactory;
 import org.briarproject.api.messaging.SubscriptionUpdate;
-import org.briarproject.api.messaging.UnverifiedMessage;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
@@ -26,30 +24,19 @@ public class MessagingModule extends AbstractModule {
 		bind(AuthorFactory.class).to(AuthorFactoryImpl.class);
 		bind(GroupFactory.class).to(GroupFactoryImpl.class);
 		bind(MessageFactory.class).to(MessageFactoryImpl.class);
-		bind(MessageVerifier.class).to(MessageVerifierImpl.class);
+		bind(MessageVerifier.class).to(MessageVerifierImpl.class).in(
+				Singleton.class);
 		bind(PacketReaderFactory.class).to(PacketReaderFactoryImpl.class);
 		bind(PacketWriterFactory.class).to(PacketWriterFactoryImpl.class);
 		bind(MessagingSessionFactory.class).to(
 				MessagingSessionFactoryImpl.class).in(Singleton.class);
 	}
 
-	@Provides
-	ObjectReader<Author> getAuthorReader(CryptoComponent crypto) {
-		return new AuthorReader(crypto);
-	}
-
 	@Provides
 	ObjectReader<Group> getGroupReader(CryptoComponent crypto) {
 		return new GroupReader(crypto);
 	}
 
-	@Provides
-	ObjectReader<UnverifiedMessage> getMessageReader(
-			ObjectReader<Group> groupReader,
-			ObjectReader<Author> authorReader) {
-		return new MessageReader(groupReader, authorReader);
-	}
-
 	@Provides
 	ObjectReader<SubscriptionUpdate> getSubscriptionUpdateReader(
 			ObjectReader<Group> groupReader) {
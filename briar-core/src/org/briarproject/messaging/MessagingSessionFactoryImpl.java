@@ -10,7 +10,7 @@ import org.briarproject.api.ContactId;
 import org.briarproject.api.TransportId;
 import org.briarproject.api.crypto.CryptoExecutor;
 import org.briarproject.api.db.DatabaseComponent;
-import org.briarproject.api.db.DatabaseExecutor;
+import org.briarproject.api.db.DatabaseExecutorFactory;
 import org.briarproject.api.event.EventBus;
 import org.briarproject.api.messaging.MessageVerifier;
 import org.briarproject.api.messaging.MessagingSession;
@@ -24,7 +24,8 @@ import org.briarproject.api.system.Clock;
 class MessagingSessionFactoryImpl implements MessagingSessionFactory {
 
 	private final DatabaseComponent db;
-	private final Executor dbExecutor, cryptoExecutor;
+	private final DatabaseExecutorFactory dbExecutorFactory;
+	private final Executor cryptoExecutor;
 	private final MessageVerifier messageVerifier;
 	private final EventBus eventBus;
 	private final Clock clock;
@@ -33,13 +34,13 @@ class MessagingSessionFactoryImpl implements MessagingSessionFactory {
 
 	@Inject
 	MessagingSessionFactoryImpl(DatabaseComponent db,
-			@DatabaseExecutor Executor dbExecutor,
+			DatabaseExecutorFactory dbExecutorFactory,
 			@CryptoExecutor Executor cryptoExecutor,
 			MessageVerifier messageVerifier, EventBus eventBus, Clock clock,
 			PacketReaderFactory packetReaderFactory,
 			PacketWriterFactory packetWriterFactory) {
 		this.db = db;
-		this.dbExecutor = dbExecutor;
+		this.dbExecutorFactory = dbExecutorFactory;
 		this.cryptoExecutor = cryptoExecutor;
 		this.messageVerifier = messageVerifier;
 		this.eventBus = eventBus;
@@ -51,6 +52,7 @@ class MessagingSessionFactoryImpl implements MessagingSessionFactory {
 	public MessagingSession createIncomingSession(ContactId c, TransportId t,
 			InputStream in) {
 		PacketReader packetReader = packetReaderFactory.createPacketReader(in);
+		Executor dbExecutor = dbExecutorFactory.createDatabaseExecutor();
 		return new IncomingSession(db, dbExecutor, cryptoExecutor, eventBus,
 				messageVerifier, c, t, packetReader);
 	}
@@ -58,6 +60,7 @@ class MessagingSessionFactoryImpl implements MessagingSessionFactory {
 	public MessagingSession createSimplexOutgoingSession(ContactId c,
 			TransportId t, int maxLatency, OutputStream out) {
 		PacketWriter packetWriter = packetWriterFactory.createPacketWriter(out);
+		Executor dbExecutor = dbExecutorFactory.createDatabaseExecutor();
 		return new SimplexOutgoingSession(db, dbExecutor, eventBus, c, t,
 				maxLatency, packetWriter);
 	}
@@ -65,6 +68,7 @@ class MessagingSessionFactoryImpl implements MessagingSessionFactory {
 	public MessagingSession createDuplexOutgoingSession(ContactId c,
 			TransportId t, int maxLatency, int maxIdleTime, OutputStream out) {
 		PacketWriter packetWriter = packetWriterFactory.createPacketWriter(out);
+		Executor dbExecutor = dbExecutorFactory.createDatabaseExecutor();
 		return new DuplexOutgoingSession(db, dbExecutor, eventBus, clock, c, t,
 				maxLatency, maxIdleTime, packetWriter);
 	}
@@ -4,29 +4,32 @@ import java.io.InputStream;
 
 import javax.inject.Inject;
 
+import org.briarproject.api.crypto.CryptoComponent;
 import org.briarproject.api.data.ObjectReader;
 import org.briarproject.api.data.ReaderFactory;
 import org.briarproject.api.messaging.PacketReader;
 import org.briarproject.api.messaging.PacketReaderFactory;
 import org.briarproject.api.messaging.SubscriptionUpdate;
-import org.briarproject.api.messaging.UnverifiedMessage;
 
 class PacketReaderFactoryImpl implements PacketReaderFactory {
 
+	private final CryptoComponent crypto;
 	private final ReaderFactory readerFactory;
-	private final ObjectReader<UnverifiedMessage> messageReader;
 	private final ObjectReader<SubscriptionUpdate> subscriptionUpdateReader;
 
 	@Inject
-	PacketReaderFactoryImpl(ReaderFactory readerFactory,
-			ObjectReader<UnverifiedMessage> messageReader,
+	PacketReaderFactoryImpl(CryptoComponent crypto,
+			ReaderFactory readerFactory,
 			ObjectReader<SubscriptionUpdate> subscriptionUpdateReader) {
+		this.crypto = crypto;
 		this.readerFactory = readerFactory;
-		this.messageReader = messageReader;
 		this.subscriptionUpdateReader = subscriptionUpdateReader;
 	}
 
 	public PacketReader createPacketReader(InputStream in) {
+		// Each packet reader has its own message reader, which isn't
+		// thread-safe and keeps the last group and author it read
+		MessageReader messageReader = new MessageReader(crypto, readerFactory);
 		return new PacketReaderImpl(readerFactory, messageReader,
 				subscriptionUpdateReader, in);
 	}
@@ -17,7 +17,6 @@ import static org.briarproject.api.messaging.PacketTypes.SUBSCRIPTION_UPDATE;
 import static org.briarproject.api.messaging.PacketTypes.TRANSPORT_ACK;
 import static org.briarproject.api.messaging.PacketTypes.TRANSPORT_UPDATE;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -53,7 +52,7 @@ class PacketReaderImpl implements PacketReader {
 	private enum State { BUFFER_EMPTY, BUFFER_FULL, EOF };
 
 	private final ReaderFactory readerFactory;
-	private final ObjectReader<UnverifiedMessage> messageReader;
+	private final MessageReader messageReader;
 	private final ObjectReader<SubscriptionUpdate> subscriptionUpdateReader;
 	private final InputStream in;
 	private final byte[] header, payload;
@@ -62,7 +61,7 @@ class PacketReaderImpl implements PacketReader {
 	private int payloadLength = 0;
 
 	PacketReaderImpl(ReaderFactory readerFactory,
-			ObjectReader<UnverifiedMessage> messageReader,
+			MessageReader messageReader,
 			ObjectReader<SubscriptionUpdate> subscriptionUpdateReader,
 			InputStream in) {
 		this.readerFactory = readerFactory;
@@ -114,8 +113,7 @@ class PacketReaderImpl implements PacketReader {
 	public Ack readAck() throws IOException {
 		if(!hasAck()) throw new FormatException();
 		// Set up the reader
-		InputStream bais = new ByteArrayInputStream(payload, 0, payloadLength);
-		Reader r = readerFactory.createReader(bais);
+		Reader r = readerFactory.createReader(payload, 0, payloadLength);
 		// Read the start of the payload
 		r.readListStart();
 		// Read the message IDs
@@ -143,12 +141,10 @@ class PacketReaderImpl implements PacketReader {
 
 	public UnverifiedMessage readMessage() throws IOException {
 		if(!hasMessage()) throw new FormatException();
-		// Set up the reader
-		InputStream bais = new ByteArrayInputStream(payload, 0, payloadLength);
-		Reader r = readerFactory.createReader(bais);
-		// Read and build the message
-		UnverifiedMessage m = messageReader.readObject(r);
-		if(!r.eof()) throw new FormatException();
+		// The message keeps the only copy of the payload, and is parsed in place
+		byte[] raw = new byte[payloadLength];
+		System.arraycopy(payload, 0, raw, 0, payloadLength);
+		UnverifiedMessage m = messageReader.readMessage(raw);
 		state = State.BUFFER_EMPTY;
 		return m;
 	}
@@ -160,8 +156,7 @@ class PacketReaderImpl implements PacketReader {
 	public Offer readOffer() throws IOException {
 		if(!hasOffer()) throw new FormatException();
 		// Set up the reader
-		InputStream bais = new ByteArrayInputStream(payload, 0, payloadLength);
-		Reader r = readerFactory.createReader(bais);
+		Reader r = readerFactory.createReader(payload, 0, payloadLength);
 		// Read the start of the payload
 		r.readListStart();
 		// Read the message IDs
@@ -190,8 +185,7 @@ class PacketReaderImpl implements PacketReader {
 	public Request readRequest() throws IOException {
 		if(!hasRequest()) throw new FormatException();
 		// Set up the reader
-		InputStream bais = new ByteArrayInputStream(payload, 0, payloadLength);
-		Reader r = readerFactory.createReader(bais);
+		Reader r = readerFactory.createReader(payload, 0, payloadLength);
 		// Read the start of the payload
 		r.readListStart();
 		// Read the message IDs
@@ -220,8 +214,7 @@ class PacketReaderImpl implements PacketReader {
 	public RetentionAck readRetentionAck() throws IOException {
 		if(!hasRetentionAck()) throw new FormatException();
 		// Set up the reader
-		InputStream bais = new ByteArrayInputStream(payload, 0, payloadLength);
-		Reader r = readerFactory.createReader(bais);
+		Reader r = readerFactory.createReader(payload, 0, payloadLength);
 		// Read the start of the payload
 		r.readListStart();
 		// Read the version
@@ -242,8 +235,7 @@ class PacketReaderImpl implements PacketReader {
 	public RetentionUpdate readRetentionUpdate() throws IOException {
 		if(!hasRetentionUpdate()) throw new FormatException();
 		// Set up the reader
-		InputStream bais = new ByteArrayInputStream(payload, 0, payloadLength);
-		Reader r = readerFactory.createReader(bais);
+		Reader r = readerFactory.createReader(payload, 0, payloadLength);
 		// Read the start of the payload
 		r.readListStart();
 		// Read the retention time and version
@@ -266,8 +258,7 @@ class PacketReaderImpl implements PacketReader {
 	public SubscriptionAck readSubscriptionAck() throws IOException {
 		if(!hasSubscriptionAck()) throw new FormatException();
 		// Set up the reader
-		InputStream bais = new ByteArrayInputStream(payload, 0, payloadLength);
-		Reader r = readerFactory.createReader(bais);
+		Reader r = readerFactory.createReader(payload, 0, payloadLength);
 		// Read the start of the payload
 		r.readListStart();
 		// Read the version
@@ -288,8 +279,7 @@ class PacketReaderImpl implements PacketReader {
 	public SubscriptionUpdate readSubscriptionUpdate() throws IOException {
 		if(!hasSubscriptionUpdate()) throw new FormatException();
 		// Set up the reader
-		InputStream bais = new ByteArrayInputStream(payload, 0, payloadLength);
-		Reader r = readerFactory.createReader(bais);
+		Reader r = readerFactory.createReader(payload, 0, payloadLength);
 		// Read and build the subscription update
 		SubscriptionUpdate u = subscriptionUpdateReader.readObject(r);
 		if(!r.eof()) throw new FormatException();
@@ -304,8 +294,7 @@ class PacketReaderImpl implements PacketReader {
 	public TransportAck readTransportAck() throws IOException {
 		if(!hasTransportAck()) throw new FormatException();
 		// Set up the reader
-		InputStream bais = new ByteArrayInputStream(payload, 0, payloadLength);
-		Reader r = readerFactory.createReader(bais);
+		Reader r = readerFactory.createReader(payload, 0, payloadLength);
 		// Read the start of the payload
 		r.readListStart();
 		// Read the transport ID and version
@@ -329,8 +318,7 @@ class PacketReaderImpl implements PacketReader {
 	public TransportUpdate readTransportUpdate() throws IOException {
 		if(!hasTransportUpdate()) throw new FormatException();
 		// Set up the reader
-		InputStream bais = new ByteArrayInputStream(payload, 0, payloadLength);
-		Reader r = readerFactory.createReader(bais);
+		Reader r = readerFactory.createReader(payload, 0, payloadLength);
 		// Read the start of the payload
 		r.readListStart();
 		// Read the transport ID
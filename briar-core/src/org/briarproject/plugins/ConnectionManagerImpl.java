@@ -1,6 +1,9 @@
 package org.briarproject.plugins;
 
 import static java.util.logging.Level.WARNING;
+import static org.briarproject.api.transport.TransportConstants.MAX_FRAME_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAX_FRAME_LENGTH_PROPERTY;
+import static org.briarproject.api.transport.TransportConstants.MAX_LARGE_FRAME_LENGTH;
 import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
 
 import java.io.EOFException;
@@ -14,7 +17,9 @@ import javax.inject.Inject;
 
 import org.briarproject.api.ContactId;
 import org.briarproject.api.TransportId;
+import org.briarproject.api.TransportProperties;
 import org.briarproject.api.crypto.KeyManager;
+import org.briarproject.api.db.DatabaseComponent;
 import org.briarproject.api.db.DbException;
 import org.briarproject.api.lifecycle.IoExecutor;
 import org.briarproject.api.messaging.MessagingSession;
@@ -35,6 +40,7 @@ class ConnectionManagerImpl implements ConnectionManager {
 			Logger.getLogger(ConnectionManagerImpl.class.getName());
 
 	private final Executor ioExecutor;
+	private final DatabaseComponent db;
 	private final KeyManager keyManager;
 	private final TagRecogniser tagRecogniser;
 	private final StreamReaderFactory streamReaderFactory;
@@ -44,12 +50,14 @@ class ConnectionManagerImpl implements ConnectionManager {
 
 	@Inject
 	ConnectionManagerImpl(@IoExecutor Executor ioExecutor,
-			KeyManager keyManager, TagRecogniser tagRecogniser,
+			DatabaseComponent db, KeyManager keyManager,
+			TagRecogniser tagRecogniser,
 			StreamReaderFactory streamReaderFactory,
 			StreamWriterFactory streamWriterFactory,
 			MessagingSessionFactory messagingSessionFactory,
 			ConnectionRegistry connectionRegistry) {
 		this.ioExecutor = ioExecutor;
+		this.db = db;
 		this.keyManager = keyManager;
 		this.tagRecogniser = tagRecogniser;
 		this.streamReaderFactory = streamReaderFactory;
@@ -92,18 +100,61 @@ class ConnectionManagerImpl implements ConnectionManager {
 		return tag;
 	}
 
+	// Returns the maximum length of the frames we've told contacts we can
+	// read from the transport
+	private int getMaxIncomingFrameLength(TransportId t) {
+		try {
+			return getMaxFrameLength(db.getLocalProperties(t));
+		} catch(DbException e) {
+			if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
+			return MAX_FRAME_LENGTH;
+		}
+	}
+
+	// Returns the maximum length of the frames to write to the contact over
+	// the transport: large frames are only used if both sides can read them
+	private int getMaxOutgoingFrameLength(ContactId c, TransportId t) {
+		try {
+			TransportProperties local = db.getLocalProperties(t);
+			TransportProperties remote = db.getRemoteProperties(t).get(c);
+			return Math.min(getMaxFrameLength(local),
+					getMaxFrameLength(remote));
+		} catch(DbException e) {
+			if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
+			return MAX_FRAME_LENGTH;
+		}
+	}
+
+	// Returns the maximum frame length advertised in the given properties,
+	// or the default frame length if no valid length is advertised
+	static int getMaxFrameLength(TransportProperties p) {
+		if(p == null) return MAX_FRAME_LENGTH;
+		String s = p.get(MAX_FRAME_LENGTH_PROPERTY);
+		if(s == null) return MAX_FRAME_LENGTH;
+		try {
+			int length = Integer.parseInt(s);
+			if(length < MAX_FRAME_LENGTH) return MAX_FRAME_LENGTH;
+			return Math.min(length, MAX_LARGE_FRAME_LENGTH);
+		} catch(NumberFormatException e) {
+			return MAX_FRAME_LENGTH;
+		}
+	}
+
 	private MessagingSession createIncomingSession(StreamContext ctx,
 			TransportConnectionReader r) throws IOException {
+		int maxFrameLength = getMaxIncomingFrameLength(ctx.getTransportId());
 		InputStream streamReader = streamReaderFactory.createStreamReader(
-				r.getInputStream(), ctx);
+				r.getInputStream(), ctx, maxFrameLength);
 		return messagingSessionFactory.createIncomingSession(
 				ctx.getContactId(), ctx.getTransportId(), streamReader);
 	}
 
 	private MessagingSession createSimplexOutgoingSession(StreamContext ctx,
 			TransportConnectionWriter w) throws IOException {
+		int maxFrameLength = getMaxOutgoingFrameLength(ctx.getContactId(),
+				ctx.getTransportId());
 		OutputStream streamWriter = streamWriterFactory.createStreamWriter(
-				w.getOutputStream(), ctx);
+				w.getOutputStream(), ctx, maxFrameLength);
 		return messagingSessionFactory.createSimplexOutgoingSession(
 				ctx.getContactId(), ctx.getTransportId(), w.getMaxLatency(),
 				streamWriter);
@@ -111,8 +162,10 @@ class ConnectionManagerImpl implements ConnectionManager {
 
 	private MessagingSession createDuplexOutgoingSession(StreamContext ctx,
 			TransportConnectionWriter w) throws IOException {
+		int maxFrameLength = getMaxOutgoingFrameLength(ctx.getContactId(),
+				ctx.getTransportId());
 		OutputStream streamWriter = streamWriterFactory.createStreamWriter(
-				w.getOutputStream(), ctx);
+				w.getOutputStream(), ctx, maxFrameLength);
 		return messagingSessionFactory.createDuplexOutgoingSession(
 				ctx.getContactId(), ctx.getTransportId(), w.getMaxLatency(),
 				w.getMaxIdleTime(), streamWriter);
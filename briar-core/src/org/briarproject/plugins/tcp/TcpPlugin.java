@@ -2,6 +2,8 @@ package org.briarproject.plugins.tcp;
 
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
+import static org.briarproject.api.transport.TransportConstants.MAX_FRAME_LENGTH_PROPERTY;
+import static org.briarproject.api.transport.TransportConstants.MAX_LARGE_FRAME_LENGTH;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -130,6 +132,8 @@ abstract class TcpPlugin implements DuplexPlugin {
 		TransportProperties p = new TransportProperties();
 		p.put("address", getHostAddress(a.getAddress()));
 		p.put("port", String.valueOf(a.getPort()));
+		p.put(MAX_FRAME_LENGTH_PROPERTY,
+				String.valueOf(MAX_LARGE_FRAME_LENGTH));
 		callback.mergeLocalProperties(p);
 	}
 
@@ -82,9 +82,6 @@ class WanTcpPlugin extends TcpPlugin {
 			if(a.equals(mappingResult.getInternal()))
 				a = mappingResult.getExternal();
 		}
-		TransportProperties p = new TransportProperties();
-		p.put("address", getHostAddress(a.getAddress()));
-		p.put("port", String.valueOf(a.getPort()));
-		callback.mergeLocalProperties(p);
+		super.setLocalSocketAddress(a);
 	}
 }
@@ -4,19 +4,37 @@ import org.briarproject.util.ByteUtils;
 
 class Ack extends Frame {
 
-	static final int LENGTH = 11;
+	static final int LENGTH = 19;
+
+	/**
+	 * The length of an ack frame in the format used by older versions, which
+	 * has no cumulative sequence number or selective acks.
+	 */
+	static final int LEGACY_LENGTH = 11;
+
+	/** The number of data frames covered by the selective ack bitmap. */
+	static final int SACK_BITS = 32;
 
 	Ack() {
-		super(new byte[LENGTH]);
-		buf[0] = (byte) Frame.ACK_FLAG;
+		this(LENGTH);
+	}
+
+	Ack(int length) {
+		this(new byte[length]);
 	}
 
 	Ack(byte[] buf) {
 		super(buf);
-		if(buf.length != LENGTH) throw new IllegalArgumentException();
+		if(buf.length != LENGTH && buf.length != LEGACY_LENGTH)
+			throw new IllegalArgumentException();
 		buf[0] = (byte) Frame.ACK_FLAG;
 	}
 
+	/** Returns true if the ack frame is in the format used by older versions. */
+	boolean isLegacy() {
+		return buf.length == LEGACY_LENGTH;
+	}
+
 	int getWindowSize() {
 		return ByteUtils.readUint16(buf, 5);
 	}
@@ -24,4 +42,29 @@ class Ack extends Frame {
 	void setWindowSize(int windowSize) {
 		ByteUtils.writeUint16(windowSize, buf, 5);
 	}
+
+	/**
+	 * Returns the highest sequence number such that all data frames up to and
+	 * including it have been received.
+	 */
+	long getCumulativeSequenceNumber() {
+		return ByteUtils.readUint32(buf, 7);
+	}
+
+	void setCumulativeSequenceNumber(long sequenceNumber) {
+		ByteUtils.writeUint32(sequenceNumber, buf, 7);
+	}
+
+	/**
+	 * Returns a bitmap of the data frames received after the first missing
+	 * frame. Bit i is set if the data frame with sequence number
+	 * getCumulativeSequenceNumber() + 2 + i has been received.
+	 */
+	long getSelectiveAcks() {
+		return ByteUtils.readUint32(buf, 11);
+	}
+
+	void setSelectiveAcks(long bitmap) {
+		ByteUtils.writeUint32(bitmap, buf, 11);
+	}
 }
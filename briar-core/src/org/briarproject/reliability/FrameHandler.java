@@ -0,0 +1,13 @@
+package org.briarproject.reliability;
+
+import java.io.IOException;
+
+interface FrameHandler {
+
+	/**
+	 * Handles a decoded frame occupying the first <tt>length</tt> bytes of the
+	 * given buffer. The buffer is reused when the method returns, so any part
+	 * of the frame that's needed later must be copied.
+	 */
+	void handleFrame(byte[] b, int length) throws IOException;
+}
@@ -0,0 +1,49 @@
+package org.briarproject.reliability;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of buffers for full-length data frames. Frames are sized to fit
+ * their contents, so buffers of any other length are allocated as needed and
+ * not pooled.
+ */
+class FramePool {
+
+	private final int capacity;
+	private final Lock synchLock = new ReentrantLock();
+
+	// Locking: synchLock
+	private final Deque<byte[]> buffers;
+
+	FramePool(int capacity) {
+		this.capacity = capacity;
+		buffers = new ArrayDeque<byte[]>(capacity);
+	}
+
+	byte[] get(int length) {
+		if(length == Data.MAX_LENGTH) {
+			synchLock.lock();
+			try {
+				byte[] b = buffers.poll();
+				if(b != null) return b;
+			} finally {
+				synchLock.unlock();
+			}
+		}
+		return new byte[length];
+	}
+
+	/** The caller must not use the buffer after recycling it. */
+	void recycle(byte[] b) {
+		if(b.length != Data.MAX_LENGTH) return;
+		synchLock.lock();
+		try {
+			if(buffers.size() < capacity) buffers.push(b);
+		} finally {
+			synchLock.unlock();
+		}
+	}
+}
@@ -3,29 +3,32 @@ package org.briarproject.reliability;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import java.io.IOException;
-import java.util.Comparator;
-import java.util.Iterator;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-import org.briarproject.api.reliability.ReadHandler;
 import org.briarproject.api.system.Clock;
+import org.briarproject.util.ByteUtils;
 
-class Receiver implements ReadHandler {
+class Receiver implements FrameHandler {
 
 	private static final int READ_TIMEOUT = 5 * 60 * 1000; // Milliseconds
 	private static final int MAX_WINDOW_SIZE = 8 * Data.MAX_PAYLOAD_LENGTH;
+	// Data frames further ahead than this are dropped and retransmitted later
+	private static final int REORDER_BUFFER_SIZE = 1024; // Power of two
 
 	private final Clock clock;
 	private final Sender sender;
+	private final FramePool pool;
+	private final byte[] ackBuffer = new byte[Ack.LENGTH];
+	private final byte[] legacyAckBuffer = new byte[Ack.LEGACY_LENGTH];
 	private final Lock windowLock = new ReentrantLock();
 	private final Condition dataFrameAvailable = windowLock.newCondition();
 
 	// The following are locking: windowLock
-	private final SortedSet<Data> dataFrames;
+	// Received data frames, indexed by sequence number. The slot for a frame
+	// is cleared when the frame is read
+	private final Data[] dataFrames;
 	private int windowSize = MAX_WINDOW_SIZE;
 
 	private long finalSequenceNumber = Long.MAX_VALUE;
@@ -36,7 +39,8 @@ class Receiver implements ReadHandler {
 	Receiver(Clock clock, Sender sender) {
 		this.sender = sender;
 		this.clock = clock;
-		dataFrames = new TreeSet<Data>(new SequenceNumberComparator());
+		pool = new FramePool(MAX_WINDOW_SIZE / Data.MAX_PAYLOAD_LENGTH);
+		dataFrames = new Data[REORDER_BUFFER_SIZE];
 	}
 
 	Data read() throws IOException, InterruptedException {
@@ -44,22 +48,17 @@ class Receiver implements ReadHandler {
 		try {
 			long now = clock.currentTimeMillis(), end = now + READ_TIMEOUT;
 			while(now < end && valid) {
-				if(dataFrames.isEmpty()) {
-					// Wait for a data frame
+				Data d = getDataFrame(nextSequenceNumber);
+				if(d == null) {
+					// Wait for the next in-order data frame
 					dataFrameAvailable.await(end - now, MILLISECONDS);
 				} else {
-					Data d = dataFrames.first();
-					if(d.getSequenceNumber() == nextSequenceNumber) {
-						dataFrames.remove(d);
-						// Update the window
-						windowSize += d.getPayloadLength();
-						sender.sendAck(0, windowSize);
-						nextSequenceNumber++;
-						return d;
-					} else {
-						// Wait for the next in-order data frame
-						dataFrameAvailable.await(end - now, MILLISECONDS);
-					}
+					removeDataFrame(nextSequenceNumber);
+					nextSequenceNumber++;
+					// Update the window
+					windowSize += d.getPayloadLength();
+					sendAck(0);
+					return d;
 				}
 				now = clock.currentTimeMillis();
 			}
@@ -70,6 +69,14 @@ class Receiver implements ReadHandler {
 		}
 	}
 
+	/**
+	 * Returns a data frame's buffer to the pool. The caller must not use the
+	 * frame after recycling it.
+	 */
+	void recycle(Data d) {
+		pool.recycle(d.getBuffer());
+	}
+
 	void invalidate() {
 		valid = false;
 		windowLock.lock();
@@ -80,15 +87,23 @@ class Receiver implements ReadHandler {
 		}
 	}
 
-	public void handleRead(byte[] b) throws IOException {
+	public void handleFrame(byte[] b, int length) throws IOException {
 		if(!valid) throw new IOException("Connection closed");
 		switch(b[0]) {
 		case 0:
 		case Frame.FIN_FLAG:
-			handleData(b);
+			handleData(b, length);
 			break;
 		case Frame.ACK_FLAG:
-			sender.handleAck(b);
+			// Frames are decoded one at a time, so the buffers can be reused
+			if(length == Ack.LENGTH) {
+				System.arraycopy(b, 0, ackBuffer, 0, length);
+				sender.handleAck(ackBuffer);
+			} else if(length == Ack.LEGACY_LENGTH) {
+				System.arraycopy(b, 0, legacyAckBuffer, 0, length);
+				sender.handleAck(legacyAckBuffer);
+			}
+			// Ignore ack frame with invalid length
 			break;
 		default:
 			// Ignore unknown frame type
@@ -96,57 +111,87 @@ class Receiver implements ReadHandler {
 		}
 	}
 
-	private void handleData(byte[] b) throws IOException {
+	private void handleData(byte[] b, int length) throws IOException {
+		if(length < Data.MIN_LENGTH || length > Data.MAX_LENGTH) {
+			// Ignore data frame with invalid length
+			return;
+		}
+		// Check the frame in place so that a copy is only made if it's kept
+		if(ByteUtils.readUint32(b, length - 4) != Crc32.crc(b, 0, length - 4)) {
+			// Ignore data frame with invalid checksum
+			return;
+		}
+		int payloadLength = length - Data.MIN_LENGTH;
+		long sequenceNumber = ByteUtils.readUint32(b, 1);
+		boolean lastFrame = b[0] == Frame.FIN_FLAG;
 		windowLock.lock();
 		try {
-			if(b.length < Data.MIN_LENGTH || b.length > Data.MAX_LENGTH) {
-				// Ignore data frame with invalid length
-				return;
-			}
-			Data d = new Data(b);
-			int payloadLength = d.getPayloadLength();
 			if(payloadLength > windowSize) return; // No space in the window
-			if(d.getChecksum() != d.calculateChecksum()) {
-				// Ignore data frame with invalid checksum
-				return;
-			}
-			long sequenceNumber = d.getSequenceNumber();
+			if(sequenceNumber - nextSequenceNumber >= REORDER_BUFFER_SIZE)
+				return; // Too far ahead
 			if(sequenceNumber == 0) {
 				// Window probe
 			} else if(sequenceNumber < nextSequenceNumber) {
 				// Duplicate data frame
-			} else if(d.isLastFrame()) {
+			} else if(lastFrame) {
 				finalSequenceNumber = sequenceNumber;
 				// Remove any data frames with higher sequence numbers
-				Iterator<Data> it = dataFrames.iterator();
-				while(it.hasNext()) {
-					Data d1 = it.next();
-					if(d1.getSequenceNumber() >= finalSequenceNumber) it.remove();
-				}
-				if(dataFrames.add(d)) {
-					windowSize -= payloadLength;
-					dataFrameAvailable.signalAll();
+				long end = nextSequenceNumber + REORDER_BUFFER_SIZE;
+				for(long s = finalSequenceNumber + 1; s < end; s++) {
+					Data d = removeDataFrame(s);
+					if(d != null) {
+						windowSize += d.getPayloadLength();
+						recycle(d);
+					}
 				}
+				addDataFrame(b, length, sequenceNumber);
 			} else if(sequenceNumber < finalSequenceNumber) {
-				if(dataFrames.add(d)) {
-					windowSize -= payloadLength;
-					dataFrameAvailable.signalAll();
-				}
+				addDataFrame(b, length, sequenceNumber);
 			}
 			// Acknowledge the data frame even if it's a duplicate
-			sender.sendAck(sequenceNumber, windowSize);
+			sendAck(sequenceNumber);
 		} finally {
 			windowLock.unlock();
 		}
 	}
 
-	private static class SequenceNumberComparator implements Comparator<Data> {
+	// Locking: windowLock
+	private void addDataFrame(byte[] b, int length, long sequenceNumber) {
+		int i = (int) sequenceNumber & (dataFrames.length - 1);
+		if(dataFrames[i] != null) return; // Duplicate data frame
+		byte[] buf = pool.get(length);
+		System.arraycopy(b, 0, buf, 0, length);
+		Data d = new Data(buf);
+		dataFrames[i] = d;
+		windowSize -= d.getPayloadLength();
+		dataFrameAvailable.signalAll();
+	}
+
+	// Locking: windowLock
+	private Data getDataFrame(long sequenceNumber) {
+		if(sequenceNumber < nextSequenceNumber) return null;
+		if(sequenceNumber - nextSequenceNumber >= dataFrames.length)
+			return null;
+		return dataFrames[(int) sequenceNumber & (dataFrames.length - 1)];
+	}
+
+	// Locking: windowLock
+	private Data removeDataFrame(long sequenceNumber) {
+		Data d = getDataFrame(sequenceNumber);
+		if(d != null)
+			dataFrames[(int) sequenceNumber & (dataFrames.length - 1)] = null;
+		return d;
+	}
 
-		public int compare(Data d1, Data d2) {
-			long s1 = d1.getSequenceNumber(), s2 = d2.getSequenceNumber();
-			if(s1 < s2) return -1;
-			if(s1 > s2) return 1;
-			return 0;
+	// Locking: windowLock
+	private void sendAck(long sequenceNumber) throws IOException {
+		// Acknowledge all data frames received up to the first missing frame,
+		// and selectively acknowledge the data frames received after it
+		long cumulative = nextSequenceNumber - 1, bitmap = 0;
+		while(getDataFrame(cumulative + 1) != null) cumulative++;
+		for(int i = 0; i < Ack.SACK_BITS; i++) {
+			if(getDataFrame(cumulative + 2 + i) != null) bitmap |= 1L << i;
 		}
+		sender.sendAck(sequenceNumber, windowSize, cumulative, bitmap);
 	}
 }
@@ -46,6 +46,8 @@ class ReceiverInputStream extends InputStream {
 			length = -1;
 			return false;
 		}
+		// The previous data frame has been read, so its buffer can be reused
+		if(data != null) receiver.recycle(data);
 		try {
 			data = receiver.read();
 		} catch(InterruptedException e) {
@@ -17,7 +17,7 @@ import org.briarproject.api.system.Clock;
 
 class ReliabilityLayerImpl implements ReliabilityLayer, WriteHandler {
 
-	private static final int TICK_INTERVAL = 500; // Milliseconds
+	private static final int TICK_INTERVAL = 100; // Milliseconds
 
 	private static final Logger LOG =
 			Logger.getLogger(ReliabilityLayerImpl.class.getName());
@@ -4,8 +4,6 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -23,37 +21,74 @@ class Sender {
 	private static final int INITIAL_RTT = 0;
 	private static final int INITIAL_RTT_VAR = 3 * 1000;
 	private static final int MAX_WINDOW_SIZE = 64 * Data.MAX_PAYLOAD_LENGTH;
+	// Congestion control - see RFC 5681 and RFC 6675
+	private static final int MIN_CONGESTION_WINDOW = Data.MAX_PAYLOAD_LENGTH;
+	private static final int INITIAL_CONGESTION_WINDOW =
+			4 * Data.MAX_PAYLOAD_LENGTH;
+	private static final int MIN_SLOW_START_THRESHOLD =
+			2 * Data.MAX_PAYLOAD_LENGTH;
+	private static final int INITIAL_CAPACITY = 64; // Must be a power of two
 
 	private final Clock clock;
 	private final WriteHandler writeHandler;
+	private final FramePool pool;
 	private final Lock windowLock = new ReentrantLock();
 	private final Condition sendWindowAvailable = windowLock.newCondition();
 
+	// True once the peer has sent an ack with a cumulative sequence number
+	// and selective acks, so it can read them and we can stop sending the
+	// older ack format alongside them
+	private volatile boolean extendedAcksReceived = false;
+
 	// The following are locking: windowLock
-	private final LinkedList<Outstanding> outstanding;
+	// Outstanding data frames, indexed by sequence number. The slot for a
+	// frame is cleared when the frame is acked
+	private Outstanding[] outstanding;
+	private long oldest = 1, newest = 0;
 	private int outstandingBytes = 0;
 	private int windowSize = Data.MAX_PAYLOAD_LENGTH;
+	private int congestionWindow = INITIAL_CONGESTION_WINDOW;
+	private int slowStartThreshold = MAX_WINDOW_SIZE;
+	private long recoveryPoint = 0;
+	// Transmissions are numbered so losses can be detected by their order
+	private long transmissions = 0, highestAckedTransmission = 0;
 	private int rtt = INITIAL_RTT, rttVar = INITIAL_RTT_VAR;
 	private int rto = rtt + (rttVar << 2);
+	private int minRtt = Integer.MAX_VALUE;
 	private long lastWindowUpdateOrProbe = Long.MAX_VALUE;
 	private boolean dataWaiting = false;
 
 	Sender(Clock clock, WriteHandler writeHandler) {
 		this.clock = clock;
 		this.writeHandler = writeHandler;
-		outstanding = new LinkedList<Outstanding>();
+		pool = new FramePool(MAX_WINDOW_SIZE / Data.MAX_PAYLOAD_LENGTH);
+		outstanding = new Outstanding[INITIAL_CAPACITY];
 	}
 
-	void sendAck(long sequenceNumber, int windowSize) throws IOException {
+	void sendAck(long sequenceNumber, int windowSize, long cumulative,
+			long selectiveAcks) throws IOException {
 		Ack a = new Ack();
 		a.setSequenceNumber(sequenceNumber);
 		a.setWindowSize(windowSize);
+		a.setCumulativeSequenceNumber(cumulative);
+		a.setSelectiveAcks(selectiveAcks);
 		a.setChecksum(a.calculateChecksum());
 		writeHandler.handleWrite(a.getBuffer());
+		// Older peers ignore acks they can't parse, so send the older format
+		// as well until we know the peer can read the new one. It's sent
+		// second so that a newer peer has already processed the cumulative
+		// ack when it reads it
+		if(!extendedAcksReceived) {
+			Ack legacy = new Ack(Ack.LEGACY_LENGTH);
+			legacy.setSequenceNumber(sequenceNumber);
+			legacy.setWindowSize(windowSize);
+			legacy.setChecksum(legacy.calculateChecksum());
+			writeHandler.handleWrite(legacy.getBuffer());
+		}
 	}
 
 	void handleAck(byte[] b) throws IOException {
-		if(b.length != Ack.LENGTH) {
+		if(b.length != Ack.LENGTH && b.length != Ack.LEGACY_LENGTH) {
 			// Ignore ack frame with invalid length
 			return;
 		}
@@ -63,38 +98,82 @@ class Sender {
 			return;
 		}
 		long sequenceNumber = a.getSequenceNumber();
+		// An ack in the older format only acks a single data frame
+		long cumulative = 0, selectiveAcks = 0;
+		if(!a.isLegacy()) {
+			cumulative = a.getCumulativeSequenceNumber();
+			selectiveAcks = a.getSelectiveAcks();
+			extendedAcksReceived = true;
+		}
 		long now = clock.currentTimeMillis();
-		Outstanding fastRetransmit = null;
+		List<Outstanding> fastRetransmit = null;
 		windowLock.lock();
 		try {
-			// Remove the acked data frame if it's outstanding
-			int foundIndex = -1;
-			Iterator<Outstanding> it = outstanding.iterator();
-			for(int i = 0; it.hasNext(); i++) {
-				Outstanding o = it.next();
-				if(o.data.getSequenceNumber() == sequenceNumber) {
-					it.remove();
-					outstandingBytes -= o.data.getPayloadLength();
-					foundIndex = i;
-					// Update the round-trip time and retransmission timeout
-					if(!o.retransmitted) {
-						int sample = (int) (now - o.lastTransmitted);
-						int error = sample - rtt;
-						rtt += (error >> 3);
-						rttVar += (Math.abs(error) - rttVar) >> 2;
-						rto = rtt + (rttVar << 2);
-						if(rto < MIN_RTO) rto = MIN_RTO;
-						else if(rto > MAX_RTO) rto = MAX_RTO;
-					}
-					break;
+			// Update the round-trip time and retransmission timeout
+			Outstanding o = getOutstanding(sequenceNumber);
+			if(o != null && !o.retransmitted) {
+				int sample = (int) (now - o.lastTransmitted);
+				if(minRtt == Integer.MAX_VALUE) {
+					// First sample - see RFC 6298
+					rtt = sample;
+					rttVar = sample >> 1;
+				} else {
+					int error = sample - rtt;
+					rtt += (error >> 3);
+					rttVar += (Math.abs(error) - rttVar) >> 2;
 				}
+				if(sample < minRtt) minRtt = sample;
+				rto = rtt + (rttVar << 2);
+				if(rto < MIN_RTO) rto = MIN_RTO;
+				else if(rto > MAX_RTO) rto = MAX_RTO;
 			}
-			// If any older data frames are outstanding, retransmit the oldest
-			if(foundIndex > 0) {
-				fastRetransmit = outstanding.poll();
-				fastRetransmit.lastTransmitted = now;
-				fastRetransmit.retransmitted = true;
-				outstanding.add(fastRetransmit);
+			// Remove the acked data frames
+			int oldOutstandingBytes = outstandingBytes;
+			boolean acked = false;
+			for(long s = oldest; s <= cumulative && s <= newest; s++)
+				if(ack(s)) acked = true;
+			for(int i = 0; i < Ack.SACK_BITS; i++) {
+				if((selectiveAcks & (1L << i)) != 0 && ack(cumulative + 2 + i))
+					acked = true;
+			}
+			if(ack(sequenceNumber)) acked = true;
+			int ackedBytes = oldOutstandingBytes - outstandingBytes;
+			// Recovery ends when everything sent before it began is acked
+			boolean recovering = oldest <= recoveryPoint;
+			// Grow the congestion window unless recovering from congestion
+			if(!recovering && ackedBytes > 0) {
+				if(congestionWindow < slowStartThreshold) {
+					// Slow start
+					congestionWindow += Math.min(ackedBytes,
+							Data.MAX_PAYLOAD_LENGTH);
+				} else {
+					// Congestion avoidance
+					congestionWindow += Math.max(1, Data.MAX_PAYLOAD_LENGTH
+							* Data.MAX_PAYLOAD_LENGTH / congestionWindow);
+				}
+				if(congestionWindow > MAX_WINDOW_SIZE)
+					congestionWindow = MAX_WINDOW_SIZE;
+			}
+			// The underlying link delivers frames in order, so a data frame
+			// has been lost if any frame transmitted after it has been acked
+			for(long s = oldest; s <= newest; s++) {
+				o = getOutstanding(s);
+				if(o != null && o.transmission < highestAckedTransmission) {
+					transmitted(o, now);
+					o.retransmitted = true;
+					if(fastRetransmit == null)
+						fastRetransmit = new ArrayList<Outstanding>();
+					fastRetransmit.add(o);
+				}
+			}
+			// Frames on the underlying links are lost to noise as well as
+			// congestion, so a loss only shows congestion if the round-trip
+			// time has grown since the link was idle. Halve the congestion
+			// window once per congestion event
+			if(fastRetransmit != null && !recovering && isQueueing()) {
+				reduceCongestionWindow();
+				congestionWindow = slowStartThreshold;
+				recoveryPoint = newest;
 			}
 			// Update the window
 			lastWindowUpdateOrProbe = now;
@@ -102,14 +181,16 @@ class Sender {
 			// Don't accept an unreasonably large window size
 			windowSize = Math.min(a.getWindowSize(), MAX_WINDOW_SIZE);
 			// If space has become available, notify any waiting writers
-			if(windowSize > oldWindowSize || foundIndex != -1)
+			if(windowSize > oldWindowSize || acked)
 				sendWindowAvailable.signalAll();
 		} finally {
 			windowLock.unlock();
 		}
 		// Fast retransmission
-		if(fastRetransmit != null)
-			writeHandler.handleWrite(fastRetransmit.data.getBuffer());
+		if(fastRetransmit != null) {
+			for(Outstanding o : fastRetransmit)
+				writeHandler.handleWrite(o.data.getBuffer());
+		}
 	}
 
 	void tick() throws IOException {
@@ -118,31 +199,43 @@ class Sender {
 		boolean sendProbe = false;
 		windowLock.lock();
 		try {
-			if(outstanding.isEmpty()) {
+			if(oldest > newest) {
 				if(dataWaiting && now - lastWindowUpdateOrProbe > rto) {
 					sendProbe = true;
 					rto <<= 1;
 					if(rto > MAX_RTO) rto = MAX_RTO;
 				}
 			} else {
-				Iterator<Outstanding> it = outstanding.iterator();
-				while(it.hasNext()) {
-					Outstanding o = it.next();
-					if(now - o.lastTransmitted > rto) {
-						it.remove();
+				for(long s = oldest; s <= newest; s++) {
+					Outstanding o = getOutstanding(s);
+					if(o != null && now - o.lastTransmitted > rto) {
+						transmitted(o, now);
+						o.retransmitted = true;
 						if(retransmit == null)
 							retransmit = new ArrayList<Outstanding>();
 						retransmit.add(o);
-						// Update the retransmission timeout
-						rto <<= 1;
-						if(rto > MAX_RTO) rto = MAX_RTO;
 					}
 				}
 				if(retransmit != null) {
-					for(Outstanding o : retransmit) {
-						o.lastTransmitted = now;
+					// Update the retransmission timeout
+					rto <<= 1;
+					if(rto > MAX_RTO) rto = MAX_RTO;
+					// Return to slow start
+					reduceCongestionWindow();
+					congestionWindow = MIN_CONGESTION_WINDOW;
+					recoveryPoint = 0;
+				} else {
+					// If the last frames of a flight are lost, no later frame
+					// is acked to show the loss, so probe with the newest
+					// frame rather than waiting for the timeout - see RFC 8985
+					Outstanding o = getOutstanding(newest);
+					if(o != null && !o.retransmitted
+							&& minRtt != Integer.MAX_VALUE
+							&& now - o.lastTransmitted > rtt << 1) {
+						transmitted(o, now);
 						o.retransmitted = true;
-						outstanding.add(o);
+						retransmit = new ArrayList<Outstanding>(1);
+						retransmit.add(o);
 					}
 				}
 			}
@@ -169,14 +262,16 @@ class Sender {
 		try {
 			// Wait for space in the window
 			long now = clock.currentTimeMillis(), end = now + WRITE_TIMEOUT;
-			while(now < end && outstandingBytes + payloadLength >= windowSize) {
+			while(now < end && isWindowFull(payloadLength)) {
 				dataWaiting = true;
 				sendWindowAvailable.await(end - now, MILLISECONDS);
 				now = clock.currentTimeMillis();
 			}
-			if(outstandingBytes + payloadLength >= windowSize)
+			if(isWindowFull(payloadLength))
 				throw new IOException("Write timed out");
-			outstanding.add(new Outstanding(d, now));
+			Outstanding o = new Outstanding(d);
+			transmitted(o, now);
+			addOutstanding(o);
 			outstandingBytes += payloadLength;
 			dataWaiting = false;
 		} finally {
@@ -188,24 +283,133 @@ class Sender {
 	void flush() throws IOException, InterruptedException {
 		windowLock.lock();
 		try {
-			while(dataWaiting || !outstanding.isEmpty())
+			while(dataWaiting || oldest <= newest)
 				sendWindowAvailable.await();
 		} finally {
 			windowLock.unlock();
 		}
 	}
 
+	/**
+	 * Returns a buffer for a data frame. The buffers of acked data frames are
+	 * reused.
+	 */
+	byte[] getFrameBuffer(int length) {
+		return pool.get(length);
+	}
+
+	// Package access for testing
+	int getCongestionWindow() {
+		windowLock.lock();
+		try {
+			return congestionWindow;
+		} finally {
+			windowLock.unlock();
+		}
+	}
+
+	// Package access for testing
+	int getSlowStartThreshold() {
+		windowLock.lock();
+		try {
+			return slowStartThreshold;
+		} finally {
+			windowLock.unlock();
+		}
+	}
+
+	// Locking: windowLock
+	private boolean isWindowFull(int payloadLength) {
+		if(outstandingBytes + payloadLength >= windowSize) return true;
+		// The congestion window always allows one frame to be outstanding
+		return outstandingBytes > 0
+				&& outstandingBytes + payloadLength > congestionWindow;
+	}
+
+	/**
+	 * Removes the data frame with the given sequence number if it's
+	 * outstanding. Returns true if the frame was outstanding.
+	 */
+	// Locking: windowLock
+	private boolean ack(long sequenceNumber) {
+		Outstanding o = removeOutstanding(sequenceNumber);
+		if(o == null) return false;
+		outstandingBytes -= o.data.getPayloadLength();
+		if(o.transmission > highestAckedTransmission)
+			highestAckedTransmission = o.transmission;
+		// A retransmitted frame may still be waiting to be written, so only
+		// reuse the buffer if the frame was transmitted once
+		if(!o.retransmitted) pool.recycle(o.data.getBuffer());
+		return true;
+	}
+
+	// Locking: windowLock
+	private void transmitted(Outstanding o, long now) {
+		o.lastTransmitted = now;
+		o.transmission = ++transmissions;
+	}
+
+	/**
+	 * Returns true if the smoothed round-trip time is more than half as long
+	 * again as the shortest round-trip time seen, showing that frames are
+	 * queueing somewhere on the link.
+	 */
+	// Locking: windowLock
+	private boolean isQueueing() {
+		if(minRtt == Integer.MAX_VALUE) return false;
+		return rtt > minRtt + (minRtt >> 1);
+	}
+
+	// Locking: windowLock
+	private void reduceCongestionWindow() {
+		slowStartThreshold = Math.max(outstandingBytes / 2,
+				MIN_SLOW_START_THRESHOLD);
+	}
+
+	// Locking: windowLock
+	private Outstanding getOutstanding(long sequenceNumber) {
+		if(sequenceNumber < oldest || sequenceNumber > newest) return null;
+		return outstanding[(int) sequenceNumber & (outstanding.length - 1)];
+	}
+
+	// Locking: windowLock
+	private void addOutstanding(Outstanding o) {
+		long sequenceNumber = o.data.getSequenceNumber();
+		if(oldest > newest) oldest = newest = sequenceNumber;
+		else if(sequenceNumber == newest + 1) newest = sequenceNumber;
+		else throw new IllegalArgumentException();
+		// Grow the buffer if it's full
+		if(newest - oldest == outstanding.length) {
+			Outstanding[] bigger = new Outstanding[outstanding.length * 2];
+			for(long s = oldest; s < newest; s++) {
+				int i = (int) s & (outstanding.length - 1);
+				bigger[(int) s & (bigger.length - 1)] = outstanding[i];
+			}
+			outstanding = bigger;
+		}
+		outstanding[(int) sequenceNumber & (outstanding.length - 1)] = o;
+	}
+
+	// Locking: windowLock
+	private Outstanding removeOutstanding(long sequenceNumber) {
+		Outstanding o = getOutstanding(sequenceNumber);
+		if(o == null) return null;
+		outstanding[(int) sequenceNumber & (outstanding.length - 1)] = null;
+		// Move past any acked frames at the start of the buffer
+		while(oldest <= newest && getOutstanding(oldest) == null) oldest++;
+		return o;
+	}
+
 	private static class Outstanding {
 
 		private final Data data;
 
-		private volatile long lastTransmitted;
-		private volatile boolean retransmitted;
+		// The following are locking: windowLock
+		private long lastTransmitted, transmission;
+		private boolean retransmitted = false;
 
-		private Outstanding(Data data, long lastTransmitted) {
+		private Outstanding(Data data) {
 			this.data = data;
-			this.lastTransmitted = lastTransmitted;
-			retransmitted = false;
 		}
 	}
 }
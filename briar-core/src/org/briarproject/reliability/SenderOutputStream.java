@@ -65,7 +65,7 @@ class SenderOutputStream extends OutputStream {
 	}
 
 	private void send(boolean lastFrame) throws IOException {
-		byte[] frame = new byte[offset + Data.FOOTER_LENGTH];
+		byte[] frame = sender.getFrameBuffer(offset + Data.FOOTER_LENGTH);
 		System.arraycopy(buf, 0, frame, 0, frame.length);
 		Data d = new Data(frame);
 		d.setLastFrame(lastFrame);
@@ -10,14 +10,14 @@ class SlipDecoder implements ReadHandler {
 	private static final byte END = (byte) 192, ESC = (byte) 219;
 	private static final byte TEND = (byte) 220, TESC = (byte) 221;
 
-	private final ReadHandler readHandler;
+	private final FrameHandler frameHandler;
 	private final byte[] buf;
 
 	private int decodedLength = 0;
 	private boolean escape = false;
 
-	SlipDecoder(ReadHandler readHandler, int maxDecodedLength) {
-		this.readHandler = readHandler;
+	SlipDecoder(FrameHandler frameHandler, int maxDecodedLength) {
+		this.frameHandler = frameHandler;
 		buf = new byte[maxDecodedLength];
 	}
 
@@ -28,11 +28,9 @@ class SlipDecoder implements ReadHandler {
 				if(escape) {
 					reset(true);
 				} else {
-					if(decodedLength > 0) {
-						byte[] decoded = new byte[decodedLength];
-						System.arraycopy(buf, 0, decoded, 0, decodedLength);
-						readHandler.handleRead(decoded);
-					}
+					// The frame handler copies anything it needs to keep
+					if(decodedLength > 0)
+						frameHandler.handleFrame(buf, decodedLength);
 					reset(false);
 				}
 				break;
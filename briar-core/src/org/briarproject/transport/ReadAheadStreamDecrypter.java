@@ -0,0 +1,201 @@
+package org.briarproject.transport;
+
+import static org.briarproject.api.transport.TransportConstants.HEADER_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAC_LENGTH;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.briarproject.api.crypto.StreamDecrypter;
+
+/**
+ * A {@link org.briarproject.api.crypto.StreamDecrypter StreamDecrypter} that
+ * reads and decrypts up to a fixed number of frames ahead of the caller on an
+ * executor, so the caller can process one frame while the next is being read
+ * and decrypted.
+ * <p>
+ * Frames are returned in order, followed by any exception thrown by the
+ * underlying decrypter. If no frames have been read ahead and no frame is
+ * being read, the caller reads the next frame itself. The read-ahead task
+ * stops whenever its buffers are full, so it never waits for the caller.
+ */
+class ReadAheadStreamDecrypter implements StreamDecrypter {
+
+	private final Executor executor;
+	private final StreamDecrypter decrypter;
+	private final int maxPayloadLength, maxFramesAhead;
+	private final Runnable readAhead = new ReadAhead();
+	private final Lock synchLock = new ReentrantLock();
+	private final Condition frameRead = synchLock.newCondition();
+
+	// The following are locking: synchLock
+	private final Queue<Frame> ready = new LinkedList<Frame>();
+	private final Queue<byte[]> free = new LinkedList<byte[]>();
+	private int buffers = 0;
+	private boolean scheduled = false, reading = false, finished = false;
+	private IOException error = null;
+
+	ReadAheadStreamDecrypter(Executor executor, StreamDecrypter decrypter,
+			int maxFrameLength, int maxFramesAhead) {
+		if(maxFrameLength <= HEADER_LENGTH + MAC_LENGTH)
+			throw new IllegalArgumentException();
+		if(maxFramesAhead < 1) throw new IllegalArgumentException();
+		this.executor = executor;
+		this.decrypter = decrypter;
+		maxPayloadLength = maxFrameLength - HEADER_LENGTH - MAC_LENGTH;
+		this.maxFramesAhead = maxFramesAhead;
+	}
+
+	public int readFrame(byte[] payload) throws IOException {
+		if(payload.length < maxPayloadLength)
+			throw new IllegalArgumentException();
+		Frame frame;
+		synchLock.lock();
+		try {
+			while(ready.isEmpty()) {
+				if(error != null) throw error;
+				if(finished) return -1;
+				if(!reading) break;
+				try {
+					frameRead.await();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while reading");
+				}
+			}
+			frame = ready.poll();
+			// If nothing has been read ahead, read the next frame ourselves
+			if(frame == null) reading = true;
+		} finally {
+			synchLock.unlock();
+		}
+		int length;
+		if(frame == null) {
+			length = readFrameNow(payload);
+		} else {
+			length = frame.length;
+			if(length > 0)
+				System.arraycopy(frame.payload, 0, payload, 0, length);
+			synchLock.lock();
+			try {
+				free.add(frame.payload);
+			} finally {
+				synchLock.unlock();
+			}
+		}
+		scheduleReadAhead();
+		return length;
+	}
+
+	// Called with the reading flag set
+	private int readFrameNow(byte[] payload) throws IOException {
+		int length = -1;
+		boolean success = false;
+		IOException failure = null;
+		try {
+			length = decrypter.readFrame(payload);
+			success = true;
+			return length;
+		} catch(IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			synchLock.lock();
+			try {
+				reading = false;
+				if(!success) error = failed(failure);
+				if(!success || length == -1) finished = true;
+			} finally {
+				synchLock.unlock();
+			}
+		}
+	}
+
+	// Returns the exception to throw after a frame couldn't be read
+	private IOException failed(IOException failure) {
+		if(failure == null) return new IOException("Failed to read frame");
+		return failure;
+	}
+
+	private void scheduleReadAhead() {
+		synchLock.lock();
+		try {
+			if(scheduled || finished) return;
+			if(free.isEmpty() && buffers == maxFramesAhead) return;
+			scheduled = true;
+		} finally {
+			synchLock.unlock();
+		}
+		executor.execute(readAhead);
+	}
+
+	private static class Frame {
+
+		private final byte[] payload;
+		private final int length;
+
+		private Frame(byte[] payload, int length) {
+			this.payload = payload;
+			this.length = length;
+		}
+	}
+
+	private class ReadAhead implements Runnable {
+
+		public void run() {
+			while(true) {
+				byte[] payload;
+				boolean allocate = false;
+				synchLock.lock();
+				try {
+					if(reading || finished) {
+						scheduled = false;
+						return;
+					}
+					payload = free.poll();
+					if(payload == null) {
+						if(buffers == maxFramesAhead) {
+							scheduled = false;
+							return;
+						}
+						buffers++;
+						allocate = true;
+					}
+					reading = true;
+				} finally {
+					synchLock.unlock();
+				}
+				if(allocate) payload = new byte[maxPayloadLength];
+				int length = -1;
+				boolean success = false;
+				IOException failure = null;
+				try {
+					length = decrypter.readFrame(payload);
+					success = true;
+				} catch(IOException e) {
+					failure = e;
+				} finally {
+					synchLock.lock();
+					try {
+						reading = false;
+						if(success) {
+							ready.add(new Frame(payload, length));
+						} else {
+							free.add(payload);
+							error = failed(failure);
+						}
+						if(!success || length == -1) finished = true;
+						frameRead.signalAll();
+					} finally {
+						synchLock.unlock();
+					}
+				}
+			}
+		}
+	}
+}
@@ -1,31 +1,53 @@
 package org.briarproject.transport;
 
+import static org.briarproject.api.transport.TransportConstants.MAX_FRAME_LENGTH;
+
 import java.io.InputStream;
+import java.util.concurrent.Executor;
 
 import javax.inject.Inject;
 
+import org.briarproject.api.crypto.StreamDecrypter;
 import org.briarproject.api.crypto.StreamDecrypterFactory;
+import org.briarproject.api.lifecycle.IoExecutor;
 import org.briarproject.api.transport.StreamContext;
 import org.briarproject.api.transport.StreamReaderFactory;
 
 class StreamReaderFactoryImpl implements StreamReaderFactory {
 
+	private static final int PROCESSORS =
+			Runtime.getRuntime().availableProcessors();
+
+	/** The maximum number of frames to read ahead of a transport stream. */
+	private static final int MAX_FRAMES_AHEAD = 4;
+
+	private final Executor ioExecutor;
 	private final StreamDecrypterFactory streamDecrypterFactory;
 
 	@Inject
-	StreamReaderFactoryImpl(StreamDecrypterFactory streamDecrypterFactory) {
+	StreamReaderFactoryImpl(@IoExecutor Executor ioExecutor,
+			StreamDecrypterFactory streamDecrypterFactory) {
+		this.ioExecutor = ioExecutor;
 		this.streamDecrypterFactory = streamDecrypterFactory;
 	}
 
-	public InputStream createStreamReader(InputStream in, StreamContext ctx) {
-		return new StreamReaderImpl(
-				streamDecrypterFactory.createStreamDecrypter(in, ctx));
+	public InputStream createStreamReader(InputStream in, StreamContext ctx,
+			int maxFrameLength) {
+		StreamDecrypter decrypter = streamDecrypterFactory.createStreamDecrypter(
+				in, ctx, maxFrameLength);
+		// Decrypt frames while the caller is processing them if there's more
+		// than one core
+		if(PROCESSORS > 1) {
+			decrypter = new ReadAheadStreamDecrypter(ioExecutor, decrypter,
+					maxFrameLength, MAX_FRAMES_AHEAD);
+		}
+		return new StreamReaderImpl(decrypter, maxFrameLength);
 	}
 
 	public InputStream createInvitationStreamReader(InputStream in,
 			byte[] secret, boolean alice) {
 		return new StreamReaderImpl(
 				streamDecrypterFactory.createInvitationStreamDecrypter(in,
-						secret, alice));
+						secret, alice), MAX_FRAME_LENGTH);
 	}
 }
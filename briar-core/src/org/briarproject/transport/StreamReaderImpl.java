@@ -1,6 +1,7 @@
 package org.briarproject.transport;
 
-import static org.briarproject.api.transport.TransportConstants.MAX_PAYLOAD_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.HEADER_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAC_LENGTH;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -14,9 +15,9 @@ class StreamReaderImpl extends InputStream {
 
 	private int offset = 0, length = 0;
 
-	StreamReaderImpl(StreamDecrypter decrypter) {
+	StreamReaderImpl(StreamDecrypter decrypter, int maxFrameLength) {
 		this.decrypter = decrypter;
-		payload = new byte[MAX_PAYLOAD_LENGTH];
+		payload = new byte[maxFrameLength - HEADER_LENGTH - MAC_LENGTH];
 	}
 
 	@Override
@@ -1,5 +1,10 @@
 package org.briarproject.transport;
 
+import static org.briarproject.api.transport.TransportConstants.HEADER_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAC_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAX_PAYLOAD_LENGTH;
+
+import java.io.BufferedOutputStream;
 import java.io.OutputStream;
 
 import javax.inject.Inject;
@@ -10,6 +15,12 @@ import org.briarproject.api.transport.StreamWriterFactory;
 
 class StreamWriterFactoryImpl implements StreamWriterFactory {
 
+	/**
+	 * Encrypted frames are collected into writes of up to this length, or
+	 * until the stream is flushed, so small frames share system calls.
+	 */
+	private static final int WRITE_BUFFER_LENGTH = 8 * 1024;
+
 	private final StreamEncrypterFactory streamEncrypterFactory;
 
 	@Inject
@@ -18,15 +29,18 @@ class StreamWriterFactoryImpl implements StreamWriterFactory {
 	}
 
 	public OutputStream createStreamWriter(OutputStream out,
-			StreamContext ctx) {
+			StreamContext ctx, int maxFrameLength) {
+		int maxPayloadLength = maxFrameLength - HEADER_LENGTH - MAC_LENGTH;
+		out = new BufferedOutputStream(out, WRITE_BUFFER_LENGTH);
 		return new StreamWriterImpl(
-				streamEncrypterFactory.createStreamEncrypter(out, ctx));
+				streamEncrypterFactory.createStreamEncrypter(out, ctx,
+						maxFrameLength), maxPayloadLength);
 	}
 
 	public OutputStream createInvitationStreamWriter(OutputStream out,
 			byte[] secret, boolean alice) {
 		return new StreamWriterImpl(
 				streamEncrypterFactory.createInvitationStreamEncrypter(out,
-						secret, alice));
+						secret, alice), MAX_PAYLOAD_LENGTH);
 	}
 }
\ No newline at end of file
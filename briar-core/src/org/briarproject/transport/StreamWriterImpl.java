@@ -1,7 +1,5 @@
 package org.briarproject.transport;
 
-import static org.briarproject.api.transport.TransportConstants.MAX_PAYLOAD_LENGTH;
-
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -21,9 +19,9 @@ class StreamWriterImpl extends OutputStream {
 
 	private int length = 0;
 
-	StreamWriterImpl(StreamEncrypter encrypter) {
+	StreamWriterImpl(StreamEncrypter encrypter, int maxPayloadLength) {
 		this.encrypter = encrypter;
-		payload = new byte[MAX_PAYLOAD_LENGTH];
+		payload = new byte[maxPayloadLength];
 	}
 
 	@Override
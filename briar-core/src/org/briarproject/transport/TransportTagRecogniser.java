@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -14,15 +15,20 @@ import org.briarproject.api.ContactId;
 import org.briarproject.api.TransportId;
 import org.briarproject.api.crypto.CryptoComponent;
 import org.briarproject.api.crypto.SecretKey;
+import org.briarproject.api.crypto.TagEncoder;
 import org.briarproject.api.db.DatabaseComponent;
 import org.briarproject.api.db.DbException;
 import org.briarproject.api.transport.StreamContext;
 import org.briarproject.api.transport.TemporarySecret;
 
-// FIXME: Don't make alien calls with a lock held
 /**
  * A {@link org.briarproject.api.transport.TagRecogniser TagRecogniser} for a
  * specific transport.
+ * <p>
+ * The recogniser's lock is never held while calling the DB. A secret's
+ * store lock is held while storing its reordering window, but that lock is
+ * only used for storing, and the recogniser's lock is only taken inside it
+ * for reading the window.
  */
 class TransportTagRecogniser {
 
@@ -31,71 +37,103 @@ class TransportTagRecogniser {
 	private final TransportId transportId;
 	private final Lock synchLock = new ReentrantLock();
 
-	// The following are locking: synchLock
+	// Reads are not locking, writes are locking: synchLock
 	private final Map<Bytes, TagContext> tagMap;
-	private final Map<RemovalKey, RemovalContext> removalMap;
+	// Locking: synchLock
+	private final Map<RemovalKey, SecretContext> removalMap;
 
 	TransportTagRecogniser(CryptoComponent crypto, DatabaseComponent db,
 			TransportId transportId) {
 		this.crypto = crypto;
 		this.db = db;
 		this.transportId = transportId;
-		tagMap = new HashMap<Bytes, TagContext>();
-		removalMap = new HashMap<RemovalKey, RemovalContext>();
+		tagMap = new ConcurrentHashMap<Bytes, TagContext>();
+		removalMap = new HashMap<RemovalKey, SecretContext>();
 	}
 
 	StreamContext recogniseTag(byte[] tag) throws DbException {
+		Bytes b = new Bytes(tag);
+		// Unexpected tags can be rejected without locking
+		if(!tagMap.containsKey(b)) return null;
+		TagContext t;
 		synchLock.lock();
 		try {
-			TagContext t = tagMap.remove(new Bytes(tag));
-			if(t == null) return null; // The tag was not expected
+			t = tagMap.remove(b);
+			if(t == null) return null; // The tag was recognised concurrently
 			// Update the reordering window and the expected tags
-			SecretKey key = crypto.deriveTagKey(t.secret, !t.alice);
-			for(long streamNumber : t.window.setSeen(t.streamNumber)) {
+			SecretContext s = t.secret;
+			for(long streamNumber : s.window.setSeen(t.streamNumber)) {
 				byte[] tag1 = new byte[TAG_LENGTH];
-				crypto.encodeTag(tag1, key, streamNumber);
+				s.encoder.encodeTag(tag1, streamNumber);
 				if(streamNumber < t.streamNumber) {
 					TagContext removed = tagMap.remove(new Bytes(tag1));
 					assert removed != null;
 				} else {
-					TagContext added = new TagContext(t, streamNumber);
+					TagContext added = new TagContext(s, streamNumber);
 					TagContext duplicate = tagMap.put(new Bytes(tag1), added);
 					assert duplicate == null;
 				}
 			}
-			// Store the updated reordering window in the DB
-			db.setReorderingWindow(t.contactId, transportId, t.period,
-					t.window.getCentre(), t.window.getBitmap());
-			return new StreamContext(t.contactId, transportId, t.secret,
-					t.streamNumber, t.alice);
 		} finally {
 			synchLock.unlock();
 		}
+		// Store the updated reordering window in the DB
+		SecretContext s = t.secret;
+		storeWindow(s);
+		return new StreamContext(s.contactId, transportId, s.secret,
+				t.streamNumber, s.alice);
+	}
+
+	/**
+	 * Stores the reordering window of the given secret in the DB without
+	 * holding the recogniser's lock. The window is read while holding the
+	 * secret's store lock, so the last thread to store the window stores its
+	 * latest state.
+	 */
+	private void storeWindow(SecretContext s) throws DbException {
+		s.storeLock.lock();
+		try {
+			long centre;
+			byte[] bitmap;
+			synchLock.lock();
+			try {
+				centre = s.window.getCentre();
+				bitmap = s.window.getBitmap();
+			} finally {
+				synchLock.unlock();
+			}
+			db.setReorderingWindow(s.contactId, transportId, s.period, centre,
+					bitmap);
+		} finally {
+			s.storeLock.unlock();
+		}
 	}
 
 	void addSecret(TemporarySecret s) {
+		ContactId contactId = s.getContactId();
+		boolean alice = s.getAlice();
+		long period = s.getPeriod();
+		byte[] secret = s.getSecret();
+		long centre = s.getWindowCentre();
+		byte[] bitmap = s.getWindowBitmap();
+		// The tag encoder is kept for updating and removing the tags later
+		SecretKey key = crypto.deriveTagKey(secret, !alice);
+		TagEncoder encoder = crypto.getTagEncoder(key);
 		synchLock.lock();
 		try {
-			ContactId contactId = s.getContactId();
-			boolean alice = s.getAlice();
-			long period = s.getPeriod();
-			byte[] secret = s.getSecret();
-			long centre = s.getWindowCentre();
-			byte[] bitmap = s.getWindowBitmap();
 			// Create the reordering window and the expected tags
-			SecretKey key = crypto.deriveTagKey(secret, !alice);
 			ReorderingWindow window = new ReorderingWindow(centre, bitmap);
+			SecretContext added = new SecretContext(contactId, alice, period,
+					secret, window, encoder);
 			for(long streamNumber : window.getUnseen()) {
 				byte[] tag = new byte[TAG_LENGTH];
-				crypto.encodeTag(tag, key, streamNumber);
-				TagContext added = new TagContext(contactId, alice, period,
-						secret, window, streamNumber);
-				TagContext duplicate = tagMap.put(new Bytes(tag), added);
+				encoder.encodeTag(tag, streamNumber);
+				TagContext t = new TagContext(added, streamNumber);
+				TagContext duplicate = tagMap.put(new Bytes(tag), t);
 				assert duplicate == null;
 			}
-			// Create a removal context to remove the window and the tags later
-			RemovalContext r = new RemovalContext(window, secret, alice);
-			removalMap.put(new RemovalKey(contactId, period), r);
+			// Keep the secret's context to remove the tags later
+			removalMap.put(new RemovalKey(contactId, period), added);
 		} finally {
 			synchLock.unlock();
 		}
@@ -105,7 +143,7 @@ class TransportTagRecogniser {
 		synchLock.lock();
 		try {
 			RemovalKey k = new RemovalKey(contactId, period);
-			RemovalContext removed = removalMap.remove(k);
+			SecretContext removed = removalMap.remove(k);
 			if(removed == null) throw new IllegalArgumentException();
 			removeSecret(removed);
 		} finally {
@@ -114,12 +152,11 @@ class TransportTagRecogniser {
 	}
 
 	// Locking: synchLock
-	private void removeSecret(RemovalContext r) {
+	private void removeSecret(SecretContext s) {
 		// Remove the expected tags
-		SecretKey key = crypto.deriveTagKey(r.secret, !r.alice);
 		byte[] tag = new byte[TAG_LENGTH];
-		for(long streamNumber : r.window.getUnseen()) {
-			crypto.encodeTag(tag, key, streamNumber);
+		for(long streamNumber : s.window.getUnseen()) {
+			s.encoder.encodeTag(tag, streamNumber);
 			TagContext removed = tagMap.remove(new Bytes(tag));
 			assert removed != null;
 		}
@@ -141,7 +178,7 @@ class TransportTagRecogniser {
 	void removeSecrets() {
 		synchLock.lock();
 		try {
-			for(RemovalContext r : removalMap.values()) removeSecret(r);
+			for(SecretContext s : removalMap.values()) removeSecret(s);
 			assert tagMap.isEmpty();
 			removalMap.clear();
 		} finally {
@@ -149,28 +186,35 @@ class TransportTagRecogniser {
 		}
 	}
 
-	private static class TagContext {
+	private static class SecretContext {
 
 		private final ContactId contactId;
 		private final boolean alice;
 		private final long period;
 		private final byte[] secret;
-		private final ReorderingWindow window;
-		private final long streamNumber;
+		private final ReorderingWindow window; // Locking: synchLock
+		private final TagEncoder encoder; // Locking: synchLock
+		private final Lock storeLock = new ReentrantLock();
 
-		private TagContext(ContactId contactId, boolean alice, long period,
-				byte[] secret, ReorderingWindow window, long streamNumber) {
+		private SecretContext(ContactId contactId, boolean alice, long period,
+				byte[] secret, ReorderingWindow window, TagEncoder encoder) {
 			this.contactId = contactId;
 			this.alice = alice;
 			this.period = period;
 			this.secret = secret;
 			this.window = window;
-			this.streamNumber = streamNumber;
+			this.encoder = encoder;
 		}
+	}
 
-		private TagContext(TagContext t, long streamNumber) {
-			this(t.contactId, t.alice, t.period, t.secret, t.window,
-					streamNumber);
+	private static class TagContext {
+
+		private final SecretContext secret;
+		private final long streamNumber;
+
+		private TagContext(SecretContext secret, long streamNumber) {
+			this.secret = secret;
+			this.streamNumber = streamNumber;
 		}
 	}
 
@@ -198,18 +242,4 @@ class TransportTagRecogniser {
 			return false;
 		}
 	}
-
-	private static class RemovalContext {
-
-		private final ReorderingWindow window;
-		private final byte[] secret;
-		private final boolean alice;
-
-		private RemovalContext(ReorderingWindow window, byte[] secret,
-				boolean alice) {
-			this.window = window;
-			this.secret = secret;
-			this.alice = alice;
-		}
-	}
 }
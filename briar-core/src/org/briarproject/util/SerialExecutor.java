@@ -0,0 +1,79 @@
+package org.briarproject.util;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An executor that runs tasks one at a time, in the order they're submitted,
+ * on an underlying executor that may run tasks concurrently. Tasks from
+ * different serial executors sharing the same underlying executor may run
+ * concurrently. Submitting a task never blocks unless submitting a task to
+ * the underlying executor blocks.
+ */
+public class SerialExecutor implements Executor {
+
+	private final Executor executor;
+	private final Runnable runner = new Runner();
+	private final Lock synchLock = new ReentrantLock();
+
+	// The following are locking: synchLock
+	private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+	private boolean scheduled = false;
+
+	public SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	public void execute(Runnable r) {
+		synchLock.lock();
+		try {
+			tasks.add(r);
+			if(scheduled) return;
+			scheduled = true;
+		} finally {
+			synchLock.unlock();
+		}
+		executor.execute(runner);
+	}
+
+	/** Returns the number of tasks waiting to run. */
+	public int getQueueSize() {
+		synchLock.lock();
+		try {
+			return tasks.size();
+		} finally {
+			synchLock.unlock();
+		}
+	}
+
+	private class Runner implements Runnable {
+
+		public void run() {
+			Runnable task;
+			synchLock.lock();
+			try {
+				task = tasks.poll();
+			} finally {
+				synchLock.unlock();
+			}
+			try {
+				task.run();
+			} finally {
+				// Give other serial executors a turn before running the
+				// next task
+				boolean more;
+				synchLock.lock();
+				try {
+					more = !tasks.isEmpty();
+					scheduled = more;
+				} finally {
+					synchLock.unlock();
+				}
+				if(more) executor.execute(this);
+			}
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package org.briarproject.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed number of locks, each of which guards all the keys that hash to it.
+ * Operations on keys that hash to different stripes can proceed in parallel,
+ * while memory use stays constant however many keys there are.
+ */
+public class StripedLock {
+
+	private final Lock[] stripes;
+	private final int mask;
+
+	/** Creates the given number of stripes, rounded up to a power of two. */
+	public StripedLock(int stripes) {
+		if(stripes < 1) throw new IllegalArgumentException();
+		int size = 1;
+		while(size < stripes) size <<= 1;
+		this.stripes = new Lock[size];
+		for(int i = 0; i < size; i++) this.stripes[i] = new ReentrantLock();
+		mask = size - 1;
+	}
+
+	/** Returns the lock that guards the given key. */
+	public Lock get(Object key) {
+		return stripes[indexOf(key)];
+	}
+
+	/**
+	 * Returns the distinct locks that guard the given keys, in an order that
+	 * is the same for every caller, so the locks can be acquired one after
+	 * another without risk of deadlock.
+	 */
+	public List<Lock> getAll(Collection<?> keys) {
+		boolean[] used = new boolean[stripes.length];
+		for(Object key : keys) used[indexOf(key)] = true;
+		List<Lock> locks = new ArrayList<Lock>();
+		for(int i = 0; i < stripes.length; i++)
+			if(used[i]) locks.add(stripes[i]);
+		return locks;
+	}
+
+	/** Returns the number of stripes. */
+	public int size() {
+		return stripes.length;
+	}
+
+	private int indexOf(Object key) {
+		int h = key.hashCode();
+		// Spread the high bits so keys that differ only there don't collide
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return h & mask;
+	}
+}
@@ -0,0 +1,81 @@
+package org.briarproject;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.briarproject.util.StripedLock;
+
+// Not a JUnit test
+public class LockContentionPerformanceTest {
+
+	private static final int OPERATIONS_PER_CONTACT = 200;
+	private static final int[] CONTACTS = { 1, 2, 4, 8, 16, 32 };
+	private static final int STRIPES = 64;
+	// Simulate the time spent in a transaction, mostly waiting for the disk
+	private static final long WORK_NANOS = MILLISECONDS.toNanos(1);
+
+	public static void main(String[] args) throws Exception {
+		for(int contacts : CONTACTS) {
+			long global = runTest(contacts, false);
+			long striped = runTest(contacts, true);
+			System.out.println(contacts + " contacts: global lock "
+					+ opsPerSecond(contacts, global) + " ops/s, striped locks "
+					+ opsPerSecond(contacts, striped) + " ops/s");
+		}
+	}
+
+	private static long runTest(int contacts, final boolean striped)
+			throws InterruptedException {
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+		final StripedLock contactLocks = new StripedLock(STRIPES);
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(contacts);
+		for(int i = 0; i < contacts; i++) {
+			final Integer contact = i;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch(InterruptedException e) {
+						return;
+					}
+					for(int j = 0; j < OPERATIONS_PER_CONTACT; j++) {
+						if(striped) {
+							lock.readLock().lock();
+							Lock stripe = contactLocks.get(contact);
+							stripe.lock();
+							try {
+								LockSupport.parkNanos(WORK_NANOS);
+							} finally {
+								stripe.unlock();
+								lock.readLock().unlock();
+							}
+						} else {
+							lock.writeLock().lock();
+							try {
+								LockSupport.parkNanos(WORK_NANOS);
+							} finally {
+								lock.writeLock().unlock();
+							}
+						}
+					}
+					finished.countDown();
+				}
+			}.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		finished.await();
+		return System.nanoTime() - begin;
+	}
+
+	private static long opsPerSecond(int contacts, long nanos) {
+		long ops = (long) contacts * OPERATIONS_PER_CONTACT;
+		return ops * 1000 * 1000 * 1000 / nanos;
+	}
+}
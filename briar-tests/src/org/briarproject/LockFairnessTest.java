@@ -4,8 +4,10 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.briarproject.util.StripedLock;
 import org.junit.Test;
 
 public class LockFairnessTest extends BriarTestCase {
@@ -158,4 +160,169 @@ public class LockFairnessTest extends BriarTestCase {
 		assertTrue(secondReaderHasFinished.await(10, SECONDS));
 		assertTrue(writerHasFinished.await(10, SECONDS));
 	}
+
+	@Test
+	public void testDifferentStripesCanBeHeldConcurrently() throws Exception {
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+		StripedLock stripes = new StripedLock(16);
+		// Find two keys that map to different stripes
+		Integer key = 0;
+		while(stripes.get(key) == stripes.get(1)) key++;
+		final Lock firstStripe = stripes.get(1), secondStripe = stripes.get(key);
+		final CountDownLatch firstHasLock = new CountDownLatch(1);
+		final CountDownLatch secondHasLock = new CountDownLatch(1);
+		final CountDownLatch firstHasFinished = new CountDownLatch(1);
+		final CountDownLatch secondHasFinished = new CountDownLatch(1);
+		// First contact
+		Thread first = new Thread() {
+			@Override
+			public void run() {
+				try {
+					lock.readLock().lock();
+					firstStripe.lock();
+					try {
+						firstHasLock.countDown();
+						// Wait for the second contact to acquire its stripe
+						assertTrue(secondHasLock.await(10, SECONDS));
+					} finally {
+						firstStripe.unlock();
+						lock.readLock().unlock();
+					}
+				} catch(InterruptedException e) {
+					fail();
+				}
+				firstHasFinished.countDown();
+			}
+		};
+		first.start();
+		// Second contact
+		Thread second = new Thread() {
+			@Override
+			public void run() {
+				try {
+					assertTrue(firstHasLock.await(10, SECONDS));
+					lock.readLock().lock();
+					secondStripe.lock();
+					try {
+						secondHasLock.countDown();
+					} finally {
+						secondStripe.unlock();
+						lock.readLock().unlock();
+					}
+				} catch(InterruptedException e) {
+					fail();
+				}
+				secondHasFinished.countDown();
+			}
+		};
+		second.start();
+		assertTrue(firstHasFinished.await(10, SECONDS));
+		assertTrue(secondHasFinished.await(10, SECONDS));
+	}
+
+	@Test
+	public void testSameStripeIsExclusive() throws Exception {
+		StripedLock stripes = new StripedLock(16);
+		final Lock stripe = stripes.get(1);
+		// Keys that are equal must map to the same stripe
+		assertSame(stripe, stripes.get(Integer.valueOf(1)));
+		final CountDownLatch firstHasLock = new CountDownLatch(1);
+		final CountDownLatch firstHasFinished = new CountDownLatch(1);
+		final CountDownLatch secondHasFinished = new CountDownLatch(1);
+		final AtomicBoolean firstIsHoldingLock = new AtomicBoolean(false);
+		Thread first = new Thread() {
+			@Override
+			public void run() {
+				stripe.lock();
+				try {
+					firstIsHoldingLock.set(true);
+					firstHasLock.countDown();
+					Thread.sleep(100);
+					firstIsHoldingLock.set(false);
+				} catch(InterruptedException e) {
+					fail();
+				} finally {
+					stripe.unlock();
+				}
+				firstHasFinished.countDown();
+			}
+		};
+		first.start();
+		Thread second = new Thread() {
+			@Override
+			public void run() {
+				try {
+					assertTrue(firstHasLock.await(10, SECONDS));
+					stripe.lock();
+					try {
+						// The first thread must have released the stripe
+						assertFalse(firstIsHoldingLock.get());
+					} finally {
+						stripe.unlock();
+					}
+				} catch(InterruptedException e) {
+					fail();
+				}
+				secondHasFinished.countDown();
+			}
+		};
+		second.start();
+		assertTrue(firstHasFinished.await(10, SECONDS));
+		assertTrue(secondHasFinished.await(10, SECONDS));
+	}
+
+	@Test
+	public void testWriterExcludesStripeHolders() throws Exception {
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+		StripedLock stripes = new StripedLock(16);
+		final Lock stripe = stripes.get(1);
+		final CountDownLatch writerHasLock = new CountDownLatch(1);
+		final CountDownLatch writerHasFinished = new CountDownLatch(1);
+		final CountDownLatch contactHasFinished = new CountDownLatch(1);
+		final AtomicBoolean writerIsHoldingLock = new AtomicBoolean(false);
+		// Writer
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				lock.writeLock().lock();
+				try {
+					writerIsHoldingLock.set(true);
+					writerHasLock.countDown();
+					// Wait for the contact to wait for the lock
+					while(lock.getQueueLength() < 1) Thread.sleep(10);
+					writerIsHoldingLock.set(false);
+				} catch(InterruptedException e) {
+					fail();
+				} finally {
+					lock.writeLock().unlock();
+				}
+				writerHasFinished.countDown();
+			}
+		};
+		writer.start();
+		// Contact
+		Thread contact = new Thread() {
+			@Override
+			public void run() {
+				try {
+					assertTrue(writerHasLock.await(10, SECONDS));
+					lock.readLock().lock();
+					stripe.lock();
+					try {
+						// The contact should not overlap with the writer
+						assertFalse(writerIsHoldingLock.get());
+					} finally {
+						stripe.unlock();
+						lock.readLock().unlock();
+					}
+				} catch(InterruptedException e) {
+					fail();
+				}
+				contactHasFinished.countDown();
+			}
+		};
+		contact.start();
+		assertTrue(writerHasFinished.await(10, SECONDS));
+		assertTrue(contactHasFinished.await(10, SECONDS));
+	}
 }
@@ -1,5 +1,6 @@
 package org.briarproject;
 
+import static org.briarproject.api.transport.TransportConstants.MAX_FRAME_LENGTH;
 import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
 import static org.junit.Assert.assertArrayEquals;
 
@@ -118,7 +119,8 @@ public class ProtocolIntegrationTest extends BriarTestCase {
 		StreamContext ctx = new StreamContext(contactId, transportId, secret,
 				0, true);
 		OutputStream streamWriter =
-				streamWriterFactory.createStreamWriter(out, ctx);
+				streamWriterFactory.createStreamWriter(out, ctx,
+						MAX_FRAME_LENGTH);
 		PacketWriter packetWriter = packetWriterFactory.createPacketWriter(
 				streamWriter);
 
@@ -150,7 +152,8 @@ public class ProtocolIntegrationTest extends BriarTestCase {
 		StreamContext ctx = new StreamContext(contactId, transportId, secret,
 				0, false);
 		InputStream streamReader =
-				streamReaderFactory.createStreamReader(in, ctx);
+				streamReaderFactory.createStreamReader(in, ctx,
+						MAX_FRAME_LENGTH);
 		PacketReader packetReader = packetReaderFactory.createPacketReader(
 				streamReader);
 
@@ -0,0 +1,147 @@
+package org.briarproject.crypto;
+
+import static org.briarproject.api.transport.TransportConstants.IV_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAC_LENGTH;
+import static org.junit.Assert.assertArrayEquals;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.api.crypto.SecretKey;
+import org.briarproject.util.StringUtils;
+import org.junit.Test;
+
+public class AuthenticatedCipherTest extends BriarTestCase {
+
+	// A known answer computed with AuthenticatedCipherImpl. The IV is also
+	// passed as additional authenticated data
+	private static final String KNOWN_CIPHERTEXT =
+			"A6593E6E018E44F82A2CCD984B378E9120FD0B43C6E2143B"
+			+ "C4577CDD23F62B5EB217259CCB47355AEC717AD6C84468DF"
+			+ "9EBFBDD59CEF0AEE";
+
+	private final SecretKey key;
+	private final byte[] iv, plaintext;
+
+	public AuthenticatedCipherTest() {
+		byte[] k = new byte[SecretKey.LENGTH];
+		for(int i = 0; i < k.length; i++) k[i] = (byte) i;
+		key = new SecretKey(k);
+		iv = new byte[IV_LENGTH];
+		for(int i = 0; i < iv.length; i++) iv[i] = (byte) (0xA0 + i);
+		plaintext = new byte[40];
+		for(int i = 0; i < plaintext.length; i++)
+			plaintext[i] = (byte) (0x40 + i);
+	}
+
+	@Test
+	public void testKnownAnswer() throws Exception {
+		testKnownAnswer(new AuthenticatedCipherImpl());
+	}
+
+	@Test
+	public void testKnownAnswerWithPlatformCipher() throws Exception {
+		testKnownAnswer(new JcaAuthenticatedCipher());
+	}
+
+	private void testKnownAnswer(AuthenticatedCipher cipher)
+			throws Exception {
+		byte[] expected = StringUtils.fromHexString(KNOWN_CIPHERTEXT);
+		byte[] ciphertext = new byte[plaintext.length + MAC_LENGTH];
+		cipher.init(true, key, iv);
+		assertEquals(ciphertext.length, cipher.process(plaintext, 0,
+				plaintext.length, ciphertext, 0));
+		assertArrayEquals(expected, ciphertext);
+		byte[] decrypted = new byte[plaintext.length];
+		cipher.init(false, key, iv);
+		assertEquals(plaintext.length, cipher.process(ciphertext, 0,
+				ciphertext.length, decrypted, 0));
+		assertArrayEquals(plaintext, decrypted);
+	}
+
+	@Test
+	public void testReusingKeyGivesSameOutput() throws Exception {
+		testReusingKeyGivesSameOutput(new AuthenticatedCipherImpl(),
+				new AuthenticatedCipherImpl());
+	}
+
+	@Test
+	public void testReusingKeyGivesSameOutputWithPlatformCipher()
+			throws Exception {
+		testReusingKeyGivesSameOutput(new JcaAuthenticatedCipher(),
+				new JcaAuthenticatedCipher());
+	}
+
+	private void testReusingKeyGivesSameOutput(AuthenticatedCipher reused,
+			AuthenticatedCipher fresh) throws Exception {
+		byte[] iv1 = new byte[IV_LENGTH], iv2 = new byte[IV_LENGTH];
+		FrameEncoder.encodeIv(iv1, 0, true);
+		FrameEncoder.encodeIv(iv2, 0, false);
+		byte[] ciphertext = new byte[plaintext.length + MAC_LENGTH];
+		byte[] expected = new byte[plaintext.length + MAC_LENGTH];
+		// Encrypt twice with the same key and different IVs
+		reused.init(true, key, iv1);
+		reused.process(plaintext, 0, plaintext.length, ciphertext, 0);
+		reused.init(true, key, iv2);
+		reused.process(plaintext, 0, plaintext.length, ciphertext, 0);
+		fresh.init(true, key, iv2);
+		fresh.process(plaintext, 0, plaintext.length, expected, 0);
+		assertArrayEquals(expected, ciphertext);
+		// Switch to decryption with the same key
+		byte[] decrypted = new byte[plaintext.length];
+		reused.init(false, key, iv2);
+		reused.process(ciphertext, 0, ciphertext.length, decrypted, 0);
+		assertArrayEquals(plaintext, decrypted);
+		// Encrypt with a different key object containing the same key
+		SecretKey copy = new SecretKey(key.getBytes().clone());
+		reused.init(true, copy, iv1);
+		reused.process(plaintext, 0, plaintext.length, ciphertext, 0);
+		fresh.init(true, copy, iv1);
+		fresh.process(plaintext, 0, plaintext.length, expected, 0);
+		assertArrayEquals(expected, ciphertext);
+	}
+
+	@Test
+	public void testPlatformCipherMatchesOurCipher() throws Exception {
+		Random random = new Random();
+		for(int i = 0; i < 10; i++) {
+			assertTrue(AuthenticatedCipherProvider.crossCheck(
+					new AuthenticatedCipherImpl(),
+					new JcaAuthenticatedCipher(), random));
+		}
+	}
+
+	@Test
+	public void testPlatformCipherRejectsModifiedCiphertext()
+			throws Exception {
+		byte[] ciphertext = StringUtils.fromHexString(KNOWN_CIPHERTEXT);
+		ciphertext[0] ^= 1;
+		AuthenticatedCipher cipher = new JcaAuthenticatedCipher();
+		cipher.init(false, key, iv);
+		try {
+			cipher.process(ciphertext, 0, ciphertext.length,
+					new byte[plaintext.length], 0);
+			fail();
+		} catch(GeneralSecurityException expected) {}
+	}
+
+	@Test
+	public void testOnlyConstantTimeProvidersAreUsed() {
+		assertTrue(AuthenticatedCipherProvider.isConstantTime(
+				"AndroidOpenSSL"));
+		assertTrue(AuthenticatedCipherProvider.isConstantTime("Conscrypt"));
+		// SunJCE uses table-based AES without the CPU's AES instructions
+		assertFalse(AuthenticatedCipherProvider.isConstantTime("SunJCE"));
+		assertFalse(AuthenticatedCipherProvider.isConstantTime("BC"));
+	}
+
+	@Test
+	public void testProviderReturnsWorkingCipher() throws Exception {
+		AuthenticatedCipherProvider provider =
+				new AuthenticatedCipherProvider();
+		testKnownAnswer(provider.get());
+		// The choice should be remembered
+		assertEquals(provider.get().getClass(), provider.get().getClass());
+	}
+}
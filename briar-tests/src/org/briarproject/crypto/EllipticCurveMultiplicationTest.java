@@ -17,7 +17,12 @@ import org.spongycastle.crypto.params.ECKeyGenerationParameters;
 import org.spongycastle.crypto.params.ECPrivateKeyParameters;
 import org.spongycastle.crypto.params.ECPublicKeyParameters;
 import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECMultiplier;
 import org.spongycastle.math.ec.ECPoint;
+import org.spongycastle.math.ec.FixedPointCombMultiplier;
+import org.spongycastle.math.ec.MontgomeryLadderMultiplier;
+import org.spongycastle.math.ec.ReferenceMultiplier;
+import org.spongycastle.math.ec.WNafL2RMultiplier;
 
 public class EllipticCurveMultiplicationTest extends BriarTestCase {
 
@@ -106,4 +111,34 @@ public class EllipticCurveMultiplicationTest extends BriarTestCase {
 		assertEquals(sharedSecretMontgomeryMontgomery,
 				sharedSecretDefaultDefault);
 	}
+
+	@Test
+	public void testMultipliersProduceSameResultsAsReference() {
+		// The comb multiplier is used for the fixed generator, the windowed
+		// NAF multiplier for public scalars and the Montgomery ladder for
+		// secret scalars
+		ECMultiplier reference = new ReferenceMultiplier();
+		ECMultiplier[] multipliers = new ECMultiplier[] {
+			new FixedPointCombMultiplier(),
+			new WNafL2RMultiplier(),
+			new MontgomeryLadderMultiplier()
+		};
+		ECPoint g = PARAMETERS.getG();
+		BigInteger n = PARAMETERS.getN();
+		SecureRandom random = new SecureRandom();
+		for(int i = 0; i < 10; i++) {
+			// Multiply the generator and a random point by a random scalar
+			BigInteger k = new BigInteger(n.bitLength(), random).mod(n);
+			BigInteger j = new BigInteger(n.bitLength(), random).mod(n);
+			ECPoint p = reference.multiply(g, j);
+			ECPoint expectedG = reference.multiply(g, k);
+			ECPoint expectedP = reference.multiply(p, k);
+			for(ECMultiplier m : multipliers) {
+				assertEquals(expectedG, m.multiply(g, k));
+				assertEquals(expectedP, m.multiply(p, k));
+				// Any point times the order should be the point at infinity
+				assertTrue(m.multiply(p, n).isInfinity());
+			}
+		}
+	}
 }
@@ -7,6 +7,7 @@ import org.briarproject.TestSeedProvider;
 import org.briarproject.api.crypto.CryptoComponent;
 import org.briarproject.api.crypto.KeyPair;
 import org.briarproject.api.system.SeedProvider;
+import org.briarproject.plugins.ImmediateExecutor;
 import org.junit.Test;
 
 public class KeyAgreementTest extends BriarTestCase {
@@ -14,7 +15,8 @@ public class KeyAgreementTest extends BriarTestCase {
 	@Test
 	public void testKeyAgreement() throws Exception {
 		SeedProvider seedProvider = new TestSeedProvider();
-		CryptoComponent crypto = new CryptoComponentImpl(seedProvider);
+		CryptoComponent crypto = new CryptoComponentImpl(seedProvider,
+				new ImmediateExecutor());
 		KeyPair aPair = crypto.generateAgreementKeyPair();
 		byte[] aPub = aPair.getPublic().getEncoded();
 		KeyPair bPair = crypto.generateAgreementKeyPair();
@@ -1,5 +1,8 @@
 package org.briarproject.crypto;
 
+import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
+import static org.junit.Assert.assertArrayEquals;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -9,6 +12,8 @@ import org.briarproject.BriarTestCase;
 import org.briarproject.TestSeedProvider;
 import org.briarproject.api.crypto.CryptoComponent;
 import org.briarproject.api.crypto.SecretKey;
+import org.briarproject.api.crypto.TagEncoder;
+import org.briarproject.plugins.ImmediateExecutor;
 import org.junit.Test;
 
 public class KeyDerivationTest extends BriarTestCase {
@@ -17,7 +22,8 @@ public class KeyDerivationTest extends BriarTestCase {
 	private final byte[] secret;
 
 	public KeyDerivationTest() {
-		crypto = new CryptoComponentImpl(new TestSeedProvider());
+		crypto = new CryptoComponentImpl(new TestSeedProvider(),
+				new ImmediateExecutor());
 		secret = new byte[32];
 		new Random().nextBytes(secret);
 	}
@@ -69,4 +75,24 @@ public class KeyDerivationTest extends BriarTestCase {
 			}
 		}
 	}
+
+	@Test
+	public void testReusingTagEncoderGivesSameTags() {
+		SecretKey tagKey = crypto.deriveTagKey(secret, true);
+		TagEncoder encoder = crypto.getTagEncoder(tagKey);
+		List<byte[]> tags = new ArrayList<byte[]>();
+		for(int i = 0; i < 20; i++) {
+			byte[] tag = new byte[TAG_LENGTH];
+			encoder.encodeTag(tag, i);
+			tags.add(tag);
+		}
+		for(int i = 0; i < 20; i++) {
+			// A new encoder should give the same tag as the reused encoder
+			byte[] tag = new byte[TAG_LENGTH];
+			crypto.getTagEncoder(tagKey).encodeTag(tag, i);
+			assertArrayEquals(tags.get(i), tag);
+			for(int j = 0; j < 20; j++)
+				assertEquals(i == j, Arrays.equals(tags.get(i), tags.get(j)));
+		}
+	}
 }
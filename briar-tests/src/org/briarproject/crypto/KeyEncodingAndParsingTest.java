@@ -11,12 +11,14 @@ import org.briarproject.api.crypto.KeyPair;
 import org.briarproject.api.crypto.KeyParser;
 import org.briarproject.api.crypto.PrivateKey;
 import org.briarproject.api.crypto.PublicKey;
+import org.briarproject.plugins.ImmediateExecutor;
 import org.junit.Test;
 
 public class KeyEncodingAndParsingTest extends BriarTestCase {
 
 	private final CryptoComponentImpl crypto =
-			new CryptoComponentImpl(new TestSeedProvider());
+			new CryptoComponentImpl(new TestSeedProvider(),
+					new ImmediateExecutor());
 
 	@Test
 	public void testAgreementPublicKeyEncodingAndParsing() throws Exception {
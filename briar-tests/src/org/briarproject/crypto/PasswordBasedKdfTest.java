@@ -3,15 +3,23 @@ package org.briarproject.crypto;
 import static org.junit.Assert.assertArrayEquals;
 
 import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 import org.briarproject.BriarTestCase;
 import org.briarproject.TestSeedProvider;
+import org.briarproject.api.crypto.SecretKey;
+import org.briarproject.util.StringUtils;
 import org.junit.Test;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.spongycastle.crypto.params.KeyParameter;
 
 public class PasswordBasedKdfTest extends BriarTestCase {
 
+	private final Executor executor = Executors.newCachedThreadPool();
 	private final CryptoComponentImpl crypto =
-			new CryptoComponentImpl(new TestSeedProvider());
+			new CryptoComponentImpl(new TestSeedProvider(), executor);
 
 	@Test
 	public void testEncryptionAndDecryption() {
@@ -39,15 +47,76 @@ public class PasswordBasedKdfTest extends BriarTestCase {
 	}
 
 	@Test
-	public void testCalibration() {
-		// If the target time is unachievable, one iteration should be used
-		int iterations = crypto.chooseIterationCount(0);
-		assertEquals(1, iterations);
-		// If the target time is long, more than one iteration should be used
-		iterations = crypto.chooseIterationCount(10 * 1000);
-		assertTrue(iterations > 1);
-		// If the target time is very long, max iterations should be used
-		iterations = crypto.chooseIterationCount(Integer.MAX_VALUE);
-		assertEquals(Integer.MAX_VALUE, iterations);
+	public void testSingleLaneMatchesReferenceImplementation() {
+		byte[] password = StringUtils.toUtf8("password");
+		byte[] salt = new byte[16];
+		new Random().nextBytes(salt);
+		PasswordBasedKdf kdf = new PasswordBasedKdf(password, salt, 1,
+				executor);
+		byte[] key = kdf.deriveKey(1000);
+		PKCS5S2ParametersGenerator gen =
+				new PKCS5S2ParametersGenerator(new SHA256Digest());
+		gen.init(password, salt, 1000);
+		KeyParameter k = (KeyParameter) gen.generateDerivedParameters(
+				SecretKey.LENGTH * 8);
+		assertArrayEquals(k.getKey(), key);
+	}
+
+	@Test
+	public void testDurationGivesSameKeyAsIterationCount() {
+		byte[] password = StringUtils.toUtf8("password");
+		byte[] salt = new byte[16];
+		new Random().nextBytes(salt);
+		for(int lanes = 1; lanes <= 3; lanes++) {
+			PasswordBasedKdf timed = new PasswordBasedKdf(password, salt,
+					lanes, executor);
+			byte[] key = timed.deriveKeyForDuration(100);
+			int iterations = timed.getIterations();
+			assertTrue(iterations > 1);
+			PasswordBasedKdf counted = new PasswordBasedKdf(password, salt,
+					lanes, executor);
+			assertArrayEquals(key, counted.deriveKey(iterations));
+		}
+	}
+
+	@Test
+	public void testEncryptionAndDecryptionWithLanes() {
+		Random random = new Random();
+		byte[] input = new byte[1234];
+		random.nextBytes(input);
+		String password = "password";
+		for(int lanes = 1; lanes <= 3; lanes++) {
+			byte[] ciphertext = crypto.encryptWithPassword(input, password,
+					100, lanes);
+			// The number of lanes is only included if there's more than one
+			boolean included = (ciphertext[16] & 0x80) != 0;
+			assertEquals(lanes > 1, included);
+			byte[] output = crypto.decryptWithPassword(ciphertext, password);
+			assertArrayEquals(input, output);
+			// The wrong number of lanes should give the wrong key
+			if(lanes > 1) {
+				ciphertext[20] ^= 1;
+				assertNull(crypto.decryptWithPassword(ciphertext, password));
+			}
+		}
+	}
+
+	@Test
+	public void testLanesRunOnCallingThreadIfExecutorDoesNotRunThem() {
+		byte[] password = StringUtils.toUtf8("password");
+		byte[] salt = new byte[16];
+		new Random().nextBytes(salt);
+		// An executor with no free threads, as when the caller is the
+		// executor's only thread
+		Executor busy = new Executor() {
+			public void execute(Runnable r) {}
+		};
+		PasswordBasedKdf timed = new PasswordBasedKdf(password, salt, 3,
+				busy);
+		byte[] key = timed.deriveKeyForDuration(100);
+		int iterations = timed.getIterations();
+		PasswordBasedKdf counted = new PasswordBasedKdf(password, salt, 3,
+				executor);
+		assertArrayEquals(key, counted.deriveKey(iterations));
 	}
 }
@@ -0,0 +1,109 @@
+package org.briarproject.crypto;
+
+import static org.briarproject.api.transport.TransportConstants.MAX_LARGE_FRAME_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAX_LARGE_PAYLOAD_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.inject.Provider;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.api.crypto.SecretKey;
+import org.briarproject.api.crypto.StreamEncrypter;
+import org.junit.After;
+import org.junit.Test;
+
+public class PipelinedStreamEncrypterTest extends BriarTestCase {
+
+	private static final int FRAMES = 100;
+
+	private final ExecutorService pool = Executors.newFixedThreadPool(4);
+	private final Provider<AuthenticatedCipher> cipherProvider;
+	private final SecretKey frameKey;
+	private final byte[] tag;
+	private final Random random;
+
+	public PipelinedStreamEncrypterTest() {
+		cipherProvider = new Provider<AuthenticatedCipher>() {
+			public AuthenticatedCipher get() {
+				return new AuthenticatedCipherImpl();
+			}
+		};
+		random = new Random();
+		byte[] key = new byte[SecretKey.LENGTH];
+		random.nextBytes(key);
+		frameKey = new SecretKey(key);
+		tag = new byte[TAG_LENGTH];
+		random.nextBytes(tag);
+	}
+
+	@Test
+	public void testOutputMatchesSerialEncrypter() throws Exception {
+		testOutputMatchesSerialEncrypter(pool);
+	}
+
+	@Test
+	public void testFramesAreWrittenIfExecutorDiscardsTasks()
+			throws Exception {
+		testOutputMatchesSerialEncrypter(new Executor() {
+			public void execute(Runnable r) {}
+		});
+	}
+
+	@Test
+	public void testFlushWritesTagIfNotAlreadyWritten() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		StreamEncrypter e = new PipelinedStreamEncrypter(out, pool,
+				cipherProvider, frameKey, tag, MAX_LARGE_FRAME_LENGTH, 4);
+		e.flush();
+		assertArrayEquals(tag, out.toByteArray());
+		e.flush();
+		assertArrayEquals(tag, out.toByteArray());
+	}
+
+	private void testOutputMatchesSerialEncrypter(Executor executor)
+			throws Exception {
+		ByteArrayOutputStream serialOut = new ByteArrayOutputStream();
+		StreamEncrypter serial = new StreamEncrypterImpl(serialOut,
+				new AuthenticatedCipherImpl(), frameKey, tag,
+				MAX_LARGE_FRAME_LENGTH);
+		ByteArrayOutputStream pipelinedOut = new ByteArrayOutputStream();
+		StreamEncrypter pipelined = new PipelinedStreamEncrypter(pipelinedOut,
+				executor, cipherProvider, frameKey, tag,
+				MAX_LARGE_FRAME_LENGTH, 4);
+		byte[] payload = new byte[MAX_LARGE_PAYLOAD_LENGTH];
+		for(int i = 0; i < FRAMES; i++) {
+			random.nextBytes(payload);
+			int payloadLength = random.nextInt(MAX_LARGE_PAYLOAD_LENGTH + 1);
+			int paddingLength = random.nextInt(MAX_LARGE_PAYLOAD_LENGTH
+					- payloadLength + 1);
+			boolean finalFrame = i == FRAMES - 1;
+			serial.writeFrame(payload, payloadLength, paddingLength,
+					finalFrame);
+			pipelined.writeFrame(payload, payloadLength, paddingLength,
+					finalFrame);
+			// Flush now and then to check that it writes all pending frames
+			if(i % 30 == 29) {
+				serial.flush();
+				pipelined.flush();
+				assertArrayEquals(serialOut.toByteArray(),
+						pipelinedOut.toByteArray());
+			}
+		}
+		serial.flush();
+		pipelined.flush();
+		assertArrayEquals(serialOut.toByteArray(), pipelinedOut.toByteArray());
+	}
+
+	@Override
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+}
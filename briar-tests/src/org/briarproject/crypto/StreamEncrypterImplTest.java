@@ -2,13 +2,19 @@ package org.briarproject.crypto;
 
 import static org.briarproject.api.transport.TransportConstants.HEADER_LENGTH;
 import static org.briarproject.api.transport.TransportConstants.MAC_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAX_FRAME_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAX_LARGE_FRAME_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAX_LARGE_PAYLOAD_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAX_PAYLOAD_LENGTH;
 import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
 import static org.junit.Assert.assertArrayEquals;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.util.Random;
 
 import org.briarproject.BriarTestCase;
+import org.briarproject.api.FormatException;
 import org.briarproject.api.crypto.SecretKey;
 import org.junit.Test;
 
@@ -29,7 +35,7 @@ public class StreamEncrypterImplTest extends BriarTestCase {
 	public void testWriteUnpaddedNonFinalFrameWithTag() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, frameCipher,
-				frameKey, tag);
+				frameKey, tag, MAX_FRAME_LENGTH);
 		int payloadLength = 123;
 		byte[] payload = new byte[payloadLength];
 		new Random().nextBytes(payload);
@@ -51,7 +57,7 @@ public class StreamEncrypterImplTest extends BriarTestCase {
 	public void testWriteUnpaddedFinalFrameWithTag() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, frameCipher,
-				frameKey, tag);
+				frameKey, tag, MAX_FRAME_LENGTH);
 		int payloadLength = 123;
 		int frameLength = HEADER_LENGTH + payloadLength + MAC_LENGTH;
 		byte[] payload = new byte[payloadLength];
@@ -73,7 +79,7 @@ public class StreamEncrypterImplTest extends BriarTestCase {
 	public void testWriteUnpaddedNonFinalFrameWithoutTag() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, frameCipher,
-				frameKey, null);
+				frameKey, null, MAX_FRAME_LENGTH);
 		int payloadLength = 123;
 		int frameLength = HEADER_LENGTH + payloadLength + MAC_LENGTH;
 		byte[] payload = new byte[payloadLength];
@@ -93,7 +99,7 @@ public class StreamEncrypterImplTest extends BriarTestCase {
 	public void testWriteUnpaddedFinalFrameWithoutTag() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, frameCipher,
-				frameKey, null);
+				frameKey, null, MAX_FRAME_LENGTH);
 		int payloadLength = 123;
 		int frameLength = HEADER_LENGTH + payloadLength + MAC_LENGTH;
 		byte[] payload = new byte[payloadLength];
@@ -113,7 +119,7 @@ public class StreamEncrypterImplTest extends BriarTestCase {
 	public void testWritePaddedNonFinalFrameWithTag() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, frameCipher,
-				frameKey, tag);
+				frameKey, tag, MAX_FRAME_LENGTH);
 		int payloadLength = 123, paddingLength = 234;
 		int frameLength = HEADER_LENGTH + payloadLength + paddingLength
 				+ MAC_LENGTH;
@@ -136,7 +142,7 @@ public class StreamEncrypterImplTest extends BriarTestCase {
 	public void testWritePaddedFinalFrameWithTag() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, frameCipher,
-				frameKey, tag);
+				frameKey, tag, MAX_FRAME_LENGTH);
 		int payloadLength = 123, paddingLength = 234;
 		int frameLength = HEADER_LENGTH + payloadLength + paddingLength
 				+ MAC_LENGTH;
@@ -159,7 +165,7 @@ public class StreamEncrypterImplTest extends BriarTestCase {
 	public void testWritePaddedNonFinalFrameWithoutTag() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, frameCipher,
-				frameKey, null);
+				frameKey, null, MAX_FRAME_LENGTH);
 		int payloadLength = 123, paddingLength = 234;
 		int frameLength = HEADER_LENGTH + payloadLength + paddingLength
 				+ MAC_LENGTH;
@@ -180,7 +186,7 @@ public class StreamEncrypterImplTest extends BriarTestCase {
 	public void testWritePaddedFinalFrameWithoutTag() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, frameCipher,
-				frameKey, null);
+				frameKey, null, MAX_FRAME_LENGTH);
 		int payloadLength = 123, paddingLength = 234;
 		int frameLength = HEADER_LENGTH + payloadLength + paddingLength
 				+ MAC_LENGTH;
@@ -201,7 +207,7 @@ public class StreamEncrypterImplTest extends BriarTestCase {
 	public void testWriteTwoFrames() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, frameCipher,
-				frameKey, null);
+				frameKey, null, MAX_FRAME_LENGTH);
 		int payloadLength = 123, paddingLength = 234;
 		int frameLength = HEADER_LENGTH + payloadLength + paddingLength
 				+ MAC_LENGTH;
@@ -234,7 +240,7 @@ public class StreamEncrypterImplTest extends BriarTestCase {
 	public void testFlushWritesTagIfNotAlreadyWritten() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, frameCipher,
-				frameKey, tag);
+				frameKey, tag, MAX_FRAME_LENGTH);
 		s.flush();
 		assertArrayEquals(tag, out.toByteArray());
 	}
@@ -243,7 +249,7 @@ public class StreamEncrypterImplTest extends BriarTestCase {
 	public void testFlushDoesNotWriteTagIfAlreadyWritten() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, frameCipher,
-				frameKey, tag);
+				frameKey, tag, MAX_FRAME_LENGTH);
 		s.flush();
 		s.flush();
 		assertArrayEquals(tag, out.toByteArray());
@@ -253,8 +259,58 @@ public class StreamEncrypterImplTest extends BriarTestCase {
 	public void testFlushDoesNotWriteTagIfNull() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, frameCipher,
-				frameKey, null);
+				frameKey, null, MAX_FRAME_LENGTH);
 		s.flush();
 		assertEquals(0, out.size());
 	}
+
+	@Test
+	public void testFrameLongerThanMaxFrameLengthIsRejected()
+			throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		StreamEncrypterImpl s = new StreamEncrypterImpl(out, frameCipher,
+				frameKey, null, MAX_FRAME_LENGTH);
+		byte[] payload = new byte[MAX_PAYLOAD_LENGTH + 1];
+		try {
+			s.writeFrame(payload, payload.length, 0, false);
+			fail();
+		} catch(IllegalArgumentException expected) {}
+	}
+
+	@Test
+	public void testLargeFramesCanBeReadBack() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		StreamEncrypterImpl s = new StreamEncrypterImpl(out, frameCipher,
+				frameKey, null, MAX_LARGE_FRAME_LENGTH);
+		byte[] payload = new byte[MAX_LARGE_PAYLOAD_LENGTH];
+		new Random().nextBytes(payload);
+		s.writeFrame(payload, payload.length, 0, false);
+		s.writeFrame(payload, 123, MAX_LARGE_PAYLOAD_LENGTH - 123, true);
+		assertEquals(MAX_LARGE_FRAME_LENGTH * 2, out.size());
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		StreamDecrypterImpl d = new StreamDecrypterImpl(in, frameCipher,
+				frameKey, MAX_LARGE_FRAME_LENGTH);
+		byte[] decrypted = new byte[MAX_LARGE_PAYLOAD_LENGTH];
+		assertEquals(payload.length, d.readFrame(decrypted));
+		assertArrayEquals(payload, decrypted);
+		assertEquals(123, d.readFrame(decrypted));
+		for(int i = 0; i < 123; i++) assertEquals(payload[i], decrypted[i]);
+		assertEquals(-1, d.readFrame(decrypted));
+	}
+
+	@Test
+	public void testLargeFramesAreRejectedUnlessNegotiated() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		StreamEncrypterImpl s = new StreamEncrypterImpl(out, frameCipher,
+				frameKey, null, MAX_LARGE_FRAME_LENGTH);
+		byte[] payload = new byte[MAX_LARGE_PAYLOAD_LENGTH];
+		s.writeFrame(payload, payload.length, 0, true);
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		StreamDecrypterImpl d = new StreamDecrypterImpl(in, frameCipher,
+				frameKey, MAX_FRAME_LENGTH);
+		try {
+			d.readFrame(new byte[MAX_LARGE_PAYLOAD_LENGTH]);
+			fail();
+		} catch(FormatException expected) {}
+	}
 }
@@ -0,0 +1,154 @@
+package org.briarproject.data;
+
+import static org.briarproject.api.messaging.MessagingConstants.MAX_SUBSCRIPTIONS;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.briarproject.TestDatabaseModule;
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestSystemModule;
+import org.briarproject.TestUtils;
+import org.briarproject.api.messaging.Ack;
+import org.briarproject.api.messaging.Group;
+import org.briarproject.api.messaging.GroupFactory;
+import org.briarproject.api.messaging.MessageId;
+import org.briarproject.api.messaging.Offer;
+import org.briarproject.api.messaging.PacketReader;
+import org.briarproject.api.messaging.PacketReaderFactory;
+import org.briarproject.api.messaging.PacketWriter;
+import org.briarproject.api.messaging.PacketWriterFactory;
+import org.briarproject.api.messaging.SubscriptionUpdate;
+import org.briarproject.crypto.CryptoModule;
+import org.briarproject.db.DatabaseModule;
+import org.briarproject.event.EventModule;
+import org.briarproject.messaging.MessagingModule;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+// Not a JUnit test
+public class DataPerformanceTest {
+
+	private static final int PACKETS = 300;
+	private static final int RUNS = 51;
+
+	private final PacketWriterFactory packetWriterFactory;
+	private final PacketReaderFactory packetReaderFactory;
+	private final Ack ack;
+	private final Offer offer;
+	private final SubscriptionUpdate subscriptionUpdate;
+
+	private DataPerformanceTest() {
+		Injector i = Guice.createInjector(new TestDatabaseModule(),
+				new TestLifecycleModule(), new TestSystemModule(),
+				new CryptoModule(), new DatabaseModule(), new EventModule(),
+				new MessagingModule(), new SerialModule());
+		packetWriterFactory = i.getInstance(PacketWriterFactory.class);
+		packetReaderFactory = i.getInstance(PacketReaderFactory.class);
+		// Fill each packet with as many IDs as it can hold
+		PacketWriter w = packetWriterFactory.createPacketWriter(
+				new ByteArrayOutputStream());
+		ack = new Ack(createMessageIds(w.getMaxMessagesForAck(
+				Long.MAX_VALUE)));
+		offer = new Offer(createMessageIds(w.getMaxMessagesForOffer(
+				Long.MAX_VALUE)));
+		GroupFactory groupFactory = i.getInstance(GroupFactory.class);
+		Collection<Group> groups = new ArrayList<Group>();
+		for(int j = 0; j < MAX_SUBSCRIPTIONS; j++)
+			groups.add(groupFactory.createGroup(TestUtils.createRandomString(
+					20)));
+		subscriptionUpdate = new SubscriptionUpdate(groups, 1);
+	}
+
+	private Collection<MessageId> createMessageIds(int count) {
+		Collection<MessageId> ids = new ArrayList<MessageId>(count);
+		for(int j = 0; j < count; j++)
+			ids.add(new MessageId(TestUtils.getRandomId()));
+		return ids;
+	}
+
+	public static void main(String[] args) throws Exception {
+		new DataPerformanceTest().run();
+	}
+
+	private void run() throws IOException {
+		System.out.println(ack.getMessageIds().size() + " IDs per ack, "
+				+ offer.getMessageIds().size() + " IDs per offer, "
+				+ MAX_SUBSCRIPTIONS + " groups per subscription update");
+		test("Ack", new PacketType() {
+
+			public void write(PacketWriter w) throws IOException {
+				w.writeAck(ack);
+			}
+
+			public void read(PacketReader r) throws IOException {
+				r.readAck();
+			}
+		});
+		test("Offer", new PacketType() {
+
+			public void write(PacketWriter w) throws IOException {
+				w.writeOffer(offer);
+			}
+
+			public void read(PacketReader r) throws IOException {
+				r.readOffer();
+			}
+		});
+		test("Subscription update", new PacketType() {
+
+			public void write(PacketWriter w) throws IOException {
+				w.writeSubscriptionUpdate(subscriptionUpdate);
+			}
+
+			public void read(PacketReader r) throws IOException {
+				r.readSubscriptionUpdate();
+			}
+		});
+	}
+
+	private void test(String name, PacketType type) throws IOException {
+		List<Long> encodeTimes = new ArrayList<Long>();
+		List<Long> decodeTimes = new ArrayList<Long>();
+		byte[] encoded = null;
+		for(int run = 0; run < RUNS; run++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			PacketWriter w = packetWriterFactory.createPacketWriter(out);
+			long start = System.nanoTime();
+			for(int i = 0; i < PACKETS; i++) type.write(w);
+			w.flush();
+			encodeTimes.add(System.nanoTime() - start);
+			encoded = out.toByteArray();
+			PacketReader r = packetReaderFactory.createPacketReader(
+					new ByteArrayInputStream(encoded));
+			start = System.nanoTime();
+			for(int i = 0; i < PACKETS; i++) type.read(r);
+			decodeTimes.add(System.nanoTime() - start);
+			if(!r.eof()) throw new AssertionError();
+		}
+		System.out.println(name + ": encode "
+				+ getThroughput(encoded.length, encodeTimes) + " MB/s, decode "
+				+ getThroughput(encoded.length, decodeTimes) + " MB/s");
+	}
+
+	// Returns the median throughput in megabytes per second
+	private long getThroughput(long bytes, List<Long> times) {
+		Long[] sorted = times.toArray(new Long[times.size()]);
+		Arrays.sort(sorted);
+		long median = sorted[sorted.length / 2];
+		return bytes * 1000 / median;
+	}
+
+	private interface PacketType {
+
+		void write(PacketWriter w) throws IOException;
+
+		void read(PacketReader r) throws IOException;
+	}
+}
@@ -12,7 +12,6 @@ import org.junit.Test;
 
 public class ReaderImplTest extends BriarTestCase {
 
-	private ByteArrayInputStream in = null;
 	private ReaderImpl r = null;
 
 	@Test
@@ -531,8 +530,51 @@ public class ReaderImplTest extends BriarTestCase {
 		assertTrue(r.eof());
 	}
 
+	@Test
+	public void testTruncatedObjectsAreRejected() throws Exception {
+		setContents("22" + "01");
+		try {
+			r.readInteger();
+			fail();
+		} catch(FormatException expected) {}
+		setContents("38" + "00000000");
+		try {
+			r.readFloat();
+			fail();
+		} catch(FormatException expected) {}
+		setContents("41" + "03" + "6162");
+		try {
+			r.readString(Integer.MAX_VALUE);
+			fail();
+		} catch(FormatException expected) {}
+		setContents("51" + "03" + "0102");
+		try {
+			r.readRaw(Integer.MAX_VALUE);
+			fail();
+		} catch(FormatException expected) {}
+		setContents("60" + "51" + "03" + "0102");
+		try {
+			r.skipList();
+			fail();
+		} catch(FormatException expected) {}
+	}
+
+	@Test
+	public void testStreamIsNotReadPastObject() throws Exception {
+		// A raw object followed by bytes that belong to another reader
+		ByteArrayInputStream in = new ByteArrayInputStream(
+				StringUtils.fromHexString("51" + "03" + "010203" + "ABCD"));
+		ReaderImpl r = new ReaderImpl(in);
+		assertArrayEquals(new byte[] {1, 2, 3}, r.readRaw(Integer.MAX_VALUE));
+		assertEquals(0xAB, in.read());
+		assertEquals(0xCD, in.read());
+	}
+
 	private void setContents(String hex) {
-		in = new ByteArrayInputStream(StringUtils.fromHexString(hex));
-		r = new ReaderImpl(in);
+		r = createReader(StringUtils.fromHexString(hex));
+	}
+
+	protected ReaderImpl createReader(byte[] b) {
+		return new ReaderImpl(new ByteArrayInputStream(b));
 	}
 }
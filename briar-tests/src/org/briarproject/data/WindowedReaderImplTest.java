@@ -0,0 +1,17 @@
+package org.briarproject.data;
+
+import java.util.Arrays;
+
+/** Runs the reader tests against a window of a larger byte array. */
+public class WindowedReaderImplTest extends ReaderImplTest {
+
+	@Override
+	protected ReaderImpl createReader(byte[] b) {
+		// Surround the window with bytes that would be valid objects, so
+		// reading outside the window would be noticed
+		byte[] array = new byte[b.length + 2];
+		Arrays.fill(array, Types.NULL);
+		System.arraycopy(b, 0, array, 1, b.length);
+		return new ReaderImpl(array, 1, b.length);
+	}
+}
@@ -1,5 +1,7 @@
 package org.briarproject.data;
 
+import static org.junit.Assert.assertArrayEquals;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -10,6 +12,7 @@ import java.util.Map;
 
 import org.briarproject.BriarTestCase;
 import org.briarproject.TestUtils;
+import org.briarproject.api.data.Consumer;
 import org.briarproject.util.StringUtils;
 import org.junit.Before;
 import org.junit.Test;
@@ -220,6 +223,44 @@ public class WriterImplTest extends BriarTestCase {
 				"80" + "80" + "80");
 	}
 
+	@Test
+	public void testWriteListLongerThanBuffer() throws IOException {
+		// 100 short raws with a long raw in the middle
+		byte[] shortRaw = new byte[32], longRaw = new byte[2000];
+		List<Object> l = new ArrayList<Object>();
+		for(int i = 0; i < 100; i++) l.add(i == 50 ? longRaw : shortRaw);
+		w.writeList(l);
+		String shortHex = "51" + "20" + StringUtils.toHexString(shortRaw);
+		String longHex = "52" + "07D0" + StringUtils.toHexString(longRaw);
+		StringBuilder expected = new StringBuilder("60");
+		for(int i = 0; i < 100; i++)
+			expected.append(i == 50 ? longHex : shortHex);
+		expected.append("80");
+		checkContents(expected.toString());
+	}
+
+	@Test
+	public void testConsumersSeeWrittenBytes() throws IOException {
+		final ByteArrayOutputStream consumed = new ByteArrayOutputStream();
+		w.addConsumer(new Consumer() {
+
+			public void write(byte b) {
+				consumed.write(b);
+			}
+
+			public void write(byte[] b, int off, int len) {
+				consumed.write(b, off, len);
+			}
+		});
+		w.writeListStart();
+		w.writeInteger(Long.MAX_VALUE);
+		w.writeString("foo");
+		w.writeRaw(new byte[2000]);
+		w.writeListEnd();
+		// The consumer should see the same bytes as the stream
+		assertArrayEquals(out.toByteArray(), consumed.toByteArray());
+	}
+
 	private void checkContents(String hex) throws IOException {
 		out.flush();
 		out.close();
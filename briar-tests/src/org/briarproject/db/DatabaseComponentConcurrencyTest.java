@@ -0,0 +1,228 @@
+package org.briarproject.db;
+
+import static org.briarproject.api.AuthorConstants.MAX_PUBLIC_KEY_LENGTH;
+import static org.briarproject.api.messaging.MessagingConstants.GROUP_SALT_LENGTH;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.TestDatabaseModule;
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestMessage;
+import org.briarproject.TestSystemModule;
+import org.briarproject.TestUtils;
+import org.briarproject.api.Author;
+import org.briarproject.api.AuthorId;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.LocalAuthor;
+import org.briarproject.api.db.DatabaseComponent;
+import org.briarproject.api.messaging.Ack;
+import org.briarproject.api.messaging.Group;
+import org.briarproject.api.messaging.GroupId;
+import org.briarproject.api.messaging.Message;
+import org.briarproject.api.messaging.MessageId;
+import org.briarproject.api.messaging.Offer;
+import org.briarproject.api.messaging.SubscriptionUpdate;
+import org.briarproject.event.EventModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Runs operations that lock different contacts concurrently against a real
+ * H2 database, checking that they don't lose each other's updates.
+ */
+public class DatabaseComponentConcurrencyTest extends BriarTestCase {
+
+	private static final int ITERATIONS = 100;
+	private static final int CONTACTS = 4, GROUPS = 8, MESSAGES = 200;
+	private static final int BATCH_SIZE = 10;
+	private static final int MAX_LATENCY = 60 * 1000; // 1 minute
+	private static final int TIMEOUT = 60 * 1000; // 1 minute
+
+	private final File testDir = TestUtils.getTestDirectory();
+
+	private DatabaseComponent db = null;
+	private AuthorId localAuthorId = null;
+	private ContactId alice = null, bob = null;
+
+	@Override
+	@Before
+	public void setUp() throws Exception {
+		testDir.mkdirs();
+		Injector i = Guice.createInjector(new TestDatabaseModule(testDir),
+				new TestLifecycleModule(), new TestSystemModule(),
+				new DatabaseModule(), new EventModule());
+		db = i.getInstance(DatabaseComponent.class);
+		assertFalse(db.open());
+		localAuthorId = new AuthorId(TestUtils.getRandomId());
+		db.addLocalAuthor(new LocalAuthor(localAuthorId, "Carol",
+				new byte[MAX_PUBLIC_KEY_LENGTH], new byte[100], 1234));
+		alice = db.addContact(createAuthor("Alice"), localAuthorId);
+		bob = db.addContact(createAuthor("Bob"), localAuthorId);
+	}
+
+	@Test
+	public void testMessageReceivedDuringSubscriptionUpdateIsOffered()
+			throws Exception {
+		List<Group> subscriptions = new ArrayList<Group>();
+		for(int i = 0; i < ITERATIONS; i++) {
+			// Subscribe to a new group and share it with both contacts
+			Group g = createGroup();
+			db.addGroup(g);
+			db.setVisibleToAll(g.getId(), true);
+			subscriptions.add(g);
+			// Receive a message in the group from Alice while Bob subscribes
+			final Message m = createMessage(g);
+			final SubscriptionUpdate u = new SubscriptionUpdate(
+					new ArrayList<Group>(subscriptions), i + 1);
+			runConcurrently(new Task() {
+				public void run() throws Exception {
+					db.receiveMessage(alice, m);
+				}
+			}, new Task() {
+				public void run() throws Exception {
+					db.receiveSubscriptionUpdate(bob, u);
+				}
+			});
+			// The message should be offered to Bob, but not back to Alice
+			Offer o = db.generateOffer(bob, Integer.MAX_VALUE, MAX_LATENCY);
+			assertNotNull("Not offered in iteration " + i, o);
+			assertEquals(Collections.singletonList(m.getId()),
+					new ArrayList<MessageId>(o.getMessageIds()));
+			assertNull(db.generateOffer(alice, Integer.MAX_VALUE,
+					MAX_LATENCY));
+		}
+	}
+
+	@Test
+	public void testConcurrentSessionsWithOverlappingMessages()
+			throws Exception {
+		List<ContactId> contacts = new ArrayList<ContactId>();
+		contacts.add(alice);
+		contacts.add(bob);
+		while(contacts.size() < CONTACTS) {
+			String name = "Contact " + contacts.size();
+			contacts.add(db.addContact(createAuthor(name), localAuthorId));
+		}
+		// Share some groups with all the contacts, who all subscribe
+		List<Group> groups = new ArrayList<Group>();
+		for(int i = 0; i < GROUPS; i++) {
+			Group g = createGroup();
+			db.addGroup(g);
+			db.setVisibleToAll(g.getId(), true);
+			groups.add(g);
+		}
+		for(ContactId c : contacts)
+			db.receiveSubscriptionUpdate(c, new SubscriptionUpdate(groups, 1));
+		// Every contact sends every message, in a different order and in
+		// batches that span several groups, so each session stores some
+		// messages and receives duplicates of others
+		Random random = new Random();
+		List<Message> messages = new ArrayList<Message>();
+		for(int i = 0; i < MESSAGES; i++)
+			messages.add(createMessage(groups.get(random.nextInt(GROUPS))));
+		final Map<ContactId, Set<MessageId>> acked =
+				new ConcurrentHashMap<ContactId, Set<MessageId>>();
+		List<Task> sessions = new ArrayList<Task>();
+		for(final ContactId c : contacts) {
+			final List<Message> shuffled = new ArrayList<Message>(messages);
+			Collections.shuffle(shuffled, random);
+			acked.put(c, new HashSet<MessageId>());
+			sessions.add(new Task() {
+				public void run() throws Exception {
+					for(int i = 0; i < MESSAGES; i += BATCH_SIZE) {
+						db.receiveMessages(c, shuffled.subList(i,
+								i + BATCH_SIZE));
+						Ack a = db.generateAck(c, Integer.MAX_VALUE);
+						if(a != null) acked.get(c).addAll(a.getMessageIds());
+						db.generateOffer(c, Integer.MAX_VALUE, MAX_LATENCY);
+					}
+				}
+			});
+		}
+		runConcurrently(sessions.toArray(new Task[sessions.size()]));
+		// Each message should have been stored once and acked to everyone
+		Map<GroupId, Integer> expected = new HashMap<GroupId, Integer>();
+		for(Message m : messages) {
+			GroupId g = m.getGroup().getId();
+			Integer count = expected.get(g);
+			expected.put(g, count == null ? 1 : count + 1);
+		}
+		assertEquals(expected, db.getUnreadMessageCounts());
+		Set<MessageId> ids = new HashSet<MessageId>();
+		for(Message m : messages) ids.add(m.getId());
+		for(ContactId c : contacts) assertEquals(ids, acked.get(c));
+	}
+
+	// Starts the tasks together and waits for them all to finish
+	private void runConcurrently(Task... tasks) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Exception> error =
+				new AtomicReference<Exception>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(final Task task : tasks) {
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						task.run();
+					} catch(Exception e) {
+						error.compareAndSet(null, e);
+					}
+				}
+			};
+			t.start();
+			threads.add(t);
+		}
+		start.countDown();
+		for(Thread t : threads) {
+			t.join(TIMEOUT);
+			assertFalse("Deadlock", t.isAlive());
+		}
+		if(error.get() != null) throw error.get();
+	}
+
+	private Author createAuthor(String name) {
+		return new Author(new AuthorId(TestUtils.getRandomId()), name,
+				new byte[MAX_PUBLIC_KEY_LENGTH]);
+	}
+
+	private Group createGroup() {
+		return new Group(new GroupId(TestUtils.getRandomId()), "Group",
+				new byte[GROUP_SALT_LENGTH]);
+	}
+
+	private Message createMessage(Group g) {
+		return new TestMessage(new MessageId(TestUtils.getRandomId()), null,
+				g, null, "text/plain", null, System.currentTimeMillis(),
+				new byte[100]);
+	}
+
+	@Override
+	@After
+	public void tearDown() throws Exception {
+		if(db != null) db.close();
+		TestUtils.deleteTestDirectory(testDir);
+	}
+
+	private interface Task {
+
+		void run() throws Exception;
+	}
+}
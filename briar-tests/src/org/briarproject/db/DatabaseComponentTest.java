@@ -654,13 +654,16 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 		final ShutdownManager shutdown = context.mock(ShutdownManager.class);
 		final EventBus eventBus = context.mock(EventBus.class);
 		context.checking(new Expectations() {{
-			oneOf(database).startTransaction();
+			exactly(2).of(database).startTransaction();
 			will(returnValue(txn));
-			oneOf(database).containsContact(txn, contactId);
+			exactly(2).of(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			oneOf(database).containsMessagesToAck(txn, contactId);
 			will(returnValue(true));
 			oneOf(database).getMessagesToAck(txn, contactId, 123);
 			will(returnValue(messagesToAck));
 			oneOf(database).lowerAckFlag(txn, contactId, messagesToAck);
+			oneOf(database).commitTransactionWithoutSync(txn);
 			oneOf(database).commitTransaction(txn);
 		}});
 		DatabaseComponent db = createDatabaseComponent(database, cleaner,
@@ -672,6 +675,31 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 		context.assertIsSatisfied();
 	}
 
+	@Test
+	public void testGenerateAckNothingToAck() throws Exception {
+		Mockery context = new Mockery();
+		@SuppressWarnings("unchecked")
+		final Database<Object> database = context.mock(Database.class);
+		final DatabaseCleaner cleaner = context.mock(DatabaseCleaner.class);
+		final ShutdownManager shutdown = context.mock(ShutdownManager.class);
+		final EventBus eventBus = context.mock(EventBus.class);
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			oneOf(database).containsMessagesToAck(txn, contactId);
+			will(returnValue(false));
+			oneOf(database).commitTransactionWithoutSync(txn);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, cleaner,
+				eventBus, shutdown);
+
+		assertNull(db.generateAck(contactId, 123));
+
+		context.assertIsSatisfied();
+	}
+
 	@Test
 	public void testGenerateBatch() throws Exception {
 		final byte[] raw1 = new byte[size];
@@ -684,22 +712,67 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 		final ShutdownManager shutdown = context.mock(ShutdownManager.class);
 		final EventBus eventBus = context.mock(EventBus.class);
 		context.checking(new Expectations() {{
-			oneOf(database).startTransaction();
+			exactly(2).of(database).startTransaction();
 			will(returnValue(txn));
 			oneOf(database).containsContact(txn, contactId);
 			will(returnValue(true));
 			oneOf(database).getMessagesToSend(txn, contactId, size * 2);
 			will(returnValue(ids));
-			oneOf(database).getRawMessage(txn, messageId);
-			will(returnValue(raw));
 			oneOf(database).updateExpiryTime(txn, contactId, messageId,
 					maxLatency);
+			oneOf(database).updateExpiryTime(txn, contactId, messageId1,
+					maxLatency);
+			oneOf(database).lowerRequestedFlag(txn, contactId, ids);
+			// The raw messages are loaded in a separate transaction
+			oneOf(database).containsMessage(txn, messageId);
+			will(returnValue(true));
+			oneOf(database).getRawMessage(txn, messageId);
+			will(returnValue(raw));
+			oneOf(database).containsMessage(txn, messageId1);
+			will(returnValue(true));
 			oneOf(database).getRawMessage(txn, messageId1);
 			will(returnValue(raw1));
+			exactly(2).of(database).commitTransactionWithoutSync(txn);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, cleaner,
+				eventBus, shutdown);
+
+		assertEquals(messages, db.generateBatch(contactId, size * 2,
+				maxLatency));
+
+		context.assertIsSatisfied();
+	}
+
+	@Test
+	public void testGenerateBatchSkipsDeletedMessages() throws Exception {
+		final Collection<MessageId> ids = Arrays.asList(messageId, messageId1);
+		final Collection<byte[]> messages = Arrays.asList(raw);
+		Mockery context = new Mockery();
+		@SuppressWarnings("unchecked")
+		final Database<Object> database = context.mock(Database.class);
+		final DatabaseCleaner cleaner = context.mock(DatabaseCleaner.class);
+		final ShutdownManager shutdown = context.mock(ShutdownManager.class);
+		final EventBus eventBus = context.mock(EventBus.class);
+		context.checking(new Expectations() {{
+			exactly(2).of(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			oneOf(database).getMessagesToSend(txn, contactId, size * 2);
+			will(returnValue(ids));
+			oneOf(database).updateExpiryTime(txn, contactId, messageId,
+					maxLatency);
 			oneOf(database).updateExpiryTime(txn, contactId, messageId1,
 					maxLatency);
 			oneOf(database).lowerRequestedFlag(txn, contactId, ids);
-			oneOf(database).commitTransaction(txn);
+			oneOf(database).containsMessage(txn, messageId);
+			will(returnValue(true));
+			oneOf(database).getRawMessage(txn, messageId);
+			will(returnValue(raw));
+			// The second message was deleted before it could be loaded
+			oneOf(database).containsMessage(txn, messageId1);
+			will(returnValue(false));
+			exactly(2).of(database).commitTransactionWithoutSync(txn);
 		}});
 		DatabaseComponent db = createDatabaseComponent(database, cleaner,
 				eventBus, shutdown);
@@ -731,7 +804,7 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 					maxLatency);
 			oneOf(database).updateExpiryTime(txn, contactId, messageId1,
 					maxLatency);
-			oneOf(database).commitTransaction(txn);
+			oneOf(database).commitTransactionWithoutSync(txn);
 		}});
 		DatabaseComponent db = createDatabaseComponent(database, cleaner,
 				eventBus, shutdown);
@@ -753,14 +826,16 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 		final ShutdownManager shutdown = context.mock(ShutdownManager.class);
 		final EventBus eventBus = context.mock(EventBus.class);
 		context.checking(new Expectations() {{
-			oneOf(database).startTransaction();
+			exactly(2).of(database).startTransaction();
 			will(returnValue(txn));
-			oneOf(database).containsContact(txn, contactId);
+			exactly(2).of(database).containsContact(txn, contactId);
 			will(returnValue(true));
+			oneOf(database).countOfferedMessages(txn, contactId);
+			will(returnValue(2));
 			oneOf(database).getMessagesToRequest(txn, contactId, 123);
 			will(returnValue(ids));
 			oneOf(database).removeOfferedMessages(txn, contactId, ids);
-			oneOf(database).commitTransaction(txn);
+			exactly(2).of(database).commitTransactionWithoutSync(txn);
 		}});
 		DatabaseComponent db = createDatabaseComponent(database, cleaner,
 				eventBus, shutdown);
@@ -783,23 +858,28 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 		final ShutdownManager shutdown = context.mock(ShutdownManager.class);
 		final EventBus eventBus = context.mock(EventBus.class);
 		context.checking(new Expectations() {{
-			oneOf(database).startTransaction();
+			exactly(2).of(database).startTransaction();
 			will(returnValue(txn));
 			oneOf(database).containsContact(txn, contactId);
 			will(returnValue(true));
 			oneOf(database).getRequestedMessagesToSend(txn, contactId,
 					size * 2);
 			will(returnValue(ids));
-			oneOf(database).getRawMessage(txn, messageId);
-			will(returnValue(raw));
 			oneOf(database).updateExpiryTime(txn, contactId, messageId,
 					maxLatency);
-			oneOf(database).getRawMessage(txn, messageId1);
-			will(returnValue(raw1));
 			oneOf(database).updateExpiryTime(txn, contactId, messageId1,
 					maxLatency);
 			oneOf(database).lowerRequestedFlag(txn, contactId, ids);
-			oneOf(database).commitTransaction(txn);
+			// The raw messages are loaded in a separate transaction
+			oneOf(database).containsMessage(txn, messageId);
+			will(returnValue(true));
+			oneOf(database).getRawMessage(txn, messageId);
+			will(returnValue(raw));
+			oneOf(database).containsMessage(txn, messageId1);
+			will(returnValue(true));
+			oneOf(database).getRawMessage(txn, messageId1);
+			will(returnValue(raw1));
+			exactly(2).of(database).commitTransactionWithoutSync(txn);
 		}});
 		DatabaseComponent db = createDatabaseComponent(database, cleaner,
 				eventBus, shutdown);
@@ -823,9 +903,9 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 			will(returnValue(txn));
 			oneOf(database).containsContact(txn, contactId);
 			will(returnValue(true));
-			oneOf(database).getRetentionUpdate(txn, contactId, maxLatency);
-			will(returnValue(null));
-			oneOf(database).commitTransaction(txn);
+			oneOf(database).containsRetentionUpdate(txn, contactId);
+			will(returnValue(false));
+			oneOf(database).commitTransactionWithoutSync(txn);
 		}});
 		DatabaseComponent db = createDatabaseComponent(database, cleaner,
 				eventBus, shutdown);
@@ -844,12 +924,15 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 		final ShutdownManager shutdown = context.mock(ShutdownManager.class);
 		final EventBus eventBus = context.mock(EventBus.class);
 		context.checking(new Expectations() {{
-			oneOf(database).startTransaction();
+			exactly(2).of(database).startTransaction();
 			will(returnValue(txn));
-			oneOf(database).containsContact(txn, contactId);
+			exactly(2).of(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			oneOf(database).containsRetentionUpdate(txn, contactId);
 			will(returnValue(true));
 			oneOf(database).getRetentionUpdate(txn, contactId, maxLatency);
 			will(returnValue(new RetentionUpdate(0, 1)));
+			oneOf(database).commitTransactionWithoutSync(txn);
 			oneOf(database).commitTransaction(txn);
 		}});
 		DatabaseComponent db = createDatabaseComponent(database, cleaner,
@@ -875,9 +958,9 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 			will(returnValue(txn));
 			oneOf(database).containsContact(txn, contactId);
 			will(returnValue(true));
-			oneOf(database).getSubscriptionUpdate(txn, contactId, maxLatency);
-			will(returnValue(null));
-			oneOf(database).commitTransaction(txn);
+			oneOf(database).containsSubscriptionUpdate(txn, contactId);
+			will(returnValue(false));
+			oneOf(database).commitTransactionWithoutSync(txn);
 		}});
 		DatabaseComponent db = createDatabaseComponent(database, cleaner,
 				eventBus, shutdown);
@@ -896,12 +979,15 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 		final ShutdownManager shutdown = context.mock(ShutdownManager.class);
 		final EventBus eventBus = context.mock(EventBus.class);
 		context.checking(new Expectations() {{
-			oneOf(database).startTransaction();
+			exactly(2).of(database).startTransaction();
 			will(returnValue(txn));
-			oneOf(database).containsContact(txn, contactId);
+			exactly(2).of(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			oneOf(database).containsSubscriptionUpdate(txn, contactId);
 			will(returnValue(true));
 			oneOf(database).getSubscriptionUpdate(txn, contactId, maxLatency);
 			will(returnValue(new SubscriptionUpdate(Arrays.asList(group), 1)));
+			oneOf(database).commitTransactionWithoutSync(txn);
 			oneOf(database).commitTransaction(txn);
 		}});
 		DatabaseComponent db = createDatabaseComponent(database, cleaner,
@@ -928,9 +1014,9 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 			will(returnValue(txn));
 			oneOf(database).containsContact(txn, contactId);
 			will(returnValue(true));
-			oneOf(database).getTransportUpdates(txn, contactId, maxLatency);
-			will(returnValue(null));
-			oneOf(database).commitTransaction(txn);
+			oneOf(database).containsTransportUpdates(txn, contactId);
+			will(returnValue(false));
+			oneOf(database).commitTransactionWithoutSync(txn);
 		}});
 		DatabaseComponent db = createDatabaseComponent(database, cleaner,
 				eventBus, shutdown);
@@ -949,13 +1035,16 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 		final ShutdownManager shutdown = context.mock(ShutdownManager.class);
 		final EventBus eventBus = context.mock(EventBus.class);
 		context.checking(new Expectations() {{
-			oneOf(database).startTransaction();
+			exactly(2).of(database).startTransaction();
 			will(returnValue(txn));
-			oneOf(database).containsContact(txn, contactId);
+			exactly(2).of(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			oneOf(database).containsTransportUpdates(txn, contactId);
 			will(returnValue(true));
 			oneOf(database).getTransportUpdates(txn, contactId, maxLatency);
 			will(returnValue(Arrays.asList(new TransportUpdate(transportId,
 					transportProperties, 1))));
+			oneOf(database).commitTransactionWithoutSync(txn);
 			oneOf(database).commitTransaction(txn);
 		}});
 		DatabaseComponent db = createDatabaseComponent(database, cleaner,
@@ -989,7 +1078,7 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 			oneOf(database).containsVisibleMessage(txn, contactId, messageId);
 			will(returnValue(true));
 			oneOf(database).raiseSeenFlag(txn, contactId, messageId);
-			oneOf(database).commitTransaction(txn);
+			oneOf(database).commitTransactionWithoutSync(txn);
 			oneOf(eventBus).broadcast(with(any(MessagesAckedEvent.class)));
 		}});
 		DatabaseComponent db = createDatabaseComponent(database, cleaner,
@@ -1026,7 +1115,7 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 			will(returnValue(false));
 			oneOf(database).addStatus(txn, contactId, messageId, false, true);
 			oneOf(database).raiseAckFlag(txn, contactId, messageId);
-			oneOf(database).commitTransaction(txn);
+			oneOf(database).commitTransactionWithoutSync(txn);
 			// The message was received and added
 			oneOf(eventBus).broadcast(with(any(MessageToAckEvent.class)));
 			oneOf(eventBus).broadcast(with(any(MessageAddedEvent.class)));
@@ -1058,7 +1147,7 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 			will(returnValue(true));
 			// The message wasn't stored but it must still be acked
 			oneOf(database).raiseAckFlag(txn, contactId, messageId);
-			oneOf(database).commitTransaction(txn);
+			oneOf(database).commitTransactionWithoutSync(txn);
 			// The message was received but not added
 			oneOf(eventBus).broadcast(with(any(MessageToAckEvent.class)));
 		}});
@@ -1070,6 +1159,52 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 		context.assertIsSatisfied();
 	}
 
+	@Test
+	public void testReceiveMessages() throws Exception {
+		Mockery context = new Mockery();
+		@SuppressWarnings("unchecked")
+		final Database<Object> database = context.mock(Database.class);
+		final DatabaseCleaner cleaner = context.mock(DatabaseCleaner.class);
+		final ShutdownManager shutdown = context.mock(ShutdownManager.class);
+		final EventBus eventBus = context.mock(EventBus.class);
+		context.checking(new Expectations() {{
+			// Both messages are stored in a single transaction
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			// The group's visibility is only checked once
+			oneOf(database).containsVisibleGroup(txn, contactId, groupId);
+			will(returnValue(true));
+			// The first message is new
+			oneOf(database).containsMessage(txn, messageId);
+			will(returnValue(false));
+			oneOf(database).addMessage(txn, message, false);
+			oneOf(database).getVisibility(txn, groupId);
+			will(returnValue(Arrays.asList(contactId)));
+			oneOf(database).getContactIds(txn);
+			will(returnValue(Arrays.asList(contactId)));
+			oneOf(database).removeOfferedMessage(txn, contactId, messageId);
+			will(returnValue(false));
+			oneOf(database).addStatus(txn, contactId, messageId, false, true);
+			oneOf(database).raiseAckFlag(txn, contactId, messageId);
+			// The second message is a duplicate but must still be acked
+			oneOf(database).containsMessage(txn, messageId1);
+			will(returnValue(true));
+			oneOf(database).raiseAckFlag(txn, contactId, messageId1);
+			oneOf(database).commitTransactionWithoutSync(txn);
+			// One event of each type is broadcast for the batch
+			oneOf(eventBus).broadcast(with(any(MessageToAckEvent.class)));
+			oneOf(eventBus).broadcast(with(any(MessageAddedEvent.class)));
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, cleaner,
+				eventBus, shutdown);
+
+		db.receiveMessages(contactId, Arrays.asList(message, message1));
+
+		context.assertIsSatisfied();
+	}
+
 	@Test
 	public void testReceiveMessageWithoutVisibleGroup() throws Exception {
 		Mockery context = new Mockery();
@@ -1087,7 +1222,7 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 			will(returnValue(false));
 			oneOf(database).containsVisibleGroup(txn, contactId, groupId);
 			will(returnValue(false));
-			oneOf(database).commitTransaction(txn);
+			oneOf(database).commitTransactionWithoutSync(txn);
 		}});
 		DatabaseComponent db = createDatabaseComponent(database, cleaner,
 				eventBus, shutdown);
@@ -1132,7 +1267,7 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 			// The fourth message isn't visible, but there's no room to store it
 			oneOf(database).containsVisibleMessage(txn, contactId, messageId3);
 			will(returnValue(false));
-			oneOf(database).commitTransaction(txn);
+			oneOf(database).commitTransactionWithoutSync(txn);
 			oneOf(eventBus).broadcast(with(any(MessageToAckEvent.class)));
 			oneOf(eventBus).broadcast(with(any(MessageToRequestEvent.class)));
 		}});
@@ -1162,7 +1297,7 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 			will(returnValue(true));
 			oneOf(database).raiseRequestedFlag(txn, contactId, messageId);
 			oneOf(database).resetExpiryTime(txn, contactId, messageId);
-			oneOf(database).commitTransaction(txn);
+			oneOf(database).commitTransactionWithoutSync(txn);
 			oneOf(eventBus).broadcast(with(any(MessageRequestedEvent.class)));
 		}});
 		DatabaseComponent db = createDatabaseComponent(database, cleaner,
@@ -0,0 +1,47 @@
+package org.briarproject.db;
+
+import java.util.concurrent.Executor;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.TestDatabaseModule;
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestSystemModule;
+import org.briarproject.api.db.DatabaseExecutor;
+import org.briarproject.api.db.DatabaseExecutorFactory;
+import org.briarproject.event.EventModule;
+import org.briarproject.util.SerialExecutor;
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+
+public class DatabaseModuleTest extends BriarTestCase {
+
+	private final Injector injector = Guice.createInjector(
+			new TestDatabaseModule(), new TestLifecycleModule(),
+			new TestSystemModule(), new DatabaseModule(), new EventModule());
+
+	@Test
+	public void testDatabaseExecutorIsShared() {
+		Key<Executor> key = Key.get(Executor.class, DatabaseExecutor.class);
+		Executor executor = injector.getInstance(key);
+		assertSame(executor, injector.getInstance(key));
+		// The executor's queue can be monitored through its concrete type
+		assertSame(executor, injector.getInstance(Key.get(
+				SerialExecutor.class, DatabaseExecutor.class)));
+	}
+
+	@Test
+	public void testFactoryCreatesSeparateExecutors() {
+		Executor executor = injector.getInstance(Key.get(Executor.class,
+				DatabaseExecutor.class));
+		DatabaseExecutorFactory factory =
+				injector.getInstance(DatabaseExecutorFactory.class);
+		Executor first = factory.createDatabaseExecutor();
+		Executor second = factory.createDatabaseExecutor();
+		assertNotSame(first, second);
+		assertNotSame(executor, first);
+		assertNotSame(executor, second);
+	}
+}
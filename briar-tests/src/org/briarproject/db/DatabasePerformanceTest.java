@@ -0,0 +1,112 @@
+package org.briarproject.db;
+
+import static org.briarproject.api.AuthorConstants.MAX_PUBLIC_KEY_LENGTH;
+import static org.briarproject.api.messaging.MessagingConstants.GROUP_SALT_LENGTH;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.util.Random;
+
+import org.briarproject.TestDatabaseConfig;
+import org.briarproject.TestFileUtils;
+import org.briarproject.TestMessage;
+import org.briarproject.TestUtils;
+import org.briarproject.api.Author;
+import org.briarproject.api.AuthorId;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.LocalAuthor;
+import org.briarproject.api.db.DbException;
+import org.briarproject.api.messaging.Group;
+import org.briarproject.api.messaging.GroupId;
+import org.briarproject.api.messaging.Message;
+import org.briarproject.api.messaging.MessageId;
+import org.briarproject.system.SystemClock;
+import org.briarproject.system.SystemTimer;
+
+// Not a JUnit test
+public class DatabasePerformanceTest {
+
+	private static final int MESSAGES = 500;
+	private static final int[] MESSAGES_PER_TRANSACTION = { 1, 10, 100 };
+	private static final int MESSAGE_LENGTH = 1024;
+	private static final long MAX_SIZE = 100 * 1024 * 1024;
+
+	private static final Random random = new Random();
+
+	public static void main(String[] args) throws Exception {
+		File testDir = TestUtils.getTestDirectory();
+		try {
+			for(int perTxn : MESSAGES_PER_TRANSACTION) {
+				long nanos = runTest(openH2Database(testDir), perTxn, true);
+				System.out.println("H2, " + perTxn + " messages per commit: "
+						+ MESSAGES * 1000L * 1000 * 1000 / nanos
+						+ " messages/s");
+			}
+			long nanos = runTest(openH2Database(testDir), 1, false);
+			System.out.println("H2, 1 message per commit without sync: "
+					+ MESSAGES * 1000L * 1000 * 1000 / nanos + " messages/s");
+		} finally {
+			TestUtils.deleteTestDirectory(testDir);
+		}
+	}
+
+	private static Database<Connection> openH2Database(File testDir)
+			throws Exception {
+		TestUtils.deleteTestDirectory(testDir);
+		testDir.mkdirs();
+		Database<Connection> db = new H2Database(new TestDatabaseConfig(
+				testDir, MAX_SIZE), new TestFileUtils(), new SystemClock(),
+				new SystemTimer());
+		db.open();
+		return db;
+	}
+
+	// Stores messages the way receiveMessage does, committing after every
+	// perTxn messages, then closes the database
+	private static <T> long runTest(Database<T> db, int perTxn,
+			boolean sync) throws DbException, IOException {
+		LocalAuthor localAuthor = new LocalAuthor(
+				new AuthorId(TestUtils.getRandomId()), "Alice",
+				new byte[MAX_PUBLIC_KEY_LENGTH], new byte[100], 1234);
+		Author author = new Author(new AuthorId(TestUtils.getRandomId()),
+				"Bob", new byte[MAX_PUBLIC_KEY_LENGTH]);
+		Group group = new Group(new GroupId(TestUtils.getRandomId()),
+				"Group", new byte[GROUP_SALT_LENGTH]);
+		T txn = db.startTransaction();
+		db.addLocalAuthor(txn, localAuthor);
+		ContactId c = db.addContact(txn, author, localAuthor.getId());
+		db.addGroup(txn, group);
+		db.addVisibility(txn, c, group.getId());
+		db.commitTransaction(txn);
+		long start = System.nanoTime();
+		for(int i = 0; i < MESSAGES; i += perTxn) {
+			txn = db.startTransaction();
+			for(int j = i; j < i + perTxn && j < MESSAGES; j++) {
+				byte[] raw = new byte[MESSAGE_LENGTH];
+				random.nextBytes(raw);
+				MessageId id = new MessageId(TestUtils.getRandomId());
+				Message m = new TestMessage(id, null, group, author,
+						"text/plain", "Subject", System.currentTimeMillis(),
+						raw);
+				if(!db.containsContact(txn, c))
+					throw new IllegalStateException();
+				if(db.containsMessage(txn, id))
+					throw new IllegalStateException();
+				if(!db.containsVisibleGroup(txn, c, group.getId()))
+					throw new IllegalStateException();
+				db.addMessage(txn, m, false);
+				db.getVisibility(txn, group.getId());
+				db.getContactIds(txn);
+				db.removeOfferedMessage(txn, c, id);
+				db.addStatus(txn, c, id, false, true);
+				db.raiseAckFlag(txn, c, id);
+			}
+			if(sync) db.commitTransaction(txn);
+			else db.commitTransactionWithoutSync(txn);
+		}
+		long duration = System.nanoTime() - start;
+		db.close();
+		return duration;
+	}
+}
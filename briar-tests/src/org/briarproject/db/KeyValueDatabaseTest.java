@@ -0,0 +1,54 @@
+package org.briarproject.db;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.SecureRandom;
+
+import org.briarproject.TestDatabaseConfig;
+import org.briarproject.TestFileUtils;
+import org.briarproject.db.KeyValueStore.Transaction;
+import org.briarproject.system.SystemClock;
+import org.briarproject.system.SystemTimer;
+import org.junit.Test;
+
+public class KeyValueDatabaseTest extends DatabaseTest<Transaction> {
+
+	@Override
+	protected Database<Transaction> createDatabase(File dir, long maxSize) {
+		return new KeyValueDatabase(new TestDatabaseConfig(dir, maxSize),
+				new TestFileUtils(), new SystemClock(), new SystemTimer(),
+				new SecureRandom());
+	}
+
+	@Test
+	public void testPartlyWrittenCommitIsDiscarded() throws Exception {
+		Database<Transaction> db = open(false);
+		Transaction txn = db.startTransaction();
+		db.addLocalAuthor(txn, localAuthor);
+		db.commitTransaction(txn);
+		db.close();
+
+		// Append the start of a record, as if a commit was interrupted
+		File log = new File(testDir, "log");
+		long length = log.length();
+		FileOutputStream out = new FileOutputStream(log, true);
+		out.write(new byte[] { 0, 0, 1, 0, 1, 2, 3 });
+		out.close();
+
+		// The committed changes should be there and the partial record gone
+		db = open(true);
+		assertEquals(length, log.length());
+		txn = db.startTransaction();
+		assertTrue(db.containsLocalAuthor(txn, localAuthor.getId()));
+		db.removeLocalAuthor(txn, localAuthor.getId());
+		db.commitTransaction(txn);
+		db.close();
+
+		// Changes committed after the recovery should be kept
+		db = open(true);
+		txn = db.startTransaction();
+		assertFalse(db.containsLocalAuthor(txn, localAuthor.getId()));
+		db.commitTransaction(txn);
+		db.close();
+	}
+}
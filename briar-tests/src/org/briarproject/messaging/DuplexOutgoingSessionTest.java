@@ -0,0 +1,190 @@
+package org.briarproject.messaging;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.TestUtils;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.TransportId;
+import org.briarproject.api.db.DatabaseComponent;
+import org.briarproject.api.event.EventBus;
+import org.briarproject.api.messaging.Ack;
+import org.briarproject.api.messaging.MessageId;
+import org.briarproject.api.messaging.PacketWriter;
+import org.briarproject.api.system.Clock;
+import org.briarproject.plugins.ImmediateExecutor;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Action;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.junit.Test;
+
+public class DuplexOutgoingSessionTest extends BriarTestCase {
+
+	// The session's flush delays
+	private static final int FLUSH_DELAY = 20, MAX_FLUSH_DELAY = 100;
+	private static final int MAX_MESSAGES_PER_PACKET = 10;
+	private static final int MAX_IDLE_TIME = 60 * 1000; // 1 minute
+
+	private final Mockery context;
+	private final DatabaseComponent db;
+	private final Executor dbExecutor;
+	private final EventBus eventBus;
+	private final SteppingClock clock;
+	private final ContactId contactId;
+	private final TransportId transportId;
+	private final Ack ack;
+	private final int maxLatency;
+	private final PacketWriter packetWriter;
+
+	// The following are accessed on the session's thread
+	private int acksGenerated = 0, acksWritten = 0, flushes = 0;
+	private long firstUnflushed = -1, maxFlushDelay = 0;
+
+	public DuplexOutgoingSessionTest() {
+		context = new Mockery();
+		db = context.mock(DatabaseComponent.class);
+		dbExecutor = new ImmediateExecutor();
+		eventBus = context.mock(EventBus.class);
+		clock = new SteppingClock();
+		packetWriter = context.mock(PacketWriter.class);
+		contactId = new ContactId(234);
+		transportId = new TransportId("id");
+		MessageId messageId = new MessageId(TestUtils.getRandomId());
+		ack = new Ack(Arrays.asList(messageId));
+		maxLatency = Integer.MAX_VALUE;
+	}
+
+	@Test
+	public void testDataIsFlushedWhenIdle() throws Exception {
+		final DuplexOutgoingSession session = createSession();
+		expectSession(session, 1);
+		session.run();
+		context.assertIsSatisfied();
+		assertEquals(1, acksWritten);
+		assertEquals(1, flushes);
+		// The ack should have waited for packets that might share its frame
+		assertTrue(maxFlushDelay >= FLUSH_DELAY);
+		assertTrue(maxFlushDelay <= MAX_FLUSH_DELAY);
+	}
+
+	@Test
+	public void testDataIsFlushedWhilePacketsAreWaiting() throws Exception {
+		// A new ack is ready whenever the last one has been written, so the
+		// session is never idle until all the acks have been written
+		final int acks = 200;
+		final DuplexOutgoingSession session = createSession();
+		expectSession(session, acks);
+		session.run();
+		context.assertIsSatisfied();
+		assertEquals(acks, acksWritten);
+		// Each call to the clock takes one millisecond, so writing the acks
+		// takes longer than the maximum flush delay several times over
+		assertTrue(flushes > 1);
+		assertTrue(maxFlushDelay <= MAX_FLUSH_DELAY + SteppingClock.STEP);
+	}
+
+	private DuplexOutgoingSession createSession() {
+		return new DuplexOutgoingSession(db, dbExecutor, eventBus, clock,
+				contactId, transportId, maxLatency, MAX_IDLE_TIME,
+				packetWriter);
+	}
+
+	// Expects the session to write the given number of acks, one at a time,
+	// and stops the session when the last ack has been flushed
+	private void expectSession(final DuplexOutgoingSession session,
+			final int acks) throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(eventBus).addListener(session);
+			// Nothing to send apart from the acks
+			allowing(db).generateTransportAcks(contactId);
+			will(returnValue(null));
+			allowing(db).generateTransportUpdates(contactId, maxLatency);
+			will(returnValue(null));
+			allowing(db).generateSubscriptionAck(contactId);
+			will(returnValue(null));
+			allowing(db).generateSubscriptionUpdate(contactId, maxLatency);
+			will(returnValue(null));
+			allowing(db).generateRetentionAck(contactId);
+			will(returnValue(null));
+			allowing(db).generateRetentionUpdate(contactId, maxLatency);
+			will(returnValue(null));
+			allowing(db).generateRequestedBatch(with(contactId),
+					with(any(int.class)), with(maxLatency));
+			will(returnValue(null));
+			allowing(packetWriter).getMaxMessagesForOffer(
+					with(any(long.class)));
+			will(returnValue(MAX_MESSAGES_PER_PACKET));
+			allowing(db).generateOffer(contactId, MAX_MESSAGES_PER_PACKET,
+					maxLatency);
+			will(returnValue(null));
+			allowing(packetWriter).getMaxMessagesForRequest(
+					with(any(long.class)));
+			will(returnValue(MAX_MESSAGES_PER_PACKET));
+			allowing(db).generateRequest(contactId, MAX_MESSAGES_PER_PACKET);
+			will(returnValue(null));
+			// Generate the acks
+			allowing(packetWriter).getMaxMessagesForAck(with(any(long.class)));
+			will(returnValue(MAX_MESSAGES_PER_PACKET));
+			allowing(db).generateAck(contactId, MAX_MESSAGES_PER_PACKET);
+			will(new CustomAction("generate an ack") {
+				public Object invoke(Invocation invocation) {
+					if(acksGenerated == acks) return null;
+					acksGenerated++;
+					return ack;
+				}
+			});
+			// Record when the acks are written and flushed
+			allowing(packetWriter).writeAck(ack);
+			will(new CustomAction("write an ack") {
+				public Object invoke(Invocation invocation) {
+					if(firstUnflushed == -1) firstUnflushed = clock.now();
+					acksWritten++;
+					return null;
+				}
+			});
+			allowing(packetWriter).flush();
+			will(flush(session, acks));
+			oneOf(eventBus).removeListener(session);
+		}});
+	}
+
+	private Action flush(final DuplexOutgoingSession session,
+			final int acks) {
+		return new CustomAction("flush") {
+			public Object invoke(Invocation invocation) {
+				if(firstUnflushed != -1) {
+					long delay = clock.now() - firstUnflushed;
+					maxFlushDelay = Math.max(maxFlushDelay, delay);
+					firstUnflushed = -1;
+					flushes++;
+				}
+				if(acksWritten == acks) session.interrupt();
+				return null;
+			}
+		};
+	}
+
+	// A clock that moves forward by one step each time it's read
+	private static class SteppingClock implements Clock {
+
+		private static final int STEP = 1;
+
+		private long time = 0;
+
+		private long now() {
+			return time;
+		}
+
+		public long currentTimeMillis() {
+			time += STEP;
+			return time;
+		}
+
+		public void sleep(long milliseconds) throws InterruptedException {
+			time += milliseconds;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package org.briarproject.messaging;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.TestDatabaseModule;
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestSystemModule;
+import org.briarproject.TestUtils;
+import org.briarproject.api.Author;
+import org.briarproject.api.AuthorFactory;
+import org.briarproject.api.FormatException;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.crypto.KeyPair;
+import org.briarproject.api.data.ReaderFactory;
+import org.briarproject.api.messaging.Group;
+import org.briarproject.api.messaging.GroupFactory;
+import org.briarproject.api.messaging.Message;
+import org.briarproject.api.messaging.MessageFactory;
+import org.briarproject.api.messaging.MessageId;
+import org.briarproject.api.messaging.UnverifiedMessage;
+import org.briarproject.crypto.CryptoModule;
+import org.briarproject.data.SerialModule;
+import org.briarproject.db.DatabaseModule;
+import org.briarproject.event.EventModule;
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+public class MessageReaderTest extends BriarTestCase {
+
+	private final CryptoComponent crypto;
+	private final ReaderFactory readerFactory;
+	private final MessageFactory messageFactory;
+	private final Group group;
+	private final Author author;
+	private final KeyPair keyPair;
+
+	public MessageReaderTest() throws Exception {
+		Injector i = Guice.createInjector(new TestDatabaseModule(),
+				new TestLifecycleModule(), new TestSystemModule(),
+				new CryptoModule(), new DatabaseModule(), new EventModule(),
+				new MessagingModule(), new SerialModule());
+		crypto = i.getInstance(CryptoComponent.class);
+		readerFactory = i.getInstance(ReaderFactory.class);
+		messageFactory = i.getInstance(MessageFactory.class);
+		group = i.getInstance(GroupFactory.class).createGroup("Group");
+		keyPair = crypto.generateSignatureKeyPair();
+		author = i.getInstance(AuthorFactory.class).createAuthor("Author",
+				keyPair.getPublic().getEncoded());
+	}
+
+	@Test
+	public void testReadPseudonymousMessage() throws Exception {
+		MessageId parent = new MessageId(TestUtils.getRandomId());
+		Message m = createPseudonymousMessage(parent);
+		byte[] raw = m.getSerialised();
+		UnverifiedMessage u = new MessageReader(crypto, readerFactory).readMessage(raw);
+		assertEquals(parent, u.getParent());
+		assertEquals(group.getId(), u.getGroup().getId());
+		assertEquals(group.getName(), u.getGroup().getName());
+		assertArrayEquals(group.getSalt(), u.getGroup().getSalt());
+		assertEquals(author.getId(), u.getAuthor().getId());
+		assertEquals(author.getName(), u.getAuthor().getName());
+		assertArrayEquals(author.getPublicKey(), u.getAuthor().getPublicKey());
+		assertEquals(m.getContentType(), u.getContentType());
+		assertEquals(m.getTimestamp(), u.getTimestamp());
+		assertSame(raw, u.getSerialised());
+		assertEquals(m.getBodyStart(), u.getBodyStart());
+		assertEquals(m.getBodyLength(), u.getBodyLength());
+		assertNotNull(u.getSignature());
+		// The signature should cover everything before it
+		int signatureLength = u.getSignature().length;
+		assertEquals(raw.length - signatureLength - 3, u.getSignedLength());
+	}
+
+	@Test
+	public void testReadAnonymousMessage() throws Exception {
+		Message m = messageFactory.createAnonymousMessage(null, group,
+				"text/plain", System.currentTimeMillis(), new byte[123]);
+		UnverifiedMessage u =
+				new MessageReader(crypto, readerFactory).readMessage(m.getSerialised());
+		assertNull(u.getParent());
+		assertEquals(group.getId(), u.getGroup().getId());
+		assertNull(u.getAuthor());
+		assertNull(u.getSignature());
+		assertEquals(m.getBodyStart(), u.getBodyStart());
+		assertEquals(123, u.getBodyLength());
+	}
+
+	@Test
+	public void testGroupAndAuthorAreReused() throws Exception {
+		MessageReader reader = new MessageReader(crypto, readerFactory);
+		UnverifiedMessage u1 = reader.readMessage(
+				createPseudonymousMessage(null).getSerialised());
+		UnverifiedMessage u2 = reader.readMessage(
+				createPseudonymousMessage(null).getSerialised());
+		assertSame(u1.getGroup(), u2.getGroup());
+		assertSame(u1.getAuthor(), u2.getAuthor());
+	}
+
+	@Test
+	public void testTrailingDataIsRejected() throws Exception {
+		byte[] raw = createPseudonymousMessage(null).getSerialised();
+		byte[] longer = new byte[raw.length + 1];
+		System.arraycopy(raw, 0, longer, 0, raw.length);
+		try {
+			new MessageReader(crypto, readerFactory).readMessage(longer);
+			fail();
+		} catch(FormatException expected) {}
+	}
+
+	@Test
+	public void testTruncatedMessageIsRejected() throws Exception {
+		byte[] raw = createPseudonymousMessage(null).getSerialised();
+		MessageReader reader = new MessageReader(crypto, readerFactory);
+		for(int length = 0; length < raw.length; length++) {
+			byte[] shorter = new byte[length];
+			System.arraycopy(raw, 0, shorter, 0, length);
+			try {
+				reader.readMessage(shorter);
+				fail();
+			} catch(FormatException expected) {}
+		}
+	}
+
+	private Message createPseudonymousMessage(MessageId parent)
+			throws Exception {
+		byte[] body = new byte[1234];
+		new Random().nextBytes(body);
+		return messageFactory.createPseudonymousMessage(parent, group, author,
+				keyPair.getPrivate(), "text/plain", System.currentTimeMillis(),
+				body);
+	}
+}
@@ -0,0 +1,75 @@
+package org.briarproject.messaging;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.TestUtils;
+import org.briarproject.api.Author;
+import org.briarproject.api.AuthorId;
+import org.briarproject.api.UniqueId;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.crypto.KeyParser;
+import org.briarproject.api.crypto.MessageDigest;
+import org.briarproject.api.crypto.PublicKey;
+import org.briarproject.api.crypto.Signature;
+import org.briarproject.api.messaging.Group;
+import org.briarproject.api.messaging.GroupId;
+import org.briarproject.api.messaging.MessageVerifier;
+import org.briarproject.api.messaging.UnverifiedMessage;
+import org.briarproject.api.system.Clock;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.junit.Test;
+
+public class MessageVerifierImplTest extends BriarTestCase {
+
+	private final Group group;
+	private final Author author;
+	private final byte[] raw, sig;
+
+	public MessageVerifierImplTest() {
+		GroupId groupId = new GroupId(TestUtils.getRandomId());
+		group = new Group(groupId, "Group", new byte[32]);
+		AuthorId authorId = new AuthorId(TestUtils.getRandomId());
+		author = new Author(authorId, "Alice", new byte[65]);
+		raw = new byte[1000];
+		sig = new byte[64];
+	}
+
+	@Test
+	public void testAuthorKeyIsParsedOnce() throws Exception {
+		Mockery context = new Mockery();
+		final CryptoComponent crypto = context.mock(CryptoComponent.class);
+		final KeyParser keyParser = context.mock(KeyParser.class);
+		final MessageDigest messageDigest = context.mock(MessageDigest.class);
+		final Signature signature = context.mock(Signature.class);
+		final PublicKey publicKey = context.mock(PublicKey.class);
+		final Clock clock = context.mock(Clock.class);
+		context.checking(new Expectations() {{
+			oneOf(crypto).getSignatureKeyParser();
+			will(returnValue(keyParser));
+			// The digest and signature should be created once and reused
+			oneOf(crypto).getMessageDigest();
+			will(returnValue(messageDigest));
+			oneOf(crypto).getSignature();
+			will(returnValue(signature));
+			// The author's key should be parsed once and reused
+			oneOf(keyParser).parsePublicKey(author.getPublicKey());
+			will(returnValue(publicKey));
+			exactly(2).of(clock).currentTimeMillis();
+			will(returnValue(0L));
+			exactly(2).of(messageDigest).update(raw);
+			exactly(2).of(messageDigest).digest();
+			will(returnValue(new byte[UniqueId.LENGTH]));
+			exactly(2).of(signature).initVerify(publicKey);
+			exactly(2).of(signature).update(raw, 0, 500);
+			exactly(2).of(signature).verify(sig);
+			will(returnValue(true));
+		}});
+		MessageVerifier verifier = new MessageVerifierImpl(crypto, clock);
+		for(int i = 0; i < 2; i++) {
+			UnverifiedMessage m = new UnverifiedMessage(null, group, author,
+					"text/plain", 0, raw, sig, 600, 100, 500);
+			assertEquals(author, verifier.verifyMessage(m).getAuthor());
+		}
+		context.assertIsSatisfied();
+	}
+}
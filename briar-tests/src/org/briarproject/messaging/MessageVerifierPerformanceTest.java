@@ -0,0 +1,136 @@
+package org.briarproject.messaging;
+
+import static org.briarproject.api.messaging.MessagingConstants.GROUP_SALT_LENGTH;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.briarproject.TestDatabaseModule;
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestSystemModule;
+import org.briarproject.api.Author;
+import org.briarproject.api.AuthorFactory;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.crypto.KeyPair;
+import org.briarproject.api.data.ReaderFactory;
+import org.briarproject.api.messaging.Group;
+import org.briarproject.api.messaging.GroupFactory;
+import org.briarproject.api.messaging.Message;
+import org.briarproject.api.messaging.MessageFactory;
+import org.briarproject.api.messaging.MessageVerifier;
+import org.briarproject.api.messaging.UnverifiedMessage;
+import org.briarproject.api.system.Clock;
+import org.briarproject.crypto.CryptoModule;
+import org.briarproject.data.SerialModule;
+import org.briarproject.db.DatabaseModule;
+import org.briarproject.event.EventModule;
+import org.briarproject.transport.TransportModule;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+// Not a JUnit test
+public class MessageVerifierPerformanceTest {
+
+	private static final int AUTHORS = 3;
+	private static final int MESSAGES = 300;
+	private static final int BODY_LENGTH = 1024;
+	private static final int RUNS = 5;
+
+	public static void main(String[] args) throws Exception {
+		Injector i = Guice.createInjector(new TestDatabaseModule(),
+				new TestLifecycleModule(), new TestSystemModule(),
+				new CryptoModule(), new DatabaseModule(), new EventModule(),
+				new MessagingModule(), new SerialModule(),
+				new TransportModule());
+		final CryptoComponent crypto = i.getInstance(CryptoComponent.class);
+		final Clock clock = i.getInstance(Clock.class);
+		final MessageVerifier verifier = i.getInstance(MessageVerifier.class);
+		List<UnverifiedMessage> messages = createMessages(i);
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		for(int run = 0; run < RUNS; run++) {
+			// Parse each author's key and create new objects for each message
+			long uncached = verifySerially(messages, null, crypto, clock);
+			// Reuse the keys and objects
+			long cached = verifySerially(messages, verifier, crypto, clock);
+			long parallel = verifyInParallel(messages, verifier, pool);
+			System.out.println("Run " + run + ": uncached "
+					+ messagesPerSecond(uncached) + " msg/s, cached "
+					+ messagesPerSecond(cached) + " msg/s, cached on "
+					+ threads + " threads " + messagesPerSecond(parallel)
+					+ " msg/s");
+		}
+		pool.shutdown();
+	}
+
+	private static List<UnverifiedMessage> createMessages(Injector i)
+			throws Exception {
+		CryptoComponent crypto = i.getInstance(CryptoComponent.class);
+		AuthorFactory authorFactory = i.getInstance(AuthorFactory.class);
+		GroupFactory groupFactory = i.getInstance(GroupFactory.class);
+		MessageFactory messageFactory = i.getInstance(MessageFactory.class);
+		MessageReader messageReader = new MessageReader(crypto,
+				i.getInstance(ReaderFactory.class));
+		Group group = groupFactory.createGroup("Group",
+				new byte[GROUP_SALT_LENGTH]);
+		List<Author> authors = new ArrayList<Author>();
+		List<KeyPair> keyPairs = new ArrayList<KeyPair>();
+		for(int a = 0; a < AUTHORS; a++) {
+			KeyPair keyPair = crypto.generateSignatureKeyPair();
+			byte[] publicKey = keyPair.getPublic().getEncoded();
+			authors.add(authorFactory.createAuthor("Author " + a, publicKey));
+			keyPairs.add(keyPair);
+		}
+		Random random = new Random();
+		List<UnverifiedMessage> messages = new ArrayList<UnverifiedMessage>();
+		for(int m = 0; m < MESSAGES; m++) {
+			byte[] body = new byte[BODY_LENGTH];
+			random.nextBytes(body);
+			int a = m % AUTHORS;
+			Message message = messageFactory.createPseudonymousMessage(null,
+					group, authors.get(a), keyPairs.get(a).getPrivate(),
+					"text/plain", System.currentTimeMillis(), body);
+			messages.add(messageReader.readMessage(message.getSerialised()));
+		}
+		return messages;
+	}
+
+	// Creates a new verifier for each message if the verifier is null
+	private static long verifySerially(List<UnverifiedMessage> messages,
+			MessageVerifier verifier, CryptoComponent crypto, Clock clock)
+			throws Exception {
+		long start = System.nanoTime();
+		for(UnverifiedMessage m : messages) {
+			if(verifier == null)
+				new MessageVerifierImpl(crypto, clock).verifyMessage(m);
+			else verifier.verifyMessage(m);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long verifyInParallel(List<UnverifiedMessage> messages,
+			final MessageVerifier verifier, ExecutorService pool)
+			throws Exception {
+		long start = System.nanoTime();
+		List<Future<Message>> results = new ArrayList<Future<Message>>();
+		for(final UnverifiedMessage m : messages) {
+			results.add(pool.submit(new Callable<Message>() {
+				public Message call() throws Exception {
+					return verifier.verifyMessage(m);
+				}
+			}));
+		}
+		for(Future<Message> f : results) f.get();
+		return System.nanoTime() - start;
+	}
+
+	private static long messagesPerSecond(long nanos) {
+		return MESSAGES * 1000L * 1000 * 1000 / nanos;
+	}
+}
@@ -0,0 +1,102 @@
+package org.briarproject.messaging;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import org.briarproject.TestDatabaseModule;
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestSystemModule;
+import org.briarproject.api.Author;
+import org.briarproject.api.AuthorFactory;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.crypto.KeyPair;
+import org.briarproject.api.messaging.Group;
+import org.briarproject.api.messaging.GroupFactory;
+import org.briarproject.api.messaging.Message;
+import org.briarproject.api.messaging.MessageFactory;
+import org.briarproject.api.messaging.PacketReader;
+import org.briarproject.api.messaging.PacketReaderFactory;
+import org.briarproject.api.messaging.PacketWriter;
+import org.briarproject.api.messaging.PacketWriterFactory;
+import org.briarproject.crypto.CryptoModule;
+import org.briarproject.data.SerialModule;
+import org.briarproject.db.DatabaseModule;
+import org.briarproject.event.EventModule;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+// Not a JUnit test
+public class PacketReaderPerformanceTest {
+
+	private static final int MESSAGES = 10 * 1000;
+	private static final int BODY_LENGTH = 200;
+	private static final int RUNS = 10;
+
+	public static void main(String[] args) throws Exception {
+		Injector i = Guice.createInjector(new TestDatabaseModule(),
+				new TestLifecycleModule(), new TestSystemModule(),
+				new CryptoModule(), new DatabaseModule(), new EventModule(),
+				new MessagingModule(), new SerialModule());
+		byte[] packets = createPackets(i);
+		PacketReaderFactory packetReaderFactory =
+				i.getInstance(PacketReaderFactory.class);
+		for(int run = 1; run <= RUNS; run++) {
+			long allocated = getAllocatedBytes();
+			long start = System.nanoTime();
+			PacketReader r = packetReaderFactory.createPacketReader(
+					new ByteArrayInputStream(packets));
+			int read = 0;
+			while(!r.eof()) {
+				r.readMessage();
+				read++;
+			}
+			long duration = System.nanoTime() - start;
+			allocated = getAllocatedBytes() - allocated;
+			if(read != MESSAGES) throw new AssertionError();
+			System.out.println("Run " + run + ": "
+					+ (MESSAGES * 1000L * 1000 * 1000 / duration) + " msg/s, "
+					+ (allocated / MESSAGES) + " bytes allocated per message");
+		}
+	}
+
+	// Creates packets containing private messages from a single author, as
+	// received from a contact
+	private static byte[] createPackets(Injector i) throws Exception {
+		CryptoComponent crypto = i.getInstance(CryptoComponent.class);
+		Group group = i.getInstance(GroupFactory.class).createGroup("Group");
+		KeyPair keyPair = crypto.generateSignatureKeyPair();
+		Author author = i.getInstance(AuthorFactory.class).createAuthor(
+				"Author", keyPair.getPublic().getEncoded());
+		MessageFactory messageFactory = i.getInstance(MessageFactory.class);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PacketWriter w = i.getInstance(PacketWriterFactory.class)
+				.createPacketWriter(out);
+		Random random = new Random();
+		for(int m = 0; m < MESSAGES; m++) {
+			byte[] body = new byte[BODY_LENGTH];
+			random.nextBytes(body);
+			Message message = messageFactory.createPseudonymousMessage(null,
+					group, author, keyPair.getPrivate(), "text/plain",
+					System.currentTimeMillis(), body);
+			w.writeMessage(message.getSerialised());
+		}
+		w.flush();
+		return out.toByteArray();
+	}
+
+	// Returns the number of bytes allocated by this thread, if the JVM can
+	// measure it
+	private static long getAllocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(threads instanceof com.sun.management.ThreadMXBean) {
+			long id = Thread.currentThread().getId();
+			return ((com.sun.management.ThreadMXBean) threads)
+					.getThreadAllocatedBytes(id);
+		}
+		return 0;
+	}
+}
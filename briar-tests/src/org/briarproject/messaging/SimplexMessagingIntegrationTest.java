@@ -3,6 +3,7 @@ package org.briarproject.messaging;
 import static org.briarproject.api.AuthorConstants.MAX_PUBLIC_KEY_LENGTH;
 import static org.briarproject.api.messaging.MessagingConstants.GROUP_SALT_LENGTH;
 import static org.briarproject.api.transport.TransportConstants.MAX_CLOCK_DIFFERENCE;
+import static org.briarproject.api.transport.TransportConstants.MAX_FRAME_LENGTH;
 import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
 
 import java.io.ByteArrayInputStream;
@@ -143,7 +144,8 @@ public class SimplexMessagingIntegrationTest extends BriarTestCase {
 		StreamWriterFactory streamWriterFactory =
 				alice.getInstance(StreamWriterFactory.class);
 		OutputStream streamWriter =
-				streamWriterFactory.createStreamWriter(out, ctx);
+				streamWriterFactory.createStreamWriter(out, ctx,
+						MAX_FRAME_LENGTH);
 		// Create an outgoing messaging session
 		EventBus eventBus = alice.getInstance(EventBus.class);
 		PacketWriterFactory packetWriterFactory =
@@ -205,7 +207,8 @@ public class SimplexMessagingIntegrationTest extends BriarTestCase {
 		StreamReaderFactory streamReaderFactory =
 				bob.getInstance(StreamReaderFactory.class);
 		InputStream streamReader =
-				streamReaderFactory.createStreamReader(in, ctx);
+				streamReaderFactory.createStreamReader(in, ctx,
+						MAX_FRAME_LENGTH);
 		// Create an incoming messaging session
 		EventBus eventBus = bob.getInstance(EventBus.class);
 		MessageVerifier messageVerifier =
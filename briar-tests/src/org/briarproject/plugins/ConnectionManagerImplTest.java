@@ -0,0 +1,215 @@
+package org.briarproject.plugins;
+
+import static org.briarproject.api.transport.TransportConstants.MAX_FRAME_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAX_FRAME_LENGTH_PROPERTY;
+import static org.briarproject.api.transport.TransportConstants.MAX_LARGE_FRAME_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.TransportId;
+import org.briarproject.api.TransportProperties;
+import org.briarproject.api.crypto.KeyManager;
+import org.briarproject.api.db.DatabaseComponent;
+import org.briarproject.api.messaging.MessagingSession;
+import org.briarproject.api.messaging.MessagingSessionFactory;
+import org.briarproject.api.plugins.ConnectionRegistry;
+import org.briarproject.api.plugins.TransportConnectionReader;
+import org.briarproject.api.plugins.TransportConnectionWriter;
+import org.briarproject.api.transport.StreamContext;
+import org.briarproject.api.transport.StreamReaderFactory;
+import org.briarproject.api.transport.StreamWriterFactory;
+import org.briarproject.api.transport.TagRecogniser;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.junit.Test;
+
+public class ConnectionManagerImplTest extends BriarTestCase {
+
+	private static final int MAX_LATENCY = 60 * 1000; // 1 minute
+
+	private final ContactId contactId;
+	private final TransportId transportId;
+	private final StreamContext ctx;
+
+	public ConnectionManagerImplTest() {
+		contactId = new ContactId(1);
+		transportId = new TransportId("id");
+		ctx = new StreamContext(contactId, transportId, new byte[32], 0, true);
+	}
+
+	@Test
+	public void testMaxFrameLengthIsParsedFromProperties() {
+		assertEquals(MAX_FRAME_LENGTH,
+				ConnectionManagerImpl.getMaxFrameLength(null));
+		assertEquals(MAX_FRAME_LENGTH, ConnectionManagerImpl.getMaxFrameLength(
+				new TransportProperties()));
+		assertEquals(MAX_FRAME_LENGTH, ConnectionManagerImpl.getMaxFrameLength(
+				createProperties("foo")));
+		assertEquals(MAX_FRAME_LENGTH, ConnectionManagerImpl.getMaxFrameLength(
+				createProperties("123")));
+		assertEquals(4096, ConnectionManagerImpl.getMaxFrameLength(
+				createProperties("4096")));
+		// Lengths above the limit are capped at the limit
+		assertEquals(MAX_LARGE_FRAME_LENGTH,
+				ConnectionManagerImpl.getMaxFrameLength(createProperties(
+						String.valueOf(Integer.MAX_VALUE))));
+	}
+
+	@Test
+	public void testLargeFramesAreWrittenIfBothSidesAdvertiseThem()
+			throws Exception {
+		testOutgoingFrameLength(createProperties(MAX_LARGE_FRAME_LENGTH),
+				createProperties(MAX_LARGE_FRAME_LENGTH),
+				MAX_LARGE_FRAME_LENGTH);
+	}
+
+	@Test
+	public void testSmallFramesAreWrittenIfContactDoesNotAdvertiseLargeFrames()
+			throws Exception {
+		testOutgoingFrameLength(createProperties(MAX_LARGE_FRAME_LENGTH),
+				new TransportProperties(), MAX_FRAME_LENGTH);
+	}
+
+	@Test
+	public void testSmallFramesAreWrittenIfWeDoNotAdvertiseLargeFrames()
+			throws Exception {
+		testOutgoingFrameLength(new TransportProperties(),
+				createProperties(MAX_LARGE_FRAME_LENGTH), MAX_FRAME_LENGTH);
+	}
+
+	@Test
+	public void testIncomingBuffersAreSizedFromAdvertisedLength()
+			throws Exception {
+		testIncomingFrameLength(createProperties(MAX_LARGE_FRAME_LENGTH),
+				MAX_LARGE_FRAME_LENGTH);
+	}
+
+	@Test
+	public void testIncomingBuffersAreSmallIfWeDoNotAdvertiseLargeFrames()
+			throws Exception {
+		testIncomingFrameLength(new TransportProperties(), MAX_FRAME_LENGTH);
+	}
+
+	private void testOutgoingFrameLength(final TransportProperties local,
+			final TransportProperties remote, final int expectedLength)
+			throws Exception {
+		Mockery context = new Mockery();
+		final DatabaseComponent db = context.mock(DatabaseComponent.class);
+		final KeyManager keyManager = context.mock(KeyManager.class);
+		final TagRecogniser tagRecogniser = context.mock(TagRecogniser.class);
+		final StreamReaderFactory streamReaderFactory =
+				context.mock(StreamReaderFactory.class);
+		final StreamWriterFactory streamWriterFactory =
+				context.mock(StreamWriterFactory.class);
+		final MessagingSessionFactory messagingSessionFactory =
+				context.mock(MessagingSessionFactory.class);
+		final ConnectionRegistry connectionRegistry =
+				context.mock(ConnectionRegistry.class);
+		final TransportConnectionWriter writer =
+				context.mock(TransportConnectionWriter.class);
+		final MessagingSession session = context.mock(MessagingSession.class);
+		final OutputStream out = new ByteArrayOutputStream();
+		final Map<ContactId, TransportProperties> remoteProperties =
+				Collections.singletonMap(contactId, remote);
+		context.checking(new Expectations() {{
+			oneOf(keyManager).getStreamContext(contactId, transportId);
+			will(returnValue(ctx));
+			oneOf(connectionRegistry).registerConnection(contactId,
+					transportId);
+			// Negotiate the frame length
+			oneOf(db).getLocalProperties(transportId);
+			will(returnValue(local));
+			oneOf(db).getRemoteProperties(transportId);
+			will(returnValue(remoteProperties));
+			// Create and run the session
+			oneOf(writer).getOutputStream();
+			will(returnValue(out));
+			oneOf(streamWriterFactory).createStreamWriter(out, ctx,
+					expectedLength);
+			will(returnValue(out));
+			oneOf(writer).getMaxLatency();
+			will(returnValue(MAX_LATENCY));
+			oneOf(messagingSessionFactory).createSimplexOutgoingSession(
+					contactId, transportId, MAX_LATENCY, out);
+			will(returnValue(session));
+			oneOf(session).run();
+			oneOf(writer).dispose(false);
+			oneOf(connectionRegistry).unregisterConnection(contactId,
+					transportId);
+		}});
+		ConnectionManagerImpl c = new ConnectionManagerImpl(
+				new ImmediateExecutor(), db, keyManager, tagRecogniser,
+				streamReaderFactory, streamWriterFactory,
+				messagingSessionFactory, connectionRegistry);
+		c.manageOutgoingConnection(contactId, transportId, writer);
+		context.assertIsSatisfied();
+	}
+
+	private void testIncomingFrameLength(final TransportProperties local,
+			final int expectedLength) throws Exception {
+		Mockery context = new Mockery();
+		final DatabaseComponent db = context.mock(DatabaseComponent.class);
+		final KeyManager keyManager = context.mock(KeyManager.class);
+		final TagRecogniser tagRecogniser = context.mock(TagRecogniser.class);
+		final StreamReaderFactory streamReaderFactory =
+				context.mock(StreamReaderFactory.class);
+		final StreamWriterFactory streamWriterFactory =
+				context.mock(StreamWriterFactory.class);
+		final MessagingSessionFactory messagingSessionFactory =
+				context.mock(MessagingSessionFactory.class);
+		final ConnectionRegistry connectionRegistry =
+				context.mock(ConnectionRegistry.class);
+		final TransportConnectionReader reader =
+				context.mock(TransportConnectionReader.class);
+		final MessagingSession session = context.mock(MessagingSession.class);
+		final InputStream in = new ByteArrayInputStream(new byte[TAG_LENGTH]);
+		context.checking(new Expectations() {{
+			// Read and recognise the tag
+			allowing(reader).getInputStream();
+			will(returnValue(in));
+			oneOf(tagRecogniser).recogniseTag(with(transportId),
+					with(any(byte[].class)));
+			will(returnValue(ctx));
+			oneOf(connectionRegistry).registerConnection(contactId,
+					transportId);
+			// Size the buffers from the length we've advertised
+			oneOf(db).getLocalProperties(transportId);
+			will(returnValue(local));
+			// Create and run the session
+			oneOf(streamReaderFactory).createStreamReader(in, ctx,
+					expectedLength);
+			will(returnValue(in));
+			oneOf(messagingSessionFactory).createIncomingSession(contactId,
+					transportId, in);
+			will(returnValue(session));
+			oneOf(session).run();
+			oneOf(reader).dispose(false, true);
+			oneOf(connectionRegistry).unregisterConnection(contactId,
+					transportId);
+		}});
+		ConnectionManagerImpl c = new ConnectionManagerImpl(
+				new ImmediateExecutor(), db, keyManager, tagRecogniser,
+				streamReaderFactory, streamWriterFactory,
+				messagingSessionFactory, connectionRegistry);
+		c.manageIncomingConnection(transportId, reader);
+		context.assertIsSatisfied();
+	}
+
+	private TransportProperties createProperties(int maxFrameLength) {
+		return createProperties(String.valueOf(maxFrameLength));
+	}
+
+	private TransportProperties createProperties(String maxFrameLength) {
+		TransportProperties p = new TransportProperties();
+		p.put(MAX_FRAME_LENGTH_PROPERTY, maxFrameLength);
+		return p;
+	}
+}
@@ -0,0 +1,148 @@
+package org.briarproject.reliability;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.briarproject.api.reliability.WriteHandler;
+import org.briarproject.system.SystemClock;
+
+// Not a JUnit test
+public class LossyLinkPerformanceTest {
+
+	private static final int STREAM_LENGTH = 256 * 1024;
+	private static final int WRITE_LENGTH = 4096;
+	private static final int LATENCY = 20; // Milliseconds
+	private static final double[] LOSS_RATES = { 0, 0.02, 0.05, 0.1 };
+	// The bandwidth-limited link carries 64 KiB/s and drops writes that
+	// would wait more than 50 ms to be sent
+	private static final int BYTES_PER_SECOND = 64 * 1024;
+	private static final int MAX_QUEUEING_DELAY = 50; // Milliseconds
+	private static final int RUNS = 5;
+
+	public static void main(String[] args) throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			System.out.println("Random loss, no bandwidth limit");
+			for(double loss : LOSS_RATES) {
+				System.out.println("Loss " + (int) (loss * 100) + "%: "
+						+ test(executor, loss, 0) + " ms");
+			}
+			System.out.println("Bandwidth limit, loss when the queue is full");
+			System.out.println("No random loss: "
+					+ test(executor, 0, BYTES_PER_SECOND) + " ms");
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	// Returns the median time taken to send the stream over the link
+	private static long test(ExecutorService executor, double loss,
+			int bytesPerSecond) throws Exception {
+		long[] durations = new long[RUNS];
+		for(int run = 0; run < RUNS; run++) {
+			Random random = new Random(run);
+			durations[run] = send(executor, new Link(random, loss,
+					bytesPerSecond), new Link(random, loss, bytesPerSecond));
+		}
+		Arrays.sort(durations);
+		return durations[RUNS / 2];
+	}
+
+	private static long send(ExecutorService executor, Link aToB, Link bToA)
+			throws Exception {
+		SystemClock clock = new SystemClock();
+		final ReliabilityLayerImpl a =
+				new ReliabilityLayerImpl(executor, clock, aToB);
+		ReliabilityLayerImpl b = new ReliabilityLayerImpl(executor, clock, bToA);
+		aToB.destination = b;
+		bToA.destination = a;
+		a.start();
+		b.start();
+		long start = System.currentTimeMillis();
+		Future<Void> writing = executor.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				OutputStream out = a.getOutputStream();
+				// The initial window only admits a short frame
+				out.write(0);
+				out.flush();
+				byte[] buf = new byte[WRITE_LENGTH];
+				for(int i = 1; i < STREAM_LENGTH; i += buf.length)
+					out.write(buf, 0, Math.min(buf.length, STREAM_LENGTH - i));
+				out.close();
+				return null;
+			}
+		});
+		InputStream in = b.getInputStream();
+		byte[] buf = new byte[WRITE_LENGTH];
+		long read = 0;
+		int n;
+		while((n = in.read(buf)) != -1) read += n;
+		writing.get();
+		long duration = System.currentTimeMillis() - start;
+		a.stop();
+		b.stop();
+		aToB.shutdown();
+		bToA.shutdown();
+		if(read != STREAM_LENGTH) throw new AssertionError();
+		return duration;
+	}
+
+	/**
+	 * A one-way link that delivers writes in order after a fixed latency.
+	 * Writes are dropped at random with the given probability. If the link
+	 * has a bandwidth limit, writes queue behind each other and are dropped
+	 * when the queue is full.
+	 */
+	private static class Link implements WriteHandler {
+
+		private final ScheduledExecutorService scheduler =
+				Executors.newSingleThreadScheduledExecutor();
+		private final Random random;
+		private final double loss;
+		private final int bytesPerSecond;
+
+		private long nextFree = 0; // Locking: this
+
+		private volatile ReliabilityLayerImpl destination = null;
+
+		private Link(Random random, double loss, int bytesPerSecond) {
+			this.random = random;
+			this.loss = loss;
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		public synchronized void handleWrite(final byte[] b) {
+			if(random.nextDouble() < loss) return;
+			long now = System.currentTimeMillis(), delay = LATENCY;
+			if(bytesPerSecond > 0) {
+				long start = Math.max(now, nextFree);
+				if(start - now > MAX_QUEUEING_DELAY) return;
+				nextFree = start + b.length * 1000L / bytesPerSecond;
+				delay += nextFree - now;
+			}
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					try {
+						destination.handleRead(b);
+					} catch(IOException e) {
+						// The layer has been stopped
+					}
+				}
+			}, delay, MILLISECONDS);
+		}
+
+		private void shutdown() {
+			scheduler.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package org.briarproject.reliability;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.api.reliability.WriteHandler;
+import org.briarproject.api.system.Clock;
+import org.briarproject.system.SystemClock;
+import org.junit.Test;
+
+public class ReceiverTest extends BriarTestCase {
+
+	private final Clock clock = new SystemClock();
+
+	@Test
+	public void testDataFramesAreReadInOrder() throws Exception {
+		RecordingWriteHandler writes = new RecordingWriteHandler();
+		Receiver receiver = new Receiver(clock, new Sender(clock, writes));
+		// Frame 1 is missing, frames 2 and 3 have been received
+		receiver.handleFrame(createData(2, 100), Data.MIN_LENGTH + 100);
+		receiver.handleFrame(createData(3, 100), Data.MIN_LENGTH + 100);
+		Ack a = writes.acks.get(1);
+		assertEquals(3, a.getSequenceNumber());
+		assertEquals(0, a.getCumulativeSequenceNumber());
+		assertEquals(3, a.getSelectiveAcks());
+		// Receiving frame 1 should acknowledge all three frames
+		receiver.handleFrame(createData(1, 100), Data.MIN_LENGTH + 100);
+		a = writes.acks.get(2);
+		assertEquals(1, a.getSequenceNumber());
+		assertEquals(3, a.getCumulativeSequenceNumber());
+		assertEquals(0, a.getSelectiveAcks());
+		for(int i = 1; i <= 3; i++)
+			assertEquals(i, receiver.read().getSequenceNumber());
+	}
+
+	@Test
+	public void testDataFrameIsCopiedFromDecoderBuffer() throws Exception {
+		RecordingWriteHandler writes = new RecordingWriteHandler();
+		Receiver receiver = new Receiver(clock, new Sender(clock, writes));
+		// The decoder's buffer is longer than the frame and reused afterwards
+		byte[] buf = new byte[Data.MAX_LENGTH];
+		byte[] frame = createData(1, 10);
+		System.arraycopy(frame, 0, buf, 0, frame.length);
+		receiver.handleFrame(buf, frame.length);
+		Arrays.fill(buf, (byte) 0);
+		Data d = receiver.read();
+		assertEquals(frame.length, d.getLength());
+		assertEquals(1, d.getSequenceNumber());
+		assertEquals(d.calculateChecksum(), d.getChecksum());
+	}
+
+	@Test
+	public void testDuplicateDataFrameIsAckedButNotReadTwice()
+			throws Exception {
+		RecordingWriteHandler writes = new RecordingWriteHandler();
+		Receiver receiver = new Receiver(clock, new Sender(clock, writes));
+		receiver.handleFrame(createData(2, 100), Data.MIN_LENGTH + 100);
+		receiver.handleFrame(createData(2, 100), Data.MIN_LENGTH + 100);
+		assertEquals(2, writes.acks.size());
+		// The window should only be reduced once
+		int windowSize = writes.acks.get(0).getWindowSize();
+		assertEquals(windowSize, writes.acks.get(1).getWindowSize());
+		receiver.handleFrame(createData(1, 100), Data.MIN_LENGTH + 100);
+		assertEquals(1, receiver.read().getSequenceNumber());
+		assertEquals(2, receiver.read().getSequenceNumber());
+		// A duplicate of a frame that's been read should still be acked
+		receiver.handleFrame(createData(2, 100), Data.MIN_LENGTH + 100);
+		Ack a = writes.acks.get(writes.acks.size() - 1);
+		assertEquals(2, a.getSequenceNumber());
+		assertEquals(2, a.getCumulativeSequenceNumber());
+	}
+
+	@Test
+	public void testDataFrameWithInvalidChecksumIsIgnored() throws Exception {
+		RecordingWriteHandler writes = new RecordingWriteHandler();
+		Receiver receiver = new Receiver(clock, new Sender(clock, writes));
+		byte[] b = createData(1, 100);
+		b[Data.HEADER_LENGTH] ^= 1;
+		receiver.handleFrame(b, b.length);
+		assertEquals(0, writes.acks.size());
+	}
+
+	private byte[] createData(long sequenceNumber, int payloadLength) {
+		Data d = new Data(new byte[Data.MIN_LENGTH + payloadLength]);
+		d.setSequenceNumber(sequenceNumber);
+		d.setChecksum(d.calculateChecksum());
+		return d.getBuffer();
+	}
+
+	private static class RecordingWriteHandler implements WriteHandler {
+
+		private final List<Ack> acks = new ArrayList<Ack>();
+
+		public void handleWrite(byte[] b) {
+			// Ignore the acks in the older format that are sent alongside
+			Ack a = new Ack(b);
+			if(!a.isLegacy()) acks.add(a);
+		}
+	}
+}
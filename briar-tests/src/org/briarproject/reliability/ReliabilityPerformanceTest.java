@@ -0,0 +1,101 @@
+package org.briarproject.reliability;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.briarproject.api.reliability.WriteHandler;
+import org.briarproject.system.SystemClock;
+
+// Not a JUnit test
+public class ReliabilityPerformanceTest {
+
+	private static final int STREAM_LENGTH = 16 * 1024 * 1024;
+	private static final int WRITE_LENGTH = 4096;
+	private static final int RUNS = 5;
+
+	public static void main(String[] args) throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			for(int i = 0; i < RUNS; i++) testLoopback(executor);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void testLoopback(ExecutorService executor)
+			throws Exception {
+		// Each layer's writes are passed straight to the other layer's reads
+		Loopback aToB = new Loopback(), bToA = new Loopback();
+		SystemClock clock = new SystemClock();
+		final ReliabilityLayerImpl a =
+				new ReliabilityLayerImpl(executor, clock, aToB);
+		ReliabilityLayerImpl b = new ReliabilityLayerImpl(executor, clock, bToA);
+		aToB.destination = b;
+		bToA.destination = a;
+		a.start();
+		b.start();
+		long collections = getCollectionCount(), gcTime = getCollectionTime();
+		long start = System.currentTimeMillis();
+		Future<Void> writing = executor.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				OutputStream out = a.getOutputStream();
+				// The initial window only admits a short frame
+				out.write(0);
+				out.flush();
+				byte[] buf = new byte[WRITE_LENGTH];
+				for(int i = 1; i < STREAM_LENGTH; i += buf.length)
+					out.write(buf, 0, Math.min(buf.length, STREAM_LENGTH - i));
+				out.close();
+				return null;
+			}
+		});
+		InputStream in = b.getInputStream();
+		byte[] buf = new byte[WRITE_LENGTH];
+		long read = 0;
+		int n;
+		while((n = in.read(buf)) != -1) read += n;
+		writing.get();
+		long duration = System.currentTimeMillis() - start;
+		collections = getCollectionCount() - collections;
+		gcTime = getCollectionTime() - gcTime;
+		a.stop();
+		b.stop();
+		if(read != STREAM_LENGTH) throw new AssertionError();
+		System.out.println((read * 1000 / duration / 1024) + " KiB/s, "
+				+ collections + " collections, " + gcTime + " ms in GC");
+	}
+
+	private static long getCollectionCount() {
+		long count = 0;
+		for(GarbageCollectorMXBean gc :
+			ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += gc.getCollectionCount();
+		}
+		return count;
+	}
+
+	private static long getCollectionTime() {
+		long time = 0;
+		for(GarbageCollectorMXBean gc :
+			ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += gc.getCollectionTime();
+		}
+		return time;
+	}
+
+	private static class Loopback implements WriteHandler {
+
+		private volatile ReliabilityLayerImpl destination = null;
+
+		public void handleWrite(byte[] b) throws IOException {
+			destination.handleRead(b);
+		}
+	}
+}
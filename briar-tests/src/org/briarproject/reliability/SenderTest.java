@@ -0,0 +1,284 @@
+package org.briarproject.reliability;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.api.reliability.WriteHandler;
+import org.briarproject.api.system.Clock;
+import org.junit.Test;
+
+public class SenderTest extends BriarTestCase {
+
+	private static final int WINDOW_SIZE = 32 * Data.MAX_PAYLOAD_LENGTH;
+
+	private final Clock clock = new Clock() {
+
+		public long currentTimeMillis() {
+			return now;
+		}
+
+		public void sleep(long milliseconds) {
+			now += milliseconds;
+		}
+	};
+
+	private long now = 1000 * 1000;
+
+	@Test
+	public void testSelectiveAckRetransmitsMissingFrame() throws Exception {
+		RecordingWriteHandler writes = new RecordingWriteHandler();
+		Sender sender = new Sender(clock, writes);
+		openWindow(sender);
+		for(int i = 1; i <= 5; i++) sender.write(createData(i, 100));
+		assertEquals(5, writes.sequenceNumbers.size());
+		writes.sequenceNumbers.clear();
+		// Frame 1 is missing, frames 2-5 have been received
+		sender.handleAck(createAck(5, 0, 15));
+		// Only the missing frame should be retransmitted
+		assertEquals(1, writes.sequenceNumbers.size());
+		assertEquals(1L, (long) writes.sequenceNumbers.get(0));
+		writes.sequenceNumbers.clear();
+		// Another ack for the same loss shouldn't retransmit it again
+		sender.handleAck(createAck(5, 0, 15));
+		assertEquals(0, writes.sequenceNumbers.size());
+		// Acking the missing frame should leave nothing outstanding
+		sender.handleAck(createAck(1, 5, 0));
+		sender.flush();
+	}
+
+	@Test
+	public void testManyFramesCanBeOutstanding() throws Exception {
+		RecordingWriteHandler writes = new RecordingWriteHandler();
+		Sender sender = new Sender(clock, writes);
+		openWindow(sender);
+		// Enough small frames to grow the outstanding frame buffer
+		for(int i = 1; i <= 200; i++) sender.write(createData(i, 10));
+		assertEquals(200, writes.sequenceNumbers.size());
+		sender.handleAck(createAck(200, 200, 0));
+		sender.flush();
+	}
+
+	@Test
+	public void testTimeoutRetransmitsUnackedFrames() throws Exception {
+		RecordingWriteHandler writes = new RecordingWriteHandler();
+		Sender sender = new Sender(clock, writes);
+		openWindow(sender);
+		for(int i = 1; i <= 3; i++) sender.write(createData(i, 100));
+		// Frame 2 has been received
+		sender.handleAck(createAck(2, 0, 1));
+		writes.sequenceNumbers.clear();
+		clock.sleep(60 * 1000 + 1);
+		sender.tick();
+		assertEquals(2, writes.sequenceNumbers.size());
+		assertEquals(1L, (long) writes.sequenceNumbers.get(0));
+		assertEquals(3L, (long) writes.sequenceNumbers.get(1));
+	}
+
+	@Test
+	public void testSlowStartGrowsWindowByOneFramePerAck() throws Exception {
+		RecordingWriteHandler writes = new RecordingWriteHandler();
+		Sender sender = new Sender(clock, writes);
+		openWindow(sender);
+		int initialWindow = sender.getCongestionWindow();
+		assertEquals(4 * Data.MAX_PAYLOAD_LENGTH, initialWindow);
+		for(int i = 1; i <= 4; i++)
+			sender.write(createData(i, Data.MAX_PAYLOAD_LENGTH));
+		for(int i = 1; i <= 4; i++) {
+			sender.handleAck(createAck(i, i, 0));
+			assertEquals(initialWindow + i * Data.MAX_PAYLOAD_LENGTH,
+					sender.getCongestionWindow());
+		}
+	}
+
+	@Test
+	public void testCongestionAvoidanceGrowsWindowByOneFramePerWindow()
+			throws Exception {
+		RecordingWriteHandler writes = new RecordingWriteHandler();
+		Sender sender = new Sender(clock, writes);
+		openWindow(sender);
+		for(int i = 1; i <= 4; i++)
+			sender.write(createData(i, Data.MAX_PAYLOAD_LENGTH));
+		// A timeout halves the threshold and returns to slow start
+		clock.sleep(60 * 1000 + 1);
+		sender.tick();
+		assertEquals(2 * Data.MAX_PAYLOAD_LENGTH,
+				sender.getSlowStartThreshold());
+		assertEquals(Data.MAX_PAYLOAD_LENGTH, sender.getCongestionWindow());
+		// Slow start grows the window to the threshold
+		sender.handleAck(createAck(4, 4, 0));
+		assertEquals(2 * Data.MAX_PAYLOAD_LENGTH,
+				sender.getCongestionWindow());
+		// Congestion avoidance grows the window by one frame per window
+		sender.write(createData(5, Data.MAX_PAYLOAD_LENGTH));
+		sender.handleAck(createAck(5, 5, 0));
+		assertEquals(2 * Data.MAX_PAYLOAD_LENGTH + Data.MAX_PAYLOAD_LENGTH / 2,
+				sender.getCongestionWindow());
+	}
+
+	@Test
+	public void testIsolatedLossDoesNotReduceWindow() throws Exception {
+		RecordingWriteHandler writes = new RecordingWriteHandler();
+		Sender sender = new Sender(clock, writes);
+		openWindow(sender);
+		for(int i = 1; i <= 4; i++)
+			sender.write(createData(i, Data.MAX_PAYLOAD_LENGTH));
+		writes.sequenceNumbers.clear();
+		clock.sleep(40);
+		sender.handleAck(createAck(1, 1, 0));
+		// Frame 2 is lost but the round-trip time hasn't grown
+		sender.handleAck(createAck(3, 1, 1));
+		assertEquals(1, writes.sequenceNumbers.size());
+		assertEquals(2L, (long) writes.sequenceNumbers.get(0));
+		// The window should keep growing
+		assertEquals(6 * Data.MAX_PAYLOAD_LENGTH, sender.getCongestionWindow());
+	}
+
+	@Test
+	public void testLossWithGrowingRttHalvesWindowOncePerEvent()
+			throws Exception {
+		RecordingWriteHandler writes = new RecordingWriteHandler();
+		Sender sender = new Sender(clock, writes);
+		openWindow(sender);
+		for(int i = 1; i <= 4; i++)
+			sender.write(createData(i, Data.MAX_PAYLOAD_LENGTH));
+		clock.sleep(40);
+		for(int i = 1; i <= 4; i++) sender.handleAck(createAck(i, i, 0));
+		for(int i = 5; i <= 12; i++)
+			sender.write(createData(i, Data.MAX_PAYLOAD_LENGTH));
+		writes.sequenceNumbers.clear();
+		// Frame 5 is lost and frame 6's round-trip time shows queueing
+		clock.sleep(360);
+		sender.handleAck(createAck(6, 4, 1));
+		assertEquals(1, writes.sequenceNumbers.size());
+		assertEquals(5L, (long) writes.sequenceNumbers.get(0));
+		// The window should be half the seven outstanding frames
+		int halved = 7 * Data.MAX_PAYLOAD_LENGTH / 2;
+		assertEquals(halved, sender.getSlowStartThreshold());
+		assertEquals(halved, sender.getCongestionWindow());
+		// Frame 7 is lost from the same window
+		sender.handleAck(createAck(8, 4, 5));
+		assertEquals(2, writes.sequenceNumbers.size());
+		assertEquals(7L, (long) writes.sequenceNumbers.get(1));
+		// The window should only be halved once per congestion event
+		assertEquals(halved, sender.getSlowStartThreshold());
+		assertEquals(halved, sender.getCongestionWindow());
+	}
+
+	@Test
+	public void testLostTailIsProbedBeforeTimeout() throws Exception {
+		RecordingWriteHandler writes = new RecordingWriteHandler();
+		Sender sender = new Sender(clock, writes);
+		openWindow(sender);
+		for(int i = 1; i <= 3; i++)
+			sender.write(createData(i, Data.MAX_PAYLOAD_LENGTH));
+		clock.sleep(40);
+		sender.handleAck(createAck(1, 1, 0));
+		writes.sequenceNumbers.clear();
+		// No probe is sent until two round-trip times have passed
+		clock.sleep(40);
+		sender.tick();
+		assertEquals(0, writes.sequenceNumbers.size());
+		// The newest frame is sent again to probe for the lost tail
+		clock.sleep(1);
+		sender.tick();
+		assertEquals(1, writes.sequenceNumbers.size());
+		assertEquals(3L, (long) writes.sequenceNumbers.get(0));
+		// Only one probe is sent per tail
+		clock.sleep(100);
+		sender.tick();
+		assertEquals(1, writes.sequenceNumbers.size());
+		// The probe doesn't count as a timeout
+		assertEquals(5 * Data.MAX_PAYLOAD_LENGTH, sender.getCongestionWindow());
+		// Acking the probe shows that frame 2 was lost
+		sender.handleAck(createAck(3, 1, 1));
+		assertEquals(2, writes.sequenceNumbers.size());
+		assertEquals(2L, (long) writes.sequenceNumbers.get(1));
+	}
+
+	@Test
+	public void testOlderAckFormatIsSentUntilPeerSendsNewFormat()
+			throws Exception {
+		RecordingWriteHandler writes = new RecordingWriteHandler();
+		Sender sender = new Sender(clock, writes);
+		sender.sendAck(1, 1234, 1, 0);
+		assertEquals(2, writes.lengths.size());
+		assertEquals(Ack.LENGTH, (int) writes.lengths.get(0));
+		assertEquals(Ack.LEGACY_LENGTH, (int) writes.lengths.get(1));
+		// An ack in the older format doesn't show the peer is older
+		sender.handleAck(createLegacyAck(0));
+		writes.lengths.clear();
+		sender.sendAck(2, 1234, 2, 0);
+		assertEquals(2, writes.lengths.size());
+		// Once the peer sends the new format, the older one isn't needed
+		openWindow(sender);
+		writes.lengths.clear();
+		sender.sendAck(3, 1234, 3, 0);
+		assertEquals(1, writes.lengths.size());
+		assertEquals(Ack.LENGTH, (int) writes.lengths.get(0));
+	}
+
+	@Test
+	public void testOlderAckFormatAcksSingleFrame() throws Exception {
+		RecordingWriteHandler writes = new RecordingWriteHandler();
+		Sender sender = new Sender(clock, writes);
+		// An older peer opens the window
+		Ack a = new Ack(Ack.LEGACY_LENGTH);
+		a.setWindowSize(WINDOW_SIZE);
+		a.setChecksum(a.calculateChecksum());
+		sender.handleAck(a.getBuffer());
+		sender.write(createData(1, 100));
+		sender.write(createData(2, 100));
+		writes.sequenceNumbers.clear();
+		// Acking frame 2 shows that frame 1 was lost
+		sender.handleAck(createLegacyAck(2));
+		assertEquals(1L, (long) writes.sequenceNumbers.get(0));
+		sender.handleAck(createLegacyAck(1));
+		sender.flush();
+	}
+
+	private void openWindow(Sender sender) throws IOException {
+		Ack a = new Ack();
+		a.setWindowSize(WINDOW_SIZE);
+		a.setChecksum(a.calculateChecksum());
+		sender.handleAck(a.getBuffer());
+	}
+
+	private Data createData(long sequenceNumber, int payloadLength) {
+		Data d = new Data(new byte[Data.MIN_LENGTH + payloadLength]);
+		d.setSequenceNumber(sequenceNumber);
+		d.setChecksum(d.calculateChecksum());
+		return d;
+	}
+
+	private byte[] createAck(long sequenceNumber, long cumulative,
+			long selectiveAcks) {
+		Ack a = new Ack();
+		a.setSequenceNumber(sequenceNumber);
+		a.setWindowSize(WINDOW_SIZE);
+		a.setCumulativeSequenceNumber(cumulative);
+		a.setSelectiveAcks(selectiveAcks);
+		a.setChecksum(a.calculateChecksum());
+		return a.getBuffer();
+	}
+
+	private byte[] createLegacyAck(long sequenceNumber) {
+		Ack a = new Ack(Ack.LEGACY_LENGTH);
+		a.setSequenceNumber(sequenceNumber);
+		a.setWindowSize(WINDOW_SIZE);
+		a.setChecksum(a.calculateChecksum());
+		return a.getBuffer();
+	}
+
+	private static class RecordingWriteHandler implements WriteHandler {
+
+		private final List<Long> sequenceNumbers = new ArrayList<Long>();
+		private final List<Integer> lengths = new ArrayList<Integer>();
+
+		public void handleWrite(byte[] b) {
+			sequenceNumbers.add(new Data(b).getSequenceNumber());
+			lengths.add(b.length);
+		}
+	}
+}
@@ -12,6 +12,7 @@ import org.briarproject.api.ContactId;
 import org.briarproject.api.TransportId;
 import org.briarproject.api.crypto.CryptoComponent;
 import org.briarproject.api.crypto.SecretKey;
+import org.briarproject.api.crypto.TagEncoder;
 import org.briarproject.api.db.DatabaseComponent;
 import org.briarproject.api.event.EventBus;
 import org.briarproject.api.event.EventListener;
@@ -114,6 +115,9 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 	public void testEndpointAdded() throws Exception {
 		Mockery context = new Mockery();
 		final CryptoComponent crypto = context.mock(CryptoComponent.class);
+		final TagEncoder encoder0 = context.mock(TagEncoder.class, "encoder0");
+		final TagEncoder encoder1 = context.mock(TagEncoder.class, "encoder1");
+		final TagEncoder encoder2 = context.mock(TagEncoder.class, "encoder2");
 		final DatabaseComponent db = context.mock(DatabaseComponent.class);
 		final EventBus eventBus = context.mock(EventBus.class);
 		final Clock clock = context.mock(Clock.class);
@@ -154,51 +158,51 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 			// The recogniser should derive the tags for period 0
 			oneOf(crypto).deriveTagKey(secret0, false);
 			will(returnValue(k0));
+			oneOf(crypto).getTagEncoder(k0);
+			will(returnValue(encoder0));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k0),
+				oneOf(encoder0).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k0));
 			}
 			// The recogniser should derive the tags for period 1
 			oneOf(crypto).deriveTagKey(secret1, false);
 			will(returnValue(k1));
+			oneOf(crypto).getTagEncoder(k1);
+			will(returnValue(encoder1));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k1),
+				oneOf(encoder1).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k1));
 			}
 			// The recogniser should derive the tags for period 2
 			oneOf(crypto).deriveTagKey(secret2, false);
 			will(returnValue(k2));
+			oneOf(crypto).getTagEncoder(k2);
+			will(returnValue(encoder2));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k2),
+				oneOf(encoder2).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k2));
 			}
 			// stop()
 			// The recogniser should derive the tags for period 0
-			oneOf(crypto).deriveTagKey(secret0, false);
-			will(returnValue(k0));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k0),
+				oneOf(encoder0).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k0));
 			}
 			// The recogniser should derive the tags for period 1
-			oneOf(crypto).deriveTagKey(secret1, false);
-			will(returnValue(k1));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k1),
+				oneOf(encoder1).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k1));
 			}
 			// The recogniser should derive the tags for period 2
-			oneOf(crypto).deriveTagKey(secret2, false);
-			will(returnValue(k2));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k2),
+				oneOf(encoder2).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k2));
 			}
 			// Remove the listener and stop the timer
 			oneOf(eventBus).removeListener(with(any(EventListener.class)));
@@ -216,6 +220,9 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 	public void testEndpointAddedAndGetConnectionContext() throws Exception {
 		Mockery context = new Mockery();
 		final CryptoComponent crypto = context.mock(CryptoComponent.class);
+		final TagEncoder encoder0 = context.mock(TagEncoder.class, "encoder0");
+		final TagEncoder encoder1 = context.mock(TagEncoder.class, "encoder1");
+		final TagEncoder encoder2 = context.mock(TagEncoder.class, "encoder2");
 		final DatabaseComponent db = context.mock(DatabaseComponent.class);
 		final EventBus eventBus = context.mock(EventBus.class);
 		final Clock clock = context.mock(Clock.class);
@@ -256,54 +263,54 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 			// The recogniser should derive the tags for period 0
 			oneOf(crypto).deriveTagKey(secret0, false);
 			will(returnValue(k0));
+			oneOf(crypto).getTagEncoder(k0);
+			will(returnValue(encoder0));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k0),
+				oneOf(encoder0).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k0));
 			}
 			// The recogniser should derive the tags for period 1
 			oneOf(crypto).deriveTagKey(secret1, false);
 			will(returnValue(k1));
+			oneOf(crypto).getTagEncoder(k1);
+			will(returnValue(encoder1));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k1),
+				oneOf(encoder1).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k1));
 			}
 			// The recogniser should derive the tags for period 2
 			oneOf(crypto).deriveTagKey(secret2, false);
 			will(returnValue(k2));
+			oneOf(crypto).getTagEncoder(k2);
+			will(returnValue(encoder2));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k2),
+				oneOf(encoder2).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k2));
 			}
 			// getConnectionContext()
 			oneOf(db).incrementStreamCounter(contactId, transportId, 1);
 			will(returnValue(0L));
 			// stop()
 			// The recogniser should derive the tags for period 0
-			oneOf(crypto).deriveTagKey(secret0, false);
-			will(returnValue(k0));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k0),
+				oneOf(encoder0).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k0));
 			}
 			// The recogniser should derive the tags for period 1
-			oneOf(crypto).deriveTagKey(secret1, false);
-			will(returnValue(k1));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k1),
+				oneOf(encoder1).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k1));
 			}
 			// The recogniser should derive the tags for period 2
-			oneOf(crypto).deriveTagKey(secret2, false);
-			will(returnValue(k2));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k2),
+				oneOf(encoder2).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k2));
 			}
 			// Remove the listener and stop the timer
 			oneOf(eventBus).removeListener(with(any(EventListener.class)));
@@ -329,6 +336,9 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 	public void testEndpointAddedAndAcceptConnection() throws Exception {
 		Mockery context = new Mockery();
 		final CryptoComponent crypto = context.mock(CryptoComponent.class);
+		final TagEncoder encoder0 = context.mock(TagEncoder.class, "encoder0");
+		final TagEncoder encoder1 = context.mock(TagEncoder.class, "encoder1");
+		final TagEncoder encoder2 = context.mock(TagEncoder.class, "encoder2");
 		final DatabaseComponent db = context.mock(DatabaseComponent.class);
 		final EventBus eventBus = context.mock(EventBus.class);
 		final Clock clock = context.mock(Clock.class);
@@ -369,59 +379,57 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 			// The recogniser should derive the tags for period 0
 			oneOf(crypto).deriveTagKey(secret0, false);
 			will(returnValue(k0));
+			oneOf(crypto).getTagEncoder(k0);
+			will(returnValue(encoder0));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k0),
+				oneOf(encoder0).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k0));
 			}
 			// The recogniser should derive the tags for period 1
 			oneOf(crypto).deriveTagKey(secret1, false);
 			will(returnValue(k1));
+			oneOf(crypto).getTagEncoder(k1);
+			will(returnValue(encoder1));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k1),
+				oneOf(encoder1).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k1));
 			}
 			// The recogniser should derive the tags for period 2
 			oneOf(crypto).deriveTagKey(secret2, false);
 			will(returnValue(k2));
+			oneOf(crypto).getTagEncoder(k2);
+			will(returnValue(encoder2));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k2),
+				oneOf(encoder2).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k2));
 			}
 			// acceptConnection()
-			oneOf(crypto).deriveTagKey(secret2, false);
-			will(returnValue(k2));
-			oneOf(crypto).encodeTag(with(any(byte[].class)), with(k2),
+			oneOf(encoder2).encodeTag(with(any(byte[].class)),
 					with(16L));
-			will(new EncodeTagAction());
+			will(new EncodeTagAction(k2));
 			oneOf(db).setReorderingWindow(contactId, transportId, 2, 1,
 					new byte[] {0, 1, 0, 0});
 			// stop()
 			// The recogniser should derive the tags for period 0
-			oneOf(crypto).deriveTagKey(secret0, false);
-			will(returnValue(k0));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k0),
+				oneOf(encoder0).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k0));
 			}
 			// The recogniser should derive the tags for period 1
-			oneOf(crypto).deriveTagKey(secret1, false);
-			will(returnValue(k1));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k1),
+				oneOf(encoder1).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k1));
 			}
 			// The recogniser should derive the updated tags for period 2
-			oneOf(crypto).deriveTagKey(secret2, false);
-			will(returnValue(k2));
 			for(int i = 1; i < 17; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k2),
+				oneOf(encoder2).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k2));
 			}
 			// Remove the listener and stop the timer
 			oneOf(eventBus).removeListener(with(any(EventListener.class)));
@@ -449,6 +457,9 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 	public void testLoadSecretsAtEpoch() throws Exception {
 		Mockery context = new Mockery();
 		final CryptoComponent crypto = context.mock(CryptoComponent.class);
+		final TagEncoder encoder0 = context.mock(TagEncoder.class, "encoder0");
+		final TagEncoder encoder1 = context.mock(TagEncoder.class, "encoder1");
+		final TagEncoder encoder2 = context.mock(TagEncoder.class, "encoder2");
 		final DatabaseComponent db = context.mock(DatabaseComponent.class);
 		final EventBus eventBus = context.mock(EventBus.class);
 		final Clock clock = context.mock(Clock.class);
@@ -478,54 +489,54 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 			// The recogniser should derive the tags for period 0
 			oneOf(crypto).deriveTagKey(secret0, false);
 			will(returnValue(k0));
+			oneOf(crypto).getTagEncoder(k0);
+			will(returnValue(encoder0));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k0),
+				oneOf(encoder0).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k0));
 			}
 			// The recogniser should derive the tags for period 1
 			oneOf(crypto).deriveTagKey(secret1, false);
 			will(returnValue(k1));
+			oneOf(crypto).getTagEncoder(k1);
+			will(returnValue(encoder1));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k1),
+				oneOf(encoder1).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k1));
 			}
 			// The recogniser should derive the tags for period 2
 			oneOf(crypto).deriveTagKey(secret2, false);
 			will(returnValue(k2));
+			oneOf(crypto).getTagEncoder(k2);
+			will(returnValue(encoder2));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k2),
+				oneOf(encoder2).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k2));
 			}
 			// Start the timer
 			oneOf(timer).scheduleAtFixedRate(with(keyManager),
 					with(any(long.class)), with(any(long.class)));
 			// stop()
 			// The recogniser should remove the tags for period 0
-			oneOf(crypto).deriveTagKey(secret0, false);
-			will(returnValue(k0));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k0),
+				oneOf(encoder0).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k0));
 			}
 			// The recogniser should derive the tags for period 1
-			oneOf(crypto).deriveTagKey(secret1, false);
-			will(returnValue(k1));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k1),
+				oneOf(encoder1).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k1));
 			}
 			// The recogniser should derive the tags for period 2
-			oneOf(crypto).deriveTagKey(secret2, false);
-			will(returnValue(k2));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k2),
+				oneOf(encoder2).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k2));
 			}
 			// Remove the listener and stop the timer
 			oneOf(eventBus).removeListener(with(any(EventListener.class)));
@@ -542,6 +553,9 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 	public void testLoadSecretsAtStartOfPeriod2() throws Exception {
 		Mockery context = new Mockery();
 		final CryptoComponent crypto = context.mock(CryptoComponent.class);
+		final TagEncoder encoder1 = context.mock(TagEncoder.class, "encoder1");
+		final TagEncoder encoder2 = context.mock(TagEncoder.class, "encoder2");
+		final TagEncoder encoder3 = context.mock(TagEncoder.class, "encoder3");
 		final DatabaseComponent db = context.mock(DatabaseComponent.class);
 		final EventBus eventBus = context.mock(EventBus.class);
 		final Clock clock = context.mock(Clock.class);
@@ -581,54 +595,54 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 			// The recogniser should derive the tags for period 1
 			oneOf(crypto).deriveTagKey(secret1, false);
 			will(returnValue(k1));
+			oneOf(crypto).getTagEncoder(k1);
+			will(returnValue(encoder1));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k1),
+				oneOf(encoder1).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k1));
 			}
 			// The recogniser should derive the tags for period 2
 			oneOf(crypto).deriveTagKey(secret2, false);
 			will(returnValue(k2));
+			oneOf(crypto).getTagEncoder(k2);
+			will(returnValue(encoder2));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k2),
+				oneOf(encoder2).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k2));
 			}
 			// The recogniser should derive the tags for period 3
 			oneOf(crypto).deriveTagKey(secret3, false);
 			will(returnValue(k3));
+			oneOf(crypto).getTagEncoder(k3);
+			will(returnValue(encoder3));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k3),
+				oneOf(encoder3).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k3));
 			}
 			// Start the timer
 			oneOf(timer).scheduleAtFixedRate(with(keyManager),
 					with(any(long.class)), with(any(long.class)));
 			// stop()
 			// The recogniser should derive the tags for period 1
-			oneOf(crypto).deriveTagKey(secret1, false);
-			will(returnValue(k1));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k1),
+				oneOf(encoder1).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k1));
 			}
 			// The recogniser should derive the tags for period 2
-			oneOf(crypto).deriveTagKey(secret2, false);
-			will(returnValue(k2));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k2),
+				oneOf(encoder2).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k2));
 			}
 			// The recogniser should remove the tags for period 3
-			oneOf(crypto).deriveTagKey(secret3, false);
-			will(returnValue(k3));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k3),
+				oneOf(encoder3).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k3));
 			}
 			// Remove the listener and stop the timer
 			oneOf(eventBus).removeListener(with(any(EventListener.class)));
@@ -645,6 +659,9 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 	public void testLoadSecretsAtEndOfPeriod3() throws Exception {
 		Mockery context = new Mockery();
 		final CryptoComponent crypto = context.mock(CryptoComponent.class);
+		final TagEncoder encoder2 = context.mock(TagEncoder.class, "encoder2");
+		final TagEncoder encoder3 = context.mock(TagEncoder.class, "encoder3");
+		final TagEncoder encoder4 = context.mock(TagEncoder.class, "encoder4");
 		final DatabaseComponent db = context.mock(DatabaseComponent.class);
 		final EventBus eventBus = context.mock(EventBus.class);
 		final Clock clock = context.mock(Clock.class);
@@ -686,54 +703,54 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 			// The recogniser should derive the tags for period 2
 			oneOf(crypto).deriveTagKey(secret2, false);
 			will(returnValue(k2));
+			oneOf(crypto).getTagEncoder(k2);
+			will(returnValue(encoder2));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k2),
+				oneOf(encoder2).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k2));
 			}
 			// The recogniser should derive the tags for period 3
 			oneOf(crypto).deriveTagKey(secret3, false);
 			will(returnValue(k3));
+			oneOf(crypto).getTagEncoder(k3);
+			will(returnValue(encoder3));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k3),
+				oneOf(encoder3).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k3));
 			}
 			// The recogniser should derive the tags for period 4
 			oneOf(crypto).deriveTagKey(secret4, false);
 			will(returnValue(k4));
+			oneOf(crypto).getTagEncoder(k4);
+			will(returnValue(encoder4));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k4),
+				oneOf(encoder4).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k4));
 			}
 			// Start the timer
 			oneOf(timer).scheduleAtFixedRate(with(keyManager),
 					with(any(long.class)), with(any(long.class)));
 			// stop()
 			// The recogniser should derive the tags for period 2
-			oneOf(crypto).deriveTagKey(secret2, false);
-			will(returnValue(k2));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k2),
+				oneOf(encoder2).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k2));
 			}
 			// The recogniser should remove the tags for period 3
-			oneOf(crypto).deriveTagKey(secret3, false);
-			will(returnValue(k3));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k3),
+				oneOf(encoder3).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k3));
 			}
 			// The recogniser should derive the tags for period 4
-			oneOf(crypto).deriveTagKey(secret4, false);
-			will(returnValue(k4));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(k4),
+				oneOf(encoder4).encodeTag(with(any(byte[].class)),
 						with((long) i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(k4));
 			}
 			// Remove the listener and stop the timer
 			oneOf(eventBus).removeListener(with(any(EventListener.class)));
@@ -754,14 +771,19 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 
 	private class EncodeTagAction implements Action {
 
+		private final SecretKey key;
+
+		private EncodeTagAction(SecretKey key) {
+			this.key = key;
+		}
+
 		public void describeTo(Description description) {
 			description.appendText("Encodes a tag");
 		}
 
 		public Object invoke(Invocation invocation) throws Throwable {
 			byte[] tag = (byte[]) invocation.getParameter(0);
-			SecretKey key = (SecretKey) invocation.getParameter(1);
-			long streamNumber = (Long) invocation.getParameter(2);
+			long streamNumber = (Long) invocation.getParameter(1);
 			encodeTag(tag, key.getBytes(), streamNumber);
 			return null;
 		}
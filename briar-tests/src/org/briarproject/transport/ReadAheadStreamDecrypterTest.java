@@ -0,0 +1,139 @@
+package org.briarproject.transport;
+
+import static org.briarproject.api.transport.TransportConstants.MAX_FRAME_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAX_PAYLOAD_LENGTH;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.api.FormatException;
+import org.briarproject.api.crypto.StreamDecrypter;
+import org.junit.After;
+import org.junit.Test;
+
+public class ReadAheadStreamDecrypterTest extends BriarTestCase {
+
+	private static final int FRAMES = 100;
+
+	private final ExecutorService pool = Executors.newFixedThreadPool(2);
+
+	@Test
+	public void testFramesAreReturnedInOrder() throws Exception {
+		StreamDecrypter d = new ReadAheadStreamDecrypter(pool,
+				new CountingDecrypter(FRAMES, false), MAX_FRAME_LENGTH, 4);
+		byte[] payload = new byte[MAX_PAYLOAD_LENGTH];
+		for(int i = 0; i < FRAMES; i++) {
+			assertEquals(i % 256, d.readFrame(payload));
+			for(int j = 0; j < i % 256; j++)
+				assertEquals((byte) i, payload[j]);
+		}
+		// The end of the stream should be reported repeatedly
+		assertEquals(-1, d.readFrame(payload));
+		assertEquals(-1, d.readFrame(payload));
+	}
+
+	@Test
+	public void testExceptionIsThrownAfterEarlierFrames() throws Exception {
+		StreamDecrypter d = new ReadAheadStreamDecrypter(pool,
+				new CountingDecrypter(FRAMES, true), MAX_FRAME_LENGTH, 4);
+		byte[] payload = new byte[MAX_PAYLOAD_LENGTH];
+		for(int i = 0; i < FRAMES; i++)
+			assertEquals(i % 256, d.readFrame(payload));
+		// The exception should be thrown repeatedly, not treated as the end
+		// of the stream
+		for(int i = 0; i < 2; i++) {
+			try {
+				d.readFrame(payload);
+				fail();
+			} catch(FormatException expected) {}
+		}
+	}
+
+	@Test
+	public void testReadAheadIsBounded() throws Exception {
+		ManualExecutor executor = new ManualExecutor();
+		CountingDecrypter counting = new CountingDecrypter(FRAMES, false);
+		StreamDecrypter d = new ReadAheadStreamDecrypter(executor, counting,
+				MAX_FRAME_LENGTH, 4);
+		byte[] payload = new byte[MAX_PAYLOAD_LENGTH];
+		// Nothing has been read ahead, so the first frame is read directly
+		assertEquals(0, d.readFrame(payload));
+		assertEquals(1, counting.framesRead);
+		// The read-ahead task should read four frames and then stop
+		executor.runTasks();
+		assertEquals(5, counting.framesRead);
+		// Reading a frame should allow one more frame to be read ahead
+		assertEquals(1, d.readFrame(payload));
+		assertEquals(5, counting.framesRead);
+		executor.runTasks();
+		assertEquals(6, counting.framesRead);
+	}
+
+	@Test
+	public void testFramesAreReadIfExecutorDiscardsTasks() throws Exception {
+		Executor discard = new Executor() {
+			public void execute(Runnable r) {}
+		};
+		StreamDecrypter d = new ReadAheadStreamDecrypter(discard,
+				new CountingDecrypter(FRAMES, false), MAX_FRAME_LENGTH, 4);
+		byte[] payload = new byte[MAX_PAYLOAD_LENGTH];
+		for(int i = 0; i < FRAMES; i++)
+			assertEquals(i % 256, d.readFrame(payload));
+		assertEquals(-1, d.readFrame(payload));
+	}
+
+	@Override
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Returns frames whose payloads are filled with the frame number, with
+	 * lengths equal to the frame number modulo 256, followed by the end of
+	 * the stream or an exception.
+	 */
+	private static class CountingDecrypter implements StreamDecrypter {
+
+		private final int frames;
+		private final boolean fail;
+
+		private volatile int framesRead = 0;
+
+		private CountingDecrypter(int frames, boolean fail) {
+			this.frames = frames;
+			this.fail = fail;
+		}
+
+		public int readFrame(byte[] payload) throws IOException {
+			int frame = framesRead;
+			if(frame == frames) {
+				if(fail) throw new FormatException();
+				return -1;
+			}
+			int length = frame % 256;
+			for(int i = 0; i < length; i++) payload[i] = (byte) frame;
+			framesRead = frame + 1;
+			return length;
+		}
+	}
+
+	private static class ManualExecutor implements Executor {
+
+		private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+
+		public void execute(Runnable r) {
+			tasks.add(r);
+		}
+
+		private void runTasks() {
+			Runnable r;
+			while((r = tasks.poll()) != null) r.run();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package org.briarproject.transport;
+
+import static org.briarproject.api.transport.TransportConstants.MAX_LARGE_FRAME_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.briarproject.TestDatabaseModule;
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestSystemModule;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.TransportId;
+import org.briarproject.api.transport.StreamContext;
+import org.briarproject.api.transport.StreamReaderFactory;
+import org.briarproject.api.transport.StreamWriterFactory;
+import org.briarproject.crypto.CryptoModule;
+import org.briarproject.db.DatabaseModule;
+import org.briarproject.event.EventModule;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+// Not a JUnit test
+public class StreamPerformanceTest {
+
+	private static final int STREAM_LENGTH = 16 * 1024 * 1024;
+	private static final int WRITE_LENGTH = 4096;
+	private static final int RUNS = 5;
+
+	public static void main(String[] args) throws IOException {
+		Injector i = Guice.createInjector(new TestDatabaseModule(),
+				new TestLifecycleModule(), new TestSystemModule(),
+				new CryptoModule(), new DatabaseModule(), new EventModule(),
+				new TransportModule());
+		StreamWriterFactory writerFactory =
+				i.getInstance(StreamWriterFactory.class);
+		StreamReaderFactory readerFactory =
+				i.getInstance(StreamReaderFactory.class);
+		Random random = new Random();
+		byte[] secret = new byte[32];
+		random.nextBytes(secret);
+		// The reader's context is the writer's context from the other side
+		ContactId contactId = new ContactId(1);
+		TransportId transportId = new TransportId("id");
+		StreamContext writerCtx = new StreamContext(contactId, transportId,
+				secret, 0, true);
+		StreamContext readerCtx = new StreamContext(contactId, transportId,
+				secret, 0, false);
+		byte[] data = new byte[WRITE_LENGTH];
+		random.nextBytes(data);
+		for(boolean large : new boolean[] { false, true }) {
+			System.out.println(large ? "Large frames" : "Small frames");
+			for(int run = 0; run < RUNS; run++) {
+				// Write the stream
+				ByteArrayOutputStream out =
+						new ByteArrayOutputStream(STREAM_LENGTH * 11 / 10);
+				long start = System.nanoTime();
+				OutputStream streamWriter;
+				if(large) {
+					streamWriter = writerFactory.createStreamWriter(out, writerCtx,
+							MAX_LARGE_FRAME_LENGTH);
+				} else {
+					streamWriter = writerFactory.createInvitationStreamWriter(
+							out, secret, true);
+				}
+				for(int written = 0; written < STREAM_LENGTH;
+						written += WRITE_LENGTH) {
+					streamWriter.write(data);
+				}
+				streamWriter.close();
+				long writeNanos = System.nanoTime() - start;
+				// Read the stream back
+				InputStream in = new ByteArrayInputStream(out.toByteArray());
+				start = System.nanoTime();
+				InputStream streamReader;
+				if(large) {
+					if(in.skip(TAG_LENGTH) != TAG_LENGTH)
+						throw new IllegalStateException();
+					streamReader = readerFactory.createStreamReader(in,
+							readerCtx, MAX_LARGE_FRAME_LENGTH);
+				} else {
+					streamReader = readerFactory.createInvitationStreamReader(
+							in, secret, true);
+				}
+				long read = 0;
+				int n;
+				while((n = streamReader.read(data)) != -1) read += n;
+				streamReader.close();
+				long readNanos = System.nanoTime() - start;
+				if(read != STREAM_LENGTH) throw new IllegalStateException();
+				System.out.println("Run " + run + ": write "
+						+ megabytesPerSecond(writeNanos) + " MB/s, read "
+						+ megabytesPerSecond(readNanos) + " MB/s");
+			}
+		}
+	}
+
+	private static long megabytesPerSecond(long nanos) {
+		return STREAM_LENGTH * 1000L * 1000 * 1000 / nanos / (1024 * 1024);
+	}
+}
@@ -1,5 +1,6 @@
 package org.briarproject.transport;
 
+import static org.briarproject.api.transport.TransportConstants.MAX_FRAME_LENGTH;
 import static org.briarproject.api.transport.TransportConstants.MAX_PAYLOAD_LENGTH;
 
 import org.briarproject.BriarTestCase;
@@ -24,7 +25,7 @@ public class StreamReaderImplTest extends BriarTestCase {
 			oneOf(decrypter).readFrame(with(any(byte[].class)));
 			will(returnValue(-1)); // No more frames
 		}});
-		StreamReaderImpl r = new StreamReaderImpl(decrypter);
+		StreamReaderImpl r = new StreamReaderImpl(decrypter, MAX_FRAME_LENGTH);
 		assertEquals(0, r.read()); // Skip the first empty frame, read a byte
 		assertEquals(0, r.read()); // Read another byte
 		assertEquals(-1, r.read()); // Skip the second empty frame, reach EOF
@@ -47,7 +48,7 @@ public class StreamReaderImplTest extends BriarTestCase {
 			oneOf(decrypter).readFrame(with(any(byte[].class)));
 			will(returnValue(-1)); // No more frames
 		}});
-		StreamReaderImpl r = new StreamReaderImpl(decrypter);
+		StreamReaderImpl r = new StreamReaderImpl(decrypter, MAX_FRAME_LENGTH);
 		byte[] buf = new byte[MAX_PAYLOAD_LENGTH];
 		// Skip the first empty frame, read the two payload bytes
 		assertEquals(2, r.read(buf));
@@ -69,7 +70,7 @@ public class StreamReaderImplTest extends BriarTestCase {
 			oneOf(decrypter).readFrame(with(any(byte[].class)));
 			will(returnValue(-1)); // No more frames
 		}});
-		StreamReaderImpl r = new StreamReaderImpl(decrypter);
+		StreamReaderImpl r = new StreamReaderImpl(decrypter, MAX_FRAME_LENGTH);
 		byte[] buf = new byte[MAX_PAYLOAD_LENGTH / 2];
 		// Read the first half of the payload
 		assertEquals(MAX_PAYLOAD_LENGTH / 2, r.read(buf));
@@ -91,7 +92,7 @@ public class StreamReaderImplTest extends BriarTestCase {
 			oneOf(decrypter).readFrame(with(any(byte[].class)));
 			will(returnValue(-1)); // No more frames
 		}});
-		StreamReaderImpl r = new StreamReaderImpl(decrypter);
+		StreamReaderImpl r = new StreamReaderImpl(decrypter, MAX_FRAME_LENGTH);
 		byte[] buf = new byte[MAX_PAYLOAD_LENGTH];
 		// Read the first half of the payload
 		assertEquals(MAX_PAYLOAD_LENGTH / 2, r.read(buf, MAX_PAYLOAD_LENGTH / 2,
@@ -0,0 +1,122 @@
+package org.briarproject.transport;
+
+import static org.briarproject.api.transport.TransportConstants.MAX_FRAME_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAX_PAYLOAD_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.TestUtils;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.TransportId;
+import org.briarproject.api.crypto.StreamEncrypterFactory;
+import org.briarproject.api.transport.StreamContext;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.junit.Test;
+
+public class StreamWriterFactoryImplTest extends BriarTestCase {
+
+	private static final int WRITE_BUFFER_LENGTH = 8 * 1024;
+
+	private final Mockery context;
+	private final StreamEncrypterFactory streamEncrypterFactory;
+	private final StreamContext ctx;
+	private final byte[] tag;
+
+	public StreamWriterFactoryImplTest() {
+		context = new Mockery();
+		streamEncrypterFactory = context.mock(StreamEncrypterFactory.class);
+		ctx = new StreamContext(new ContactId(234), new TransportId("id"),
+				TestUtils.getRandomId(), 0, true);
+		tag = new byte[TAG_LENGTH];
+	}
+
+	@Test
+	public void testFramesAreCollectedIntoLargerWrites() throws Exception {
+		CountingOutputStream out = new CountingOutputStream();
+		OutputStream w = createStreamWriter(out);
+		// Write enough full frames to fill the buffer several times
+		int frames = 4 * WRITE_BUFFER_LENGTH / MAX_FRAME_LENGTH;
+		byte[] payload = new byte[MAX_PAYLOAD_LENGTH];
+		for(int i = 0; i < frames; i++) w.write(payload);
+		// Flushing writes an empty frame
+		w.flush();
+		int length = TAG_LENGTH + (frames + 1) * MAX_FRAME_LENGTH;
+		assertEquals(length, out.size());
+		// Each write should fill the buffer, apart from the last
+		int maxWrites = (length + WRITE_BUFFER_LENGTH - 1)
+				/ WRITE_BUFFER_LENGTH;
+		assertTrue(out.writes <= maxWrites);
+		assertEquals(1, out.flushes);
+		// The bytes should be the same as writing the frames directly
+		ByteArrayOutputStream direct = new ByteArrayOutputStream();
+		TestStreamEncrypter e = new TestStreamEncrypter(direct, tag);
+		for(int i = 0; i < frames; i++)
+			e.writeFrame(payload, MAX_PAYLOAD_LENGTH, 0, false);
+		e.writeFrame(payload, 0, 0, false);
+		assertArrayEquals(direct.toByteArray(), out.toByteArray());
+		context.assertIsSatisfied();
+	}
+
+	@Test
+	public void testFlushingEmptiesTheBuffer() throws Exception {
+		CountingOutputStream out = new CountingOutputStream();
+		OutputStream w = createStreamWriter(out);
+		// Write two full frames, which should stay in the buffer
+		w.write(new byte[MAX_PAYLOAD_LENGTH * 2]);
+		assertEquals(0, out.writes);
+		// Flushing should write the tag, the frames and an empty frame at
+		// once
+		w.flush();
+		assertEquals(1, out.writes);
+		assertEquals(1, out.flushes);
+		assertEquals(TAG_LENGTH + 3 * MAX_FRAME_LENGTH, out.size());
+		context.assertIsSatisfied();
+	}
+
+	private OutputStream createStreamWriter(OutputStream out) {
+		context.checking(new Expectations() {{
+			oneOf(streamEncrypterFactory).createStreamEncrypter(
+					with(any(OutputStream.class)), with(ctx),
+					with(MAX_FRAME_LENGTH));
+			will(new CustomAction("create a stream encrypter") {
+				public Object invoke(Invocation invocation) {
+					OutputStream out = (OutputStream)
+							invocation.getParameter(0);
+					return new TestStreamEncrypter(out, tag);
+				}
+			});
+		}});
+		return new StreamWriterFactoryImpl(streamEncrypterFactory)
+				.createStreamWriter(out, ctx, MAX_FRAME_LENGTH);
+	}
+
+	private static class CountingOutputStream extends ByteArrayOutputStream {
+
+		private int writes = 0, flushes = 0;
+
+		@Override
+		public void write(int b) {
+			writes++;
+			super.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			writes++;
+			super.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			flushes++;
+		}
+	}
+}
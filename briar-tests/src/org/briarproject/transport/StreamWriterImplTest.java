@@ -21,7 +21,7 @@ public class StreamWriterImplTest extends BriarTestCase {
 			// Flush the stream
 			oneOf(encrypter).flush();
 		}});
-		StreamWriterImpl w = new StreamWriterImpl(encrypter);
+		StreamWriterImpl w = new StreamWriterImpl(encrypter, MAX_PAYLOAD_LENGTH);
 		w.close();
 		context.assertIsSatisfied();
 	}
@@ -31,7 +31,7 @@ public class StreamWriterImplTest extends BriarTestCase {
 			throws Exception {
 		Mockery context = new Mockery();
 		final StreamEncrypter encrypter = context.mock(StreamEncrypter.class);
-		StreamWriterImpl w = new StreamWriterImpl(encrypter);
+		StreamWriterImpl w = new StreamWriterImpl(encrypter, MAX_PAYLOAD_LENGTH);
 		context.checking(new Expectations() {{
 			// Write a non-final frame with an empty payload
 			oneOf(encrypter).writeFrame(with(any(byte[].class)), with(0),
@@ -58,7 +58,7 @@ public class StreamWriterImplTest extends BriarTestCase {
 			throws Exception {
 		Mockery context = new Mockery();
 		final StreamEncrypter encrypter = context.mock(StreamEncrypter.class);
-		StreamWriterImpl w = new StreamWriterImpl(encrypter);
+		StreamWriterImpl w = new StreamWriterImpl(encrypter, MAX_PAYLOAD_LENGTH);
 		context.checking(new Expectations() {{
 			// Write a non-final frame with one payload byte
 			oneOf(encrypter).writeFrame(with(any(byte[].class)), with(1),
@@ -85,7 +85,7 @@ public class StreamWriterImplTest extends BriarTestCase {
 	public void testSingleByteWritesWriteFullFrame() throws Exception {
 		Mockery context = new Mockery();
 		final StreamEncrypter encrypter = context.mock(StreamEncrypter.class);
-		StreamWriterImpl w = new StreamWriterImpl(encrypter);
+		StreamWriterImpl w = new StreamWriterImpl(encrypter, MAX_PAYLOAD_LENGTH);
 		context.checking(new Expectations() {{
 			// Write a full non-final frame
 			oneOf(encrypter).writeFrame(with(any(byte[].class)),
@@ -109,7 +109,7 @@ public class StreamWriterImplTest extends BriarTestCase {
 	public void testMultiByteWritesWriteFullFrames() throws Exception {
 		Mockery context = new Mockery();
 		final StreamEncrypter encrypter = context.mock(StreamEncrypter.class);
-		StreamWriterImpl w = new StreamWriterImpl(encrypter);
+		StreamWriterImpl w = new StreamWriterImpl(encrypter, MAX_PAYLOAD_LENGTH);
 		context.checking(new Expectations() {{
 			// Write two full non-final frames
 			exactly(2).of(encrypter).writeFrame(with(any(byte[].class)),
@@ -140,7 +140,7 @@ public class StreamWriterImplTest extends BriarTestCase {
 	public void testLargeMultiByteWriteWritesFullFrames() throws Exception {
 		Mockery context = new Mockery();
 		final StreamEncrypter encrypter = context.mock(StreamEncrypter.class);
-		StreamWriterImpl w = new StreamWriterImpl(encrypter);
+		StreamWriterImpl w = new StreamWriterImpl(encrypter, MAX_PAYLOAD_LENGTH);
 		context.checking(new Expectations() {{
 			// Write two full non-final frames
 			exactly(2).of(encrypter).writeFrame(with(any(byte[].class)),
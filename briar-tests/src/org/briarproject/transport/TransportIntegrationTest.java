@@ -1,6 +1,7 @@
 package org.briarproject.transport;
 
 import static org.briarproject.api.transport.TransportConstants.MAX_FRAME_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAX_PAYLOAD_LENGTH;
 import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
 import static org.junit.Assert.assertArrayEquals;
 
@@ -46,7 +47,8 @@ public class TransportIntegrationTest extends BriarTestCase {
 		// Write the tag and the frames
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypter encrypter = new TestStreamEncrypter(out, tag);
-		OutputStream streamWriter = new StreamWriterImpl(encrypter);
+		OutputStream streamWriter = new StreamWriterImpl(encrypter,
+				MAX_PAYLOAD_LENGTH);
 		streamWriter.write(payload1);
 		streamWriter.flush();
 		streamWriter.write(payload2);
@@ -60,7 +62,8 @@ public class TransportIntegrationTest extends BriarTestCase {
 		assertArrayEquals(tag, recoveredTag);
 		// Read the frames back
 		StreamDecrypter decrypter = new TestStreamDecrypter(in);
-		InputStream streamReader = new StreamReaderImpl(decrypter);
+		InputStream streamReader = new StreamReaderImpl(decrypter,
+				MAX_FRAME_LENGTH);
 		byte[] recoveredPayload1 = new byte[payload1.length];
 		read(streamReader, recoveredPayload1);
 		assertArrayEquals(payload1, recoveredPayload1);
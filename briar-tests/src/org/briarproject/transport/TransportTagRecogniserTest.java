@@ -1,18 +1,36 @@
 package org.briarproject.transport;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.briarproject.api.transport.TransportConstants.REORDERING_WINDOW_SIZE;
 import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
 import static org.junit.Assert.assertArrayEquals;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 
 import org.briarproject.BriarTestCase;
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestSystemModule;
 import org.briarproject.api.ContactId;
 import org.briarproject.api.TransportId;
 import org.briarproject.api.crypto.CryptoComponent;
 import org.briarproject.api.crypto.SecretKey;
+import org.briarproject.api.crypto.TagEncoder;
 import org.briarproject.api.db.DatabaseComponent;
 import org.briarproject.api.transport.StreamContext;
 import org.briarproject.api.transport.TemporarySecret;
+import org.briarproject.crypto.CryptoModule;
 import org.briarproject.util.ByteUtils;
 import org.hamcrest.Description;
 import org.jmock.Expectations;
@@ -21,8 +39,13 @@ import org.jmock.api.Action;
 import org.jmock.api.Invocation;
 import org.junit.Test;
 
+import com.google.inject.Guice;
+
 public class TransportTagRecogniserTest extends BriarTestCase {
 
+	private static final int ITERATIONS = 100, THREADS = 8;
+	private static final int TIMEOUT = 60 * 1000; // 1 minute
+
 	private final ContactId contactId = new ContactId(234);
 	private final TransportId transportId = new TransportId("id");
 	private final SecretKey tagKey = new SecretKey(new byte[32]);
@@ -31,6 +54,7 @@ public class TransportTagRecogniserTest extends BriarTestCase {
 	public void testAddAndRemoveSecret() {
 		Mockery context = new Mockery();
 		final CryptoComponent crypto = context.mock(CryptoComponent.class);
+		final TagEncoder encoder = context.mock(TagEncoder.class);
 		final byte[] secret = new byte[32];
 		new Random().nextBytes(secret);
 		final boolean alice = false;
@@ -39,16 +63,16 @@ public class TransportTagRecogniserTest extends BriarTestCase {
 			// Add secret
 			oneOf(crypto).deriveTagKey(secret, !alice);
 			will(returnValue(tagKey));
+			oneOf(crypto).getTagEncoder(tagKey);
+			will(returnValue(encoder));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(tagKey),
+				oneOf(encoder).encodeTag(with(any(byte[].class)),
 						with((long) i));
 				will(new EncodeTagAction());
 			}
 			// Remove secret
-			oneOf(crypto).deriveTagKey(secret, !alice);
-			will(returnValue(tagKey));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(tagKey),
+				oneOf(encoder).encodeTag(with(any(byte[].class)),
 						with((long) i));
 				will(new EncodeTagAction());
 			}
@@ -66,6 +90,7 @@ public class TransportTagRecogniserTest extends BriarTestCase {
 	public void testRecogniseTag() throws Exception {
 		Mockery context = new Mockery();
 		final CryptoComponent crypto = context.mock(CryptoComponent.class);
+		final TagEncoder encoder = context.mock(TagEncoder.class);
 		final byte[] secret = new byte[32];
 		new Random().nextBytes(secret);
 		final boolean alice = false;
@@ -74,17 +99,15 @@ public class TransportTagRecogniserTest extends BriarTestCase {
 			// Add secret
 			oneOf(crypto).deriveTagKey(secret, !alice);
 			will(returnValue(tagKey));
+			oneOf(crypto).getTagEncoder(tagKey);
+			will(returnValue(encoder));
 			for(int i = 0; i < 16; i++) {
-				oneOf(crypto).encodeTag(with(any(byte[].class)), with(tagKey),
+				oneOf(encoder).encodeTag(with(any(byte[].class)),
 						with((long) i));
 				will(new EncodeTagAction());
 			}
-			// Recognise tag 0
-			oneOf(crypto).deriveTagKey(secret, !alice);
-			will(returnValue(tagKey));
-			// The window should slide to include tag 16
-			oneOf(crypto).encodeTag(with(any(byte[].class)), with(tagKey),
-					with(16L));
+			// Recognise tag 0 - the window should slide to include tag 16
+			oneOf(encoder).encodeTag(with(any(byte[].class)), with(16L));
 			will(new EncodeTagAction());
 			// The updated window should be stored
 			oneOf(db).setReorderingWindow(contactId, transportId, 0, 1,
@@ -110,6 +133,165 @@ public class TransportTagRecogniserTest extends BriarTestCase {
 		context.assertIsSatisfied();
 	}
 
+	@Test
+	public void testUnexpectedTagsAreRejectedWhileWindowIsStored()
+			throws Exception {
+		CryptoComponent crypto = createCryptoComponent();
+		final StoringDatabase storing = new StoringDatabase(contactId);
+		final TransportTagRecogniser recogniser = new TransportTagRecogniser(
+				crypto, storing.createProxy(), transportId);
+		TemporarySecret s = createSecret(contactId);
+		recogniser.addSecret(s);
+		ContactId contactId1 = new ContactId(345);
+		TemporarySecret s1 = createSecret(contactId1);
+		recogniser.addSecret(s1);
+		// Recognise a tag on another thread and block while storing the window
+		final byte[] tag = encodeTag(crypto, s, 0);
+		final Queue<StreamContext> recognised =
+				new ConcurrentLinkedQueue<StreamContext>();
+		final Queue<Exception> errors = new ConcurrentLinkedQueue<Exception>();
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					recognised.add(recogniser.recogniseTag(tag));
+				} catch(Exception e) {
+					errors.add(e);
+				}
+			}
+		};
+		t.start();
+		assertTrue(storing.blocked.await(TIMEOUT, SECONDS));
+		// Unexpected tags should still be rejected
+		byte[] unexpected = new byte[TAG_LENGTH];
+		new Random().nextBytes(unexpected);
+		assertNull(recogniser.recogniseTag(unexpected));
+		// Tags for other secrets should still be recognised and stored
+		StreamContext ctx = recogniser.recogniseTag(encodeTag(crypto, s1, 0));
+		assertNotNull(ctx);
+		assertEquals(contactId1, ctx.getContactId());
+		assertEquals(1, storing.stores.size());
+		// Secrets should still be added and removed
+		recogniser.addSecret(createSecret(new ContactId(456)));
+		recogniser.removeSecrets(new ContactId(456));
+		// Let the blocked thread finish storing the window
+		storing.release.countDown();
+		t.join(TIMEOUT);
+		assertFalse("Deadlock", t.isAlive());
+		if(!errors.isEmpty()) throw errors.peek();
+		assertEquals(1, recognised.size());
+		assertEquals(0, recognised.peek().getStreamNumber());
+		assertEquals(2, storing.stores.size());
+	}
+
+	@Test
+	public void testConcurrentRecognitionStoresLatestWindow()
+			throws Exception {
+		CryptoComponent crypto = createCryptoComponent();
+		for(int i = 0; i < ITERATIONS; i++) {
+			StoringDatabase storing = new StoringDatabase(null);
+			final TransportTagRecogniser recogniser =
+					new TransportTagRecogniser(crypto, storing.createProxy(),
+							transportId);
+			TemporarySecret s = createSecret(contactId);
+			recogniser.addSecret(s);
+			// Recognise a different tag on each thread
+			List<byte[]> tags = new ArrayList<byte[]>();
+			for(int j = 0; j < THREADS; j++)
+				tags.add(encodeTag(crypto, s, j));
+			Collection<StreamContext> recognised =
+					recogniseConcurrently(recogniser, tags);
+			Set<Long> streamNumbers = new HashSet<Long>();
+			for(StreamContext ctx : recognised) {
+				assertNotNull(ctx);
+				streamNumbers.add(ctx.getStreamNumber());
+			}
+			assertEquals(THREADS, streamNumbers.size());
+			// The last window stored should include all the tags
+			ReorderingWindow expected = new ReorderingWindow(0,
+					new byte[REORDERING_WINDOW_SIZE / 8]);
+			for(long j = 0; j < THREADS; j++) expected.setSeen(j);
+			assertEquals(THREADS, storing.stores.size());
+			Window last = storing.stores.get(THREADS - 1);
+			assertEquals(expected.getCentre(), last.centre);
+			assertArrayEquals(expected.getBitmap(), last.bitmap);
+		}
+	}
+
+	@Test
+	public void testConcurrentRecognitionOfSameTag() throws Exception {
+		CryptoComponent crypto = createCryptoComponent();
+		for(int i = 0; i < ITERATIONS; i++) {
+			StoringDatabase storing = new StoringDatabase(null);
+			TransportTagRecogniser recogniser = new TransportTagRecogniser(
+					crypto, storing.createProxy(), transportId);
+			TemporarySecret s = createSecret(contactId);
+			recogniser.addSecret(s);
+			// Try to recognise the same tag on every thread
+			List<byte[]> tags = new ArrayList<byte[]>();
+			for(int j = 0; j < THREADS; j++) tags.add(encodeTag(crypto, s, 0));
+			int count = 0;
+			for(StreamContext ctx : recogniseConcurrently(recogniser, tags))
+				if(ctx != null) count++;
+			assertEquals(1, count);
+			assertEquals(1, storing.stores.size());
+		}
+	}
+
+	private CryptoComponent createCryptoComponent() {
+		return Guice.createInjector(new CryptoModule(),
+				new TestLifecycleModule(), new TestSystemModule()).getInstance(
+						CryptoComponent.class);
+	}
+
+	private TemporarySecret createSecret(ContactId c) {
+		byte[] secret = new byte[32];
+		new Random().nextBytes(secret);
+		return new TemporarySecret(c, transportId, 123, false, 0, secret);
+	}
+
+	// Encodes the tag the recogniser expects for the given stream number
+	private byte[] encodeTag(CryptoComponent crypto, TemporarySecret s,
+			long streamNumber) {
+		SecretKey key = crypto.deriveTagKey(s.getSecret(), !s.getAlice());
+		byte[] tag = new byte[TAG_LENGTH];
+		crypto.getTagEncoder(key).encodeTag(tag, streamNumber);
+		return tag;
+	}
+
+	// Recognises each tag on its own thread, starting the threads together
+	private Collection<StreamContext> recogniseConcurrently(
+			final TransportTagRecogniser recogniser, List<byte[]> tags)
+			throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<StreamContext> recognised =
+				Collections.synchronizedList(new ArrayList<StreamContext>());
+		final Queue<Exception> errors = new ConcurrentLinkedQueue<Exception>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(final byte[] tag : tags) {
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						recognised.add(recogniser.recogniseTag(tag));
+					} catch(Exception e) {
+						errors.add(e);
+					}
+				}
+			};
+			t.start();
+			threads.add(t);
+		}
+		start.countDown();
+		for(Thread t : threads) {
+			t.join(TIMEOUT);
+			assertFalse("Deadlock", t.isAlive());
+		}
+		if(!errors.isEmpty()) throw errors.peek();
+		return recognised;
+	}
+
 	private static class EncodeTagAction implements Action {
 
 		public void describeTo(Description description) {
@@ -118,10 +300,55 @@ public class TransportTagRecogniserTest extends BriarTestCase {
 
 		public Object invoke(Invocation invocation) throws Throwable {
 			byte[] tag = (byte[]) invocation.getParameter(0);
-			long streamNumber = (Long) invocation.getParameter(2);
+			long streamNumber = (Long) invocation.getParameter(1);
 			// Encode a fake tag based on the stream number
 			ByteUtils.writeUint32(streamNumber, tag, 0);
 			return null;
 		}
 	}
+
+	private static class Window {
+
+		private final long centre;
+		private final byte[] bitmap;
+
+		private Window(long centre, byte[] bitmap) {
+			this.centre = centre;
+			this.bitmap = bitmap;
+		}
+	}
+
+	// A database that records the reordering windows it stores, and blocks
+	// while storing the first window for the given contact, if any
+	private class StoringDatabase implements InvocationHandler {
+
+		private final ContactId blockedContactId;
+		private final CountDownLatch blocked = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+		private final List<Window> stores =
+				Collections.synchronizedList(new ArrayList<Window>());
+
+		private StoringDatabase(ContactId blockedContactId) {
+			this.blockedContactId = blockedContactId;
+		}
+
+		private DatabaseComponent createProxy() {
+			return (DatabaseComponent) Proxy.newProxyInstance(
+					getClass().getClassLoader(),
+					new Class<?>[] { DatabaseComponent.class }, this);
+		}
+
+		public Object invoke(Object proxy, Method m, Object[] args)
+				throws Throwable {
+			if(!m.getName().equals("setReorderingWindow"))
+				throw new UnsupportedOperationException(m.getName());
+			assertEquals(transportId, args[1]);
+			if(args[0].equals(blockedContactId) && blocked.getCount() > 0) {
+				blocked.countDown();
+				assertTrue(release.await(TIMEOUT, SECONDS));
+			}
+			stores.add(new Window((Long) args[3], (byte[]) args[4]));
+			return null;
+		}
+	}
 }
@@ -0,0 +1,88 @@
+package org.briarproject.transport;
+
+import static org.briarproject.api.transport.TransportConstants.MAX_FRAME_LENGTH;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+
+import org.briarproject.TestDatabaseModule;
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestSystemModule;
+import org.briarproject.TestUtils;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.TransportId;
+import org.briarproject.api.messaging.Ack;
+import org.briarproject.api.messaging.MessageId;
+import org.briarproject.api.messaging.PacketWriter;
+import org.briarproject.api.messaging.PacketWriterFactory;
+import org.briarproject.api.transport.StreamContext;
+import org.briarproject.api.transport.StreamWriterFactory;
+import org.briarproject.crypto.CryptoModule;
+import org.briarproject.data.SerialModule;
+import org.briarproject.db.DatabaseModule;
+import org.briarproject.event.EventModule;
+import org.briarproject.messaging.MessagingModule;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+// Not a JUnit test
+public class WriteCoalescingPerformanceTest {
+
+	private static final int PAIRS = 1000;
+	private static final int MESSAGE_LENGTH = 200;
+
+	public static void main(String[] args) throws IOException {
+		Injector i = Guice.createInjector(new TestDatabaseModule(),
+				new TestLifecycleModule(), new TestSystemModule(),
+				new CryptoModule(), new DatabaseModule(), new EventModule(),
+				new MessagingModule(), new SerialModule(),
+				new TransportModule());
+		StreamWriterFactory streamWriterFactory =
+				i.getInstance(StreamWriterFactory.class);
+		PacketWriterFactory packetWriterFactory =
+				i.getInstance(PacketWriterFactory.class);
+		StreamContext ctx = new StreamContext(new ContactId(1),
+				new TransportId("id"), TestUtils.getRandomId(), 0, true);
+		byte[] message = new byte[MESSAGE_LENGTH];
+		Ack ack = new Ack(Collections.singletonList(
+				new MessageId(TestUtils.getRandomId())));
+		for(boolean flushEachPair : new boolean[] { true, false }) {
+			// Write pairs of messages and acks to a stream that counts the
+			// writes reaching the transport
+			CountingOutputStream out = new CountingOutputStream();
+			OutputStream streamWriter = streamWriterFactory.createStreamWriter(
+					out, ctx, MAX_FRAME_LENGTH);
+			PacketWriter w = packetWriterFactory.createPacketWriter(
+					streamWriter);
+			for(int pair = 0; pair < PAIRS; pair++) {
+				w.writeMessage(message);
+				w.writeAck(ack);
+				if(flushEachPair) w.flush();
+			}
+			w.flush();
+			System.out.println((flushEachPair ? "Flushing after each pair: "
+					: "Flushing at the end: ") + out.writes + " writes, "
+					+ out.bytes + " bytes");
+		}
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+
+		private int writes = 0;
+		private long bytes = 0;
+
+		@Override
+		public void write(int b) {
+			writes++;
+			bytes++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			writes++;
+			bytes += len;
+		}
+	}
+}
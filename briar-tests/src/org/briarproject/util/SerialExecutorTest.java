@@ -0,0 +1,118 @@
+package org.briarproject.util;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.briarproject.BriarTestCase;
+import org.junit.After;
+import org.junit.Test;
+
+public class SerialExecutorTest extends BriarTestCase {
+
+	private static final int TASKS = 1000;
+
+	private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+	@Test
+	public void testTasksRunInOrder() throws Exception {
+		SerialExecutor executor = new SerialExecutor(pool);
+		final List<Integer> order =
+				Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch finished = new CountDownLatch(TASKS);
+		for(int i = 0; i < TASKS; i++) {
+			final int task = i;
+			executor.execute(new Runnable() {
+				public void run() {
+					order.add(task);
+					finished.countDown();
+				}
+			});
+		}
+		assertTrue(finished.await(10, SECONDS));
+		for(int i = 0; i < TASKS; i++) assertEquals(i, (int) order.get(i));
+	}
+
+	@Test
+	public void testTasksDoNotRunConcurrently() throws Exception {
+		SerialExecutor executor = new SerialExecutor(pool);
+		final AtomicInteger running = new AtomicInteger(0);
+		final AtomicBoolean error = new AtomicBoolean(false);
+		final CountDownLatch finished = new CountDownLatch(TASKS);
+		for(int i = 0; i < TASKS; i++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					if(running.incrementAndGet() != 1) error.set(true);
+					Thread.yield();
+					running.decrementAndGet();
+					finished.countDown();
+				}
+			});
+		}
+		assertTrue(finished.await(10, SECONDS));
+		assertFalse(error.get());
+	}
+
+	@Test
+	public void testDifferentExecutorsCanRunConcurrently() throws Exception {
+		SerialExecutor first = new SerialExecutor(pool);
+		SerialExecutor second = new SerialExecutor(pool);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch unblocked = new CountDownLatch(1);
+		// The first executor's task blocks until the second executor's
+		// task has run
+		first.execute(new Runnable() {
+			public void run() {
+				try {
+					blocked.await();
+					unblocked.countDown();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		second.execute(new Runnable() {
+			public void run() {
+				blocked.countDown();
+			}
+		});
+		assertTrue(unblocked.await(10, SECONDS));
+	}
+
+	@Test
+	public void testExceptionDoesNotStopLaterTasks() throws Exception {
+		// Don't let the exception reach the worker thread's handler
+		SerialExecutor executor = new SerialExecutor(new Executor() {
+			public void execute(Runnable r) {
+				pool.submit(r);
+			}
+		});
+		final CountDownLatch finished = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+			public void run() {
+				throw new RuntimeException();
+			}
+		});
+		executor.execute(new Runnable() {
+			public void run() {
+				finished.countDown();
+			}
+		});
+		assertTrue(finished.await(10, SECONDS));
+		assertEquals(0, executor.getQueueSize());
+	}
+
+	@Override
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+}